@@ -0,0 +1,521 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.cache;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Pattern;
+
+import org.jclouds.openstack.glance.v1_0.domain.ImageDetails;
+import org.jclouds.openstack.glance.v1_0.download.ParallelImageDownloader;
+import org.jclouds.openstack.glance.v1_0.features.ImageApi;
+import org.jclouds.rest.ResourceNotFoundException;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Keeps the data of images in a local directory, so that an image is downloaded once instead of every time it is
+ * used.
+ * <p/>
+ * Entries are named after the MD5 {@link ImageDetails#getChecksum() checksum} of the image data. Every
+ * {@link #open(String)} checks the current checksum and size of the image with a HEAD request, so an image whose data
+ * changed is downloaded again rather than served stale, and images with the same data share one entry. Concurrent
+ * opens of a missing entry download it once; the other callers wait for that download. When the entries add up to
+ * more than {@link Builder#maxBytes(long)}, the least recently opened ones that are not open are deleted.
+ * <p/>
+ * Cached images are read through memory-mapped regions of the file; see {@link CachedImage#openStream()}.
+ */
+@Beta
+public class ImageCache {
+
+   private static final Pattern ENTRY = Pattern.compile("[0-9a-f]{32}");
+   private static final Pattern DOWNLOAD = Pattern.compile("[0-9a-f]{32}\\.download(\\.part|\\.progress)?");
+   private static final int REGION_SIZE = 64 * 1024 * 1024;
+
+   private final ImageApi api;
+   private final File directory;
+   private final long maxBytes;
+   private final ParallelImageDownloader downloader;
+
+   // guarded by this
+   private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+   private final Map<String, SettableFuture<Entry>> inFlight = Maps.newHashMap();
+   private long bytes;
+   private long hits;
+   private long misses;
+   private long evictions;
+
+   protected ImageCache(Builder builder) throws IOException {
+      this.api = builder.api;
+      this.directory = builder.directory;
+      this.maxBytes = builder.maxBytes;
+      this.downloader = builder.downloader;
+      Files.createDirectories(directory.toPath());
+      load();
+   }
+
+   /**
+    * Picks up the entries a previous cache left in the directory, least recently used first, and deletes unfinished
+    * downloads, including the partial data and progress a {@link ParallelImageDownloader} keeps to resume them.
+    */
+   private void load() throws IOException {
+      File[] files = directory.listFiles();
+      checkState(files != null, "cannot list %s", directory);
+      Arrays.sort(files, new Comparator<File>() {
+         @Override
+         public int compare(File left, File right) {
+            return Long.compare(left.lastModified(), right.lastModified());
+         }
+      });
+      synchronized (this) {
+         for (File file : files) {
+            if (ENTRY.matcher(file.getName()).matches()) {
+               entries.put(file.getName(), new Entry(file.getName(), file.length()));
+               bytes += file.length();
+            } else if (DOWNLOAD.matcher(file.getName()).matches()) {
+               Files.deleteIfExists(file.toPath());
+            }
+         }
+         evict();
+      }
+   }
+
+   /**
+    * Opens the data of an image, downloading it first if it is not cached. The entry is not evicted until the
+    * returned image is closed.
+    *
+    * @throws ResourceNotFoundException if the image does not exist.
+    * @throws IllegalStateException if the image has no data or checksum yet.
+    * @throws IOException if the image could not be downloaded, or its data does not match its checksum.
+    */
+   public CachedImage open(String id) throws IOException {
+      checkNotNull(id, "id");
+      ImageDetails image = api.get(id);
+      if (image == null) {
+         throw new ResourceNotFoundException("image " + id + " does not exist");
+      }
+      checkState(image.getChecksum().isPresent() && image.getSize().isPresent(), "image %s has no data yet", id);
+      String key = image.getChecksum().get().toLowerCase();
+      long size = image.getSize().get();
+
+      SettableFuture<Entry> download;
+      boolean downloading;
+      synchronized (this) {
+         Entry entry = entries.get(key);
+         if (entry != null && entry.size == size && file(key).isFile()) {
+            hits++;
+            return pin(image, entry);
+         } else if (entry != null) {
+            remove(entry);
+         }
+         misses++;
+         download = inFlight.get(key);
+         downloading = download == null;
+         if (downloading) {
+            download = SettableFuture.create();
+            inFlight.put(key, download);
+         }
+      }
+      if (!downloading) {
+         return waitFor(image, download);
+      }
+
+      try {
+         Entry entry = download(image, key, size);
+         CachedImage cached;
+         synchronized (this) {
+            inFlight.remove(key);
+            entries.put(key, entry);
+            bytes += entry.size;
+            cached = pin(image, entry);
+            evict();
+         }
+         download.set(entry);
+         return cached;
+      } catch (IOException e) {
+         failed(key, download, e);
+         throw e;
+      } catch (RuntimeException e) {
+         failed(key, download, e);
+         throw e;
+      }
+   }
+
+   private synchronized void failed(String key, SettableFuture<Entry> download, Exception e) {
+      inFlight.remove(key);
+      download.setException(e);
+   }
+
+   private CachedImage waitFor(ImageDetails image, SettableFuture<Entry> download) throws IOException {
+      Entry entry;
+      try {
+         entry = Uninterruptibles.getUninterruptibly(download);
+      } catch (ExecutionException e) {
+         Throwables.propagateIfPossible(e.getCause(), IOException.class);
+         throw new IOException(e.getCause());
+      }
+      synchronized (this) {
+         if (entries.get(entry.key) == entry) {
+            return pin(image, entry);
+         }
+      }
+      // evicted before this caller got to it
+      return open(image.getId());
+   }
+
+   /**
+    * Downloads to a file named after the checksum, so that a {@link ParallelImageDownloader} resumes a download that
+    * failed earlier. Only one download per checksum runs at a time.
+    */
+   private Entry download(ImageDetails image, String key, long size) throws IOException {
+      File temp = new File(directory, key + ".download");
+      try {
+         String checksum;
+         if (downloader != null) {
+            checksum = downloader.download(image.getId(), temp).getChecksum().orNull();
+         } else {
+            checksum = copy(image.getId(), temp);
+         }
+         if (!key.equalsIgnoreCase(checksum) || temp.length() != size) {
+            // not worth resuming
+            Files.deleteIfExists(new File(temp.getPath() + ".part").toPath());
+            Files.deleteIfExists(new File(temp.getPath() + ".progress").toPath());
+            throw new IOException(String.format("image %s downloaded with checksum %s instead of %s", image.getId(),
+                  checksum, key));
+         }
+         Files.move(temp.toPath(), file(key).toPath(), StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+         return new Entry(key, size);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException("interrupted while downloading image " + image.getId(), e);
+      } finally {
+         Files.deleteIfExists(temp.toPath());
+      }
+   }
+
+   private String copy(String id, File temp) throws IOException {
+      InputStream in = api.getAsStream(id);
+      if (in == null) {
+         throw new ResourceNotFoundException("image " + id + " does not exist");
+      }
+      HashingInputStream hashing = new HashingInputStream(Hashing.md5(), in);
+      try {
+         Files.copy(hashing, temp.toPath());
+      } finally {
+         Closeables.closeQuietly(hashing);
+      }
+      return hashing.hash().toString();
+   }
+
+   // guarded by this
+   private CachedImage pin(ImageDetails image, Entry entry) {
+      entry.pins++;
+      File file = file(entry.key);
+      // keeps the order of the entries when the cache is loaded again
+      file.setLastModified(System.currentTimeMillis());
+      return new CachedImage(image, entry, file);
+   }
+
+   private synchronized void unpin(Entry entry) {
+      entry.pins--;
+      evict();
+   }
+
+   // guarded by this
+   private void evict() {
+      for (Iterator<Entry> it = entries.values().iterator(); bytes > maxBytes && it.hasNext(); ) {
+         Entry entry = it.next();
+         if (entry.pins == 0) {
+            it.remove();
+            bytes -= entry.size;
+            file(entry.key).delete();
+            evictions++;
+         }
+      }
+   }
+
+   /**
+    * Forgets an entry so that it is downloaded again. The file of an entry that is still open is left in place for its
+    * readers; the download replaces it with an atomic move, which does not disturb files that are already open.
+    */
+   // guarded by this
+   private void remove(Entry entry) {
+      entries.remove(entry.key);
+      bytes -= entry.size;
+      if (entry.pins == 0) {
+         file(entry.key).delete();
+      }
+   }
+
+   private File file(String key) {
+      return new File(directory, key);
+   }
+
+   public synchronized Stats getStats() {
+      return new Stats(entries.size(), bytes, hits, misses, evictions);
+   }
+
+   @Override
+   public String toString() {
+      return MoreObjects.toStringHelper(this).add("directory", directory).add("maxBytes", maxBytes).toString();
+   }
+
+   private static class Entry {
+      private final String key;
+      private final long size;
+      // guarded by the cache
+      private int pins;
+
+      private Entry(String key, long size) {
+         this.key = key;
+         this.size = size;
+      }
+   }
+
+   /**
+    * The cached data of an image. It stays in the cache at least until it is closed.
+    */
+   public class CachedImage implements Closeable {
+      private final ImageDetails image;
+      private final Entry entry;
+      private final File file;
+      private boolean closed;
+
+      private CachedImage(ImageDetails image, Entry entry, File file) {
+         this.image = image;
+         this.entry = entry;
+         this.file = file;
+      }
+
+      /**
+       * @return The details of the image, as of the HEAD request that opened it.
+       */
+      public ImageDetails getDetails() {
+         return image;
+      }
+
+      /**
+       * @return The cached file, which must not be modified.
+       */
+      public File getFile() {
+         return file;
+      }
+
+      /**
+       * Reads the data through memory-mapped regions of the file, so that images opened over and over are served
+       * from the page cache without copying them through heap buffers.
+       */
+      public InputStream openStream() throws IOException {
+         return new MappedInputStream(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+      }
+
+      @Override
+      public synchronized void close() {
+         if (!closed) {
+            closed = true;
+            unpin(entry);
+         }
+      }
+
+      @Override
+      public String toString() {
+         return MoreObjects.toStringHelper(this).add("id", image.getId()).add("checksum", entry.key)
+               .add("size", entry.size).toString();
+      }
+   }
+
+   /**
+    * Reads a file one mapped region at a time.
+    */
+   private static class MappedInputStream extends InputStream {
+      private final FileChannel channel;
+      private final long size;
+      private long position;
+      private MappedByteBuffer region;
+
+      private MappedInputStream(FileChannel channel) throws IOException {
+         this.channel = channel;
+         this.size = channel.size();
+      }
+
+      private boolean fill() throws IOException {
+         if (region != null && region.hasRemaining()) {
+            return true;
+         }
+         if (position >= size) {
+            return false;
+         }
+         long length = Math.min(REGION_SIZE, size - position);
+         region = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+         position += length;
+         return true;
+      }
+
+      @Override
+      public int read() throws IOException {
+         return fill() ? region.get() & 0xff : -1;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         if (len == 0) {
+            return 0;
+         }
+         if (!fill()) {
+            return -1;
+         }
+         int read = Math.min(len, region.remaining());
+         region.get(b, off, read);
+         return read;
+      }
+
+      @Override
+      public int available() {
+         return region != null ? region.remaining() : 0;
+      }
+
+      @Override
+      public void close() throws IOException {
+         region = null;
+         channel.close();
+      }
+   }
+
+   public static class Stats {
+      private final int entries;
+      private final long bytes;
+      private final long hits;
+      private final long misses;
+      private final long evictions;
+
+      protected Stats(int entries, long bytes, long hits, long misses, long evictions) {
+         this.entries = entries;
+         this.bytes = bytes;
+         this.hits = hits;
+         this.misses = misses;
+         this.evictions = evictions;
+      }
+
+      /**
+       * @return The number of cached images.
+       */
+      public int getEntries() {
+         return entries;
+      }
+
+      /**
+       * @return The total size of the cached images.
+       */
+      public long getBytes() {
+         return bytes;
+      }
+
+      /**
+       * @return How many opens found the image in the cache.
+       */
+      public long getHits() {
+         return hits;
+      }
+
+      /**
+       * @return How many opens downloaded the image, or waited for another open to download it.
+       */
+      public long getMisses() {
+         return misses;
+      }
+
+      /**
+       * @return How many images were deleted to stay within the maximum size.
+       */
+      public long getEvictions() {
+         return evictions;
+      }
+
+      @Override
+      public String toString() {
+         return MoreObjects.toStringHelper(this).add("entries", entries).add("bytes", bytes).add("hits", hits)
+               .add("misses", misses).add("evictions", evictions).toString();
+      }
+   }
+
+   public static Builder builder(ImageApi api, File directory) {
+      return new Builder(api, directory);
+   }
+
+   public static class Builder {
+      protected final ImageApi api;
+      protected final File directory;
+      protected long maxBytes = 20L * 1024 * 1024 * 1024;
+      protected ParallelImageDownloader downloader;
+
+      protected Builder(ImageApi api, File directory) {
+         this.api = checkNotNull(api, "api");
+         this.directory = checkNotNull(directory, "directory");
+      }
+
+      /**
+       * The total size of the cached images, beyond which the least recently used ones are deleted. Images that are
+       * open are kept, so the cache can exceed it while they are. Defaults to 20 GB.
+       */
+      public Builder maxBytes(long maxBytes) {
+         checkArgument(maxBytes > 0, "maxBytes must be positive");
+         this.maxBytes = maxBytes;
+         return this;
+      }
+
+      /**
+       * Downloads missing images with parallel range requests, instead of a single {@link ImageApi#getAsStream}.
+       */
+      public Builder downloader(ParallelImageDownloader downloader) {
+         this.downloader = checkNotNull(downloader, "downloader");
+         return this;
+      }
+
+      /**
+       * @throws IOException if the directory cannot be created or read.
+       */
+      public ImageCache build() throws IOException {
+         return new ImageCache(this);
+      }
+   }
+}
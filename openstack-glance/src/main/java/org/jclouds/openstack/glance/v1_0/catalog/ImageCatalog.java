@@ -0,0 +1,420 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.catalog;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Iterables.getOnlyElement;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.json.Json;
+import org.jclouds.json.config.GsonModule;
+import org.jclouds.openstack.glance.v1_0.domain.Image;
+import org.jclouds.openstack.glance.v1_0.domain.ImageDetails;
+import org.jclouds.openstack.glance.v1_0.features.ImageApi;
+import org.jclouds.openstack.glance.v1_0.options.ListImageOptions;
+import org.jclouds.openstack.v2_0.domain.PaginatedCollection;
+import org.jclouds.openstack.v2_0.options.PaginationOptions;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.MapDifference;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Guice;
+
+/**
+ * A local replica of the image details of a region, for lookups that would otherwise page through
+ * {@link ImageApi#listInDetail()}.
+ * <p/>
+ * The first {@link #refresh()} lists every image. Later ones only ask for the images that changed since the newest
+ * update or deletion seen so far, with {@link ListImageOptions#changesSince(Date)}; images that come back with a
+ * {@link ImageDetails#getDeletedAt() deletion date} or a deleted status are removed. Lookups by id, name, status and
+ * property read an immutable snapshot that each refresh with changes replaces, so they never block on a refresh.
+ * <p/>
+ * With a {@link Builder#snapshot(File) snapshot file}, the replica is saved after every refresh with changes and
+ * loaded when the catalog is built, so that a restarted service only fetches what changed while it was down.
+ */
+@Beta
+public class ImageCatalog implements Closeable {
+
+   private final ImageApi api;
+   private final long refreshIntervalMillis;
+   private final File snapshotFile;
+   private final Json json;
+   private final ScheduledExecutorService scheduler;
+   private final boolean shutdownSchedulerOnClose;
+
+   private volatile State state = new State(ImmutableMap.<String, ImageDetails>of(), null);
+   private ScheduledFuture<?> refreshTask;
+
+   protected ImageCatalog(Builder builder) throws IOException {
+      this.api = builder.api;
+      this.refreshIntervalMillis = builder.refreshIntervalMillis;
+      this.snapshotFile = builder.snapshotFile;
+      this.json = builder.json != null ? builder.json : Guice.createInjector(new GsonModule()).getInstance(Json.class);
+      if (builder.scheduler != null) {
+         this.scheduler = builder.scheduler;
+         this.shutdownSchedulerOnClose = false;
+      } else {
+         this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+               .setNameFormat("glance-catalog-%d").setDaemon(true).build());
+         this.shutdownSchedulerOnClose = true;
+      }
+      if (snapshotFile != null && snapshotFile.isFile()) {
+         load();
+      }
+   }
+
+   /**
+    * Refreshes the catalog every {@link Builder#refreshInterval refresh interval}, starting now.
+    */
+   public synchronized ImageCatalog start() {
+      if (refreshTask == null) {
+         refreshTask = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  refresh();
+               } catch (Exception e) {
+                  // keep serving the last refresh and try again at the next interval
+               }
+            }
+         }, 0, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+      }
+      return this;
+   }
+
+   /**
+    * Brings the catalog up to date: lists every image the first time, and only the images that changed since the
+    * last refresh after that.
+    *
+    * @return The number of images that were added, changed or removed.
+    * @throws IOException if the catalog changed but could not be saved to the snapshot file.
+    */
+   public synchronized int refresh() throws IOException {
+      State current = state;
+      Map<String, ImageDetails> images = Maps.newHashMap(current.byId);
+      Date lastModified = current.lastModified;
+      // every page of this refresh asks for the changes since the previous refresh
+      Date changesSince = lastModified;
+      boolean full = changesSince == null;
+      if (full) {
+         images.clear();
+      }
+
+      String marker = null;
+      do {
+         ListImageOptions options = new ListImageOptions();
+         if (!full) {
+            options.changesSince(changesSince);
+         }
+         if (marker != null) {
+            options.marker(marker);
+         }
+         PaginatedCollection<ImageDetails> page = api.listInDetail(options);
+         for (ImageDetails image : page) {
+            if (isDeleted(image)) {
+               images.remove(image.getId());
+            } else {
+               images.put(image.getId(), image);
+            }
+            lastModified = newest(lastModified, image);
+         }
+         marker = nextMarker(page);
+      } while (marker != null);
+
+      MapDifference<String, ImageDetails> difference = Maps.difference(current.byId, images);
+      int changes = difference.entriesDiffering().size() + difference.entriesOnlyOnLeft().size()
+            + difference.entriesOnlyOnRight().size();
+      if (changes > 0 || !Objects.equal(lastModified, current.lastModified)) {
+         state = new State(images, lastModified);
+      }
+      if (changes > 0 && snapshotFile != null) {
+         save();
+      }
+      return changes;
+   }
+
+   /**
+    * @return The marker of the page after this one, or null if this is the last page.
+    */
+   private static String nextMarker(PaginatedCollection<ImageDetails> page) {
+      if (!page.nextMarker().isPresent()) {
+         return null;
+      }
+      PaginationOptions paginationOptions = PaginationOptions.class.cast(page.nextMarker().get());
+      Collection<String> markers = paginationOptions.buildQueryParameters().get("marker");
+      return markers.isEmpty() ? null : getOnlyElement(markers);
+   }
+
+   private static boolean isDeleted(ImageDetails image) {
+      return image.getDeletedAt().isPresent() || image.getStatus() == Image.Status.DELETED
+            || image.getStatus() == Image.Status.PENDING_DELETE;
+   }
+
+   private static Date newest(Date lastModified, ImageDetails image) {
+      Date newest = lastModified;
+      for (Date date : new Date[] { image.getUpdatedAt(), image.getDeletedAt().orNull() }) {
+         if (date != null && (newest == null || date.after(newest))) {
+            newest = date;
+         }
+      }
+      return newest;
+   }
+
+   /**
+    * @return The image with the id, if it is in the catalog.
+    */
+   public Optional<ImageDetails> get(String id) {
+      return Optional.fromNullable(state.byId.get(checkNotNull(id, "id")));
+   }
+
+   /**
+    * @return The images with the name.
+    */
+   public Collection<ImageDetails> getByName(String name) {
+      return state.byName.get(checkNotNull(name, "name"));
+   }
+
+   /**
+    * @return The images in the status.
+    */
+   public Collection<ImageDetails> getByStatus(Image.Status status) {
+      return state.byStatus.get(checkNotNull(status, "status"));
+   }
+
+   /**
+    * @return The images with the property set to the value, such as {@code getByProperty("os_distro", "ubuntu")}.
+    */
+   public Collection<ImageDetails> getByProperty(String key, String value) {
+      return state.byProperty.get(new PropertyKey(checkNotNull(key, "key"), checkNotNull(value, "value")));
+   }
+
+   /**
+    * @return Every image in the catalog.
+    */
+   public Collection<ImageDetails> getAll() {
+      return state.byId.values();
+   }
+
+   /**
+    * @return The newest update or deletion in the catalog, which the next refresh asks for changes since; absent
+    *         before the first refresh.
+    */
+   public Optional<Date> getLastModified() {
+      return Optional.fromNullable(state.lastModified);
+   }
+
+   /**
+    * Writes the catalog to the snapshot file, replacing the previous snapshot only once the new one is complete.
+    */
+   public void save() throws IOException {
+      checkArgument(snapshotFile != null, "no snapshot file is configured");
+      State current = state;
+      File temp = new File(snapshotFile.getPath() + ".tmp");
+      String snapshot = json.toJson(new Snapshot(current.lastModified, ImmutableList.copyOf(current.byId.values())));
+      Files.write(temp.toPath(), snapshot.getBytes(StandardCharsets.UTF_8));
+      Files.move(temp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+   }
+
+   private void load() throws IOException {
+      String snapshot = new String(Files.readAllBytes(snapshotFile.toPath()), StandardCharsets.UTF_8);
+      Snapshot loaded;
+      try {
+         loaded = json.fromJson(snapshot, Snapshot.class);
+      } catch (RuntimeException e) {
+         // a snapshot that cannot be parsed costs a full listing, not the service
+         return;
+      }
+      if (loaded == null || loaded.images == null) {
+         return;
+      }
+      Map<String, ImageDetails> images = Maps.newHashMap();
+      for (ImageDetails image : loaded.images) {
+         images.put(image.getId(), image);
+      }
+      state = new State(images, loaded.lastModified);
+   }
+
+   @Override
+   public synchronized void close() {
+      if (refreshTask != null) {
+         refreshTask.cancel(false);
+         refreshTask = null;
+      }
+      if (shutdownSchedulerOnClose) {
+         scheduler.shutdownNow();
+      }
+   }
+
+   @Override
+   public String toString() {
+      State current = state;
+      return MoreObjects.toStringHelper(this).add("images", current.byId.size())
+            .add("lastModified", current.lastModified).add("snapshotFile", snapshotFile).toString();
+   }
+
+   /**
+    * The images and their indexes, as of one refresh.
+    */
+   private static class State {
+      private final ImmutableMap<String, ImageDetails> byId;
+      private final ImmutableSetMultimap<String, ImageDetails> byName;
+      private final ImmutableSetMultimap<Image.Status, ImageDetails> byStatus;
+      private final ImmutableSetMultimap<PropertyKey, ImageDetails> byProperty;
+      private final Date lastModified;
+
+      private State(Map<String, ImageDetails> images, Date lastModified) {
+         ImmutableSetMultimap.Builder<String, ImageDetails> byName = ImmutableSetMultimap.builder();
+         ImmutableSetMultimap.Builder<Image.Status, ImageDetails> byStatus = ImmutableSetMultimap.builder();
+         ImmutableSetMultimap.Builder<PropertyKey, ImageDetails> byProperty = ImmutableSetMultimap.builder();
+         for (ImageDetails image : images.values()) {
+            if (image.getName() != null) {
+               byName.put(image.getName(), image);
+            }
+            byStatus.put(image.getStatus(), image);
+            for (Map.Entry<String, String> property : image.getProperties().entrySet()) {
+               byProperty.put(new PropertyKey(property.getKey(), property.getValue()), image);
+            }
+         }
+         this.byId = ImmutableMap.copyOf(images);
+         this.byName = byName.build();
+         this.byStatus = byStatus.build();
+         this.byProperty = byProperty.build();
+         this.lastModified = lastModified;
+      }
+   }
+
+   private static class PropertyKey {
+      private final String key;
+      private final String value;
+
+      private PropertyKey(String key, String value) {
+         this.key = key;
+         this.value = value;
+      }
+
+      @Override
+      public int hashCode() {
+         return Objects.hashCode(key, value);
+      }
+
+      @Override
+      public boolean equals(Object obj) {
+         if (this == obj) {
+            return true;
+         }
+         if (!(obj instanceof PropertyKey)) {
+            return false;
+         }
+         PropertyKey that = PropertyKey.class.cast(obj);
+         return key.equals(that.key) && value.equals(that.value);
+      }
+   }
+
+   /**
+    * The form of the snapshot file.
+    */
+   private static class Snapshot {
+      private final Date lastModified;
+      private final List<ImageDetails> images;
+
+      private Snapshot(Date lastModified, List<ImageDetails> images) {
+         this.lastModified = lastModified;
+         this.images = images;
+      }
+   }
+
+   public static Builder builder(ImageApi api) {
+      return new Builder(api);
+   }
+
+   public static class Builder {
+      protected final ImageApi api;
+      protected long refreshIntervalMillis = TimeUnit.MINUTES.toMillis(1);
+      protected File snapshotFile;
+      protected Json json;
+      protected ScheduledExecutorService scheduler;
+
+      protected Builder(ImageApi api) {
+         this.api = checkNotNull(api, "api");
+      }
+
+      /**
+       * How often a {@link ImageCatalog#start() started} catalog refreshes. Defaults to one minute.
+       */
+      public Builder refreshInterval(long interval, TimeUnit unit) {
+         checkArgument(interval > 0, "interval must be positive");
+         this.refreshIntervalMillis = unit.toMillis(interval);
+         return this;
+      }
+
+      /**
+       * The file the catalog is saved to after each refresh with changes, and loaded from when it is built.
+       */
+      public Builder snapshot(File snapshotFile) {
+         this.snapshotFile = checkNotNull(snapshotFile, "snapshotFile");
+         return this;
+      }
+
+      /**
+       * Writes and reads the snapshot file, such as the {@link Json} of the context the {@link ImageApi} came from.
+       * Defaults to a standalone one.
+       */
+      public Builder json(Json json) {
+         this.json = checkNotNull(json, "json");
+         return this;
+      }
+
+      /**
+       * The scheduler that runs background refreshes, instead of a dedicated daemon thread. It is not shut down when
+       * the catalog is closed.
+       */
+      public Builder scheduler(ScheduledExecutorService scheduler) {
+         this.scheduler = checkNotNull(scheduler, "scheduler");
+         return this;
+      }
+
+      /**
+       * @throws IOException if the snapshot file exists but cannot be read.
+       */
+      public ImageCatalog build() throws IOException {
+         return new ImageCatalog(this);
+      }
+   }
+}
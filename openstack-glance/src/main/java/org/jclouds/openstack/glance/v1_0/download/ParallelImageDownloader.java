@@ -0,0 +1,402 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.download;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static org.jclouds.http.options.GetOptions.Builder.range;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jclouds.http.HttpResponse;
+import org.jclouds.openstack.glance.v1_0.domain.ImageDetails;
+import org.jclouds.openstack.glance.v1_0.features.ImageApi;
+import org.jclouds.rest.ResourceNotFoundException;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Downloads the data of an image with parallel HTTP range requests, instead of the single stream of
+ * {@link ImageApi#getAsStream(String)}.
+ * <p/>
+ * The image is split in chunks, which are fetched with {@link ImageApi#getAsResponse} and written at their offset in
+ * {@code <target>.part} with positional {@link FileChannel} writes. Finished chunks are recorded in
+ * {@code <target>.progress}, so a download that failed or was interrupted resumes with the chunks still missing, as
+ * long as the size and checksum of the image did not change in between. Once every chunk is there, the file is
+ * verified against the MD5 {@link ImageDetails#getChecksum() checksum} of the image and moved to the target.
+ */
+@Beta
+public class ParallelImageDownloader implements Closeable {
+
+   private static final int BUFFER_SIZE = 1024 * 1024;
+
+   private final ImageApi api;
+   private final long chunkSize;
+   private final int attempts;
+   private final ExecutorService executor;
+   private final boolean shutdownExecutorOnClose;
+
+   protected ParallelImageDownloader(Builder builder) {
+      this.api = builder.api;
+      this.chunkSize = builder.chunkSize;
+      this.attempts = builder.attempts;
+      if (builder.executor != null) {
+         this.executor = builder.executor;
+         this.shutdownExecutorOnClose = false;
+      } else {
+         this.executor = Executors.newFixedThreadPool(builder.threads, new ThreadFactoryBuilder()
+               .setNameFormat("glance-download-%d").setDaemon(true).build());
+         this.shutdownExecutorOnClose = true;
+      }
+   }
+
+   /**
+    * Downloads an image to a file, resuming an earlier download to the same file if there is one.
+    *
+    * @return The details of the downloaded image.
+    * @throws ResourceNotFoundException if the image does not exist.
+    * @throws IOException if a chunk could not be downloaded after all attempts, or the downloaded data does not match
+    *            the checksum of the image. A checksum mismatch discards the partial download.
+    */
+   public ImageDetails download(String id, File target) throws IOException, InterruptedException {
+      checkNotNull(id, "id");
+      checkNotNull(target, "target");
+      ImageDetails image = api.get(id);
+      if (image == null) {
+         throw new ResourceNotFoundException("image " + id + " does not exist");
+      }
+      checkState(image.getSize().isPresent(), "image %s has no size yet", id);
+      long size = image.getSize().get();
+      Optional<String> checksum = image.getChecksum();
+
+      File part = new File(target.getPath() + ".part");
+      File progressFile = new File(target.getPath() + ".progress");
+      Progress progress = Progress.open(progressFile, size, chunkSize, checksum.or(""));
+      if (progress.isNew()) {
+         Files.deleteIfExists(part.toPath());
+      }
+
+      RandomAccessFile data = new RandomAccessFile(part, "rw");
+      try {
+         data.setLength(size);
+         fetchMissingChunks(id, data.getChannel(), progress, size);
+         if (checksum.isPresent()) {
+            String actual = md5(data.getChannel(), size);
+            if (!actual.equalsIgnoreCase(checksum.get())) {
+               progress.close();
+               data.close();
+               Files.deleteIfExists(progressFile.toPath());
+               Files.deleteIfExists(part.toPath());
+               throw new IOException(String.format("image %s downloaded with checksum %s instead of %s", id, actual,
+                     checksum.get()));
+            }
+         }
+      } finally {
+         Closeables.close(progress, true);
+         Closeables.close(data, true);
+      }
+      Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      Files.delete(progressFile.toPath());
+      return image;
+   }
+
+   private void fetchMissingChunks(String id, FileChannel channel, Progress progress, long size)
+         throws IOException, InterruptedException {
+      List<Future<Void>> chunks = Lists.newArrayList();
+      for (int index : progress.getMissing()) {
+         chunks.add(executor.submit(new Chunk(id, channel, progress, index, size)));
+      }
+      try {
+         for (Future<Void> chunk : chunks) {
+            chunk.get();
+         }
+      } catch (ExecutionException e) {
+         Throwables.propagateIfPossible(e.getCause(), IOException.class);
+         throw new IOException(e.getCause());
+      } finally {
+         for (Future<Void> chunk : chunks) {
+            chunk.cancel(true);
+         }
+      }
+   }
+
+   private static String md5(FileChannel channel, long size) throws IOException {
+      Hasher hasher = Hashing.md5().newHasher();
+      ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(1, size)));
+      long position = 0;
+      while (position < size) {
+         buffer.clear();
+         int read = channel.read(buffer, position);
+         if (read < 0) {
+            break;
+         }
+         hasher.putBytes(buffer.array(), 0, read);
+         position += read;
+      }
+      return hasher.hash().toString();
+   }
+
+   @Override
+   public void close() {
+      if (shutdownExecutorOnClose) {
+         executor.shutdownNow();
+      }
+   }
+
+   /**
+    * Fetches one chunk into its place in the file.
+    */
+   private class Chunk implements Callable<Void> {
+      private final String id;
+      private final FileChannel channel;
+      private final Progress progress;
+      private final int index;
+      private final long start;
+      private final long end;
+      private final long size;
+
+      private Chunk(String id, FileChannel channel, Progress progress, int index, long size) {
+         this.id = id;
+         this.channel = channel;
+         this.progress = progress;
+         this.index = index;
+         this.start = index * chunkSize;
+         this.end = Math.min(size, start + chunkSize) - 1;
+         this.size = size;
+      }
+
+      @Override
+      public Void call() throws IOException {
+         IOException failure = null;
+         for (int attempt = 0; attempt < attempts; attempt++) {
+            if (Thread.currentThread().isInterrupted()) {
+               throw new CancellationException();
+            }
+            try {
+               fetch();
+               progress.markDone(index);
+               return null;
+            } catch (IOException e) {
+               failure = e;
+            }
+         }
+         throw failure;
+      }
+
+      private void fetch() throws IOException {
+         HttpResponse response = api.getAsResponse(id, range(start, end));
+         if (response == null) {
+            throw new ResourceNotFoundException("image " + id + " does not exist");
+         }
+         try {
+            // a server that ignores the range sends the whole image, which is only right for a single chunk
+            checkState(response.getStatusCode() == 206 || (start == 0 && end == size - 1),
+                  "server does not support range requests, got status %s for bytes %s-%s", response.getStatusCode(),
+                  start, end);
+            checkState(response.getPayload() != null, "no data for bytes %s-%s", start, end);
+            InputStream in = response.getPayload().openStream();
+            byte[] bytes = new byte[(int) Math.min(BUFFER_SIZE, end - start + 1)];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long position = start;
+            while (position <= end) {
+               int read = in.read(bytes, 0, (int) Math.min(bytes.length, end - position + 1));
+               if (read < 0) {
+                  throw new IOException(String.format("bytes %s-%s of image %s ended at %s", start, end, id,
+                        position));
+               }
+               buffer.clear().limit(read);
+               while (buffer.hasRemaining()) {
+                  position += channel.write(buffer, position);
+               }
+            }
+            channel.force(false);
+         } finally {
+            if (response.getPayload() != null) {
+               response.getPayload().release();
+            }
+         }
+      }
+   }
+
+   /**
+    * The chunks of a download that are already in the file, one byte per chunk after a header that identifies the
+    * image data they belong to.
+    */
+   static class Progress implements Closeable {
+      private static final int MAGIC = 0x47444c31;
+
+      private final RandomAccessFile file;
+      private final long headerLength;
+      private final boolean[] done;
+      private final boolean isNew;
+
+      private Progress(RandomAccessFile file, long headerLength, boolean[] done, boolean isNew) {
+         this.file = file;
+         this.headerLength = headerLength;
+         this.done = done;
+         this.isNew = isNew;
+      }
+
+      static Progress open(File path, long size, long chunkSize, String checksum) throws IOException {
+         long count = (size + chunkSize - 1) / chunkSize;
+         checkArgument(count <= Integer.MAX_VALUE, "too many chunks of %s bytes for %s bytes", chunkSize, size);
+         boolean[] done = new boolean[(int) count];
+         RandomAccessFile file = new RandomAccessFile(path, "rwd");
+         try {
+            boolean resumed = false;
+            if (file.length() > 0) {
+               resumed = file.readInt() == MAGIC && file.readLong() == size && file.readLong() == chunkSize
+                     && file.readUTF().equals(checksum) && file.length() == file.getFilePointer() + count;
+            }
+            if (resumed) {
+               long headerLength = file.getFilePointer();
+               byte[] flags = new byte[done.length];
+               file.readFully(flags);
+               for (int i = 0; i < flags.length; i++) {
+                  done[i] = flags[i] != 0;
+               }
+               return new Progress(file, headerLength, done, false);
+            }
+            // a new download, or the image changed since the last one
+            file.setLength(0);
+            file.writeInt(MAGIC);
+            file.writeLong(size);
+            file.writeLong(chunkSize);
+            file.writeUTF(checksum);
+            long headerLength = file.getFilePointer();
+            file.write(new byte[done.length]);
+            return new Progress(file, headerLength, done, true);
+         } catch (IOException e) {
+            Closeables.close(file, true);
+            throw e;
+         } catch (RuntimeException e) {
+            Closeables.close(file, true);
+            throw e;
+         }
+      }
+
+      boolean isNew() {
+         return isNew;
+      }
+
+      synchronized List<Integer> getMissing() {
+         List<Integer> missing = Lists.newArrayList();
+         for (int i = 0; i < done.length; i++) {
+            if (!done[i]) {
+               missing.add(i);
+            }
+         }
+         return missing;
+      }
+
+      synchronized void markDone(int index) throws IOException {
+         file.seek(headerLength + index);
+         file.write(1);
+         done[index] = true;
+      }
+
+      @Override
+      public synchronized void close() throws IOException {
+         file.close();
+      }
+   }
+
+   @Override
+   public String toString() {
+      return MoreObjects.toStringHelper(this).add("chunkSize", chunkSize).add("attempts", attempts).toString();
+   }
+
+   public static Builder builder(ImageApi api) {
+      return new Builder(api);
+   }
+
+   public static class Builder {
+      protected final ImageApi api;
+      protected long chunkSize = 32 * 1024 * 1024;
+      protected int threads = 4;
+      protected int attempts = 3;
+      protected ExecutorService executor;
+
+      protected Builder(ImageApi api) {
+         this.api = checkNotNull(api, "api");
+      }
+
+      /**
+       * The number of bytes fetched by each range request. Defaults to 32 MB.
+       */
+      public Builder chunkSize(long chunkSize) {
+         checkArgument(chunkSize > 0, "chunkSize must be positive");
+         this.chunkSize = chunkSize;
+         return this;
+      }
+
+      /**
+       * The number of chunks fetched in parallel. Defaults to 4.
+       */
+      public Builder threads(int threads) {
+         checkArgument(threads > 0, "threads must be positive");
+         this.threads = threads;
+         return this;
+      }
+
+      /**
+       * How many times a chunk is fetched before the download fails. Defaults to 3. Failed downloads can be resumed.
+       */
+      public Builder attempts(int attempts) {
+         checkArgument(attempts > 0, "attempts must be positive");
+         this.attempts = attempts;
+         return this;
+      }
+
+      /**
+       * The executor that fetches the chunks, instead of a dedicated pool of {@link #threads(int)} daemon threads. It
+       * is not shut down when the downloader is closed.
+       */
+      public Builder executor(ExecutorService executor) {
+         this.executor = checkNotNull(executor, "executor");
+         return this;
+      }
+
+      public ParallelImageDownloader build() {
+         return new ParallelImageDownloader(this);
+      }
+   }
+}
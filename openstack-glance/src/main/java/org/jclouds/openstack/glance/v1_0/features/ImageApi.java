@@ -37,6 +37,8 @@ import org.jclouds.Fallbacks.EmptyPagedIterableOnNotFoundOr404;
 import org.jclouds.Fallbacks.FalseOnNotFoundOr404;
 import org.jclouds.Fallbacks.NullOnNotFoundOr404;
 import org.jclouds.collect.PagedIterable;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.options.GetOptions;
 import org.jclouds.io.Payload;
 import org.jclouds.javax.annotation.Nullable;
 import org.jclouds.openstack.glance.v1_0.domain.Image;
@@ -123,6 +125,20 @@ public interface ImageApi {
    @Nullable
    InputStream getAsStream(@PathParam("id") String id);
 
+   /**
+    * Returns image data for image with id, as selected by the options, such as a
+    * {@link GetOptions#range(long, long) range}. The status and {@code Content-Range} of the response tell whether
+    * the server returned the requested range (206) or the whole image (200).
+    *
+    * @see org.jclouds.openstack.glance.v1_0.download.ParallelImageDownloader
+    */
+   @Named("image:getAsStream")
+   @GET
+   @Path("/{id}")
+   @Fallback(NullOnNotFoundOr404.class)
+   @Nullable
+   HttpResponse getAsResponse(@PathParam("id") String id, GetOptions options);
+
    /**
     * Creates a new image
     *
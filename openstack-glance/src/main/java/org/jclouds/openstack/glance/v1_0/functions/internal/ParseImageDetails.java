@@ -18,17 +18,18 @@ package org.jclouds.openstack.glance.v1_0.functions.internal;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.collect.Iterables.getOnlyElement;
+import static org.jclouds.Constants.PROPERTY_USER_THREADS;
 import static org.jclouds.openstack.glance.v1_0.options.ListImageOptions.Builder.marker;
 
 import java.beans.ConstructorProperties;
 import java.util.Collection;
 
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.inject.Singleton;
 
 import org.jclouds.collect.IterableWithMarker;
 import org.jclouds.collect.IterableWithMarkers;
-import org.jclouds.collect.internal.Arg0ToPagedIterable;
 import org.jclouds.http.functions.ParseJson;
 import org.jclouds.json.Json;
 import org.jclouds.openstack.glance.v1_0.GlanceApi;
@@ -42,6 +43,7 @@ import org.jclouds.openstack.v2_0.options.PaginationOptions;
 import com.google.common.annotations.Beta;
 import com.google.common.base.Function;
 import com.google.common.base.Optional;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.inject.TypeLiteral;
 
 /**
@@ -64,12 +66,13 @@ public class ParseImageDetails extends ParseJson<Images> {
       super(json, TypeLiteral.get(Images.class));
    }
 
-   public static class ToPagedIterable extends Arg0ToPagedIterable.FromCaller<ImageDetails, ToPagedIterable> {
+   public static class ToPagedIterable extends PrefetchingToPagedIterable<ImageDetails, ToPagedIterable> {
 
       private final GlanceApi api;
 
       @Inject
-      protected ToPagedIterable(GlanceApi api) {
+      protected ToPagedIterable(GlanceApi api, @Named(PROPERTY_USER_THREADS) ListeningExecutorService userExecutor) {
+         super(userExecutor);
          this.api = checkNotNull(api, "api");
       }
 
@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.functions.internal;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.jclouds.collect.IterableWithMarker;
+import org.jclouds.collect.PagedIterable;
+import org.jclouds.collect.internal.Arg0ToPagedIterable;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Pages through a listing while requesting the next page in the background, so that the request for page N+1 overlaps
+ * with the caller consuming page N. At most one page is fetched ahead; if the caller stops early, that page is
+ * discarded.
+ */
+@Beta
+public abstract class PrefetchingToPagedIterable<T, I extends PrefetchingToPagedIterable<T, I>>
+      extends Arg0ToPagedIterable.FromCaller<T, I> {
+
+   private final ListeningExecutorService userExecutor;
+
+   protected PrefetchingToPagedIterable(ListeningExecutorService userExecutor) {
+      this.userExecutor = checkNotNull(userExecutor, "userExecutor");
+   }
+
+   @Override
+   public PagedIterable<T> apply(IterableWithMarker<T> input) {
+      final PagedIterable<T> pages = super.apply(input);
+      return new PagedIterable<T>() {
+         @Override
+         public Iterator<IterableWithMarker<T>> iterator() {
+            return new PrefetchingIterator<T>(pages.iterator(), userExecutor);
+         }
+      };
+   }
+
+   private static class PrefetchingIterator<T> extends AbstractIterator<IterableWithMarker<T>> {
+      private final Iterator<IterableWithMarker<T>> pages;
+      private final ListeningExecutorService userExecutor;
+      private ListenableFuture<Optional<IterableWithMarker<T>>> next;
+
+      private PrefetchingIterator(Iterator<IterableWithMarker<T>> pages, ListeningExecutorService userExecutor) {
+         this.pages = pages;
+         this.userExecutor = userExecutor;
+      }
+
+      @Override
+      protected IterableWithMarker<T> computeNext() {
+         Optional<IterableWithMarker<T>> page = next != null ? await(next) : fetch();
+         next = null;
+         if (!page.isPresent()) {
+            return endOfData();
+         }
+         if (page.get().nextMarker().isPresent()) {
+            // only one fetch runs at a time, so the underlying iterator is never used concurrently
+            next = userExecutor.submit(new Callable<Optional<IterableWithMarker<T>>>() {
+               @Override
+               public Optional<IterableWithMarker<T>> call() {
+                  return fetch();
+               }
+            });
+         }
+         return page.get();
+      }
+
+      private Optional<IterableWithMarker<T>> fetch() {
+         return pages.hasNext() ? Optional.of(pages.next()) : Optional.<IterableWithMarker<T>>absent();
+      }
+
+      private static <V> V await(ListenableFuture<V> future) {
+         try {
+            return Uninterruptibles.getUninterruptibly(future);
+         } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+         }
+      }
+   }
+}
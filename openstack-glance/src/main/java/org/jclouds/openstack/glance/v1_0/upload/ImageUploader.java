@@ -0,0 +1,283 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.upload;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.io.payloads.FilePayload;
+import org.jclouds.openstack.glance.v1_0.domain.ImageDetails;
+import org.jclouds.openstack.glance.v1_0.features.ImageApi;
+import org.jclouds.openstack.glance.v1_0.options.CreateImageOptions;
+import org.jclouds.openstack.glance.v1_0.options.UpdateImageOptions;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Uploads an image from a file, instead of the single payload of {@link ImageApi#create}.
+ * <p/>
+ * Each attempt {@link ImageApi#reserve reserves} an image and {@link ImageApi#upload uploads} the file to it. The
+ * file is read through a {@link FileChannel} and its MD5 is computed while it is sent, so there is no separate pass
+ * over the data. The checksum Glance computed is compared with it once the upload returns. A failed attempt deletes
+ * the image it reserved and starts over with a new one; if the file was read fully before, the retry also sends the
+ * {@link UpdateImageOptions#checksum checksum}, so Glance rejects data that arrives corrupted.
+ * <p/>
+ * Only errors that may go away are retried: I/O errors, server errors and checksum mismatches.
+ */
+@Beta
+public class ImageUploader {
+
+   private final ImageApi api;
+   private final int attempts;
+   private final UploadProgressListener listener;
+   private final long progressInterval;
+
+   protected ImageUploader(Builder builder) {
+      this.api = builder.api;
+      this.attempts = builder.attempts;
+      this.listener = builder.listener;
+      this.progressInterval = builder.progressInterval;
+   }
+
+   /**
+    * Creates an image with the data of a file.
+    *
+    * @param name The name of the image.
+    * @param file The image data.
+    * @param options Metadata of the image, passed to {@link ImageApi#reserve}.
+    * @return The details of the uploaded image.
+    * @throws IOException if the file cannot be read, or the data Glance stored did not match the file in any attempt.
+    */
+   public ImageDetails create(String name, File file, CreateImageOptions... options) throws IOException {
+      checkNotNull(name, "name");
+      checkNotNull(file, "file");
+      checkArgument(file.isFile(), "%s is not a file", file);
+      String checksum = null;
+      for (int attempt = 1; ; attempt++) {
+         ImageDetails reserved = api.reserve(name, options);
+         SendingPayload payload = new SendingPayload(file, reserved.getId());
+         UpdateImageOptions uploadOptions = new UpdateImageOptions().size(file.length());
+         if (checksum != null) {
+            uploadOptions.checksum(checksum);
+         }
+         ImageDetails uploaded;
+         try {
+            uploaded = api.upload(reserved.getId(), payload, uploadOptions);
+         } catch (RuntimeException e) {
+            deleteQuietly(reserved.getId());
+            if (attempt >= attempts || !isRetryable(e)) {
+               throw e;
+            }
+            if (payload.getChecksum() != null) {
+               checksum = payload.getChecksum();
+            }
+            continue;
+         }
+         String sent = payload.getChecksum();
+         Optional<String> stored = uploaded.getChecksum();
+         if (sent == null || !stored.isPresent() || stored.get().equalsIgnoreCase(sent)) {
+            return uploaded;
+         }
+         deleteQuietly(reserved.getId());
+         if (attempt >= attempts) {
+            throw new IOException(String.format("image %s was stored with checksum %s instead of %s", uploaded.getId(),
+                  stored.get(), sent));
+         }
+         checksum = sent;
+      }
+   }
+
+   private static boolean isRetryable(RuntimeException e) {
+      for (Throwable cause : Throwables.getCausalChain(e)) {
+         if (cause instanceof HttpResponseException) {
+            HttpResponse response = HttpResponseException.class.cast(cause).getResponse();
+            return response == null || response.getStatusCode() >= 500;
+         }
+         if (cause instanceof IOException) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private void deleteQuietly(String id) {
+      try {
+         api.delete(id);
+      } catch (RuntimeException ignored) {
+         // the image stays queued without data, which does not harm the next attempt
+      }
+   }
+
+   /**
+    * A repeatable payload of the file that hashes and counts what is read from it. Every stream starts a new hash, so
+    * the checksum is the one of the last stream the HTTP driver read to the end.
+    */
+   private class SendingPayload extends FilePayload {
+      private final String imageId;
+      private volatile String checksum;
+
+      private SendingPayload(File file, String imageId) {
+         super(file);
+         this.imageId = imageId;
+      }
+
+      @Override
+      public InputStream openStream() throws IOException {
+         FileChannel channel = FileChannel.open(getRawContent().toPath(), StandardOpenOption.READ);
+         return new SendingStream(Channels.newInputStream(channel), channel.size());
+      }
+
+      private String getChecksum() {
+         return checksum;
+      }
+
+      private class SendingStream extends FilterInputStream {
+         private final Hasher hasher = Hashing.md5().newHasher();
+         private final long total;
+         private long sent;
+         private long reported;
+         private boolean finished;
+
+         private SendingStream(InputStream in, long total) {
+            super(in);
+            this.total = total;
+         }
+
+         @Override
+         public int read() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+               finish();
+            } else {
+               hasher.putByte((byte) b);
+               sent(1);
+            }
+            return b;
+         }
+
+         @Override
+         public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read < 0) {
+               finish();
+            } else {
+               hasher.putBytes(b, off, read);
+               sent(read);
+            }
+            return read;
+         }
+
+         @Override
+         public long skip(long n) throws IOException {
+            throw new IOException("skipping would leave bytes out of the checksum");
+         }
+
+         @Override
+         public boolean markSupported() {
+            return false;
+         }
+
+         private void sent(int bytes) {
+            sent += bytes;
+            if (listener != null && sent - reported >= progressInterval) {
+               reported = sent;
+               listener.onProgress(imageId, sent, total);
+            }
+         }
+
+         private void finish() {
+            if (finished) {
+               return;
+            }
+            finished = true;
+            if (sent == total) {
+               checksum = hasher.hash().toString();
+            }
+            if (listener != null && reported != sent) {
+               reported = sent;
+               listener.onProgress(imageId, sent, total);
+            }
+         }
+      }
+   }
+
+   @Override
+   public String toString() {
+      return MoreObjects.toStringHelper(this).add("attempts", attempts).add("progressInterval", progressInterval)
+            .toString();
+   }
+
+   public static Builder builder(ImageApi api) {
+      return new Builder(api);
+   }
+
+   public static class Builder {
+      protected final ImageApi api;
+      protected int attempts = 3;
+      protected UploadProgressListener listener;
+      protected long progressInterval = 8 * 1024 * 1024;
+
+      protected Builder(ImageApi api) {
+         this.api = checkNotNull(api, "api");
+      }
+
+      /**
+       * How many images are reserved and uploaded before the upload fails. Defaults to 3.
+       */
+      public Builder attempts(int attempts) {
+         checkArgument(attempts > 0, "attempts must be positive");
+         this.attempts = attempts;
+         return this;
+      }
+
+      /**
+       * Receives the progress of the upload.
+       */
+      public Builder listener(UploadProgressListener listener) {
+         this.listener = checkNotNull(listener, "listener");
+         return this;
+      }
+
+      /**
+       * How many bytes are sent between progress reports. Defaults to 8 MB.
+       */
+      public Builder progressInterval(long progressInterval) {
+         checkArgument(progressInterval > 0, "progressInterval must be positive");
+         this.progressInterval = progressInterval;
+         return this;
+      }
+
+      public ImageUploader build() {
+         return new ImageUploader(this);
+      }
+   }
+}
@@ -0,0 +1,33 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.upload;
+
+/**
+ * Receives the progress of an {@link ImageUploader}.
+ */
+public interface UploadProgressListener {
+
+   /**
+    * Called from the thread sending the image, every few megabytes and once all of it was sent. A retried upload
+    * starts again from zero, with the id of the newly reserved image.
+    *
+    * @param imageId The id of the reserved image the data is sent to.
+    * @param bytesSent How much of the file was sent so far.
+    * @param totalBytes The size of the file.
+    */
+   void onProgress(String imageId, long bytesSent, long totalBytes);
+}
@@ -0,0 +1,230 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.cache;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.core.MediaType;
+
+import org.jclouds.http.HttpRequest;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.openstack.glance.v1_0.features.ImageApi;
+import org.jclouds.openstack.glance.v1_0.functions.ParseImageDetailsFromHeadersTest;
+import org.jclouds.openstack.glance.v1_0.internal.BaseGlanceExpectTest;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+@Test(groups = "unit", testName = "ImageCacheExpectTest")
+public class ImageCacheExpectTest extends BaseGlanceExpectTest {
+   private static final String DEBIAN = "fcc451d0-f6e4-4824-ad8f-70ec12326d07";
+   private static final String UBUNTU = "02fa0378-f305-43cf-8058-8572fe1da795";
+
+   private File directory;
+
+   @BeforeMethod
+   public void createDirectory() throws IOException {
+      directory = Files.createTempDirectory("glance-cache").toFile();
+   }
+
+   @AfterMethod(alwaysRun = true)
+   public void deleteDirectory() throws IOException {
+      for (File file : directory.listFiles()) {
+         Files.delete(file.toPath());
+      }
+      Files.delete(directory.toPath());
+   }
+
+   public void testDownloadsOnceAndServesFromTheDirectory() throws Exception {
+      ImageApi api = api(ImmutableMap.of(head(DEBIAN), headResponse(DEBIAN, "debian"),
+            get(DEBIAN), HttpResponse.builder().statusCode(200).payload("debian").build()));
+
+      ImageCache cache = ImageCache.builder(api, directory).build();
+      assertEquals(read(cache, DEBIAN), "debian");
+      assertEquals(read(cache, DEBIAN), "debian");
+      assertEquals(cache.getStats().getMisses(), 1);
+      assertEquals(cache.getStats().getHits(), 1);
+      assertTrue(new File(directory, md5("debian")).isFile());
+
+      // another cache over the same directory finds the image
+      ImageCache restarted = ImageCache.builder(api, directory).build();
+      assertEquals(restarted.getStats().getBytes(), "debian".length());
+      assertEquals(read(restarted, DEBIAN), "debian");
+      assertEquals(restarted.getStats().getHits(), 1);
+   }
+
+   public void testEvictsTheLeastRecentlyUsedImagesThatAreNotOpen() throws Exception {
+      ImageApi api = api(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(head(DEBIAN), headResponse(DEBIAN, "debian"))
+            .put(get(DEBIAN), HttpResponse.builder().statusCode(200).payload("debian").build())
+            .put(head(UBUNTU), headResponse(UBUNTU, "ubuntu"))
+            .put(get(UBUNTU), HttpResponse.builder().statusCode(200).payload("ubuntu").build())
+            .build());
+
+      ImageCache cache = ImageCache.builder(api, directory).maxBytes(10).build();
+      ImageCache.CachedImage debian = cache.open(DEBIAN);
+      ImageCache.CachedImage ubuntu = cache.open(UBUNTU);
+      assertEquals(cache.getStats().getEntries(), 2, "both images are open");
+
+      debian.close();
+      ubuntu.close();
+      assertEquals(cache.getStats().getEntries(), 1);
+      assertEquals(cache.getStats().getEvictions(), 1);
+      assertFalse(new File(directory, md5("debian")).exists());
+      assertTrue(new File(directory, md5("ubuntu")).exists());
+   }
+
+   public void testDataThatDoesNotMatchTheChecksumIsNotCached() throws Exception {
+      ImageApi api = api(ImmutableMap.of(head(DEBIAN), headResponse(DEBIAN, "debian"),
+            get(DEBIAN), HttpResponse.builder().statusCode(200).payload("ubuntu").build()));
+
+      try {
+         ImageCache.builder(api, directory).build().open(DEBIAN);
+         fail("the data does not match the checksum");
+      } catch (IOException expected) {
+      }
+      assertEquals(directory.listFiles().length, 0);
+   }
+
+   public void testUnfinishedDownloadsAreDeletedOnLoad() throws Exception {
+      String key = md5("debian");
+      for (String leftover : new String[] { ".download", ".download.part", ".download.progress" }) {
+         Files.write(new File(directory, key + leftover).toPath(), "deb".getBytes(Charsets.UTF_8));
+      }
+      Files.write(new File(directory, key).toPath(), "debian".getBytes(Charsets.UTF_8));
+
+      ImageCache cache = ImageCache.builder(api(ImmutableMap.<HttpRequest, HttpResponse>of()), directory).build();
+      assertEquals(cache.getStats().getEntries(), 1);
+      assertEquals(directory.list(), new String[] { key });
+   }
+
+   public void testConcurrentOpensDownloadOnce() throws Exception {
+      final AtomicInteger downloads = new AtomicInteger();
+      final CountDownLatch release = new CountDownLatch(1);
+      final ImageApi delegate = api(ImmutableMap.of(head(DEBIAN), headResponse(DEBIAN, "debian"),
+            get(DEBIAN), HttpResponse.builder().statusCode(200).payload("debian").build()));
+      ImageApi api = (ImageApi) Proxy.newProxyInstance(ImageApi.class.getClassLoader(), new Class<?>[]{ImageApi.class},
+            new InvocationHandler() {
+               @Override
+               public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                  if (method.getName().equals("getAsStream")) {
+                     downloads.incrementAndGet();
+                     release.await(10, TimeUnit.SECONDS);
+                  }
+                  try {
+                     return method.invoke(delegate, args);
+                  } catch (InvocationTargetException e) {
+                     throw e.getCause();
+                  }
+               }
+            });
+
+      final ImageCache cache = ImageCache.builder(api, directory).build();
+      ExecutorService executor = Executors.newFixedThreadPool(2);
+      try {
+         Callable<String> open = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+               return read(cache, DEBIAN);
+            }
+         };
+         Future<String> first = executor.submit(open);
+         Future<String> second = executor.submit(open);
+         while (cache.getStats().getMisses() < 2) {
+            Thread.sleep(10);
+         }
+         release.countDown();
+         assertEquals(first.get(10, TimeUnit.SECONDS), "debian");
+         assertEquals(second.get(10, TimeUnit.SECONDS), "debian");
+      } finally {
+         executor.shutdownNow();
+      }
+      assertEquals(downloads.get(), 1);
+   }
+
+   private ImageApi api(ImmutableMap<HttpRequest, HttpResponse> requestsToResponses) {
+      return requestsSendResponses(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(keystoneAuthWithUsernameAndPassword, responseWithKeystoneAccess)
+            .put(versionNegotiationRequest, versionNegotiationResponse)
+            .putAll(requestsToResponses)
+            .build()).getImageApi("az-1.region-a.geo-1");
+   }
+
+   private HttpRequest head(String id) {
+      return HttpRequest.builder().method("HEAD")
+            .endpoint("https://glance.jclouds.org:9292/v1.0/images/" + id)
+            .addHeader("Accept", MediaType.APPLICATION_JSON)
+            .addHeader("X-Auth-Token", authToken).build();
+   }
+
+   private HttpRequest get(String id) {
+      return HttpRequest.builder().method("GET")
+            .endpoint("https://glance.jclouds.org:9292/v1.0/images/" + id)
+            .addHeader("Accept", MediaType.APPLICATION_JSON)
+            .addHeader("X-Auth-Token", authToken).build();
+   }
+
+   private static HttpResponse headResponse(String id, String data) {
+      return new ParseImageDetailsFromHeadersTest().response.toBuilder()
+            .replaceHeader("X-Image-Meta-Id", id)
+            .replaceHeader("X-Image-Meta-Size", String.valueOf(data.length()))
+            .replaceHeader("X-Image-Meta-Checksum", md5(data))
+            .build();
+   }
+
+   private static String read(ImageCache cache, String id) throws IOException {
+      ImageCache.CachedImage image = cache.open(id);
+      try {
+         InputStream in = image.openStream();
+         try {
+            return new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+         } finally {
+            in.close();
+         }
+      } finally {
+         image.close();
+      }
+   }
+
+   private static String md5(String data) {
+      return Hashing.md5().hashString(data, Charsets.UTF_8).toString();
+   }
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.catalog;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.jclouds.http.HttpRequest;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.openstack.glance.v1_0.domain.Image;
+import org.jclouds.openstack.glance.v1_0.features.ImageApi;
+import org.jclouds.openstack.glance.v1_0.internal.BaseGlanceExpectTest;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+
+@Test(groups = "unit", testName = "ImageCatalogExpectTest")
+public class ImageCatalogExpectTest extends BaseGlanceExpectTest {
+   private static final String DEBIAN = "fcc451d0-f6e4-4824-ad8f-70ec12326d07";
+   private static final String DELETED = "f9fcb127-071d-4670-883e-eedb7efac183";
+   private static final String UBUNTU = "02fa0378-f305-43cf-8058-8572fe1da795";
+
+   private File directory;
+
+   @BeforeMethod
+   public void createDirectory() throws IOException {
+      directory = Files.createTempDirectory("glance-catalog").toFile();
+   }
+
+   @AfterMethod(alwaysRun = true)
+   public void deleteDirectory() throws IOException {
+      for (File file : directory.listFiles()) {
+         Files.delete(file.toPath());
+      }
+      Files.delete(directory.toPath());
+   }
+
+   public void testRefreshesOnlyTheChangesAfterTheFirstListing() throws Exception {
+      ImageApi api = api(ImmutableMap.of(
+            listInDetail(""), response("/images_detail.json"),
+            // the newest update of the first listing is 2012-05-18T18:06:45
+            listInDetail("?changes-since=1337364405"), response("/images_detail_changes.json")));
+
+      ImageCatalog catalog = ImageCatalog.builder(api).build();
+      assertEquals(catalog.refresh(), 2);
+      assertEquals(catalog.getByName("debian").size(), 2);
+      assertEquals(catalog.getByStatus(Image.Status.ACTIVE).size(), 2);
+
+      assertEquals(catalog.refresh(), 2);
+      assertTrue(catalog.get(DEBIAN).isPresent());
+      assertFalse(catalog.get(DELETED).isPresent(), "deleted images are removed");
+      assertEquals(Iterables.getOnlyElement(catalog.getByName("debian")).getId(), DEBIAN);
+      assertEquals(Iterables.getOnlyElement(catalog.getByProperty("os_distro", "ubuntu")).getId(), UBUNTU);
+      assertEquals(catalog.getAll().size(), 2);
+      assertEquals(catalog.getLastModified().get().getTime() / 1000, 1337425200);
+   }
+
+   public void testFollowsTheNextMarkerOfEveryListing() throws Exception {
+      ImageApi api = api(ImmutableMap.of(
+            listInDetail(""), response("/images_detail_page1.json"),
+            listInDetail("?marker=" + DEBIAN), response("/images_detail_page2.json"),
+            listInDetail("?changes-since=1337364405"), response("/images_detail_changes_page1.json"),
+            listInDetail("?changes-since=1337364405&marker=" + UBUNTU), response("/images_detail_changes_page2.json")));
+
+      ImageCatalog catalog = ImageCatalog.builder(api).build();
+      assertEquals(catalog.refresh(), 2);
+      assertEquals(catalog.getByName("debian").size(), 2);
+
+      assertEquals(catalog.refresh(), 2);
+      assertFalse(catalog.get(DELETED).isPresent(), "deleted images are removed");
+      assertEquals(Iterables.getOnlyElement(catalog.getByProperty("os_distro", "ubuntu")).getId(), UBUNTU);
+      assertEquals(catalog.getAll().size(), 2);
+      assertEquals(catalog.getLastModified().get().getTime() / 1000, 1337425200);
+   }
+
+   public void testSnapshotWarmsUpANewCatalog() throws Exception {
+      File snapshot = new File(directory, "catalog.json");
+      ImageApi api = api(ImmutableMap.of(
+            listInDetail(""), response("/images_detail.json"),
+            listInDetail("?changes-since=1337364405"), response("/images_detail_changes.json")));
+      ImageCatalog catalog = ImageCatalog.builder(api).snapshot(snapshot).build();
+      catalog.refresh();
+      assertTrue(snapshot.isFile());
+
+      // the restarted catalog answers before it refreshes, and then only asks for the changes
+      ImageApi restartedApi = api(ImmutableMap.of(
+            listInDetail("?changes-since=1337364405"), response("/images_detail_changes.json")));
+      ImageCatalog restarted = ImageCatalog.builder(restartedApi).snapshot(snapshot).build();
+      assertEquals(restarted.getAll().size(), 2);
+      assertEquals(restarted.get(DEBIAN), catalog.get(DEBIAN));
+      assertEquals(restarted.getLastModified(), catalog.getLastModified());
+
+      assertEquals(restarted.refresh(), 2);
+      assertEquals(ImageCatalog.builder(restartedApi).snapshot(snapshot).build().get(UBUNTU), restarted.get(UBUNTU));
+   }
+
+   private ImageApi api(ImmutableMap<HttpRequest, HttpResponse> requestsToResponses) {
+      return requestsSendResponses(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(keystoneAuthWithUsernameAndPassword, responseWithKeystoneAccess)
+            .put(versionNegotiationRequest, versionNegotiationResponse)
+            .putAll(requestsToResponses)
+            .build()).getImageApi("az-1.region-a.geo-1");
+   }
+
+   private HttpRequest listInDetail(String query) {
+      return HttpRequest.builder().method("GET")
+            .endpoint("https://glance.jclouds.org:9292/v1.0/images/detail" + query)
+            .addHeader("Accept", "application/json")
+            .addHeader("X-Auth-Token", authToken).build();
+   }
+
+   private HttpResponse response(String resource) {
+      return HttpResponse.builder().statusCode(200).payload(payloadFromResource(resource)).build();
+   }
+}
@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.download;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import javax.ws.rs.core.MediaType;
+
+import org.jclouds.http.HttpRequest;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.openstack.glance.v1_0.features.ImageApi;
+import org.jclouds.openstack.glance.v1_0.functions.ParseImageDetailsFromHeadersTest;
+import org.jclouds.openstack.glance.v1_0.internal.BaseGlanceExpectTest;
+import org.jclouds.util.Closeables2;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+
+@Test(groups = "unit", testName = "ParallelImageDownloaderExpectTest")
+public class ParallelImageDownloaderExpectTest extends BaseGlanceExpectTest {
+   private static final String IMAGE_ID = "fcc451d0-f6e4-4824-ad8f-70ec12326d07";
+   private static final String DATA = "0123456789";
+
+   private File directory;
+
+   @BeforeMethod
+   public void createDirectory() throws IOException {
+      directory = Files.createTempDirectory("glance-download").toFile();
+   }
+
+   @AfterMethod(alwaysRun = true)
+   public void deleteDirectory() throws IOException {
+      for (File file : directory.listFiles()) {
+         Files.delete(file.toPath());
+      }
+      Files.delete(directory.toPath());
+   }
+
+   public void testDownloadsChunksInParallelAndVerifiesChecksum() throws Exception {
+      ImageApi api = api(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(head(), headResponse(md5(DATA)))
+            .put(range(0, 3), partial("0123"))
+            .put(range(4, 7), partial("4567"))
+            .put(range(8, 9), partial("89"))
+            .build());
+
+      File target = new File(directory, "debian.img");
+      ParallelImageDownloader downloader = ParallelImageDownloader.builder(api).chunkSize(4).threads(3).build();
+      try {
+         assertEquals(downloader.download(IMAGE_ID, target).getId(), IMAGE_ID);
+      } finally {
+         downloader.close();
+      }
+      assertEquals(new String(Files.readAllBytes(target.toPath()), Charsets.UTF_8), DATA);
+      assertFalse(new File(directory, "debian.img.part").exists());
+      assertFalse(new File(directory, "debian.img.progress").exists());
+   }
+
+   public void testResumesWithTheMissingChunks() throws Exception {
+      File target = new File(directory, "debian.img");
+      ParallelImageDownloader.Progress progress = ParallelImageDownloader.Progress.open(
+            new File(directory, "debian.img.progress"), DATA.length(), 4, md5(DATA));
+      progress.markDone(0);
+      progress.markDone(1);
+      progress.close();
+      RandomAccessFile part = new RandomAccessFile(new File(directory, "debian.img.part"), "rw");
+      try {
+         part.write("01234567".getBytes(Charsets.UTF_8));
+      } finally {
+         Closeables2.closeQuietly(part);
+      }
+
+      // only the last chunk is requested
+      ImageApi api = api(ImmutableMap.of(head(), headResponse(md5(DATA)), range(8, 9), partial("89")));
+      ParallelImageDownloader downloader = ParallelImageDownloader.builder(api).chunkSize(4).attempts(1).build();
+      try {
+         downloader.download(IMAGE_ID, target);
+      } finally {
+         downloader.close();
+      }
+      assertEquals(new String(Files.readAllBytes(target.toPath()), Charsets.UTF_8), DATA);
+   }
+
+   public void testChecksumMismatchDiscardsTheDownload() throws Exception {
+      ImageApi api = api(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(head(), headResponse(md5("something else")))
+            .put(range(0, 3), partial("0123"))
+            .put(range(4, 7), partial("4567"))
+            .put(range(8, 9), partial("89"))
+            .build());
+
+      File target = new File(directory, "debian.img");
+      ParallelImageDownloader downloader = ParallelImageDownloader.builder(api).chunkSize(4).build();
+      try {
+         downloader.download(IMAGE_ID, target);
+         fail("the data does not match the checksum");
+      } catch (IOException expected) {
+      } finally {
+         downloader.close();
+      }
+      assertFalse(target.exists());
+      assertFalse(new File(directory, "debian.img.part").exists());
+      assertFalse(new File(directory, "debian.img.progress").exists());
+   }
+
+   private ImageApi api(ImmutableMap<HttpRequest, HttpResponse> requestsToResponses) {
+      return requestsSendResponses(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(keystoneAuthWithUsernameAndPassword, responseWithKeystoneAccess)
+            .put(versionNegotiationRequest, versionNegotiationResponse)
+            .putAll(requestsToResponses)
+            .build()).getImageApi("az-1.region-a.geo-1");
+   }
+
+   private HttpRequest head() {
+      return HttpRequest.builder().method("HEAD")
+            .endpoint("https://glance.jclouds.org:9292/v1.0/images/" + IMAGE_ID)
+            .addHeader("Accept", MediaType.APPLICATION_JSON)
+            .addHeader("X-Auth-Token", authToken).build();
+   }
+
+   private HttpRequest range(long start, long end) {
+      return HttpRequest.builder().method("GET")
+            .endpoint("https://glance.jclouds.org:9292/v1.0/images/" + IMAGE_ID)
+            .addHeader("Accept", MediaType.APPLICATION_JSON)
+            .addHeader("Range", "bytes=" + start + "-" + end)
+            .addHeader("X-Auth-Token", authToken).build();
+   }
+
+   private static HttpResponse headResponse(String checksum) {
+      return new ParseImageDetailsFromHeadersTest().response.toBuilder()
+            .replaceHeader("X-Image-Meta-Size", String.valueOf(DATA.length()))
+            .replaceHeader("X-Image-Meta-Checksum", checksum)
+            .build();
+   }
+
+   private static HttpResponse partial(String data) {
+      return HttpResponse.builder().statusCode(206).payload(data).build();
+   }
+
+   private static String md5(String data) {
+      return Hashing.md5().hashString(data, Charsets.UTF_8).toString();
+   }
+}
@@ -36,6 +36,7 @@ import org.jclouds.openstack.glance.v1_0.parse.ParseImagesTest;
 import org.jclouds.util.Strings2;
 import org.testng.annotations.Test;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.ImmutableSet;
 
@@ -61,6 +62,33 @@ public class ImageApiExpectTest extends BaseGlanceExpectTest {
             new ParseImagesTest().expected().toString());
    }
 
+   public void testListFollowsNextLinksWithSummaries() throws Exception {
+      HttpRequest list = HttpRequest.builder().method("GET")
+            .endpoint("https://glance.jclouds.org:9292/v1.0/images")
+            .addHeader("Accept", "application/json")
+            .addHeader("X-Auth-Token", authToken).build();
+
+      HttpResponse listResponse = HttpResponse.builder().statusCode(200)
+            .payload(payloadFromResource("/images_page.json")).build();
+
+      HttpRequest listNext = HttpRequest.builder().method("GET")
+            .endpoint("https://glance.jclouds.org:9292/v1.0/images?marker=02fa0378-f305-43cf-8058-8572fe1da795")
+            .addHeader("Accept", "application/json")
+            .addHeader("X-Auth-Token", authToken).build();
+
+      HttpResponse listNextResponse = HttpResponse.builder().statusCode(200)
+            .payload(payloadFromResource("/images.json")).build();
+
+      GlanceApi apiWhenExist = requestsSendResponses(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(keystoneAuthWithUsernameAndPassword, responseWithKeystoneAccess)
+            .put(versionNegotiationRequest, versionNegotiationResponse)
+            .put(list, listResponse)
+            .put(listNext, listNextResponse)
+            .build());
+
+      assertEquals(apiWhenExist.getImageApi("az-1.region-a.geo-1").list().concat().size(), 4);
+   }
+
    public void testListInDetailWhenResponseIs2xx() throws Exception {
       HttpRequest listInDetail = HttpRequest.builder().method("GET")
             .endpoint("https://glance.jclouds.org:9292/v1.0/images/detail")
@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.upload;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import javax.ws.rs.core.MediaType;
+
+import org.jclouds.http.HttpRequest;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.openstack.glance.v1_0.features.ImageApi;
+import org.jclouds.openstack.glance.v1_0.internal.BaseGlanceExpectTest;
+import org.jclouds.util.Strings2;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+
+@Test(groups = "unit", testName = "ImageUploaderExpectTest")
+public class ImageUploaderExpectTest extends BaseGlanceExpectTest {
+   private static final String FIRST_ID = "fcc451d0-f6e4-4824-ad8f-70ec12326d07";
+   private static final String SECOND_ID = "02fa0378-f305-43cf-8058-8572fe1da795";
+   private static final String DATA = "somenewdata";
+
+   private File file;
+
+   @BeforeMethod
+   public void createFile() throws IOException {
+      file = File.createTempFile("glance-upload", ".img");
+      Files.write(file.toPath(), DATA.getBytes(Charsets.UTF_8));
+   }
+
+   @AfterMethod(alwaysRun = true)
+   public void deleteFile() throws IOException {
+      Files.delete(file.toPath());
+   }
+
+   public void testUploadsTheFileAndReportsProgress() throws Exception {
+      ImageApi api = api(
+            ImmutableList.of(reserve(), upload(FIRST_ID, null)),
+            ImmutableList.of(image(FIRST_ID, null), image(FIRST_ID, md5(DATA))));
+
+      final List<Long> progress = Lists.newArrayList();
+      ImageUploader uploader = ImageUploader.builder(api).progressInterval(4).listener(new UploadProgressListener() {
+         @Override
+         public void onProgress(String imageId, long bytesSent, long totalBytes) {
+            assertEquals(imageId, FIRST_ID);
+            assertEquals(totalBytes, DATA.length());
+            progress.add(bytesSent);
+         }
+      }).build();
+
+      assertEquals(uploader.create("test", file).getChecksum().get(), md5(DATA));
+      assertEquals(progress.get(progress.size() - 1).longValue(), DATA.length());
+   }
+
+   public void testReservesAnotherImageWhenTheChecksumDoesNotMatch() throws Exception {
+      // the retry sends the checksum, so that glance verifies the data itself
+      ImageApi api = api(
+            ImmutableList.of(reserve(), upload(FIRST_ID, null), delete(FIRST_ID), reserve(),
+                  upload(SECOND_ID, md5(DATA))),
+            ImmutableList.of(image(FIRST_ID, null), image(FIRST_ID, md5("corrupted")), ok(), image(SECOND_ID, null),
+                  image(SECOND_ID, md5(DATA))));
+
+      assertEquals(ImageUploader.builder(api).build().create("test", file).getId(), SECOND_ID);
+   }
+
+   public void testGivesUpAfterTheLastAttempt() throws Exception {
+      ImageApi api = api(
+            ImmutableList.of(reserve(), upload(FIRST_ID, null), delete(FIRST_ID)),
+            ImmutableList.of(image(FIRST_ID, null), image(FIRST_ID, md5("corrupted")), ok()));
+
+      try {
+         ImageUploader.builder(api).attempts(1).build().create("test", file);
+         fail("the stored data does not match the file");
+      } catch (IOException expected) {
+      }
+   }
+
+   public void testDoesNotRetryClientErrors() throws Exception {
+      ImageApi api = api(
+            ImmutableList.of(reserve(), upload(FIRST_ID, null), delete(FIRST_ID)),
+            ImmutableList.of(image(FIRST_ID, null), HttpResponse.builder().statusCode(409).build(), ok()));
+
+      try {
+         ImageUploader.builder(api).build().create("test", file);
+         fail("a conflict is not retried");
+      } catch (IllegalStateException expected) {
+      }
+   }
+
+   private ImageApi api(List<HttpRequest> requests, List<HttpResponse> responses) {
+      return orderedRequestsSendResponses(
+            ImmutableList.<HttpRequest>builder()
+                  .add(keystoneAuthWithUsernameAndPassword, versionNegotiationRequest).addAll(requests).build(),
+            ImmutableList.<HttpResponse>builder()
+                  .add(responseWithKeystoneAccess, versionNegotiationResponse).addAll(responses).build())
+            .getImageApi("az-1.region-a.geo-1");
+   }
+
+   private HttpRequest reserve() {
+      return HttpRequest.builder().method("POST")
+            .endpoint("https://glance.jclouds.org:9292/v1.0/images")
+            .addHeader("x-image-meta-name", "test")
+            .addHeader("Accept", MediaType.APPLICATION_JSON)
+            .addHeader("X-Auth-Token", authToken).build();
+   }
+
+   private HttpRequest upload(String id, String checksum) {
+      HttpRequest.Builder<?> builder = HttpRequest.builder().method("PUT")
+            .endpoint("https://glance.jclouds.org:9292/v1.0/images/" + id)
+            .addHeader("Accept", MediaType.APPLICATION_JSON)
+            .addHeader("X-Image-Meta-Size", String.valueOf(DATA.length()));
+      if (checksum != null) {
+         builder.addHeader("X-Image-Meta-Checksum", checksum);
+      }
+      return builder.addHeader("X-Auth-Token", authToken)
+            .payload(payloadFromStringWithContentType(DATA, MediaType.APPLICATION_OCTET_STREAM))
+            .build();
+   }
+
+   private HttpRequest delete(String id) {
+      return HttpRequest.builder().method("DELETE")
+            .endpoint("https://glance.jclouds.org:9292/v1.0/images/" + id)
+            .addHeader("Accept", MediaType.APPLICATION_JSON)
+            .addHeader("X-Auth-Token", authToken).build();
+   }
+
+   private HttpResponse image(String id, String checksum) throws IOException {
+      String json = Strings2.toStringAndClose(getClass().getResourceAsStream("/image.json"))
+            .replace(SECOND_ID, id)
+            .replace("\"6ae4e0fdc3c108a1bfe10ef5e436f4f4\"", checksum == null ? "null" : "\"" + checksum + "\"");
+      return HttpResponse.builder().statusCode(200).payload(payloadFromStringWithContentType(json,
+            MediaType.APPLICATION_JSON)).build();
+   }
+
+   private static HttpResponse ok() {
+      return HttpResponse.builder().statusCode(200).build();
+   }
+
+   private static String md5(String data) {
+      return Hashing.md5().hashString(data, Charsets.UTF_8).toString();
+   }
+}
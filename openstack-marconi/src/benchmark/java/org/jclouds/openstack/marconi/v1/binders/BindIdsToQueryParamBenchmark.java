@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.binders;
+
+import static org.jclouds.openstack.marconi.v1.internal.BenchmarkPayloads.ids;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.http.HttpRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of binding 1 to 100 message ids to the {@code ids} query parameter of a list or delete request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BindIdsToQueryParamBenchmark {
+
+   @Param({ "1", "10", "20", "100" })
+   public int ids;
+
+   private final BindIdsToQueryParam binder = new BindIdsToQueryParam();
+   private HttpRequest request;
+   private List<String> messageIds;
+
+   @Setup
+   public void setup() {
+      request = HttpRequest.builder()
+            .method("DELETE")
+            .endpoint("http://localhost/v1/123123/queues/jclouds-test/messages")
+            .build();
+      messageIds = ids(ids);
+   }
+
+   @Benchmark
+   public HttpRequest bindIdsToQueryParam() {
+      return binder.bindToRequest(request, messageIds);
+   }
+}
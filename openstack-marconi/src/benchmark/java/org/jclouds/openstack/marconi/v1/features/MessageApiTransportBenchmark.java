@@ -0,0 +1,258 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.features;
+
+import static org.jclouds.openstack.v2_0.internal.BaseOpenStackMockTest.accessRackspace;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.net.ServerSocketFactory;
+
+import org.jclouds.ContextBuilder;
+import org.jclouds.http.okhttp.OkHttpClientSupplier;
+import org.jclouds.http.okhttp.config.OkHttpCommandExecutorServiceModule;
+import org.jclouds.logging.config.NullLoggingModule;
+import org.jclouds.openstack.marconi.v1.MarconiApi;
+import org.jclouds.openstack.marconi.v1.domain.CreateMessage;
+import org.jclouds.openstack.marconi.v1.domain.Message;
+import org.jclouds.openstack.marconi.v1.domain.MessagesCreated;
+import org.jclouds.openstack.marconi.v1.internal.InMemoryMarconiDispatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.inject.AbstractModule;
+import com.google.inject.Module;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+/**
+ * End to end producer and consumer workloads through the whole client stack (request building, the HTTP transport,
+ * response parsing) against an {@link InMemoryMarconiDispatcher} on a local {@code MockWebServer}, for each HTTP
+ * transport and keep-alive pool size.
+ * <p/>
+ * Every invocation moves a batch of 10 messages. The throughput benchmarks count it as 10 operations, so they report
+ * messages per second and, with the {@code gc} profiler, the bytes allocated per message in
+ * {@code gc.alloc.rate.norm}. The {@code *Latency} benchmarks sample the time of a whole batch, p50 and p99 included.
+ * The stand-in server runs in the same JVM, so its allocations and CPU are included; compare transports and pool sizes
+ * against each other rather than reading the numbers as absolute.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class MessageApiTransportBenchmark {
+   private static final int MESSAGES = 10;
+   private static final String REGION = "DFW";
+   // MockWebServer logs every request at INFO; keep a reference so the level is not lost with the logger
+   private static final Logger SERVER_LOGGER = Logger.getLogger(MockWebServer.class.getName());
+
+   @Param({ "okhttp", "javaurl" })
+   public String transport;
+
+   /**
+    * Idle connections kept alive per host, below and at the number of benchmark threads.
+    */
+   @Param({ "2", "8" })
+   public int pool;
+
+   private final AtomicInteger queues = new AtomicInteger();
+   private final List<CreateMessage> batch = Lists.newArrayListWithCapacity(MESSAGES);
+   private MockWebServer server;
+   private MarconiApi api;
+
+   @Setup
+   public void setup() throws IOException {
+      SERVER_LOGGER.setLevel(java.util.logging.Level.WARNING);
+      server = new MockWebServer();
+      server.setServerSocketFactory(new NoDelayServerSocketFactory());
+      server.setDispatcher(new InMemoryMarconiDispatcher(accessRackspace));
+      server.play();
+
+      ImmutableSet.Builder<Module> modules = ImmutableSet.<Module>builder().add(new NullLoggingModule());
+      if ("okhttp".equals(transport)) {
+         modules.add(new OkHttpCommandExecutorServiceModule()).add(new AbstractModule() {
+            @Override
+            protected void configure() {
+               bind(OkHttpClientSupplier.class).toInstance(new OkHttpClientSupplier() {
+                  @Override
+                  public OkHttpClient get() {
+                     return new OkHttpClient().setConnectionPool(
+                           new ConnectionPool(pool, TimeUnit.MINUTES.toMillis(5)));
+                  }
+               });
+            }
+         });
+      }
+      else if ("javaurl".equals(transport)) {
+         // read once, on the first keep-alive, by HttpURLConnection; every parameter set runs in its own fork
+         System.setProperty("http.maxConnections", String.valueOf(pool));
+      }
+      else {
+         throw new IllegalArgumentException("unknown transport " + transport);
+      }
+
+      Properties overrides = new Properties();
+      overrides.setProperty("jclouds.max-retries", "1");
+      api = ContextBuilder.newBuilder("openstack-marconi")
+            .credentials("jclouds:joe", "letmein")
+            .endpoint(server.getUrl("/").toString())
+            .overrides(overrides)
+            .modules(modules.build())
+            .buildApi(MarconiApi.class);
+
+      for (int i = 0; i < MESSAGES; i++) {
+         batch.add(CreateMessage.builder().ttl(300).body(
+               "{\"event\":{\"name\":\"SF Java User Group\",\"sequence\":" + i + ",\"attendees\":["
+               + "{\"name\":\"attendee-1\",\"rsvp\":true},{\"name\":\"attendee-2\",\"rsvp\":false}]}}").build());
+      }
+   }
+
+   @TearDown
+   public void tearDown() throws IOException {
+      api.close();
+      server.shutdown();
+   }
+
+   /**
+    * A queue and client id per benchmark thread, so that each consumer claims exactly what it produced.
+    */
+   @State(Scope.Thread)
+   public static class ThreadQueue {
+      private QueueApi queueApi;
+      private MessageApi messageApi;
+      private ClaimApi claimApi;
+      private String name;
+
+      @Setup
+      public void setup(MessageApiTransportBenchmark benchmark) {
+         UUID clientId = UUID.randomUUID();
+         name = "bench-" + benchmark.queues.incrementAndGet();
+         queueApi = benchmark.api.getQueueApi(REGION, clientId);
+         messageApi = benchmark.api.getMessageApi(REGION, clientId, name);
+         claimApi = benchmark.api.getClaimApi(REGION, clientId, name);
+      }
+
+      /**
+       * Drops what the producer workload left behind, so the stand-in server does not grow across iterations.
+       */
+      @Setup(Level.Iteration)
+      public void recreate() {
+         queueApi.delete(name);
+         queueApi.create(name);
+      }
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(MESSAGES)
+   public MessagesCreated produce(ThreadQueue queue) {
+      return queue.messageApi.create(batch);
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(MESSAGES)
+   public boolean produceAndConsume(ThreadQueue queue) {
+      return consume(queue, produce(queue));
+   }
+
+   @Benchmark
+   @BenchmarkMode(Mode.SampleTime)
+   @OutputTimeUnit(TimeUnit.MICROSECONDS)
+   public MessagesCreated produceLatency(ThreadQueue queue) {
+      return produce(queue);
+   }
+
+   @Benchmark
+   @BenchmarkMode(Mode.SampleTime)
+   @OutputTimeUnit(TimeUnit.MICROSECONDS)
+   public boolean produceAndConsumeLatency(ThreadQueue queue) {
+      return produceAndConsume(queue);
+   }
+
+   private static boolean consume(ThreadQueue queue, MessagesCreated created) {
+      List<Message> claimed = queue.claimApi.claim(300, 60, created.getMessageIds().size());
+      List<String> ids = Lists.newArrayListWithCapacity(claimed.size());
+      for (Message message : claimed) {
+         ids.add(message.getId());
+      }
+      return queue.messageApi.delete(ids);
+   }
+
+   /**
+    * MockWebServer writes the status line and headers separately from the body, which on a socket with Nagle's
+    * algorithm waits for the client's delayed ack and turns every request into a 40ms one, whatever the transport.
+    */
+   private static final class NoDelayServerSocketFactory extends ServerSocketFactory {
+
+      @Override
+      public ServerSocket createServerSocket() throws IOException {
+         return new ServerSocket() {
+            @Override
+            public Socket accept() throws IOException {
+               Socket socket = super.accept();
+               socket.setTcpNoDelay(true);
+               return socket;
+            }
+         };
+      }
+
+      @Override
+      public ServerSocket createServerSocket(int port) throws IOException {
+         return createServerSocket(port, 50);
+      }
+
+      @Override
+      public ServerSocket createServerSocket(int port, int backlog) throws IOException {
+         return createServerSocket(port, backlog, null);
+      }
+
+      @Override
+      public ServerSocket createServerSocket(int port, int backlog, InetAddress address) throws IOException {
+         ServerSocket socket = createServerSocket();
+         socket.bind(new InetSocketAddress(address, port), backlog);
+         return socket;
+      }
+   }
+}
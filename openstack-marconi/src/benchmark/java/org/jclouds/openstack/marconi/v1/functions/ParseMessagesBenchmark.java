@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.functions;
+
+import static org.jclouds.openstack.marconi.v1.internal.BenchmarkPayloads.claim;
+import static org.jclouds.openstack.marconi.v1.internal.BenchmarkPayloads.messageList;
+import static org.jclouds.openstack.marconi.v1.internal.BenchmarkPayloads.messageStream;
+import static org.jclouds.openstack.marconi.v1.internal.BenchmarkPayloads.queueStats;
+import static org.jclouds.openstack.marconi.v1.internal.BenchmarkPayloads.response;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.http.functions.ParseJson;
+import org.jclouds.json.Json;
+import org.jclouds.json.config.GsonModule;
+import org.jclouds.openstack.marconi.v1.config.MarconiTypeAdapters;
+import org.jclouds.openstack.marconi.v1.domain.Claim;
+import org.jclouds.openstack.marconi.v1.domain.Message;
+import org.jclouds.openstack.marconi.v1.domain.MessageStream;
+import org.jclouds.openstack.marconi.v1.domain.QueueStats;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Optional;
+import com.google.inject.Guice;
+import com.google.inject.TypeLiteral;
+
+/**
+ * Throughput of the Marconi response parsers for pages of 1 to 100 messages. Run with {@code -prof gc} (the default
+ * of the benchmark profile) to also report the allocation rate per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseMessagesBenchmark {
+
+   @Param({ "1", "10", "20", "100" })
+   public int messages;
+
+   private byte[] stream;
+   private byte[] list;
+   private byte[] claim;
+   private byte[] stats;
+   private ParseMessagesToStream parseStream;
+   private ParseMessagesToStream parseStreamRawBodies;
+   private ParseMessagesToList parseList;
+   private ParseClaim parseClaim;
+   private ParseQueueStats parseQueueStats;
+   private MessageStream parsedStream;
+
+   @Setup
+   public void setup() {
+      stream = messageStream(messages);
+      list = messageList(messages);
+      claim = claim(messages);
+      stats = queueStats();
+
+      Json json = Guice.createInjector(new GsonModule(), new MarconiTypeAdapters()).getInstance(Json.class);
+      parseStream = new ParseMessagesToStream(false);
+      parseStreamRawBodies = new ParseMessagesToStream(true);
+      parseList = new ParseMessagesToList(false);
+      parseClaim = new ParseClaim(false);
+      parseQueueStats = new ParseQueueStats(new ParseJson<QueueStats>(json, TypeLiteral.get(QueueStats.class)));
+      parsedStream = parseStream.apply(response(stream));
+   }
+
+   @Benchmark
+   public MessageStream parseMessagesToStream() {
+      return parseStream.apply(response(stream));
+   }
+
+   @Benchmark
+   public MessageStream parseMessagesToStreamWithRawBodies() {
+      return parseStreamRawBodies.apply(response(stream));
+   }
+
+   @Benchmark
+   public List<Message> parseMessagesToList() {
+      return parseList.apply(response(list));
+   }
+
+   @Benchmark
+   public Claim parseClaim() {
+      return parseClaim.apply(response(claim));
+   }
+
+   @Benchmark
+   public QueueStats parseQueueStats() {
+      return parseQueueStats.apply(response(stats));
+   }
+
+   @Benchmark
+   public Optional<Object> messageStreamNextMarker() {
+      return parsedStream.nextMarker();
+   }
+}
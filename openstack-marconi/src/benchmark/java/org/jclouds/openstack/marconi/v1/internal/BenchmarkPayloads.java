@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.internal;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+import java.util.List;
+
+import org.jclouds.http.HttpResponse;
+import org.jclouds.io.Payload;
+import org.jclouds.io.Payloads;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Realistic Marconi response bodies for the benchmarks, shaped like the ones recorded in the mock tests.
+ */
+public final class BenchmarkPayloads {
+
+   private BenchmarkPayloads() {
+   }
+
+   public static List<String> ids(int count) {
+      List<String> ids = Lists.newArrayListWithCapacity(count);
+      for (int i = 0; i < count; i++) {
+         ids.add(String.format("52a645633ac24e6f0be8%04x", i));
+      }
+      return ids;
+   }
+
+   /**
+    * @return A {@code GET /messages} body with a next link.
+    */
+   public static byte[] messageStream(int count) {
+      StringBuilder json = new StringBuilder("{\"messages\": ");
+      appendMessages(json, count, null);
+      json.append(", \"links\": [{\"href\": \"/v1/queues/jclouds-test/messages?marker=")
+            .append(4508 + count).append("&limit=").append(count).append("\", \"rel\": \"next\"}]}");
+      return json.toString().getBytes(UTF_8);
+   }
+
+   /**
+    * @return A {@code GET /messages?ids=} body.
+    */
+   public static byte[] messageList(int count) {
+      StringBuilder json = new StringBuilder();
+      appendMessages(json, count, null);
+      return json.toString().getBytes(UTF_8);
+   }
+
+   /**
+    * @return A {@code GET /claims/{claim_id}} body.
+    */
+   public static byte[] claim(int count) {
+      StringBuilder json = new StringBuilder(
+            "{\"age\": 209, \"href\": \"/v1/queues/jclouds-test/claims/52a8d23eb04a584f1bbd4f47\", \"messages\": ");
+      appendMessages(json, count, "52a8d23eb04a584f1bbd4f47");
+      json.append(", \"ttl\": 300}");
+      return json.toString().getBytes(UTF_8);
+   }
+
+   /**
+    * @return A {@code GET /stats} body for a queue holding messages.
+    */
+   public static byte[] queueStats() {
+      return ("{\"messages\": {\"claimed\": 1, \"oldest\": {\"age\": 30, "
+            + "\"href\": \"/v1/queues/jclouds-test/messages/526558b3f4919b655feba3a7\", "
+            + "\"created\": \"2013-10-21T16:39:15Z\"}, \"total\": 4, \"newest\": {\"age\": 2, "
+            + "\"href\": \"/v1/queues/jclouds-test/messages/526558b33ac24e663fc545e7\", "
+            + "\"created\": \"2013-10-21T16:39:15Z\"}, \"free\": 3}}").getBytes(UTF_8);
+   }
+
+   /**
+    * @return A fresh 200 response, as payloads can only be read once.
+    */
+   public static HttpResponse response(byte[] body) {
+      Payload payload = Payloads.newByteArrayPayload(body);
+      payload.getContentMetadata().setContentType("application/json");
+      return HttpResponse.builder().statusCode(200).message("OK").payload(payload).build();
+   }
+
+   private static void appendMessages(StringBuilder json, int count, String claimId) {
+      json.append('[');
+      for (String id : ids(count)) {
+         if (json.charAt(json.length() - 1) != '[') {
+            json.append(", ");
+         }
+         json.append("{\"body\": \"{\\\"event\\\":{\\\"name\\\":\\\"SF Java User Group\\\",")
+               .append("\\\"attendees\\\":[\\\"bob\\\",\\\"jim\\\",\\\"sally\\\"]}}\", \"age\": 1596, ")
+               .append("\"href\": \"/v1/queues/jclouds-test/messages/").append(id);
+         if (claimId != null) {
+            json.append("?claim_id=").append(claimId);
+         }
+         json.append("\", \"ttl\": 86400}");
+      }
+      json.append(']');
+   }
+}
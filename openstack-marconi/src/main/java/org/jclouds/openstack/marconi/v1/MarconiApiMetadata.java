@@ -19,6 +19,9 @@ package org.jclouds.openstack.marconi.v1;
 import static org.jclouds.openstack.keystone.config.KeystoneProperties.CREDENTIAL_TYPE;
 import static org.jclouds.openstack.keystone.config.KeystoneProperties.KEYSTONE_VERSION;
 import static org.jclouds.openstack.keystone.config.KeystoneProperties.SERVICE_TYPE;
+import static org.jclouds.openstack.marconi.v1.config.MarconiProperties.ASYNC_THREADS;
+import static org.jclouds.openstack.marconi.v1.config.MarconiProperties.QUEUE_LIST_PREFETCH_DEPTH;
+import static org.jclouds.openstack.marconi.v1.config.MarconiProperties.RAW_MESSAGE_BODIES;
 
 import java.net.URI;
 import java.util.Properties;
@@ -62,6 +65,9 @@ public class MarconiApiMetadata extends BaseHttpApiMetadata<MarconiApi> {
       properties.setProperty(SERVICE_TYPE, ServiceType.MESSAGING);
       properties.setProperty(CREDENTIAL_TYPE, CredentialTypes.PASSWORD_CREDENTIALS);
       properties.setProperty(KEYSTONE_VERSION, "2");
+      properties.setProperty(RAW_MESSAGE_BODIES, "false");
+      properties.setProperty(ASYNC_THREADS, "20");
+      properties.setProperty(QUEUE_LIST_PREFETCH_DEPTH, "1");
 
       return properties;
    }
@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.async;
+
+import java.util.List;
+
+import org.jclouds.openstack.marconi.v1.domain.Claim;
+import org.jclouds.openstack.marconi.v1.domain.Message;
+
+import com.google.common.annotations.Beta;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * The asynchronous counterpart of {@link org.jclouds.openstack.marconi.v1.features.ClaimApi}. Every operation
+ * returns at once and completes with the same result, fallback value or exception as the blocking operation of the
+ * same name, which runs on a thread of the {@link AsyncMarconi} executor while the request is in flight.
+ *
+ * @see AsyncMarconi#getClaimApi(String, java.util.UUID, String)
+ */
+@Beta
+public interface AsyncClaimApi {
+   /**
+    * @see org.jclouds.openstack.marconi.v1.features.ClaimApi#claim(int, int, int)
+    */
+   ListenableFuture<List<Message>> claim(int ttl, int grace, int limit);
+
+   /**
+    * @see org.jclouds.openstack.marconi.v1.features.ClaimApi#get(String)
+    */
+   ListenableFuture<Claim> get(String claimId);
+
+   /**
+    * @see org.jclouds.openstack.marconi.v1.features.ClaimApi#update(String, int)
+    */
+   ListenableFuture<Void> update(String claimId, int ttl);
+
+   /**
+    * @see org.jclouds.openstack.marconi.v1.features.ClaimApi#release(String)
+    */
+   ListenableFuture<Boolean> release(String claimId);
+}
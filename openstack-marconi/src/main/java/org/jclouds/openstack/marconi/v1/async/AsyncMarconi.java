@@ -0,0 +1,371 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.async;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jclouds.openstack.marconi.v1.MarconiApi;
+import org.jclouds.openstack.marconi.v1.domain.Claim;
+import org.jclouds.openstack.marconi.v1.domain.CreateMessage;
+import org.jclouds.openstack.marconi.v1.domain.Message;
+import org.jclouds.openstack.marconi.v1.domain.MessageStream;
+import org.jclouds.openstack.marconi.v1.domain.MessagesCreated;
+import org.jclouds.openstack.marconi.v1.domain.QueueStats;
+import org.jclouds.openstack.marconi.v1.domain.Queues;
+import org.jclouds.openstack.marconi.v1.features.ClaimApi;
+import org.jclouds.openstack.marconi.v1.features.MessageApi;
+import org.jclouds.openstack.marconi.v1.features.QueueApi;
+import org.jclouds.openstack.marconi.v1.options.ListQueuesOptions;
+import org.jclouds.openstack.marconi.v1.options.StreamMessagesOptions;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Provides asynchronous access to the Queue, Message and Claim features of a {@link MarconiApi}. Operations are
+ * submitted to an executor and return a future at once, so the calling thread is free to do other work while requests
+ * are outstanding.
+ * <p/>
+ * The operations run through the blocking api, so requests, response parsers, fallbacks and error handling are
+ * exactly those of the blocking operations. This is not non-blocking I/O: every request in flight still occupies one
+ * thread of the executor while it waits for the response. The executor's pool size therefore bounds how many requests
+ * are in flight at once; further requests wait in its queue. It frees the calling thread, but it does not let a node
+ * keep more requests in flight than it has threads for.
+ * <p/>
+ * Holding many claimed messages does not take many requests in flight: a claimed message stays claimed on the server
+ * until the claim's TTL runs out, so {@link org.jclouds.openstack.marconi.v1.worker.ClaimWorkerPool} and
+ * {@link org.jclouds.openstack.marconi.v1.worker.FairClaimScheduler} keep many messages claimed with a few threads.
+ * <p/>
+ * An instance with a pool of {@link org.jclouds.openstack.marconi.v1.config.MarconiProperties#ASYNC_THREADS} threads
+ * is available from the injector of a Marconi context, and is closed with the context.
+ */
+@Beta
+public class AsyncMarconi implements Closeable {
+
+   private final MarconiApi api;
+   private final ListeningExecutorService executor;
+   private final boolean shutdownExecutorOnClose;
+
+   protected AsyncMarconi(Builder builder) {
+      this.api = builder.api;
+      if (builder.executor != null) {
+         this.executor = MoreExecutors.listeningDecorator(builder.executor);
+         this.shutdownExecutorOnClose = false;
+      }
+      else {
+         this.executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(builder.threads,
+               new ThreadFactoryBuilder().setNameFormat("marconi-async-%d").setDaemon(true).build()));
+         this.shutdownExecutorOnClose = true;
+      }
+   }
+
+   /**
+    * @see MarconiApi#getQueueApi(String, UUID)
+    */
+   public AsyncQueueApi getQueueApi(String region, UUID clientId) {
+      return new QueueApiOnExecutor(api.getQueueApi(checkNotNull(region, "region"),
+            checkNotNull(clientId, "clientId")), executor);
+   }
+
+   /**
+    * @see MarconiApi#getMessageApi(String, UUID, String)
+    */
+   public AsyncMessageApi getMessageApi(String region, UUID clientId, String name) {
+      return new MessageApiOnExecutor(api.getMessageApi(checkNotNull(region, "region"),
+            checkNotNull(clientId, "clientId"), checkNotNull(name, "name")), executor);
+   }
+
+   /**
+    * @see MarconiApi#getClaimApi(String, UUID, String)
+    */
+   public AsyncClaimApi getClaimApi(String region, UUID clientId, String name) {
+      return new ClaimApiOnExecutor(api.getClaimApi(checkNotNull(region, "region"),
+            checkNotNull(clientId, "clientId"), checkNotNull(name, "name")), executor);
+   }
+
+   /**
+    * Shuts down the executor if it was created by this instance. Operations already submitted to an executor that was
+    * passed in keep running.
+    */
+   @Override
+   public void close() {
+      if (shutdownExecutorOnClose) {
+         executor.shutdownNow();
+      }
+   }
+
+   @Override
+   public String toString() {
+      return MoreObjects.toStringHelper(this).add("executor", executor).toString();
+   }
+
+   public static Builder builder(MarconiApi api) {
+      return new Builder(api);
+   }
+
+   public static class Builder {
+      protected final MarconiApi api;
+      protected int threads = 20;
+      protected ExecutorService executor;
+
+      protected Builder(MarconiApi api) {
+         this.api = checkNotNull(api, "api");
+      }
+
+      /**
+       * The number of requests in flight at once when no executor is given. Defaults to 20.
+       */
+      public Builder threads(int threads) {
+         checkArgument(threads > 0, "threads must be positive");
+         this.threads = threads;
+         return this;
+      }
+
+      /**
+       * The executor that runs the requests. It is not shut down when this instance is closed. Defaults to a fixed
+       * pool of {@link #threads(int)} daemon threads.
+       */
+      public Builder executor(ExecutorService executor) {
+         this.executor = checkNotNull(executor, "executor");
+         return this;
+      }
+
+      public AsyncMarconi build() {
+         return new AsyncMarconi(this);
+      }
+   }
+
+   private static class QueueApiOnExecutor implements AsyncQueueApi {
+      private final QueueApi api;
+      private final ListeningExecutorService executor;
+
+      private QueueApiOnExecutor(QueueApi api, ListeningExecutorService executor) {
+         this.api = api;
+         this.executor = executor;
+      }
+
+      @Override
+      public ListenableFuture<Void> create(final String name) {
+         return executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+               api.create(name);
+               return null;
+            }
+         });
+      }
+
+      @Override
+      public ListenableFuture<Boolean> delete(final String name) {
+         return executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+               return api.delete(name);
+            }
+         });
+      }
+
+      @Override
+      public ListenableFuture<Boolean> exists(final String name) {
+         return executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+               return api.exists(name);
+            }
+         });
+      }
+
+      @Override
+      public ListenableFuture<Queues> list(final ListQueuesOptions options) {
+         return executor.submit(new Callable<Queues>() {
+            @Override
+            public Queues call() {
+               return api.list(options);
+            }
+         });
+      }
+
+      @Override
+      public ListenableFuture<Void> setMetadata(final String name, final Map<String, String> metadata) {
+         return executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+               api.setMetadata(name, metadata);
+               return null;
+            }
+         });
+      }
+
+      @Override
+      public ListenableFuture<Map<String, String>> getMetadata(final String name) {
+         return executor.submit(new Callable<Map<String, String>>() {
+            @Override
+            public Map<String, String> call() {
+               return api.getMetadata(name);
+            }
+         });
+      }
+
+      @Override
+      public ListenableFuture<QueueStats> getStats(final String name) {
+         return executor.submit(new Callable<QueueStats>() {
+            @Override
+            public QueueStats call() {
+               return api.getStats(name);
+            }
+         });
+      }
+   }
+
+   private static class MessageApiOnExecutor implements AsyncMessageApi {
+      private final MessageApi api;
+      private final ListeningExecutorService executor;
+
+      private MessageApiOnExecutor(MessageApi api, ListeningExecutorService executor) {
+         this.api = api;
+         this.executor = executor;
+      }
+
+      @Override
+      public ListenableFuture<MessagesCreated> create(List<CreateMessage> messages) {
+         final List<CreateMessage> toCreate = ImmutableList.copyOf(messages);
+         return executor.submit(new Callable<MessagesCreated>() {
+            @Override
+            public MessagesCreated call() {
+               return api.create(toCreate);
+            }
+         });
+      }
+
+      @Override
+      public ListenableFuture<MessageStream> stream(final StreamMessagesOptions... options) {
+         return executor.submit(new Callable<MessageStream>() {
+            @Override
+            public MessageStream call() {
+               return api.stream(options);
+            }
+         });
+      }
+
+      @Override
+      public ListenableFuture<List<Message>> list(Iterable<String> ids) {
+         final List<String> toList = ImmutableList.copyOf(ids);
+         return executor.submit(new Callable<List<Message>>() {
+            @Override
+            public List<Message> call() {
+               return api.list(toList);
+            }
+         });
+      }
+
+      @Override
+      public ListenableFuture<Message> get(final String id) {
+         return executor.submit(new Callable<Message>() {
+            @Override
+            public Message call() {
+               return api.get(id);
+            }
+         });
+      }
+
+      @Override
+      public ListenableFuture<Boolean> delete(Iterable<String> ids) {
+         final List<String> toDelete = ImmutableList.copyOf(ids);
+         return executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+               return api.delete(toDelete);
+            }
+         });
+      }
+
+      @Override
+      public ListenableFuture<Boolean> deleteByClaim(final String id, final String claimId) {
+         return executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+               return api.deleteByClaim(id, claimId);
+            }
+         });
+      }
+   }
+
+   private static class ClaimApiOnExecutor implements AsyncClaimApi {
+      private final ClaimApi api;
+      private final ListeningExecutorService executor;
+
+      private ClaimApiOnExecutor(ClaimApi api, ListeningExecutorService executor) {
+         this.api = api;
+         this.executor = executor;
+      }
+
+      @Override
+      public ListenableFuture<List<Message>> claim(final int ttl, final int grace, final int limit) {
+         return executor.submit(new Callable<List<Message>>() {
+            @Override
+            public List<Message> call() {
+               return api.claim(ttl, grace, limit);
+            }
+         });
+      }
+
+      @Override
+      public ListenableFuture<Claim> get(final String claimId) {
+         return executor.submit(new Callable<Claim>() {
+            @Override
+            public Claim call() {
+               return api.get(claimId);
+            }
+         });
+      }
+
+      @Override
+      public ListenableFuture<Void> update(final String claimId, final int ttl) {
+         return executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+               api.update(claimId, ttl);
+               return null;
+            }
+         });
+      }
+
+      @Override
+      public ListenableFuture<Boolean> release(final String claimId) {
+         return executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+               return api.release(claimId);
+            }
+         });
+      }
+   }
+}
@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.async;
+
+import java.util.List;
+
+import org.jclouds.openstack.marconi.v1.domain.CreateMessage;
+import org.jclouds.openstack.marconi.v1.domain.Message;
+import org.jclouds.openstack.marconi.v1.domain.MessageStream;
+import org.jclouds.openstack.marconi.v1.domain.MessagesCreated;
+import org.jclouds.openstack.marconi.v1.options.StreamMessagesOptions;
+
+import com.google.common.annotations.Beta;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * The asynchronous counterpart of {@link org.jclouds.openstack.marconi.v1.features.MessageApi}. Every operation
+ * returns at once and completes with the same result, fallback value or exception as the blocking operation of the
+ * same name, which runs on a thread of the {@link AsyncMarconi} executor while the request is in flight.
+ *
+ * @see AsyncMarconi#getMessageApi(String, java.util.UUID, String)
+ */
+@Beta
+public interface AsyncMessageApi {
+   /**
+    * @see org.jclouds.openstack.marconi.v1.features.MessageApi#create(List)
+    */
+   ListenableFuture<MessagesCreated> create(List<CreateMessage> messages);
+
+   /**
+    * @see org.jclouds.openstack.marconi.v1.features.MessageApi#stream(StreamMessagesOptions...)
+    */
+   ListenableFuture<MessageStream> stream(StreamMessagesOptions... options);
+
+   /**
+    * @see org.jclouds.openstack.marconi.v1.features.MessageApi#list(Iterable)
+    */
+   ListenableFuture<List<Message>> list(Iterable<String> ids);
+
+   /**
+    * @see org.jclouds.openstack.marconi.v1.features.MessageApi#get(String)
+    */
+   ListenableFuture<Message> get(String id);
+
+   /**
+    * @see org.jclouds.openstack.marconi.v1.features.MessageApi#delete(Iterable)
+    */
+   ListenableFuture<Boolean> delete(Iterable<String> ids);
+
+   /**
+    * @see org.jclouds.openstack.marconi.v1.features.MessageApi#deleteByClaim(String, String)
+    */
+   ListenableFuture<Boolean> deleteByClaim(String id, String claimId);
+}
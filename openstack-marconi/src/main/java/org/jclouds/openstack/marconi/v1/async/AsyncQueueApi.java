@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.async;
+
+import java.util.Map;
+
+import org.jclouds.openstack.marconi.v1.domain.QueueStats;
+import org.jclouds.openstack.marconi.v1.domain.Queues;
+import org.jclouds.openstack.marconi.v1.options.ListQueuesOptions;
+
+import com.google.common.annotations.Beta;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * The asynchronous counterpart of {@link org.jclouds.openstack.marconi.v1.features.QueueApi}. Every operation
+ * returns at once and completes with the same result, fallback value or exception as the blocking operation of the
+ * same name, which runs on a thread of the {@link AsyncMarconi} executor while the request is in flight.
+ *
+ * @see AsyncMarconi#getQueueApi(String, java.util.UUID)
+ */
+@Beta
+public interface AsyncQueueApi {
+   /**
+    * @see org.jclouds.openstack.marconi.v1.features.QueueApi#create(String)
+    */
+   ListenableFuture<Void> create(String name);
+
+   /**
+    * @see org.jclouds.openstack.marconi.v1.features.QueueApi#delete(String)
+    */
+   ListenableFuture<Boolean> delete(String name);
+
+   /**
+    * @see org.jclouds.openstack.marconi.v1.features.QueueApi#exists(String)
+    */
+   ListenableFuture<Boolean> exists(String name);
+
+   /**
+    * Lists a single page of queues. Use {@link Queues#nextListQueuesOptions()} to request the next page.
+    *
+    * @see org.jclouds.openstack.marconi.v1.features.QueueApi#list(ListQueuesOptions)
+    */
+   ListenableFuture<Queues> list(ListQueuesOptions options);
+
+   /**
+    * @see org.jclouds.openstack.marconi.v1.features.QueueApi#setMetadata(String, Map)
+    */
+   ListenableFuture<Void> setMetadata(String name, Map<String, String> metadata);
+
+   /**
+    * @see org.jclouds.openstack.marconi.v1.features.QueueApi#getMetadata(String)
+    */
+   ListenableFuture<Map<String, String>> getMetadata(String name);
+
+   /**
+    * @see org.jclouds.openstack.marconi.v1.features.QueueApi#getStats(String)
+    */
+   ListenableFuture<QueueStats> getStats(String name);
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.binders;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.jclouds.http.HttpRequest;
+import org.jclouds.json.Json;
+import org.jclouds.openstack.marconi.v1.domain.CreateMessage;
+import org.jclouds.rest.Binder;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+
+/**
+ * Writes messages as the JSON array expected by the create operation. Bodies given as a String are encoded as JSON
+ * strings, exactly as {@link org.jclouds.rest.binders.BindToJsonPayload} would, while bodies given as raw bytes are
+ * copied into the payload verbatim.
+ */
+@Singleton
+public class BindCreateMessagesToJsonPayload implements Binder {
+
+   private static final byte[] TTL = "{\"ttl\":".getBytes(Charsets.US_ASCII);
+   private static final byte[] BODY = ",\"body\":".getBytes(Charsets.US_ASCII);
+
+   private final Json json;
+
+   @Inject
+   BindCreateMessagesToJsonPayload(Json json) {
+      this.json = checkNotNull(json, "json");
+   }
+
+   @Override
+   public <R extends HttpRequest> R bindToRequest(R request, Object input) {
+      checkArgument(input instanceof List<?>, "This binder is only valid for List<CreateMessage>");
+      List<?> messages = (List<?>) input;
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream(estimateSize(messages));
+      out.write('[');
+      for (int i = 0; i < messages.size(); i++) {
+         CreateMessage message = CreateMessage.class.cast(checkNotNull(messages.get(i), "message"));
+         if (i > 0) {
+            out.write(',');
+         }
+         write(out, TTL);
+         write(out, Integer.toString(message.getTTL()).getBytes(Charsets.US_ASCII));
+         write(out, BODY);
+
+         Optional<ByteBuffer> rawBody = message.getRawBody();
+         if (rawBody.isPresent()) {
+            write(out, rawBody.get());
+         }
+         else {
+            write(out, json.toJson(message.getBody()).getBytes(Charsets.UTF_8));
+         }
+         out.write('}');
+      }
+      out.write(']');
+
+      request.setPayload(out.toByteArray());
+      request.getPayload().getContentMetadata().setContentType("application/json");
+      return request;
+   }
+
+   private static int estimateSize(List<?> messages) {
+      int size = 2;
+      for (Object message : messages) {
+         Optional<ByteBuffer> rawBody = CreateMessage.class.cast(message).getRawBody();
+         size += 32 + (rawBody.isPresent() ? rawBody.get().remaining() : 256);
+      }
+      return size;
+   }
+
+   private static void write(ByteArrayOutputStream out, byte[] bytes) {
+      out.write(bytes, 0, bytes.length);
+   }
+
+   private static void write(ByteArrayOutputStream out, ByteBuffer bytes) {
+      if (bytes.hasArray()) {
+         out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+      }
+      else {
+         byte[] copy = new byte[bytes.remaining()];
+         bytes.duplicate().get(copy);
+         write(out, copy);
+      }
+   }
+}
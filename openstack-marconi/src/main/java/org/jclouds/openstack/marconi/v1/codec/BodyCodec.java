@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.codec;
+
+import com.google.common.annotations.Beta;
+
+/**
+ * Encodes message bodies for {@link BodyEnvelope}, typically by compressing them. Implementations must be thread-safe.
+ *
+ * @see BodyCodecs
+ */
+@Beta
+public interface BodyCodec {
+
+   /**
+    * @return The name written into the envelope, which consumers use to find the codec that decodes it. It must be
+    *         identical wherever the codec is registered.
+    */
+   String getName();
+
+   /**
+    * @param body The UTF-8 bytes of the message body.
+    * @return The encoded body.
+    */
+   byte[] encode(byte[] body);
+
+   /**
+    * @param encoded A body produced by {@link #encode(byte[])}.
+    * @param maxLength The most bytes the decoded body may have.
+    * @return The original UTF-8 bytes of the message body.
+    * @throws IllegalArgumentException If the data is corrupt or decodes to more than {@code maxLength} bytes.
+    */
+   byte[] decode(byte[] encoded, int maxLength);
+}
@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.codec;
+
+import com.google.common.annotations.Beta;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The built-in {@link BodyCodec}s.
+ */
+@Beta
+public final class BodyCodecs {
+
+   /**
+    * @return A codec that compresses bodies with gzip, named {@code gzip}.
+    */
+   public static BodyCodec gzip() {
+      return GzipBodyCodec.INSTANCE;
+   }
+
+   /**
+    * @return A codec that compresses bodies with zlib deflate at the default level, named {@code deflate}.
+    */
+   public static BodyCodec deflate() {
+      return deflate(Deflater.DEFAULT_COMPRESSION);
+   }
+
+   /**
+    * @param level The compression level, from 0 to 9.
+    * @return A codec that compresses bodies with zlib deflate, named {@code deflate}. The level only affects encoding,
+    *         so any deflate codec decodes the output of any other.
+    */
+   public static BodyCodec deflate(int level) {
+      return new DeflateBodyCodec("deflate", level, null);
+   }
+
+   /**
+    * Small JSON bodies share most of their field names and values, which plain deflate cannot exploit within a single
+    * message. A preset dictionary made of a typical body, or of the strings that recur across bodies, lets even short
+    * bodies compress well.
+    *
+    * @param dictionary The preset dictionary. Producers and consumers must use identical bytes.
+    * @return A codec that compresses bodies with zlib deflate and a preset dictionary, named {@code deflate-dict-}
+    *         followed by the Adler-32 checksum of the dictionary in hex, so that bodies compressed with another
+    *         dictionary are never decoded with this one.
+    */
+   public static BodyCodec dictionary(byte[] dictionary) {
+      checkNotNull(dictionary, "dictionary");
+      checkArgument(dictionary.length > 0, "dictionary must not be empty");
+      Adler32 adler = new Adler32();
+      adler.update(dictionary);
+      String name = String.format("deflate-dict-%08x", adler.getValue());
+      return new DeflateBodyCodec(name, Deflater.BEST_COMPRESSION, dictionary.clone());
+   }
+
+   private BodyCodecs() {
+      throw new AssertionError("intentionally unimplemented");
+   }
+
+   private enum GzipBodyCodec implements BodyCodec {
+      INSTANCE;
+
+      @Override
+      public String getName() {
+         return "gzip";
+      }
+
+      @Override
+      public byte[] encode(byte[] body) {
+         ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2 + 32);
+         try {
+            GZIPOutputStream gzip = new GZIPOutputStream(out);
+            gzip.write(body);
+            gzip.close();
+         }
+         catch (IOException e) {
+            throw new AssertionError(e);
+         }
+         return out.toByteArray();
+      }
+
+      @Override
+      public byte[] decode(byte[] encoded, int maxLength) {
+         try {
+            InputStream in = ByteStreams.limit(new GZIPInputStream(new ByteArrayInputStream(encoded)),
+                  maxLength + 1L);
+            byte[] decoded = ByteStreams.toByteArray(in);
+            checkArgument(decoded.length <= maxLength, "decoded body exceeds %s bytes", maxLength);
+            return decoded;
+         }
+         catch (IOException e) {
+            throw new IllegalArgumentException("corrupt gzip body", e);
+         }
+      }
+
+      @Override
+      public String toString() {
+         return getName();
+      }
+   }
+
+   private static final class DeflateBodyCodec implements BodyCodec {
+      private final String name;
+      private final int level;
+      private final byte[] dictionary;
+
+      private DeflateBodyCodec(String name, int level, byte[] dictionary) {
+         checkArgument(level == Deflater.DEFAULT_COMPRESSION || (level >= 0 && level <= 9),
+               "level must be between 0 and 9");
+         this.name = name;
+         this.level = level;
+         this.dictionary = dictionary;
+      }
+
+      @Override
+      public String getName() {
+         return name;
+      }
+
+      @Override
+      public byte[] encode(byte[] body) {
+         Deflater deflater = new Deflater(level);
+         try {
+            if (dictionary != null) {
+               deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(body);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2 + 32);
+            byte[] buffer = new byte[Math.max(64, Math.min(body.length, 8192))];
+            while (!deflater.finished()) {
+               out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+         }
+         finally {
+            deflater.end();
+         }
+      }
+
+      @Override
+      public byte[] decode(byte[] encoded, int maxLength) {
+         Inflater inflater = new Inflater();
+         try {
+            inflater.setInput(encoded);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(maxLength, encoded.length * 4 + 64));
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+               int n = inflater.inflate(buffer);
+               if (n == 0) {
+                  if (inflater.needsDictionary()) {
+                     checkArgument(dictionary != null, "body was compressed with a preset dictionary");
+                     inflater.setDictionary(dictionary);
+                  }
+                  else if (inflater.needsInput()) {
+                     throw new IllegalArgumentException("truncated deflate body");
+                  }
+               }
+               out.write(buffer, 0, n);
+               checkArgument(out.size() <= maxLength, "decoded body exceeds %s bytes", maxLength);
+            }
+            return out.toByteArray();
+         }
+         catch (DataFormatException e) {
+            throw new IllegalArgumentException("corrupt deflate body", e);
+         }
+         finally {
+            inflater.end();
+         }
+      }
+
+      @Override
+      public String toString() {
+         return name;
+      }
+   }
+}
@@ -0,0 +1,242 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.codec;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.Charsets;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.io.BaseEncoding;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.jclouds.openstack.marconi.v1.domain.CreateMessage;
+import org.jclouds.openstack.marconi.v1.domain.Message;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Wraps encoded message bodies in an envelope that names the codec, so that consumers decode them transparently.
+ * <p/>
+ * Marconi messages have no headers, so the envelope is the body itself: a JSON object of the form
+ * <pre>
+ * {"jclouds-codec":"gzip","jclouds-data":"H4sIAAAAAAAAA..."}
+ * </pre>
+ * where the data is the base64 encoded output of the codec. Bodies smaller than {@link Builder#minBytes(int)}, and
+ * bodies that the codec does not make smaller, are sent as they are, and any body that is not an envelope is passed
+ * through by {@link #decode(Message)}. Consumers can therefore be upgraded before producers.
+ * <p/>
+ * Use it with {@link org.jclouds.openstack.marconi.v1.producer.MessageProducer.Builder#envelope(BodyEnvelope)},
+ * {@link org.jclouds.openstack.marconi.v1.consumer.MessageConsumer.Builder#envelope(BodyEnvelope)} and
+ * {@link org.jclouds.openstack.marconi.v1.worker.ClaimWorkerPool.Builder#envelope(BodyEnvelope)}, or call
+ * {@link #encode(CreateMessage)} and {@link #decode(Message)} directly.
+ */
+@Beta
+public class BodyEnvelope {
+   static final String CODEC = "jclouds-codec";
+   static final String DATA = "jclouds-data";
+
+   private static final BaseEncoding BASE64 = BaseEncoding.base64();
+
+   private final BodyCodec codec;
+   private final Map<String, BodyCodec> codecs;
+   private final int minBytes;
+   private final int maxDecodedBytes;
+
+   protected BodyEnvelope(Builder builder) {
+      this.codec = builder.codec;
+      this.codecs = ImmutableMap.copyOf(builder.codecs);
+      this.minBytes = builder.minBytes;
+      this.maxDecodedBytes = builder.maxDecodedBytes;
+   }
+
+   /**
+    * @return The message with its body wrapped in an envelope, or the message itself if there is no codec to encode
+    *         with or encoding would not make the body smaller.
+    */
+   public CreateMessage encode(CreateMessage message) {
+      checkNotNull(message, "message");
+      if (codec == null) {
+         return message;
+      }
+
+      byte[] body = toByteArray(message);
+      if (body.length < minBytes) {
+         return message;
+      }
+
+      byte[] envelope = new StringBuilder(body.length / 2 + 64)
+            .append("{\"").append(CODEC).append("\":\"").append(codec.getName())
+            .append("\",\"").append(DATA).append("\":\"").append(BASE64.encode(codec.encode(body)))
+            .append("\"}").toString().getBytes(Charsets.UTF_8);
+      if (envelope.length >= body.length) {
+         return message;
+      }
+      return CreateMessage.builder().ttl(message.getTTL()).rawBody(envelope).build();
+   }
+
+   /**
+    * @return The message with the body it was created with, or the message itself if its body is not an envelope.
+    * @throws IllegalArgumentException If no codec is registered for the envelope or its data is corrupt.
+    */
+   public Message decode(Message message) {
+      checkNotNull(message, "message");
+      Optional<JsonObject> envelope = parseEnvelope(message.getBody());
+      if (!envelope.isPresent()) {
+         return message;
+      }
+
+      String name = envelope.get().get(CODEC).getAsString();
+      BodyCodec decoder = codecs.get(name);
+      checkArgument(decoder != null, "no codec is registered for %s in message %s", name, message.getId());
+
+      byte[] data;
+      try {
+         data = BASE64.decode(envelope.get().get(DATA).getAsString());
+      }
+      catch (IllegalArgumentException e) {
+         throw new IllegalArgumentException("corrupt envelope in message " + message.getId(), e);
+      }
+      String body = new String(decoder.decode(data, maxDecodedBytes), Charsets.UTF_8);
+      return message.toBuilder().body(body).build();
+   }
+
+   /**
+    * @return True if the body is an envelope written by {@link #encode(CreateMessage)}.
+    */
+   public static boolean isEnvelope(String body) {
+      return parseEnvelope(body).isPresent();
+   }
+
+   private static Optional<JsonObject> parseEnvelope(String body) {
+      // cheap checks first, as most bodies are not envelopes
+      if (body == null || body.indexOf(CODEC) == -1 || !body.trim().startsWith("{")) {
+         return Optional.absent();
+      }
+      JsonElement json;
+      try {
+         json = new JsonParser().parse(body);
+      }
+      catch (JsonParseException e) {
+         return Optional.absent();
+      }
+      if (!json.isJsonObject()) {
+         return Optional.absent();
+      }
+      JsonObject object = json.getAsJsonObject();
+      if (object.entrySet().size() != 2 || !isString(object.get(CODEC)) || !isString(object.get(DATA))) {
+         return Optional.absent();
+      }
+      return Optional.of(object);
+   }
+
+   private static boolean isString(JsonElement element) {
+      return element != null && element.isJsonPrimitive() && element.getAsJsonPrimitive().isString();
+   }
+
+   private static byte[] toByteArray(CreateMessage message) {
+      Optional<ByteBuffer> rawBody = message.getRawBody();
+      if (!rawBody.isPresent()) {
+         return message.getBody().getBytes(Charsets.UTF_8);
+      }
+      byte[] bytes = new byte[rawBody.get().remaining()];
+      rawBody.get().get(bytes);
+      return bytes;
+   }
+
+   public Optional<BodyCodec> getCodec() {
+      return Optional.fromNullable(codec);
+   }
+
+   @Override
+   public String toString() {
+      return MoreObjects.toStringHelper(this)
+            .add("codec", codec)
+            .add("codecs", codecs.keySet())
+            .add("minBytes", minBytes)
+            .add("maxDecodedBytes", maxDecodedBytes)
+            .toString();
+   }
+
+   public static Builder builder() {
+      return new Builder();
+   }
+
+   public static class Builder {
+      protected BodyCodec codec;
+      protected final Map<String, BodyCodec> codecs = Maps.newLinkedHashMap();
+      protected int minBytes = 512;
+      protected int maxDecodedBytes = 16 * 1024 * 1024;
+
+      protected Builder() {
+         register(BodyCodecs.gzip());
+         register(BodyCodecs.deflate());
+      }
+
+      /**
+       * The codec bodies are encoded with, which is also registered for decoding. Without one the envelope only
+       * decodes.
+       */
+      public Builder codec(BodyCodec codec) {
+         this.codec = checkNotNull(codec, "codec");
+         return register(codec);
+      }
+
+      /**
+       * Registers a codec for decoding envelopes that name it. The gzip and deflate codecs are always registered;
+       * dictionary codecs have to be registered with the same dictionary the producers use.
+       */
+      public Builder register(BodyCodec codec) {
+         checkNotNull(codec, "codec");
+         String name = checkNotNull(codec.getName(), "name");
+         checkArgument(name.matches("[A-Za-z0-9._-]+"), "codec names may only contain letters, digits, '.', '_' and '-'");
+         codecs.put(name, codec);
+         return this;
+      }
+
+      /**
+       * Bodies smaller than this are not encoded, as the envelope and base64 would outweigh the savings. Defaults to
+       * 512 bytes.
+       */
+      public Builder minBytes(int minBytes) {
+         checkArgument(minBytes >= 0, "minBytes must not be negative");
+         this.minBytes = minBytes;
+         return this;
+      }
+
+      /**
+       * The largest decoded body accepted, which protects consumers from bodies that decompress to excessive sizes.
+       * Defaults to 16 MB.
+       */
+      public Builder maxDecodedBytes(int maxDecodedBytes) {
+         checkArgument(maxDecodedBytes > 0, "maxDecodedBytes must be positive");
+         this.maxDecodedBytes = maxDecodedBytes;
+         return this;
+      }
+
+      public BodyEnvelope build() {
+         return new BodyEnvelope(this);
+      }
+   }
+}
@@ -16,15 +16,24 @@
  */
 package org.jclouds.openstack.marconi.v1.config;
 
+import static org.jclouds.openstack.marconi.v1.config.MarconiProperties.ASYNC_THREADS;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
 import org.jclouds.http.HttpErrorHandler;
 import org.jclouds.http.annotation.ClientError;
 import org.jclouds.http.annotation.Redirection;
 import org.jclouds.http.annotation.ServerError;
+import org.jclouds.lifecycle.Closer;
 import org.jclouds.openstack.marconi.v1.MarconiApi;
+import org.jclouds.openstack.marconi.v1.async.AsyncMarconi;
 import org.jclouds.openstack.marconi.v1.handlers.MarconiErrorHandler;
 import org.jclouds.rest.ConfiguresHttpApi;
 import org.jclouds.rest.config.HttpApiModule;
 
+import com.google.inject.Provides;
+
 @ConfiguresHttpApi
 public class MarconiHttpApiModule extends HttpApiModule<MarconiApi> {
 
@@ -37,4 +46,17 @@ public class MarconiHttpApiModule extends HttpApiModule<MarconiApi> {
       bind(HttpErrorHandler.class).annotatedWith(ClientError.class).to(MarconiErrorHandler.class);
       bind(HttpErrorHandler.class).annotatedWith(ServerError.class).to(MarconiErrorHandler.class);
    }
+
+   /**
+    * Gives the async api a fixed pool of its own rather than the unbounded jclouds user executor, so that callers
+    * submitting many requests queue up instead of starting a thread per request. The pool is shut down with the
+    * context.
+    */
+   @Provides
+   @Singleton
+   protected AsyncMarconi provideAsyncMarconi(MarconiApi api, @Named(ASYNC_THREADS) int threads, Closer closer) {
+      AsyncMarconi async = AsyncMarconi.builder(api).threads(threads).build();
+      closer.addToClose(async);
+      return async;
+   }
 }
@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.config;
+
+/**
+ * Configuration properties and constants used in Marconi connections.
+ */
+public final class MarconiProperties {
+
+   /**
+    * When {@code true}, messages read from the API keep their bodies as undecoded bytes, available from
+    * {@link org.jclouds.openstack.marconi.v1.domain.Message#getRawBody()}. The body is only decoded into a String if
+    * {@link org.jclouds.openstack.marconi.v1.domain.Message#getBody()} is called. Defaults to {@code false}.
+    */
+   public static final String RAW_MESSAGE_BODIES = "jclouds.marconi.raw-message-bodies";
+
+   /**
+    * The number of threads of the {@link org.jclouds.openstack.marconi.v1.async.AsyncMarconi} bound in the injector,
+    * which bounds the number of its requests in flight. Defaults to {@code 20}.
+    */
+   public static final String ASYNC_THREADS = "jclouds.marconi.async-threads";
+
+   /**
+    * The most pages of {@link org.jclouds.openstack.marconi.v1.features.QueueApi#list(boolean)} fetched ahead of the
+    * caller on the user executor, or {@code 0} to fetch each page only when it is reached. Defaults to {@code 1}.
+    */
+   public static final String QUEUE_LIST_PREFETCH_DEPTH = "jclouds.marconi.queue-list-prefetch-depth";
+
+   private MarconiProperties() {
+      throw new AssertionError("intentionally unimplemented");
+   }
+}
@@ -0,0 +1,402 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.consumer;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Optional;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jclouds.javax.annotation.Nullable;
+import org.jclouds.openstack.marconi.v1.codec.BodyEnvelope;
+import org.jclouds.openstack.marconi.v1.dedup.DedupIndex;
+import org.jclouds.openstack.marconi.v1.domain.Message;
+import org.jclouds.openstack.marconi.v1.domain.MessageStream;
+import org.jclouds.openstack.marconi.v1.features.MessageApi;
+import org.jclouds.openstack.marconi.v1.options.StreamMessagesOptions;
+import org.jclouds.rest.AuthorizationException;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Continuously streams messages off of a queue with {@link MessageApi#stream(StreamMessagesOptions...)}.
+ * <p/>
+ * A background task fetches the next page of messages while the pages before it are being consumed, and hands the
+ * messages over through a bounded buffer. When the buffer is full the task waits, so a slow consumer is never more
+ * than {@code bufferSize} messages behind. When the queue is empty the task backs off exponentially, from
+ * {@code minBackoff} up to {@code maxBackoff}, and goes back to full speed as soon as a page has messages in it.
+ * <p/>
+ * The marker of the last page that was completely consumed is available from {@link #getMarker()}. Persist it and
+ * pass it to {@link Builder#marker(String)} to resume streaming after a restart.
+ */
+@Beta
+public class MessageConsumer implements Closeable {
+
+   private static final long POLL_INTERVAL_MILLIS = 100;
+
+   private final MessageApi api;
+   private final int limit;
+   private final boolean echo;
+   private final boolean includeClaimed;
+   private final long minBackoffMillis;
+   private final long maxBackoffMillis;
+   private final BodyEnvelope envelope;
+   private final DedupIndex dedup;
+   private final BlockingQueue<Entry> buffer;
+   private final ExecutorService executor;
+   private final boolean shutdownExecutorOnClose;
+   private final AtomicReference<String> marker;
+   private final AtomicReference<Throwable> lastFailure = new AtomicReference<Throwable>();
+
+   private volatile State state = State.NEW;
+   private volatile Future<?> fetcher;
+
+   private enum State {
+      NEW, RUNNING, FAILED, CLOSED
+   }
+
+   protected MessageConsumer(Builder builder) {
+      this.api = builder.api;
+      this.limit = builder.limit;
+      this.echo = builder.echo;
+      this.includeClaimed = builder.includeClaimed;
+      this.minBackoffMillis = builder.minBackoffMillis;
+      this.maxBackoffMillis = builder.maxBackoffMillis;
+      this.envelope = builder.envelope;
+      this.dedup = builder.dedup;
+      this.buffer = new ArrayBlockingQueue<Entry>(builder.bufferSize);
+      this.marker = new AtomicReference<String>(builder.marker);
+      if (builder.executor != null) {
+         this.executor = builder.executor;
+         this.shutdownExecutorOnClose = false;
+      }
+      else {
+         this.executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+               .setNameFormat("marconi-consumer-%d").setDaemon(true).build());
+         this.shutdownExecutorOnClose = true;
+      }
+   }
+
+   /**
+    * Starts fetching messages in the background.
+    */
+   public synchronized MessageConsumer start() {
+      checkState(state == State.NEW, "consumer was already started");
+      state = State.RUNNING;
+      fetcher = executor.submit(new Fetcher(marker.get()));
+      return this;
+   }
+
+   /**
+    * Waits until a message is available and returns it.
+    *
+    * @throws IllegalStateException if the consumer was closed, or stopped because of an unrecoverable error.
+    */
+   public Message take() throws InterruptedException {
+      while (true) {
+         Message message = poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+         if (message != null) {
+            return message;
+         }
+      }
+   }
+
+   /**
+    * Waits up to the given time for a message to be available.
+    *
+    * @return The next message, or null if none arrived in time.
+    * @throws IllegalStateException if the consumer was closed, or stopped because of an unrecoverable error.
+    */
+   @Nullable
+   public Message poll(long timeout, TimeUnit unit) throws InterruptedException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      while (true) {
+         Entry entry = buffer.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+         if (entry == null) {
+            checkRunning();
+            return null;
+         }
+         if (entry.nextMarker != null) {
+            marker.set(entry.nextMarker);
+         }
+         if (dedup == null || dedup.markHandled(entry.message.getId())) {
+            return envelope == null ? entry.message : envelope.decode(entry.message);
+         }
+         // already handed out, skip the duplicate
+      }
+   }
+
+   /**
+    * @return The marker following the last page of messages that was completely consumed, or the marker this
+    *         consumer was built with if no page has been consumed yet.
+    */
+   public Optional<String> getMarker() {
+      return Optional.fromNullable(marker.get());
+   }
+
+   /**
+    * @return The most recent error raised while fetching messages.
+    */
+   public Optional<Throwable> getLastFailure() {
+      return Optional.fromNullable(lastFailure.get());
+   }
+
+   /**
+    * @return The number of messages fetched but not yet consumed.
+    */
+   public int getBuffered() {
+      return buffer.size();
+   }
+
+   /**
+    * Stops fetching messages. Messages that are already buffered can still be consumed with {@link #poll}.
+    */
+   @Override
+   public synchronized void close() {
+      if (state == State.CLOSED) {
+         return;
+      }
+      state = State.CLOSED;
+      if (fetcher != null) {
+         fetcher.cancel(true);
+      }
+      if (shutdownExecutorOnClose) {
+         executor.shutdownNow();
+      }
+   }
+
+   private void checkRunning() {
+      if (state == State.FAILED) {
+         throw new IllegalStateException("consumer stopped after an unrecoverable error", lastFailure.get());
+      }
+      checkState(state != State.CLOSED || !buffer.isEmpty(), "consumer is closed");
+      checkState(state != State.NEW, "consumer was not started");
+   }
+
+   private StreamMessagesOptions streamOptions(@Nullable String marker) {
+      StreamMessagesOptions options = StreamMessagesOptions.Builder.limit(limit);
+      if (marker != null) {
+         options.marker(marker);
+      }
+      if (echo) {
+         options.echo(true);
+      }
+      if (includeClaimed) {
+         options.includeClaimed(true);
+      }
+      return options;
+   }
+
+   private class Fetcher implements Runnable {
+      private String marker;
+
+      private Fetcher(@Nullable String marker) {
+         this.marker = marker;
+      }
+
+      @Override
+      public void run() {
+         long backoffMillis = minBackoffMillis;
+
+         try {
+            while (state == State.RUNNING && !Thread.currentThread().isInterrupted()) {
+               int fetched;
+               try {
+                  fetched = fetchPage();
+                  lastFailure.set(null);
+               }
+               catch (AuthorizationException e) {
+                  lastFailure.set(e);
+                  state = State.FAILED;
+                  return;
+               }
+               catch (RuntimeException e) {
+                  lastFailure.set(e);
+                  fetched = 0;
+               }
+
+               if (fetched > 0) {
+                  backoffMillis = minBackoffMillis;
+               }
+               else {
+                  TimeUnit.MILLISECONDS.sleep(backoffMillis);
+                  backoffMillis = Math.min(backoffMillis * 2, maxBackoffMillis);
+               }
+            }
+         }
+         catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+
+      /**
+       * Fetches one page and blocks until all of its messages are buffered.
+       */
+      private int fetchPage() throws InterruptedException {
+         MessageStream page = api.stream(streamOptions(marker));
+         // An empty page carries no next link, so the same marker is used for the next attempt
+         String nextMarker = page.nextMarker().isPresent() ? page.nextStreamOptions().getMarker() : marker;
+
+         int size = Iterables.size(page);
+         Iterator<Message> messages = page.iterator();
+         for (int i = 0; i < size; i++) {
+            buffer.put(new Entry(messages.next(), i == size - 1 ? nextMarker : null));
+         }
+         marker = nextMarker;
+
+         return size;
+      }
+   }
+
+   private static final class Entry {
+      private final Message message;
+      private final String nextMarker;
+
+      private Entry(Message message, @Nullable String nextMarker) {
+         this.message = message;
+         this.nextMarker = nextMarker;
+      }
+   }
+
+   @Override
+   public String toString() {
+      return MoreObjects.toStringHelper(this).omitNullValues()
+            .add("state", state).add("marker", marker.get()).add("buffered", buffer.size()).toString();
+   }
+
+   public static Builder builder(MessageApi api) {
+      return new Builder(api);
+   }
+
+   public static class Builder {
+      protected final MessageApi api;
+      protected int limit = 10;
+      protected boolean echo;
+      protected boolean includeClaimed;
+      protected String marker;
+      protected int bufferSize = 100;
+      protected long minBackoffMillis = 100;
+      protected long maxBackoffMillis = 10000;
+      protected BodyEnvelope envelope;
+      protected DedupIndex dedup;
+      protected ExecutorService executor;
+
+      protected Builder(MessageApi api) {
+         this.api = checkNotNull(api, "api");
+      }
+
+      /**
+       * @see StreamMessagesOptions.Builder#limit(int)
+       */
+      public Builder limit(int limit) {
+         checkArgument(limit > 0, "limit must be positive");
+         this.limit = limit;
+         return this;
+      }
+
+      /**
+       * @see StreamMessagesOptions.Builder#echo(boolean)
+       */
+      public Builder echo(boolean echo) {
+         this.echo = echo;
+         return this;
+      }
+
+      /**
+       * @see StreamMessagesOptions.Builder#includeClaimed(boolean)
+       */
+      public Builder includeClaimed(boolean includeClaimed) {
+         this.includeClaimed = includeClaimed;
+         return this;
+      }
+
+      /**
+       * The marker to resume streaming from, as returned by {@link MessageConsumer#getMarker()}.
+       */
+      public Builder marker(String marker) {
+         this.marker = checkNotNull(marker, "marker");
+         return this;
+      }
+
+      /**
+       * The maximum number of messages fetched ahead of the consumer. Defaults to 100.
+       */
+      public Builder bufferSize(int bufferSize) {
+         checkArgument(bufferSize > 0, "bufferSize must be positive");
+         this.bufferSize = bufferSize;
+         return this;
+      }
+
+      /**
+       * How long to wait before streaming again after an empty page or an error. The wait doubles after every
+       * consecutive empty page up to {@code max}. Defaults to 100 milliseconds and 10 seconds.
+       */
+      public Builder backoff(long min, long max, TimeUnit unit) {
+         long minMillis = unit.toMillis(min);
+         long maxMillis = unit.toMillis(max);
+         checkArgument(minMillis > 0 && maxMillis >= minMillis, "backoff must satisfy 0 < min <= max milliseconds");
+         this.minBackoffMillis = minMillis;
+         this.maxBackoffMillis = maxMillis;
+         return this;
+      }
+
+      /**
+       * The executor that runs the background fetch task. It is not shut down when the consumer is closed. Defaults
+       * to a dedicated daemon thread.
+       */
+      public Builder executor(ExecutorService executor) {
+         this.executor = checkNotNull(executor, "executor");
+         return this;
+      }
+
+      /**
+       * Decodes the bodies of messages sent through an envelope, such as compressed bodies. Other messages are
+       * returned as they are. A body that cannot be decoded makes {@code take()} or {@code poll()} throw an
+       * IllegalArgumentException; the marker has already moved past that message. By default bodies are returned as
+       * they are.
+       */
+      public Builder envelope(BodyEnvelope envelope) {
+         this.envelope = checkNotNull(envelope, "envelope");
+         return this;
+      }
+
+      /**
+       * Skips messages whose ids are already in the index, such as messages streamed again after a restart from an
+       * older marker, and adds the ids of the messages handed out. By default every message is handed out.
+       */
+      public Builder dedup(DedupIndex dedup) {
+         this.dedup = checkNotNull(dedup, "dedup");
+         return this;
+      }
+
+      public MessageConsumer build() {
+         return new MessageConsumer(this);
+      }
+   }
+}
@@ -0,0 +1,309 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.dedup;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.Charsets;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Ticker;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+/**
+ * Remembers the ids of messages that were already handled, so that a message delivered again is not handed to the
+ * application twice. Marconi delivers at least once: a message whose claim expires before it is deleted is claimed
+ * again by another worker, and a consumer that restarts from an older marker streams messages it has seen before.
+ * <p/>
+ * The index is bounded and time-expiring. Ids are forgotten once they are older than the ttl, and the oldest ids are
+ * forgotten first when the index is full. It is stored in primitive arrays, so it holds millions of ids in a few tens
+ * of megabytes without creating an object per id: the 24 hex digit ids Marconi assigns are kept as two longs, other
+ * ids as a 128 bit hash of the id.
+ * <p/>
+ * The index can be saved with {@link #writeTo(OutputStream)} and loaded again with {@link #readFrom(InputStream)} to
+ * keep deduplicating across restarts.
+ */
+@Beta
+public class DedupIndex {
+   private static final int MAGIC = 0x4d444931;
+   private static final long HASHED = 1L << 63;
+
+   private final int capacity;
+   private final long ttlNanos;
+   private final Ticker ticker;
+
+   // the ids in insertion order, in a ring of capacity entries
+   private final long[] high;
+   private final long[] low;
+   private final long[] expires;
+   private int oldest;
+   private int size;
+
+   // an open addressing hash table of ring positions + 1, where 0 is an empty slot
+   private final int[] table;
+   private final int mask;
+
+   protected DedupIndex(Builder builder) {
+      this.capacity = builder.capacity;
+      this.ttlNanos = builder.ttlNanos;
+      this.ticker = builder.ticker;
+      this.high = new long[capacity];
+      this.low = new long[capacity];
+      this.expires = new long[capacity];
+      int tableSize = Integer.highestOneBit(capacity) << 2;
+      this.table = new int[tableSize];
+      this.mask = tableSize - 1;
+   }
+
+   /**
+    * Records that a message was handled.
+    *
+    * @return true if the id was not in the index yet, false if the message was already handled.
+    */
+   public synchronized boolean markHandled(String id) {
+      checkNotNull(id, "id");
+      return add(highOf(id), lowOf(id), ticker.read() + ttlNanos);
+   }
+
+   /**
+    * @return true if a message with this id was handled within the ttl.
+    */
+   public synchronized boolean contains(String id) {
+      checkNotNull(id, "id");
+      expire(ticker.read());
+      return find(highOf(id), lowOf(id)) >= 0;
+   }
+
+   /**
+    * @return The number of ids in the index, including those that expired but were not purged yet.
+    */
+   public synchronized int size() {
+      return size;
+   }
+
+   /**
+    * Writes the ids that have not expired, together with their remaining time to live.
+    */
+   public synchronized void writeTo(OutputStream out) throws IOException {
+      long now = ticker.read();
+      expire(now);
+      DataOutputStream data = new DataOutputStream(out);
+      data.writeInt(MAGIC);
+      data.writeLong(System.currentTimeMillis());
+      data.writeInt(size);
+      for (int i = 0; i < size; i++) {
+         int position = (oldest + i) % capacity;
+         data.writeLong(high[position]);
+         data.writeLong(low[position]);
+         data.writeLong(TimeUnit.NANOSECONDS.toMillis(expires[position] - now));
+      }
+      data.flush();
+   }
+
+   /**
+    * Adds the ids written by {@link #writeTo(OutputStream)}, less the time that passed since they were written. Ids
+    * that expired in the meantime are skipped. Load the ids before the index is used, so that they expire before the
+    * ids added afterwards.
+    *
+    * @return The number of ids added.
+    * @throws IllegalArgumentException if the stream was not written by a DedupIndex.
+    */
+   public synchronized int readFrom(InputStream in) throws IOException {
+      DataInputStream data = new DataInputStream(in);
+      checkArgument(data.readInt() == MAGIC, "not a dedup index");
+      long elapsedMillis = Math.max(0, System.currentTimeMillis() - data.readLong());
+      int count = data.readInt();
+      long now = ticker.read();
+      int added = 0;
+      for (int i = 0; i < count; i++) {
+         long idHigh = data.readLong();
+         long idLow = data.readLong();
+         long remainingMillis = Math.min(data.readLong(), TimeUnit.NANOSECONDS.toMillis(ttlNanos)) - elapsedMillis;
+         if (remainingMillis > 0 && add(idHigh, idLow, now + TimeUnit.MILLISECONDS.toNanos(remainingMillis))) {
+            added++;
+         }
+      }
+      return added;
+   }
+
+   private boolean add(long idHigh, long idLow, long expiresAt) {
+      expire(ticker.read());
+      if (find(idHigh, idLow) >= 0) {
+         return false;
+      }
+      if (size == capacity) {
+         removeOldest();
+      }
+      int position = (oldest + size) % capacity;
+      high[position] = idHigh;
+      low[position] = idLow;
+      expires[position] = expiresAt;
+      size++;
+
+      int slot = slotOf(idHigh, idLow);
+      while (table[slot] != 0) {
+         slot = (slot + 1) & mask;
+      }
+      table[slot] = position + 1;
+      return true;
+   }
+
+   private void expire(long now) {
+      // ids are added in order of expiry, except for those loaded from a file, which are at most ttl old
+      while (size > 0 && expires[oldest] - now <= 0) {
+         removeOldest();
+      }
+   }
+
+   /**
+    * @return The slot of the id in the table, or -1 if it is not in the index.
+    */
+   private int find(long idHigh, long idLow) {
+      int slot = slotOf(idHigh, idLow);
+      while (table[slot] != 0) {
+         int position = table[slot] - 1;
+         if (high[position] == idHigh && low[position] == idLow) {
+            return slot;
+         }
+         slot = (slot + 1) & mask;
+      }
+      return -1;
+   }
+
+   private void removeOldest() {
+      int slot = find(high[oldest], low[oldest]);
+      oldest = (oldest + 1) % capacity;
+      size--;
+
+      // backward shift deletion keeps the probe sequences intact without tombstones
+      int next = (slot + 1) & mask;
+      while (table[next] != 0) {
+         int position = table[next] - 1;
+         int home = slotOf(high[position], low[position]);
+         if (((next - home) & mask) >= ((next - slot) & mask)) {
+            table[slot] = table[next];
+            slot = next;
+         }
+         next = (next + 1) & mask;
+      }
+      table[slot] = 0;
+   }
+
+   private int slotOf(long idHigh, long idLow) {
+      long hash = idHigh * 0x9e3779b97f4a7c15L ^ idLow;
+      hash ^= hash >>> 33;
+      hash *= 0xff51afd7ed558ccdL;
+      hash ^= hash >>> 33;
+      return (int) hash & mask;
+   }
+
+   private static boolean isMarconiId(String id) {
+      if (id.length() != 24) {
+         return false;
+      }
+      for (int i = 0; i < id.length(); i++) {
+         if (Character.digit(id.charAt(i), 16) < 0) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private static long highOf(String id) {
+      if (isMarconiId(id)) {
+         return Long.parseLong(id.substring(0, 8), 16);
+      }
+      return hash(id).asLong() | HASHED;
+   }
+
+   private static long lowOf(String id) {
+      if (isMarconiId(id)) {
+         return Long.parseLong(id.substring(8, 16), 16) << 32 | Long.parseLong(id.substring(16), 16);
+      }
+      byte[] bytes = hash(id).asBytes();
+      long value = 0;
+      for (int i = 8; i < 16; i++) {
+         value = value << 8 | (bytes[i] & 0xff);
+      }
+      return value;
+   }
+
+   private static HashCode hash(String id) {
+      return Hashing.murmur3_128().hashString(id, Charsets.UTF_8);
+   }
+
+   @Override
+   public synchronized String toString() {
+      return MoreObjects.toStringHelper(this)
+            .add("size", size).add("capacity", capacity).add("ttlMillis", TimeUnit.NANOSECONDS.toMillis(ttlNanos))
+            .toString();
+   }
+
+   public static Builder builder() {
+      return new Builder();
+   }
+
+   public static class Builder {
+      protected int capacity = 100000;
+      protected long ttlNanos = TimeUnit.HOURS.toNanos(1);
+      protected Ticker ticker = Ticker.systemTicker();
+
+      protected Builder() {
+      }
+
+      /**
+       * The largest number of ids kept. When the index is full, the oldest id is forgotten to make room. Every id
+       * takes about 40 bytes. Defaults to 100,000.
+       */
+      public Builder capacity(int capacity) {
+         checkArgument(capacity > 0 && capacity <= 1 << 26, "capacity must be between 1 and 2^26");
+         this.capacity = capacity;
+         return this;
+      }
+
+      /**
+       * How long an id is remembered. It should be at least as long as a handled message can be redelivered, which
+       * is the ttl of the messages. Defaults to 1 hour.
+       */
+      public Builder ttl(long ttl, TimeUnit unit) {
+         checkArgument(ttl > 0, "ttl must be positive");
+         this.ttlNanos = unit.toNanos(ttl);
+         return this;
+      }
+
+      /**
+       * The time source of the ttl, for tests.
+       */
+      Builder ticker(Ticker ticker) {
+         this.ticker = checkNotNull(ticker, "ticker");
+         return this;
+      }
+
+      public DedupIndex build() {
+         return new DedupIndex(this);
+      }
+   }
+}
@@ -17,10 +17,16 @@
 
 package org.jclouds.openstack.marconi.v1.domain;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Objects;
+import com.google.common.base.Optional;
 import org.jclouds.domain.JsonBall;
+import org.jclouds.javax.annotation.Nullable;
 
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -30,10 +36,16 @@ public class CreateMessage {
 
    private int ttl;
    private String body;
+   private transient ByteBuffer rawBody;
 
    protected CreateMessage(int ttl, String body) {
+      this(ttl, checkNotNull(body, "body required"), null);
+   }
+
+   protected CreateMessage(int ttl, @Nullable String body, @Nullable ByteBuffer rawBody) {
       this.ttl = ttl;
-      this.body = checkNotNull(body, "body required");
+      this.body = rawBody == null ? checkNotNull(body, "body required") : null;
+      this.rawBody = rawBody == null ? null : rawBody.duplicate();
    }
 
    /**
@@ -47,12 +59,19 @@ public class CreateMessage {
     * @see Builder#body(String)
     */
    public String getBody() {
-      return body;
+      return rawBody == null ? body : Charsets.UTF_8.decode(rawBody.duplicate()).toString();
+   }
+
+   /**
+    * @return A view of the bytes given to {@link Builder#rawBody(ByteBuffer)}, or absent for a String body.
+    */
+   public Optional<ByteBuffer> getRawBody() {
+      return rawBody == null ? Optional.<ByteBuffer> absent() : Optional.of(rawBody.duplicate());
    }
 
    @Override
    public int hashCode() {
-      return Objects.hashCode(ttl, body);
+      return Objects.hashCode(ttl, body, rawBody);
    }
 
    @Override
@@ -60,12 +79,13 @@ public class CreateMessage {
       if (this == obj) return true;
       if (obj == null || getClass() != obj.getClass()) return false;
       CreateMessage that = CreateMessage.class.cast(obj);
-      return Objects.equal(this.ttl, that.ttl) && Objects.equal(this.body, that.body);
+      return Objects.equal(this.ttl, that.ttl) && Objects.equal(this.body, that.body)
+            && Objects.equal(this.rawBody, that.rawBody);
    }
 
    protected MoreObjects.ToStringHelper string() {
       return MoreObjects.toStringHelper(this)
-         .add("ttl", ttl).add("body", body);
+         .add("ttl", ttl).add("body", body).add("rawBodyBytes", rawBody == null ? null : rawBody.remaining());
    }
 
    @Override
@@ -86,6 +106,7 @@ public class CreateMessage {
 
       protected int ttl;
       protected String body;
+      protected ByteBuffer rawBody;
 
       /**
        * @param ttl The time-to-live of the message in seconds. The ttl attribute specifies how long the server waits
@@ -109,15 +130,38 @@ public class CreateMessage {
       public Builder body(String json) {
          checkNotNull(json, "body required");
          this.body = new JsonBall(json).toString();
+         this.rawBody = null;
          return self();
       }
 
+      /**
+       * @param json The UTF-8 bytes of a JSON document that is already serialized, from the buffer's position to its
+       *             limit. Unlike {@link #body(String)}, the bytes are written into the request verbatim, so the
+       *             document becomes the body of the message itself rather than being encoded as a JSON string. The
+       *             bytes are not validated or copied, so the buffer must not be modified until the message is sent.
+       */
+      public Builder rawBody(ByteBuffer json) {
+         checkNotNull(json, "body required");
+         checkArgument(json.hasRemaining(), "body must not be empty");
+         this.rawBody = json.duplicate();
+         this.body = null;
+         return self();
+      }
+
+      /**
+       * @see #rawBody(ByteBuffer)
+       */
+      public Builder rawBody(byte[] json) {
+         return rawBody(ByteBuffer.wrap(checkNotNull(json, "body required")));
+      }
+
       public CreateMessage build() {
-         return new CreateMessage(ttl, body);
+         return new CreateMessage(ttl, body, rawBody);
       }
 
       public Builder fromMessage(CreateMessage in) {
-         return this.ttl(in.getTTL()).body(in.getBody());
+         Builder builder = in.rawBody == null ? body(in.getBody()) : rawBody(in.rawBody);
+         return builder.ttl(in.getTTL());
       }
    }
 
@@ -17,11 +17,15 @@
 
 package org.jclouds.openstack.marconi.v1.domain;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Objects;
 import com.google.common.base.Optional;
+import com.google.gson.JsonParser;
 import org.jclouds.javax.annotation.Nullable;
 
+import java.nio.ByteBuffer;
+
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -31,14 +35,21 @@ public class Message {
 
    private final String id;
    private final int ttl;
-   private final String body;
    private final int age;
    private final String claimId;
+   private final ByteBuffer rawBody;
+   private volatile String body;
 
    protected Message(String id, int ttl, String body, int age, @Nullable String claimId) {
+      this(id, ttl, checkNotNull(body, "body required"), null, age, claimId);
+   }
+
+   protected Message(String id, int ttl, @Nullable String body, @Nullable ByteBuffer rawBody, int age,
+         @Nullable String claimId) {
       this.id = checkNotNull(id, "id required");
       this.ttl = ttl;
-      this.body = checkNotNull(body, "body required");
+      this.body = rawBody == null ? checkNotNull(body, "body required") : body;
+      this.rawBody = rawBody == null ? null : rawBody.asReadOnlyBuffer();
       this.age = age;
       this.claimId = claimId;
    }
@@ -61,7 +72,25 @@ public class Message {
     * @see CreateMessage.Builder#body(String)
     */
    public String getBody() {
-      return body;
+      String result = body;
+      if (result == null) {
+         body = result = decode(rawBody.duplicate());
+      }
+      return result;
+   }
+
+   /**
+    * Only present when the message was read with
+    * {@link org.jclouds.openstack.marconi.v1.config.MarconiProperties#RAW_MESSAGE_BODIES} enabled, or built with
+    * {@link Builder#rawBody(ByteBuffer)}.
+    *
+    * @return A read-only view of the UTF-8 bytes of the body exactly as it appeared in the JSON response. A body sent
+    *         as a JSON string keeps its quotes and escapes, while one sent with
+    *         {@link CreateMessage.Builder#rawBody(ByteBuffer)} is the JSON document itself. The body is only decoded
+    *         into a String if {@link #getBody()} is called.
+    */
+   public Optional<ByteBuffer> getRawBody() {
+      return rawBody == null ? Optional.<ByteBuffer> absent() : Optional.of(rawBody.duplicate());
    }
 
    /**
@@ -93,7 +122,18 @@ public class Message {
 
    protected MoreObjects.ToStringHelper string() {
       return MoreObjects.toStringHelper(this).omitNullValues()
-         .add("id", id).add("ttl", ttl).add("body", body).add("age", age).add("claimId", claimId);
+         .add("id", id).add("ttl", ttl).add("body", body)
+         .add("rawBodyBytes", rawBody == null ? null : rawBody.remaining())
+         .add("age", age).add("claimId", claimId);
+   }
+
+   /**
+    * Decodes a raw body the same way a String body is read: the contents of a JSON string, or the JSON text of any
+    * other value.
+    */
+   private static String decode(ByteBuffer raw) {
+      String json = Charsets.UTF_8.decode(raw).toString();
+      return json.trim().startsWith("\"") ? new JsonParser().parse(json).getAsString() : json;
    }
 
    @Override
@@ -115,6 +155,7 @@ public class Message {
       protected String id;
       protected int ttl;
       protected String body;
+      protected ByteBuffer rawBody;
       protected int age;
       protected String claimId;
 
@@ -139,6 +180,16 @@ public class Message {
        */
       public Builder body(String json) {
          this.body = json;
+         this.rawBody = null;
+         return self();
+      }
+
+      /**
+       * @see Message#getRawBody()
+       */
+      public Builder rawBody(ByteBuffer json) {
+         this.rawBody = json;
+         this.body = null;
          return self();
       }
 
@@ -159,12 +210,12 @@ public class Message {
       }
 
       public Message build() {
-         return new Message(id, ttl, body, age, claimId);
+         return new Message(id, ttl, body, rawBody, age, claimId);
       }
 
       public Builder fromMessage(Message in) {
-         return this.id(in.getId()).ttl(in.getTTL()).body(in.getBody()).age(in.getAge())
-               .claimId(in.getClaimId().orNull());
+         Builder builder = in.rawBody == null ? body(in.getBody()) : rawBody(in.rawBody.duplicate());
+         return builder.id(in.getId()).ttl(in.getTTL()).age(in.getAge()).claimId(in.getClaimId().orNull());
       }
    }
 
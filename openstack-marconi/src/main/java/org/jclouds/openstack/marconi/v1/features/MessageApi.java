@@ -34,6 +34,7 @@ import org.jclouds.Fallbacks.NullOnNotFoundOr404;
 import org.jclouds.javax.annotation.Nullable;
 import org.jclouds.openstack.keystone.auth.filters.AuthenticateRequest;
 import org.jclouds.openstack.keystone.v2_0.KeystoneFallbacks.EmptyPaginatedCollectionOnNotFoundOr404;
+import org.jclouds.openstack.marconi.v1.binders.BindCreateMessagesToJsonPayload;
 import org.jclouds.openstack.marconi.v1.binders.BindIdsToQueryParam;
 import org.jclouds.openstack.marconi.v1.domain.CreateMessage;
 import org.jclouds.openstack.marconi.v1.domain.Message;
@@ -49,7 +50,6 @@ import org.jclouds.rest.annotations.Fallback;
 import org.jclouds.rest.annotations.RequestFilters;
 import org.jclouds.rest.annotations.ResponseParser;
 import org.jclouds.rest.annotations.SkipEncoding;
-import org.jclouds.rest.binders.BindToJsonPayload;
 
 /**
  * Provides access to Messages via their REST API.
@@ -68,7 +68,7 @@ public interface MessageApi {
    @Named("message:create")
    @POST
    @ResponseParser(ParseMessagesCreated.class)
-   MessagesCreated create(@BinderParam(BindToJsonPayload.class) List<CreateMessage> messages);
+   MessagesCreated create(@BinderParam(BindCreateMessagesToJsonPayload.class) List<CreateMessage> messages);
 
    /**
     * Streams the messages off of a queue. In a very active queue it's possible that you could continuously stream
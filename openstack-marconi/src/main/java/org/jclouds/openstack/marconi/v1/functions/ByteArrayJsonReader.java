@@ -0,0 +1,648 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.functions;
+
+import com.google.common.base.Charsets;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkPositionIndexes;
+
+/**
+ * A {@link JsonReader} over UTF-8 bytes that are already in memory, in the same way Gson's own JsonTreeReader reads a
+ * tree instead of a character stream. Names and the small scalar fields of a message are decoded as usual, but
+ * {@link #nextRawValue()} hands out any value as a read-only slice of the underlying bytes without decoding it.
+ */
+final class ByteArrayJsonReader extends JsonReader {
+
+   private static final Reader UNREADABLE_READER = new Reader() {
+      @Override
+      public int read(char[] buffer, int offset, int count) throws IOException {
+         throw new AssertionError();
+      }
+
+      @Override
+      public void close() throws IOException {
+         throw new AssertionError();
+      }
+   };
+
+   private static final int EMPTY_DOCUMENT = 0;
+   private static final int NONEMPTY_DOCUMENT = 1;
+   private static final int EMPTY_ARRAY = 2;
+   private static final int NONEMPTY_ARRAY = 3;
+   private static final int EMPTY_OBJECT = 4;
+   private static final int DANGLING_NAME = 5;
+   private static final int NONEMPTY_OBJECT = 6;
+
+   private final byte[] bytes;
+   private final int limit;
+   private int pos;
+   private int[] stack = new int[32];
+   private int stackSize = 1;
+   private String[] pathNames = new String[32];
+   private int[] pathIndices = new int[32];
+   private JsonToken peeked;
+
+   ByteArrayJsonReader(byte[] bytes) {
+      this(bytes, 0, bytes.length);
+   }
+
+   ByteArrayJsonReader(byte[] bytes, int offset, int length) {
+      super(UNREADABLE_READER);
+      this.bytes = checkNotNull(bytes, "bytes");
+      checkPositionIndexes(offset, offset + length, bytes.length);
+      this.pos = offset;
+      this.limit = offset + length;
+      this.stack[0] = EMPTY_DOCUMENT;
+   }
+
+   @Override
+   public JsonToken peek() throws IOException {
+      if (peeked == null) {
+         peeked = doPeek();
+      }
+      return peeked;
+   }
+
+   @Override
+   public boolean hasNext() throws IOException {
+      JsonToken token = peek();
+      return token != JsonToken.END_OBJECT && token != JsonToken.END_ARRAY && token != JsonToken.END_DOCUMENT;
+   }
+
+   @Override
+   public void beginArray() throws IOException {
+      expect(JsonToken.BEGIN_ARRAY);
+      pos++;
+      push(EMPTY_ARRAY);
+      pathIndices[stackSize - 1] = 0;
+   }
+
+   @Override
+   public void endArray() throws IOException {
+      expect(JsonToken.END_ARRAY);
+      pos++;
+      stackSize--;
+      pathIndices[stackSize - 1]++;
+   }
+
+   @Override
+   public void beginObject() throws IOException {
+      expect(JsonToken.BEGIN_OBJECT);
+      pos++;
+      push(EMPTY_OBJECT);
+   }
+
+   @Override
+   public void endObject() throws IOException {
+      expect(JsonToken.END_OBJECT);
+      pos++;
+      stackSize--;
+      pathNames[stackSize] = null;
+      pathIndices[stackSize - 1]++;
+   }
+
+   @Override
+   public String nextName() throws IOException {
+      expect(JsonToken.NAME);
+      stack[stackSize - 1] = DANGLING_NAME;
+      String name = readString();
+      pathNames[stackSize - 1] = name;
+      return name;
+   }
+
+   @Override
+   public String nextString() throws IOException {
+      JsonToken token = peek();
+      if (token == JsonToken.STRING) {
+         peeked = null;
+         String value = readString();
+         pathIndices[stackSize - 1]++;
+         return value;
+      }
+      if (token == JsonToken.NUMBER) {
+         peeked = null;
+         int start = pos;
+         pos = numberEnd(pos);
+         pathIndices[stackSize - 1]++;
+         return new String(bytes, start, pos - start, Charsets.US_ASCII);
+      }
+      throw syntaxError("Expected a string but was " + token);
+   }
+
+   @Override
+   public boolean nextBoolean() throws IOException {
+      expect(JsonToken.BOOLEAN);
+      if (consumeLiteral("true")) {
+         pathIndices[stackSize - 1]++;
+         return true;
+      }
+      if (consumeLiteral("false")) {
+         pathIndices[stackSize - 1]++;
+         return false;
+      }
+      throw syntaxError("Expected a boolean");
+   }
+
+   @Override
+   public void nextNull() throws IOException {
+      expect(JsonToken.NULL);
+      if (!consumeLiteral("null")) {
+         throw syntaxError("Expected null");
+      }
+      pathIndices[stackSize - 1]++;
+   }
+
+   @Override
+   public double nextDouble() throws IOException {
+      return Double.parseDouble(nextString());
+   }
+
+   @Override
+   public long nextLong() throws IOException {
+      JsonToken token = peek();
+      if (token == JsonToken.NUMBER) {
+         int start = pos;
+         int end = numberEnd(pos);
+         boolean negative = bytes[start] == '-';
+         int i = negative ? start + 1 : start;
+         // plain integers are accumulated negatively so that Long.MIN_VALUE fits
+         long value = 0;
+         boolean fits = true;
+         while (fits && i < end && bytes[i] >= '0' && bytes[i] <= '9') {
+            long next = value * 10 - (bytes[i++] - '0');
+            fits = value > Long.MIN_VALUE / 10 || value == Long.MIN_VALUE / 10 && next < value;
+            value = next;
+         }
+         if (fits && i == end && (negative || value != Long.MIN_VALUE)) {
+            peeked = null;
+            pos = end;
+            pathIndices[stackSize - 1]++;
+            return negative ? value : -value;
+         }
+      }
+      String text = nextString();
+      try {
+         return new BigDecimal(text).longValueExact();
+      }
+      catch (ArithmeticException e) {
+         throw new NumberFormatException("Expected a long but was " + text);
+      }
+   }
+
+   @Override
+   public int nextInt() throws IOException {
+      long value = nextLong();
+      int result = (int) value;
+      if (result != value) {
+         throw new NumberFormatException("Expected an int but was " + value);
+      }
+      return result;
+   }
+
+   @Override
+   public void skipValue() throws IOException {
+      JsonToken token = peek();
+      if (token == JsonToken.NAME) {
+         nextName();
+         return;
+      }
+      nextRawValue();
+   }
+
+   /**
+    * Consumes the next value of any type and returns the bytes it spans, without decoding them. A string value keeps
+    * its quotes and escapes, so the slice is always valid JSON on its own.
+    */
+   ByteBuffer nextRawValue() throws IOException {
+      JsonToken token = peek();
+      switch (token) {
+         case BEGIN_ARRAY:
+         case BEGIN_OBJECT:
+         case STRING:
+         case NUMBER:
+         case BOOLEAN:
+         case NULL:
+            break;
+         default:
+            throw syntaxError("Expected a value but was " + token);
+      }
+      int start = pos;
+      skipRawValue();
+      return ByteBuffer.wrap(bytes, start, pos - start).slice().asReadOnlyBuffer();
+   }
+
+   @Override
+   public void close() {
+      peeked = JsonToken.END_DOCUMENT;
+      stackSize = 1;
+      stack[0] = NONEMPTY_DOCUMENT;
+      pathNames[0] = null;
+      pathIndices[0] = 0;
+      pos = limit;
+   }
+
+   @Override
+   public String getPath() {
+      StringBuilder path = new StringBuilder().append('$');
+      for (int i = 0; i < stackSize; i++) {
+         switch (stack[i]) {
+            case EMPTY_ARRAY:
+            case NONEMPTY_ARRAY:
+               path.append('[').append(pathIndices[i]).append(']');
+               break;
+            case EMPTY_OBJECT:
+            case DANGLING_NAME:
+            case NONEMPTY_OBJECT:
+               path.append('.');
+               if (pathNames[i] != null) {
+                  path.append(pathNames[i]);
+               }
+               break;
+            default:
+               break;
+         }
+      }
+      return path.toString();
+   }
+
+   @Override
+   public String toString() {
+      return getClass().getSimpleName() + " at offset " + pos;
+   }
+
+   private JsonToken doPeek() throws IOException {
+      int scope = stack[stackSize - 1];
+      switch (scope) {
+         case EMPTY_ARRAY:
+            stack[stackSize - 1] = NONEMPTY_ARRAY;
+            if (next() == ']') {
+               return JsonToken.END_ARRAY;
+            }
+            return peekValue();
+         case NONEMPTY_ARRAY:
+            if (next() == ']') {
+               return JsonToken.END_ARRAY;
+            }
+            consume(',');
+            return peekValue();
+         case EMPTY_OBJECT:
+         case NONEMPTY_OBJECT:
+            if (next() == '}') {
+               return JsonToken.END_OBJECT;
+            }
+            if (scope == NONEMPTY_OBJECT) {
+               consume(',');
+            }
+            int c = next();
+            if (c != '"') {
+               throw syntaxError(c == -1 ? "End of input" : "Expected a name");
+            }
+            return JsonToken.NAME;
+         case DANGLING_NAME:
+            consume(':');
+            stack[stackSize - 1] = NONEMPTY_OBJECT;
+            return peekValue();
+         case EMPTY_DOCUMENT:
+            stack[stackSize - 1] = NONEMPTY_DOCUMENT;
+            return peekValue();
+         default:
+            if (next() != -1) {
+               throw syntaxError("Expected the end of the document");
+            }
+            return JsonToken.END_DOCUMENT;
+      }
+   }
+
+   private JsonToken peekValue() throws IOException {
+      int c = next();
+      switch (c) {
+         case '{':
+            return JsonToken.BEGIN_OBJECT;
+         case '[':
+            return JsonToken.BEGIN_ARRAY;
+         case '"':
+            return JsonToken.STRING;
+         case 't':
+         case 'f':
+            return JsonToken.BOOLEAN;
+         case 'n':
+            return JsonToken.NULL;
+         default:
+            if (c == '-' || (c >= '0' && c <= '9')) {
+               return JsonToken.NUMBER;
+            }
+            throw syntaxError(c == -1 ? "End of input" : "Unexpected character " + (char) c);
+      }
+   }
+
+   /**
+    * @return The next non-whitespace byte without consuming it, or -1 at the end of the input.
+    */
+   private int next() {
+      while (pos < limit) {
+         byte c = bytes[pos];
+         if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+            return c;
+         }
+         pos++;
+      }
+      return -1;
+   }
+
+   private void consume(char expected) throws IOException {
+      int c = next();
+      if (c != expected) {
+         throw syntaxError(c == -1 ? "End of input" : "Expected '" + expected + "'");
+      }
+      pos++;
+   }
+
+   private void expect(JsonToken expected) throws IOException {
+      JsonToken token = peek();
+      if (token != expected) {
+         throw new IllegalStateException("Expected " + expected + " but was " + token + " at offset " + pos);
+      }
+      peeked = null;
+   }
+
+   private void push(int scope) {
+      if (stackSize == stack.length) {
+         stack = Arrays.copyOf(stack, stackSize * 2);
+         pathNames = Arrays.copyOf(pathNames, stackSize * 2);
+         pathIndices = Arrays.copyOf(pathIndices, stackSize * 2);
+      }
+      pathNames[stackSize] = null;
+      pathIndices[stackSize] = 0;
+      stack[stackSize++] = scope;
+   }
+
+   private boolean consumeLiteral(String literal) {
+      int end = pos + literal.length();
+      if (end > limit) {
+         return false;
+      }
+      for (int i = 0; i < literal.length(); i++) {
+         if (bytes[pos + i] != literal.charAt(i)) {
+            return false;
+         }
+      }
+      pos = end;
+      return true;
+   }
+
+   /**
+    * Reads the string starting at the current quote, leaving the position after the closing quote.
+    */
+   private String readString() throws IOException {
+      int start = ++pos;
+      boolean ascii = true;
+      while (pos < limit) {
+         byte c = bytes[pos];
+         if (c == '"') {
+            String value = new String(bytes, start, pos - start, ascii ? Charsets.ISO_8859_1 : Charsets.UTF_8);
+            pos++;
+            return value;
+         }
+         if (c == '\\') {
+            return readEscapedString(start);
+         }
+         if (c < 0) {
+            ascii = false;
+         }
+         pos++;
+      }
+      throw syntaxError("Unterminated string");
+   }
+
+   private String readEscapedString(int start) throws IOException {
+      StringBuilder value = new StringBuilder(pos - start + 16);
+      int segment = start;
+      while (pos < limit) {
+         byte c = bytes[pos];
+         if (c == '"') {
+            value.append(new String(bytes, segment, pos - segment, Charsets.UTF_8));
+            pos++;
+            return value.toString();
+         }
+         if (c != '\\') {
+            pos++;
+            continue;
+         }
+         value.append(new String(bytes, segment, pos - segment, Charsets.UTF_8));
+         if (pos + 1 >= limit) {
+            break;
+         }
+         byte escaped = bytes[pos + 1];
+         pos += 2;
+         switch (escaped) {
+            case 'u':
+               value.append(unicodeEscape(pos));
+               pos += 4;
+               break;
+            case 'b':
+               value.append('\b');
+               break;
+            case 'f':
+               value.append('\f');
+               break;
+            case 'n':
+               value.append('\n');
+               break;
+            case 'r':
+               value.append('\r');
+               break;
+            case 't':
+               value.append('\t');
+               break;
+            case '"':
+            case '\\':
+            case '/':
+               value.append((char) escaped);
+               break;
+            default:
+               throw syntaxError("Invalid escape sequence");
+         }
+         segment = pos;
+      }
+      throw syntaxError("Unterminated string");
+   }
+
+   /**
+    * Steps over the next value with the same checks as the decoding methods, but without decoding its names and
+    * strings, so a malformed value is rejected here rather than handed out. Names inside the value are therefore
+    * left out of {@link #getPath()}.
+    */
+   private void skipRawValue() throws IOException {
+      int depth = 0;
+      do {
+         JsonToken token = peek();
+         switch (token) {
+            case BEGIN_ARRAY:
+               beginArray();
+               depth++;
+               break;
+            case BEGIN_OBJECT:
+               beginObject();
+               depth++;
+               break;
+            case END_ARRAY:
+               endArray();
+               depth--;
+               break;
+            case END_OBJECT:
+               endObject();
+               depth--;
+               break;
+            case NAME:
+               peeked = null;
+               stack[stackSize - 1] = DANGLING_NAME;
+               pos = stringEnd(pos);
+               break;
+            case STRING:
+               peeked = null;
+               pos = stringEnd(pos);
+               pathIndices[stackSize - 1]++;
+               break;
+            case NUMBER:
+               peeked = null;
+               pos = numberEnd(pos);
+               pathIndices[stackSize - 1]++;
+               break;
+            case BOOLEAN:
+               nextBoolean();
+               break;
+            case NULL:
+               nextNull();
+               break;
+            default:
+               throw syntaxError("Expected a value but was " + token);
+         }
+      } while (depth > 0);
+   }
+
+   private int stringEnd(int quote) throws IOException {
+      int i = quote + 1;
+      while (i < limit) {
+         byte c = bytes[i];
+         if (c == '"') {
+            return i + 1;
+         }
+         if (c != '\\') {
+            i++;
+            continue;
+         }
+         if (i + 1 >= limit) {
+            break;
+         }
+         switch (bytes[i + 1]) {
+            case 'u':
+               unicodeEscape(i + 2);
+               i += 6;
+               break;
+            case 'b':
+            case 'f':
+            case 'n':
+            case 'r':
+            case 't':
+            case '"':
+            case '\\':
+            case '/':
+               i += 2;
+               break;
+            default:
+               throw syntaxError("Invalid escape sequence");
+         }
+      }
+      throw syntaxError("Unterminated string");
+   }
+
+   /**
+    * @return The character encoded by the four hex digits at {@code start}.
+    */
+   private char unicodeEscape(int start) throws IOException {
+      if (start + 4 > limit) {
+         throw syntaxError("Unterminated escape sequence");
+      }
+      int result = 0;
+      for (int i = start; i < start + 4; i++) {
+         int digit = Character.digit(bytes[i], 16);
+         if (digit < 0) {
+            throw syntaxError("Malformed unicode escape");
+         }
+         result = result << 4 | digit;
+      }
+      return (char) result;
+   }
+
+   /**
+    * @return The offset just past the number starting at {@code start}, which must match the JSON number grammar.
+    */
+   private int numberEnd(int start) throws IOException {
+      int i = start;
+      if (i < limit && bytes[i] == '-') {
+         i++;
+      }
+      if (i < limit && bytes[i] == '0') {
+         i++;
+      }
+      else {
+         i = digitsEnd(i);
+      }
+      if (i < limit && bytes[i] == '.') {
+         i = digitsEnd(i + 1);
+      }
+      if (i < limit && (bytes[i] == 'e' || bytes[i] == 'E')) {
+         i++;
+         if (i < limit && (bytes[i] == '+' || bytes[i] == '-')) {
+            i++;
+         }
+         i = digitsEnd(i);
+      }
+      if (i < limit) {
+         byte c = bytes[i];
+         if (c != ',' && c != '}' && c != ']' && c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+            throw syntaxError("Malformed number");
+         }
+      }
+      return i;
+   }
+
+   private int digitsEnd(int start) throws IOException {
+      int i = start;
+      while (i < limit && bytes[i] >= '0' && bytes[i] <= '9') {
+         i++;
+      }
+      if (i == start) {
+         throw syntaxError("Malformed number");
+      }
+      return i;
+   }
+
+   private IOException syntaxError(String message) {
+      return new MalformedJsonException(message + " at offset " + pos + " path " + getPath());
+   }
+}
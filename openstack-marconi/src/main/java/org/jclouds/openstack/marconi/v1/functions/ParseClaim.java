@@ -16,59 +16,61 @@
  */
 package org.jclouds.openstack.marconi.v1.functions;
 
-import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
-import org.jclouds.http.HttpResponse;
-import org.jclouds.http.functions.ParseJson;
+import com.google.gson.stream.JsonReader;
+import com.google.inject.Inject;
+import org.jclouds.openstack.marconi.v1.config.MarconiProperties;
 import org.jclouds.openstack.marconi.v1.domain.Claim;
 import org.jclouds.openstack.marconi.v1.domain.Message;
-import org.jclouds.openstack.marconi.v1.functions.ParseMessagesToStream.MessageWithHref;
 
-import javax.inject.Inject;
-import java.beans.ConstructorProperties;
+import javax.inject.Named;
+import java.io.IOException;
 import java.util.List;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.collect.Iterables.transform;
-import static org.jclouds.openstack.marconi.v1.functions.ParseMessagesToStream.TO_ID_FROM_HREF;
-import static org.jclouds.openstack.marconi.v1.functions.ParseMessagesToStream.TO_MESSAGE;
 
-public class ParseClaim implements Function<HttpResponse, Claim> {
-
-   protected static final Function<ClaimWithHref, Claim> TO_CLAIM = new Function<ClaimWithHref, Claim>() {
-      @Override
-      public Claim apply(ClaimWithHref claimWithHref) {
-         List<Message> messages = ImmutableList.copyOf(transform(claimWithHref.messagesWithHref, TO_MESSAGE));
-         String claimId = TO_ID_FROM_HREF.apply(claimWithHref.getId());
-
-         return claimWithHref.toBuilder()
-               .id(claimId)
-               .messages(messages)
-               .build();
-      }
-   };
-   private final ParseJson<ClaimWithHref> json;
+public class ParseClaim extends ParseMessagesJson<Claim> {
 
    @Inject
-   ParseClaim(ParseJson<ClaimWithHref> json) {
-      this.json = checkNotNull(json, "json");
+   ParseClaim(@Named(MarconiProperties.RAW_MESSAGE_BODIES) boolean rawBodies) {
+      super(rawBodies);
    }
 
    @Override
-   public Claim apply(HttpResponse response) {
-      ClaimWithHref claimWithHref = json.apply(response);
-      Claim claim = TO_CLAIM.apply(claimWithHref);
+   protected Claim read(JsonReader reader) throws IOException {
+      String href = null;
+      int ttl = 0;
+      int age = 0;
+      List<Message> messages = ImmutableList.of();
 
-      return claim;
-   }
+      reader.beginObject();
+      while (reader.hasNext()) {
+         String name = reader.nextName();
+         if ("href".equals(name)) {
+            href = reader.nextString();
+         }
+         else if ("ttl".equals(name)) {
+            ttl = reader.nextInt();
+         }
+         else if ("age".equals(name)) {
+            age = reader.nextInt();
+         }
+         else if ("messages".equals(name)) {
+            messages = readMessages(reader);
+         }
+         else {
+            reader.skipValue();
+         }
+      }
+      reader.endObject();
 
-   private static class ClaimWithHref extends Claim {
-      private final List<MessageWithHref> messagesWithHref;
+      checkNotNull(href, "href required");
 
-      @ConstructorProperties({"href", "ttl", "age", "messages"})
-      protected ClaimWithHref(String href, int ttl, int age, List<MessageWithHref> messagesWithHref) {
-         super(href, ttl, age, null);
-         this.messagesWithHref = messagesWithHref;
-      }
+      return Claim.builder()
+            .id(getIdFromHref(href))
+            .ttl(ttl)
+            .age(age)
+            .messages(messages)
+            .build();
    }
 }
@@ -16,30 +16,23 @@
  */
 package org.jclouds.openstack.marconi.v1.functions;
 
-import com.google.common.base.Function;
-import org.jclouds.http.HttpResponse;
-import org.jclouds.http.functions.ParseJson;
+import com.google.gson.stream.JsonReader;
+import com.google.inject.Inject;
+import org.jclouds.openstack.marconi.v1.config.MarconiProperties;
 import org.jclouds.openstack.marconi.v1.domain.Message;
-import org.jclouds.openstack.marconi.v1.functions.ParseMessagesToStream.MessageWithHref;
 
-import javax.inject.Inject;
+import javax.inject.Named;
+import java.io.IOException;
 
-import static com.google.common.base.Preconditions.checkNotNull;
-import static org.jclouds.openstack.marconi.v1.functions.ParseMessagesToStream.TO_MESSAGE;
-
-public class ParseMessage implements Function<HttpResponse, Message> {
-
-   private final ParseJson<MessageWithHref> json;
+public class ParseMessage extends ParseMessagesJson<Message> {
 
    @Inject
-   ParseMessage(ParseJson<MessageWithHref> json) {
-      this.json = checkNotNull(json, "json");
+   ParseMessage(@Named(MarconiProperties.RAW_MESSAGE_BODIES) boolean rawBodies) {
+      super(rawBodies);
    }
 
    @Override
-   public Message apply(HttpResponse response) {
-      MessageWithHref messagesWithHref = json.apply(response);
-
-      return TO_MESSAGE.apply(messagesWithHref);
+   protected Message read(JsonReader reader) throws IOException {
+      return readMessage(reader);
    }
 }
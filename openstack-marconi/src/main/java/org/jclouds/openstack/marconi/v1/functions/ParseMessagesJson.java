@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.functions;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.io.Payload;
+import org.jclouds.openstack.marconi.v1.config.MarconiProperties;
+import org.jclouds.openstack.marconi.v1.domain.Message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.jclouds.http.HttpUtils.releasePayload;
+import static org.jclouds.util.Closeables2.closeQuietly;
+import static org.jclouds.util.Strings2.urlDecode;
+
+/**
+ * Reads messages straight off of the response stream, pulling the id and claim id out of each message href as it goes.
+ * This avoids building an intermediate object tree and re-parsing every href as a URI.
+ * <p/>
+ * With {@link MarconiProperties#RAW_MESSAGE_BODIES} enabled the payload is read into memory once and parsed as bytes,
+ * so that message bodies can be handed out as slices of it without being decoded.
+ */
+abstract class ParseMessagesJson<T> implements Function<HttpResponse, T> {
+
+   private static final String CLAIM_ID_PARAM = "claim_id=";
+
+   private final boolean rawBodies;
+
+   protected ParseMessagesJson(boolean rawBodies) {
+      this.rawBodies = rawBodies;
+   }
+
+   @Override
+   public T apply(HttpResponse response) {
+      checkNotNull(response, "response");
+      JsonReader reader = null;
+      try {
+         reader = rawBodies ? new ByteArrayJsonReader(toByteArray(response.getPayload()))
+               : new JsonReader(new InputStreamReader(response.getPayload().openStream(), Charsets.UTF_8));
+         return read(reader);
+      }
+      catch (Exception e) {
+         StringBuilder message = new StringBuilder();
+         message.append("Error parsing input");
+         String logMessage = e.getMessage();
+         if (logMessage != null) {
+            message.append(": ").append(logMessage);
+         }
+         throw new HttpResponseException(message.toString(), null, response, e);
+      }
+      finally {
+         closeQuietly(reader);
+         releasePayload(response);
+      }
+   }
+
+   /**
+    * Uses the payload's own array when it is already in memory.
+    */
+   private static byte[] toByteArray(Payload payload) throws IOException {
+      Object raw = payload.getRawContent();
+      if (raw instanceof byte[]) {
+         return (byte[]) raw;
+      }
+      InputStream in = payload.openStream();
+      try {
+         return ByteStreams.toByteArray(in);
+      }
+      finally {
+         closeQuietly(in);
+      }
+   }
+
+   /**
+    * Reads the value of this response from the reader, which is positioned at the start of the document.
+    */
+   protected abstract T read(JsonReader reader) throws IOException;
+
+   /**
+    * Reads an array of messages.
+    */
+   protected static List<Message> readMessages(JsonReader reader) throws IOException {
+      if (reader.peek() == JsonToken.NULL) {
+         reader.nextNull();
+         return ImmutableList.of();
+      }
+
+      ImmutableList.Builder<Message> messages = ImmutableList.builder();
+      reader.beginArray();
+      while (reader.hasNext()) {
+         messages.add(readMessage(reader));
+      }
+      reader.endArray();
+
+      return messages.build();
+   }
+
+   /**
+    * Reads a single message, replacing its href with the id and claim id it contains.
+    */
+   protected static Message readMessage(JsonReader reader) throws IOException {
+      String href = null;
+      String body = null;
+      ByteBuffer rawBody = null;
+      int ttl = 0;
+      int age = 0;
+
+      reader.beginObject();
+      while (reader.hasNext()) {
+         String name = reader.nextName();
+         if ("href".equals(name)) {
+            href = reader.nextString();
+         }
+         else if ("body".equals(name)) {
+            if (reader instanceof ByteArrayJsonReader && reader.peek() != JsonToken.NULL) {
+               rawBody = ((ByteArrayJsonReader) reader).nextRawValue();
+            }
+            else {
+               body = readBody(reader);
+            }
+         }
+         else if ("ttl".equals(name)) {
+            ttl = reader.nextInt();
+         }
+         else if ("age".equals(name)) {
+            age = reader.nextInt();
+         }
+         else {
+            reader.skipValue();
+         }
+      }
+      reader.endObject();
+
+      checkNotNull(href, "href required");
+
+      Message.Builder message = rawBody == null ? Message.builder().body(body) : Message.builder().rawBody(rawBody);
+      return message
+            .id(getIdFromHref(href))
+            .claimId(getClaimIdFromHref(href))
+            .ttl(ttl)
+            .age(age)
+            .build();
+   }
+
+   /**
+    * Bodies are normally JSON encoded as a string, but any other JSON value is kept as its serialized form.
+    */
+   private static String readBody(JsonReader reader) throws IOException {
+      switch (reader.peek()) {
+         case NULL:
+            reader.nextNull();
+            return null;
+         case STRING:
+         case NUMBER:
+            return reader.nextString();
+         default:
+            return new JsonParser().parse(reader).toString();
+      }
+   }
+
+   /**
+    * Strip off everything but the id.
+    */
+   static String getIdFromHref(String rawHref) {
+      int indexOfQuestionMark = rawHref.indexOf('?');
+      int lastIndexOfSlash = indexOfQuestionMark == -1
+            ? rawHref.lastIndexOf('/') + 1
+            : rawHref.lastIndexOf('/', indexOfQuestionMark) + 1;
+
+      if (indexOfQuestionMark > lastIndexOfSlash) {
+         return rawHref.substring(lastIndexOfSlash, indexOfQuestionMark);
+      }
+      else {
+         return rawHref.substring(lastIndexOfSlash);
+      }
+   }
+
+   /**
+    * @return The value of the claim_id query parameter in the href, or null if there isn't one.
+    */
+   static String getClaimIdFromHref(String rawHref) {
+      int indexOfQuestionMark = rawHref.indexOf('?');
+      if (indexOfQuestionMark == -1) {
+         return null;
+      }
+
+      int start = indexOfQuestionMark + 1;
+      while (start < rawHref.length()) {
+         int end = rawHref.indexOf('&', start);
+         if (end == -1) {
+            end = rawHref.length();
+         }
+         if (rawHref.startsWith(CLAIM_ID_PARAM, start)) {
+            String claimId = rawHref.substring(start + CLAIM_ID_PARAM.length(), end);
+            return claimId.indexOf('%') == -1 && claimId.indexOf('+') == -1 ? claimId : urlDecode(claimId);
+         }
+         start = end + 1;
+      }
+
+      return null;
+   }
+}
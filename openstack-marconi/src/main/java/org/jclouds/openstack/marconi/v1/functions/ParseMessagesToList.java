@@ -16,27 +16,22 @@
  */
 package org.jclouds.openstack.marconi.v1.functions;
 
-import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
+import com.google.gson.stream.JsonReader;
+import com.google.inject.Inject;
 import org.jclouds.http.HttpResponse;
-import org.jclouds.http.functions.ParseJson;
+import org.jclouds.openstack.marconi.v1.config.MarconiProperties;
 import org.jclouds.openstack.marconi.v1.domain.Message;
-import org.jclouds.openstack.marconi.v1.functions.ParseMessagesToStream.MessageWithHref;
 
-import javax.inject.Inject;
+import javax.inject.Named;
+import java.io.IOException;
 import java.util.List;
 
-import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.collect.Iterables.transform;
-import static org.jclouds.openstack.marconi.v1.functions.ParseMessagesToStream.TO_MESSAGE;
-
-public class ParseMessagesToList implements Function<HttpResponse, List<Message>> {
-
-   private final ParseJson<List<MessageWithHref>> json;
+public class ParseMessagesToList extends ParseMessagesJson<List<Message>> {
 
    @Inject
-   ParseMessagesToList(ParseJson<List<MessageWithHref>> json) {
-      this.json = checkNotNull(json, "json");
+   ParseMessagesToList(@Named(MarconiProperties.RAW_MESSAGE_BODIES) boolean rawBodies) {
+      super(rawBodies);
    }
 
    @Override
@@ -46,7 +41,11 @@ public class ParseMessagesToList implements Function<HttpResponse, List<Message>
          return ImmutableList.of();
       }
 
-      List<MessageWithHref> messagesWithHref = json.apply(response);
-      return ImmutableList.copyOf(transform(messagesWithHref, TO_MESSAGE));
+      return super.apply(response);
+   }
+
+   @Override
+   protected List<Message> read(JsonReader reader) throws IOException {
+      return readMessages(reader);
    }
 }
@@ -17,32 +17,27 @@
 package org.jclouds.openstack.marconi.v1.functions;
 
 import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Multimap;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.inject.Inject;
 import org.jclouds.http.HttpResponse;
-import org.jclouds.http.functions.ParseJson;
+import org.jclouds.openstack.marconi.v1.config.MarconiProperties;
 import org.jclouds.openstack.marconi.v1.domain.Message;
 import org.jclouds.openstack.marconi.v1.domain.MessageStream;
 import org.jclouds.openstack.v2_0.domain.Link;
-import org.jclouds.openstack.v2_0.domain.PaginatedCollection;
 
-import javax.inject.Inject;
-import java.beans.ConstructorProperties;
+import javax.inject.Named;
+import java.io.IOException;
 import java.net.URI;
-import java.net.URISyntaxException;
+import java.util.List;
 
-import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.collect.Iterables.getOnlyElement;
-import static com.google.common.collect.Iterables.transform;
-import static org.jclouds.http.utils.Queries.queryParser;
-
-public class ParseMessagesToStream implements Function<HttpResponse, MessageStream> {
-
-   private final ParseJson<MessagesWithHref> json;
+public class ParseMessagesToStream extends ParseMessagesJson<MessageStream> {
 
    @Inject
-   ParseMessagesToStream(ParseJson<MessagesWithHref> json) {
-      this.json = checkNotNull(json, "json");
+   ParseMessagesToStream(@Named(MarconiProperties.RAW_MESSAGE_BODIES) boolean rawBodies) {
+      super(rawBodies);
    }
 
    @Override
@@ -52,53 +47,68 @@ public class ParseMessagesToStream implements Function<HttpResponse, MessageStre
          return new Messages(ImmutableSet.<Message> of(), ImmutableSet.<Link> of());
       }
 
-      MessagesWithHref messagesWithHref = json.apply(response);
-      Iterable<Message> messages = transform(messagesWithHref, TO_MESSAGE);
-
-      return new Messages(messages, messagesWithHref.getLinks());
+      return super.apply(response);
    }
 
-   /**
-    * Strip off everything but the message id.
-    */
-   private static String getIdFromHref(String rawMessageHref) {
-      int indexOfQuestionMark = rawMessageHref.indexOf('?');
-      int lastIndexOfSlash = rawMessageHref.lastIndexOf('/') + 1;
-
-      if (indexOfQuestionMark > lastIndexOfSlash) {
-         return rawMessageHref.substring(lastIndexOfSlash, indexOfQuestionMark);
-      }
-      else {
-         return rawMessageHref.substring(lastIndexOfSlash);
+   @Override
+   protected MessageStream read(JsonReader reader) throws IOException {
+      List<Message> messages = ImmutableList.of();
+      List<Link> links = ImmutableList.of();
+
+      reader.beginObject();
+      while (reader.hasNext()) {
+         String name = reader.nextName();
+         if ("messages".equals(name)) {
+            messages = readMessages(reader);
+         }
+         else if ("links".equals(name)) {
+            links = readLinks(reader);
+         }
+         else {
+            reader.skipValue();
+         }
       }
+      reader.endObject();
+
+      return new Messages(messages, links);
    }
 
-   private static String getClaimIdFromHref(String rawMessageHref) {
-      try {
-         String query = new URI(rawMessageHref).getQuery();
+   private static List<Link> readLinks(JsonReader reader) throws IOException {
+      if (reader.peek() == JsonToken.NULL) {
+         reader.nextNull();
+         return ImmutableList.of();
+      }
 
-         if (query != null) {
-            Multimap<String, String> queryParams = queryParser().apply(query);
-            return getOnlyElement(queryParams.get("claim_id"), null);
+      ImmutableList.Builder<Link> links = ImmutableList.builder();
+      reader.beginArray();
+      while (reader.hasNext()) {
+         String href = null;
+         String rel = null;
+
+         reader.beginObject();
+         while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("href".equals(name)) {
+               href = reader.nextString();
+            }
+            else if ("rel".equals(name)) {
+               rel = reader.nextString();
+            }
+            else {
+               reader.skipValue();
+            }
          }
-         else {
-            return null;
+         reader.endObject();
+
+         if (href != null) {
+            links.add(Link.create(rel == null ? Link.Relation.UNRECOGNIZED : Link.Relation.fromValue(rel),
+                  URI.create(href)));
          }
       }
-      catch (URISyntaxException e) {
-         return null;
-      }
-   }
+      reader.endArray();
 
-   protected static final Function<MessageWithHref, Message> TO_MESSAGE = new Function<MessageWithHref, Message>() {
-      @Override
-      public Message apply(MessageWithHref messageWithHref) {
-         return messageWithHref.toBuilder()
-               .id(getIdFromHref(messageWithHref.getId()))
-               .claimId(getClaimIdFromHref(messageWithHref.getId()))
-               .build();
-      }
-   };
+      return links.build();
+   }
 
    protected static final Function<String, String> TO_ID_FROM_HREF = new Function<String, String>() {
       @Override
@@ -109,25 +119,8 @@ public class ParseMessagesToStream implements Function<HttpResponse, MessageStre
 
    private static class Messages extends MessageStream {
 
-      @ConstructorProperties({ "messages", "links" })
       protected Messages(Iterable<Message> messages, Iterable<Link> links) {
          super(messages, links);
       }
    }
-
-   private static class MessagesWithHref extends PaginatedCollection<MessageWithHref> {
-
-      @ConstructorProperties({ "messages", "links" })
-      protected MessagesWithHref(Iterable<MessageWithHref> messagesWithHref, Iterable<Link> links) {
-         super(messagesWithHref, links);
-      }
-   }
-
-   protected static class MessageWithHref extends Message {
-
-      @ConstructorProperties({ "href", "ttl", "body", "age" })
-      protected MessageWithHref(String href, int ttl, String body, int age) {
-         super(href, ttl, body, age, null);
-      }
-   }
 }
@@ -18,57 +18,88 @@ package org.jclouds.openstack.marconi.v1.functions;
 
 import com.google.common.annotations.Beta;
 import com.google.common.base.Function;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import org.jclouds.collect.IterableWithMarker;
+import org.jclouds.collect.PagedIterable;
 import org.jclouds.collect.internal.ArgsToPagedIterable;
 import org.jclouds.openstack.marconi.v1.MarconiApi;
+import org.jclouds.openstack.marconi.v1.config.MarconiProperties;
 import org.jclouds.openstack.marconi.v1.domain.Queue;
 import org.jclouds.openstack.marconi.v1.features.QueueApi;
 import org.jclouds.openstack.marconi.v1.options.ListQueuesOptions;
+import org.jclouds.openstack.marconi.v1.paging.PrefetchingPagedIterable;
 import org.jclouds.openstack.v2_0.domain.PaginatedCollection;
 import org.jclouds.openstack.v2_0.options.PaginationOptions;
 
 import javax.inject.Inject;
+import javax.inject.Named;
 import java.util.List;
 import java.util.UUID;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static org.jclouds.Constants.PROPERTY_USER_THREADS;
 import static org.jclouds.openstack.marconi.v1.options.ListQueuesOptions.Builder.queryParameters;
 
+/**
+ * Pages through the queues of {@link QueueApi#list(boolean)}, fetching up to
+ * {@link MarconiProperties#QUEUE_LIST_PREFETCH_DEPTH} pages ahead of the caller on the user executor.
+ */
 @Beta
 public class QueuesToPagedIterable extends ArgsToPagedIterable.FromCaller<Queue, QueuesToPagedIterable> {
 
    private final MarconiApi api;
+   private final ListeningExecutorService userExecutor;
+   private final int prefetchDepth;
 
    @Inject
-   protected QueuesToPagedIterable(MarconiApi api) {
+   protected QueuesToPagedIterable(MarconiApi api, @Named(PROPERTY_USER_THREADS) ListeningExecutorService userExecutor,
+         @Named(MarconiProperties.QUEUE_LIST_PREFETCH_DEPTH) int prefetchDepth) {
       this.api = checkNotNull(api, "api");
+      this.userExecutor = checkNotNull(userExecutor, "userExecutor");
+      this.prefetchDepth = prefetchDepth;
+   }
+
+   @Override
+   public PagedIterable<Queue> apply(IterableWithMarker<Queue> input) {
+      if (prefetchDepth <= 0 || !input.nextMarker().isPresent()) {
+         return super.apply(input);
+      }
+      return PrefetchingPagedIterable.advance(input, markerToNextForArgs(getArgs(request)), prefetchDepth,
+            userExecutor);
    }
 
    @Override
    protected Function<Object, IterableWithMarker<Queue>> markerToNextForArgs(List<Object> args) {
       String region = String.class.cast(args.get(0));
       UUID clientId = UUID.class.cast(args.get(1));
+      List<Object> listArgs = request.getInvocation().getArgs();
+      boolean detailed = !listArgs.isEmpty() && Boolean.TRUE.equals(listArgs.get(0));
 
-      return new ListQueuesAtMarker(api.getQueueApi(region, clientId));
+      return new ListQueuesAtMarker(api.getQueueApi(region, clientId), detailed);
    }
 
    private static class ListQueuesAtMarker implements Function<Object, IterableWithMarker<Queue>> {
       private final QueueApi api;
+      private final boolean detailed;
 
-      @Inject
-      protected ListQueuesAtMarker(QueueApi api) {
+      protected ListQueuesAtMarker(QueueApi api, boolean detailed) {
          this.api = checkNotNull(api, "api");
+         this.detailed = detailed;
       }
 
       public PaginatedCollection<Queue> apply(Object input) {
          PaginationOptions paginationOptions = PaginationOptions.class.cast(input);
          ListQueuesOptions listQueuesOptions = queryParameters(paginationOptions.buildQueryParameters());
+         // the next link does not always carry detailed, so keep asking for what the first page asked for
+         if (!listQueuesOptions.buildQueryParameters().containsKey("detailed")) {
+            listQueuesOptions.detailed(detailed);
+         }
 
          return api.list(listQueuesOptions);
       }
 
       public String toString() {
-         return "ListRecordsAtMarker";
+         return "ListQueuesAtMarker";
       }
    }
 }
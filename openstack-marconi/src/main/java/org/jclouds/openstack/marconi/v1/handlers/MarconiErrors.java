@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.handlers;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.UncheckedTimeoutException;
+import org.jclouds.http.HttpResponseException;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Classifies the failures raised by the Marconi apis.
+ */
+@Beta
+public final class MarconiErrors {
+
+   private MarconiErrors() {
+   }
+
+   /**
+    * A failure is retryable when the service could not be reached or failed on its side (no response, or a 5xx)
+    * rather than because it rejected the request. jclouds has already retried the call by the time it surfaces.
+    *
+    * @return true if the same request may succeed when sent again later.
+    */
+   public static boolean isRetryable(Throwable e) {
+      for (Throwable cause : Throwables.getCausalChain(e)) {
+         if (cause instanceof HttpResponseException) {
+            HttpResponseException response = (HttpResponseException) cause;
+            return response.getResponse() == null || response.getResponse().getStatusCode() >= 500;
+         }
+      }
+      for (Throwable cause : Throwables.getCausalChain(e)) {
+         if (cause instanceof IOException || cause instanceof TimeoutException
+               || cause instanceof UncheckedTimeoutException) {
+            return true;
+         }
+      }
+      return false;
+   }
+}
@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.metadata;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.openstack.marconi.v1.features.QueueApi;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * A read-through cache of queue metadata in front of {@link QueueApi#getMetadata(String)}, for applications that
+ * look up configuration kept in queue metadata far more often than it changes.
+ * <p/>
+ * Metadata is fetched on the first lookup of a queue and kept until it is older than the ttl or evicted to stay
+ * within the maximum number of queues. {@link #set(String, Map)} writes through to the queue and updates the cache,
+ * so changes made through this cache are seen at once. Changes made elsewhere are seen once the cached copy expires,
+ * or at once after {@link #invalidate(String)}.
+ */
+@Beta
+public class QueueMetadataCache {
+   private final QueueApi api;
+   private final LoadingCache<String, Map<String, String>> cache;
+   private final long ttlMillis;
+
+   protected QueueMetadataCache(Builder builder) {
+      this.api = builder.api;
+      this.ttlMillis = builder.ttlMillis;
+      this.cache = CacheBuilder.newBuilder()
+            .expireAfterWrite(builder.ttlMillis, TimeUnit.MILLISECONDS)
+            .maximumSize(builder.maximumSize)
+            .ticker(builder.ticker)
+            .recordStats()
+            .build(new CacheLoader<String, Map<String, String>>() {
+               @Override
+               public Map<String, String> load(String queue) {
+                  Map<String, String> metadata = api.getMetadata(queue);
+                  return metadata == null ? ImmutableMap.<String, String>of() : ImmutableMap.copyOf(metadata);
+               }
+            });
+   }
+
+   /**
+    * @return The metadata of the queue, from the cache if it holds a copy that has not expired.
+    * @see QueueApi#getMetadata(String)
+    */
+   public Map<String, String> get(String queue) {
+      checkNotNull(queue, "queue");
+      try {
+         return cache.getUnchecked(queue);
+      }
+      catch (UncheckedExecutionException e) {
+         // rethrow what the api threw, as if it had been called directly
+         throw Throwables.propagate(e.getCause());
+      }
+   }
+
+   /**
+    * Replaces the metadata of the queue and caches the new metadata.
+    *
+    * @see QueueApi#setMetadata(String, Map)
+    */
+   public void set(String queue, Map<String, String> metadata) {
+      checkNotNull(queue, "queue");
+      Map<String, String> copy = ImmutableMap.copyOf(checkNotNull(metadata, "metadata"));
+      try {
+         api.setMetadata(queue, copy);
+      }
+      catch (RuntimeException e) {
+         // the queue may or may not have been updated
+         cache.invalidate(queue);
+         throw e;
+      }
+      cache.put(queue, copy);
+   }
+
+   /**
+    * Drops the cached metadata of a queue, so the next lookup fetches it again.
+    */
+   public void invalidate(String queue) {
+      cache.invalidate(checkNotNull(queue, "queue"));
+   }
+
+   /**
+    * Drops the cached metadata of every queue.
+    */
+   public void invalidateAll() {
+      cache.invalidateAll();
+   }
+
+   /**
+    * @return The hits, misses and load times of the cache.
+    */
+   public CacheStats getStats() {
+      return cache.stats();
+   }
+
+   @Override
+   public String toString() {
+      return MoreObjects.toStringHelper(this)
+            .add("size", cache.size()).add("ttlMillis", ttlMillis).add("stats", cache.stats()).toString();
+   }
+
+   public static Builder builder(QueueApi api) {
+      return new Builder(api);
+   }
+
+   public static class Builder {
+      protected final QueueApi api;
+      protected long ttlMillis = TimeUnit.MINUTES.toMillis(1);
+      protected long maximumSize = 1000;
+      protected Ticker ticker = Ticker.systemTicker();
+
+      protected Builder(QueueApi api) {
+         this.api = checkNotNull(api, "api");
+      }
+
+      /**
+       * How long cached metadata is used before it is fetched again, which bounds how stale metadata changed by
+       * other clients can be. Defaults to 1 minute.
+       */
+      public Builder ttl(long ttl, TimeUnit unit) {
+         checkArgument(ttl > 0, "ttl must be positive");
+         this.ttlMillis = unit.toMillis(ttl);
+         return this;
+      }
+
+      /**
+       * The largest number of queues whose metadata is cached. The least recently used are evicted first. Defaults
+       * to 1000.
+       */
+      public Builder maximumSize(long maximumSize) {
+         checkArgument(maximumSize > 0, "maximumSize must be positive");
+         this.maximumSize = maximumSize;
+         return this;
+      }
+
+      /**
+       * The time source of the ttl, for tests.
+       */
+      Builder ticker(Ticker ticker) {
+         this.ticker = checkNotNull(ticker, "ticker");
+         return this;
+      }
+
+      public QueueMetadataCache build() {
+         return new QueueMetadataCache(this);
+      }
+   }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.metrics;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Keeps the metrics of every operation and queue in memory, for inspection by the application or for periodic
+ * export to a monitoring system.
+ */
+@Beta
+public class InMemoryMetricsRegistry implements MetricsRegistry {
+   private final ConcurrentMap<OperationKey, OperationMetrics> metrics = Maps.newConcurrentMap();
+
+   @Override
+   public void recordSuccess(OperationKey key, long latencyNanos, long payloadBytes) {
+      metricsFor(key).recordSuccess(latencyNanos, payloadBytes);
+   }
+
+   @Override
+   public void recordError(OperationKey key, long latencyNanos, int status) {
+      metricsFor(key).recordError(latencyNanos, status);
+   }
+
+   /**
+    * @return The metrics of an operation on a queue, if it was called.
+    */
+   public Optional<OperationMetrics> get(String operation, String queue) {
+      return Optional.fromNullable(metrics.get(new OperationKey(operation, checkNotNull(queue, "queue"))));
+   }
+
+   /**
+    * @return The metrics of every operation and queue called so far.
+    */
+   public Map<OperationKey, OperationMetrics> getMetrics() {
+      return ImmutableMap.copyOf(metrics);
+   }
+
+   private OperationMetrics metricsFor(OperationKey key) {
+      OperationMetrics existing = metrics.get(key);
+      if (existing != null) {
+         return existing;
+      }
+      OperationMetrics created = new OperationMetrics();
+      existing = metrics.putIfAbsent(key, created);
+      return existing != null ? existing : created;
+   }
+
+   @Override
+   public String toString() {
+      return MoreObjects.toStringHelper(this).add("operations", metrics.size()).toString();
+   }
+}
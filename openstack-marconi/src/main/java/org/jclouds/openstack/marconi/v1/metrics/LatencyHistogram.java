@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.metrics;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.MoreObjects;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A lock-free histogram of latencies in the style of an HDR histogram. Values are counted in log-linear buckets: every
+ * power of two is split into {@value #SUB_BUCKETS} linear sub-buckets, so any value from a nanosecond to hundreds of
+ * years is recorded in a fixed amount of memory with a relative error of at most 1/{@value #SUB_BUCKETS}.
+ * <p/>
+ * Percentiles are reported as the highest value of the bucket they fall in, so they never understate a latency.
+ */
+@Beta
+public class LatencyHistogram {
+   static final int SUB_BUCKETS = 16;
+   private static final int SUB_BUCKET_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+   private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+   private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong count = new AtomicLong();
+   private final AtomicLong total = new AtomicLong();
+   private final AtomicLong max = new AtomicLong();
+
+   /**
+    * Records a latency. Negative values, as can come from a clock that steps backwards, are recorded as zero.
+    */
+   public void record(long nanos) {
+      long value = Math.max(0, nanos);
+      counts.incrementAndGet(indexOf(value));
+      count.incrementAndGet();
+      total.addAndGet(value);
+      long current = max.get();
+      while (value > current && !max.compareAndSet(current, value)) {
+         current = max.get();
+      }
+   }
+
+   /**
+    * @return The number of latencies recorded.
+    */
+   public long getCount() {
+      return count.get();
+   }
+
+   /**
+    * @return The highest latency recorded.
+    */
+   public long getMax(TimeUnit unit) {
+      return unit.convert(max.get(), TimeUnit.NANOSECONDS);
+   }
+
+   /**
+    * @return The mean of the latencies recorded, or 0 if none were.
+    */
+   public long getMean(TimeUnit unit) {
+      long n = count.get();
+      return n == 0 ? 0 : unit.convert(total.get() / n, TimeUnit.NANOSECONDS);
+   }
+
+   /**
+    * @param percentile A percentile between 0 and 100, such as 99.9.
+    * @return The latency that the given percentage of the recorded latencies did not exceed, or 0 if none were
+    *         recorded.
+    */
+   public long getValueAtPercentile(double percentile, TimeUnit unit) {
+      checkArgument(percentile >= 0 && percentile <= 100, "percentile must be between 0 and 100");
+      long n = 0;
+      long[] snapshot = new long[BUCKETS];
+      for (int i = 0; i < BUCKETS; i++) {
+         snapshot[i] = counts.get(i);
+         n += snapshot[i];
+      }
+      if (n == 0) {
+         return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         seen += snapshot[i];
+         if (seen >= rank) {
+            return unit.convert(Math.min(highestValueOf(i), max.get()), TimeUnit.NANOSECONDS);
+         }
+      }
+      return unit.convert(max.get(), TimeUnit.NANOSECONDS);
+   }
+
+   static int indexOf(long value) {
+      if (value < SUB_BUCKETS) {
+         return (int) value;
+      }
+      int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+      int shift = exponent - SUB_BUCKET_BITS;
+      return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+   }
+
+   static long highestValueOf(int index) {
+      if (index < SUB_BUCKETS) {
+         return index;
+      }
+      int shift = index / SUB_BUCKETS - 1;
+      long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+      return lowest + (1L << shift) - 1;
+   }
+
+   @Override
+   public String toString() {
+      return MoreObjects.toStringHelper(this)
+            .add("count", getCount())
+            .add("meanMicros", getMean(TimeUnit.MICROSECONDS))
+            .add("p50Micros", getValueAtPercentile(50, TimeUnit.MICROSECONDS))
+            .add("p99Micros", getValueAtPercentile(99, TimeUnit.MICROSECONDS))
+            .add("maxMicros", getMax(TimeUnit.MICROSECONDS))
+            .toString();
+   }
+}
@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.metrics;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.google.common.base.Utf8;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.reflect.AbstractInvocationHandler;
+import com.google.common.reflect.Reflection;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.openstack.marconi.v1.MarconiApi;
+import org.jclouds.openstack.marconi.v1.domain.CreateMessage;
+import org.jclouds.openstack.marconi.v1.domain.Message;
+import org.jclouds.openstack.marconi.v1.domain.MessageStream;
+import org.jclouds.openstack.marconi.v1.features.ClaimApi;
+import org.jclouds.openstack.marconi.v1.features.MessageApi;
+import org.jclouds.openstack.marconi.v1.features.QueueApi;
+
+import javax.inject.Named;
+import javax.ws.rs.PathParam;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Instruments a {@link MarconiApi} so that every call of its Queue, Message and Claim features is measured and
+ * reported to a {@link MetricsRegistry}. Requests are keyed by the {@code @Named} name of the operation, such as
+ * {@code message:create}, and by the queue they were made against, which makes hot queues and slow operations easy to
+ * find.
+ * <p/>
+ * A request is measured from the call until its result is parsed, and fails with the status that
+ * {@link org.jclouds.openstack.marconi.v1.handlers.MarconiErrorHandler} mapped to an exception. Requests answered by a
+ * fallback, such as a delete that returns false for a queue that does not exist, are successful.
+ */
+@Beta
+public final class MarconiMetrics {
+   private static final ImmutableSet<Class<?>> FEATURES = ImmutableSet.<Class<?>>of(
+         QueueApi.class, MessageApi.class, ClaimApi.class);
+
+   /**
+    * @return An api that makes the same calls as the given one and reports them to the registry.
+    */
+   public static MarconiApi instrument(MarconiApi api, MetricsRegistry registry) {
+      return Reflection.newProxy(MarconiApi.class, new FeatureHandler(checkNotNull(api, "api"),
+            checkNotNull(registry, "registry")));
+   }
+
+   private MarconiMetrics() {
+   }
+
+   private static class FeatureHandler extends AbstractInvocationHandler {
+      private final MarconiApi api;
+      private final MetricsRegistry registry;
+
+      private FeatureHandler(MarconiApi api, MetricsRegistry registry) {
+         this.api = api;
+         this.registry = registry;
+      }
+
+      @Override
+      protected Object handleInvocation(Object proxy, Method method, Object[] args) throws Throwable {
+         Object result = call(method, api, args);
+         if (!FEATURES.contains(method.getReturnType())) {
+            return result;
+         }
+         return newRecordingProxy(method.getReturnType(), result, queueOf(method, args).orNull(), registry);
+      }
+
+      @Override
+      public String toString() {
+         return "instrumented(" + api + ")";
+      }
+   }
+
+   private static <T> T newRecordingProxy(Class<T> type, Object delegate, String queue, MetricsRegistry registry) {
+      return Reflection.newProxy(type, new RecordingHandler(delegate, queue, registry));
+   }
+
+   private static class RecordingHandler extends AbstractInvocationHandler {
+      private final Object delegate;
+      private final String queue;
+      private final MetricsRegistry registry;
+
+      private RecordingHandler(Object delegate, String queue, MetricsRegistry registry) {
+         this.delegate = delegate;
+         this.queue = queue;
+         this.registry = registry;
+      }
+
+      @Override
+      protected Object handleInvocation(Object proxy, Method method, Object[] args) throws Throwable {
+         Named named = method.getAnnotation(Named.class);
+         OperationKey key = new OperationKey(named != null ? named.value() : method.getName(),
+               queue != null ? queue : queueOf(method, args).orNull());
+         long start = Ticker.systemTicker().read();
+         Object result;
+         try {
+            result = call(method, delegate, args);
+         }
+         catch (Throwable e) {
+            registry.recordError(key, Ticker.systemTicker().read() - start, statusOf(e));
+            throw e;
+         }
+         long latency = Ticker.systemTicker().read() - start;
+         registry.recordSuccess(key, latency, payloadBytesOf(args) + payloadBytesOf(result));
+         return result;
+      }
+
+      @Override
+      public String toString() {
+         return "instrumented(" + delegate + ")";
+      }
+   }
+
+   private static Object call(Method method, Object target, Object[] args) throws Throwable {
+      try {
+         return method.invoke(target, args);
+      }
+      catch (InvocationTargetException e) {
+         throw e.getCause();
+      }
+   }
+
+   /**
+    * The queue is the argument bound to the {@code name} path parameter, as in {@link QueueApi#create(String)} or
+    * {@link MarconiApi#getMessageApi(String, java.util.UUID, String)}.
+    */
+   private static Optional<String> queueOf(Method method, Object[] args) {
+      Annotation[][] annotations = method.getParameterAnnotations();
+      for (int i = 0; i < annotations.length; i++) {
+         for (Annotation annotation : annotations[i]) {
+            if (annotation instanceof PathParam && "name".equals(((PathParam) annotation).value())
+                  && args[i] instanceof String) {
+               return Optional.of((String) args[i]);
+            }
+         }
+      }
+      return Optional.absent();
+   }
+
+   private static int statusOf(Throwable e) {
+      for (Throwable cause : Throwables.getCausalChain(e)) {
+         if (cause instanceof HttpResponseException && ((HttpResponseException) cause).getResponse() != null) {
+            return ((HttpResponseException) cause).getResponse().getStatusCode();
+         }
+      }
+      return 0;
+   }
+
+   private static long payloadBytesOf(Object[] args) {
+      long bytes = 0;
+      if (args != null) {
+         for (Object arg : args) {
+            bytes += payloadBytesOf(arg);
+         }
+      }
+      return bytes;
+   }
+
+   /**
+    * Counts the message bodies of the lists of messages sent or received. Other iterables, such as the paged list of
+    * queues, are not counted as iterating them could make requests.
+    */
+   private static long payloadBytesOf(Object value) {
+      if (value instanceof Message) {
+         Message message = (Message) value;
+         Optional<ByteBuffer> rawBody = message.getRawBody();
+         return rawBody.isPresent() ? rawBody.get().remaining() : Utf8.encodedLength(message.getBody());
+      }
+      if (value instanceof CreateMessage) {
+         CreateMessage message = (CreateMessage) value;
+         Optional<ByteBuffer> rawBody = message.getRawBody();
+         return rawBody.isPresent() ? rawBody.get().remaining() : Utf8.encodedLength(message.getBody());
+      }
+      long bytes = 0;
+      if (value instanceof List || value instanceof MessageStream) {
+         for (Object element : (Iterable<?>) value) {
+            if (element instanceof Message || element instanceof CreateMessage) {
+               bytes += payloadBytesOf(element);
+            }
+         }
+      }
+      return bytes;
+   }
+}
@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.metrics;
+
+/**
+ * Receives a measurement for every request made through an api instrumented by
+ * {@link MarconiMetrics#instrument(org.jclouds.openstack.marconi.v1.MarconiApi, MetricsRegistry)}. Implementations are
+ * called on the thread that made the request, so they must be thread safe and should return quickly.
+ * <p/>
+ * {@link InMemoryMetricsRegistry} keeps the measurements in memory; other implementations can forward them to a
+ * monitoring system.
+ */
+public interface MetricsRegistry {
+   /**
+    * @param key          The operation and queue of the request.
+    * @param latencyNanos How long the request took, including authentication, retries and parsing.
+    * @param payloadBytes The bytes of message bodies sent or received by the request.
+    */
+   void recordSuccess(OperationKey key, long latencyNanos, long payloadBytes);
+
+   /**
+    * @param key          The operation and queue of the request.
+    * @param latencyNanos How long the request took before it failed.
+    * @param status       The HTTP status the request failed with, or 0 if it failed without a response.
+    */
+   void recordError(OperationKey key, long latencyNanos, int status);
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.metrics;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import org.jclouds.javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Identifies what a request did: the operation, named as in the {@code @Named} annotation of the api method such as
+ * {@code message:create}, and the queue it was made against.
+ */
+public class OperationKey {
+   private final String operation;
+   private final Optional<String> queue;
+
+   /**
+    * @param operation The name of the operation, such as {@code claim:claim}.
+    * @param queue     The name of the queue, or null for operations that are not made against a single queue such
+    *                  as {@code queue:list}.
+    */
+   public OperationKey(String operation, @Nullable String queue) {
+      this.operation = checkNotNull(operation, "operation");
+      this.queue = Optional.fromNullable(queue);
+   }
+
+   /**
+    * @return The name of the operation, such as {@code claim:claim}.
+    */
+   public String getOperation() {
+      return operation;
+   }
+
+   /**
+    * @return The name of the queue, if the operation was made against a single queue.
+    */
+   public Optional<String> getQueue() {
+      return queue;
+   }
+
+   @Override
+   public int hashCode() {
+      return Objects.hashCode(operation, queue);
+   }
+
+   @Override
+   public boolean equals(Object obj) {
+      if (this == obj) return true;
+      if (obj == null || getClass() != obj.getClass()) return false;
+      OperationKey that = OperationKey.class.cast(obj);
+      return Objects.equal(this.operation, that.operation) && Objects.equal(this.queue, that.queue);
+   }
+
+   @Override
+   public String toString() {
+      return MoreObjects.toStringHelper(this).omitNullValues()
+            .add("operation", operation).add("queue", queue.orNull()).toString();
+   }
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.metrics;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The requests, errors, payload bytes and latencies recorded for one {@link OperationKey} by an
+ * {@link InMemoryMetricsRegistry}. The counts are updated live.
+ */
+@Beta
+public class OperationMetrics {
+   private final AtomicLong requests = new AtomicLong();
+   private final ConcurrentMap<Integer, AtomicLong> errors = Maps.newConcurrentMap();
+   private final AtomicLong payloadBytes = new AtomicLong();
+   private final LatencyHistogram latency = new LatencyHistogram();
+
+   void recordSuccess(long latencyNanos, long bytes) {
+      requests.incrementAndGet();
+      payloadBytes.addAndGet(bytes);
+      latency.record(latencyNanos);
+   }
+
+   void recordError(long latencyNanos, int status) {
+      requests.incrementAndGet();
+      AtomicLong counter = errors.get(status);
+      if (counter == null) {
+         AtomicLong created = new AtomicLong();
+         counter = errors.putIfAbsent(status, created);
+         if (counter == null) {
+            counter = created;
+         }
+      }
+      counter.incrementAndGet();
+      latency.record(latencyNanos);
+   }
+
+   /**
+    * @return The number of requests made, including those that failed.
+    */
+   public long getRequests() {
+      return requests.get();
+   }
+
+   /**
+    * @return The number of failed requests.
+    */
+   public long getErrors() {
+      long total = 0;
+      for (AtomicLong counter : errors.values()) {
+         total += counter.get();
+      }
+      return total;
+   }
+
+   /**
+    * @return The number of failed requests by the HTTP status they failed with. Requests that failed without a
+    *         response are counted under 0.
+    */
+   public Map<Integer, Long> getErrorsByStatus() {
+      ImmutableSortedMap.Builder<Integer, Long> builder = ImmutableSortedMap.naturalOrder();
+      for (Map.Entry<Integer, AtomicLong> entry : errors.entrySet()) {
+         builder.put(entry.getKey(), entry.getValue().get());
+      }
+      return builder.build();
+   }
+
+   /**
+    * @return The bytes of message bodies sent and received by successful requests.
+    */
+   public long getPayloadBytes() {
+      return payloadBytes.get();
+   }
+
+   /**
+    * @return The latencies of all requests, successful or not.
+    */
+   public LatencyHistogram getLatency() {
+      return latency;
+   }
+
+   @Override
+   public String toString() {
+      return MoreObjects.toStringHelper(this)
+            .add("requests", getRequests())
+            .add("errors", getErrorsByStatus())
+            .add("payloadBytes", getPayloadBytes())
+            .add("latency", latency)
+            .toString();
+   }
+}
@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.paging;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.Function;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import org.jclouds.collect.IterableWithMarker;
+import org.jclouds.collect.PagedIterable;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A {@link PagedIterable} that fetches pages ahead of the caller on an executor.
+ * <p/>
+ * Marconi pages are chained by marker, so page N+1 can only be requested once page N has arrived. As soon as a page
+ * arrives the next one is requested in the background, until {@code prefetchDepth} fetched pages are waiting to be
+ * consumed. Each call to {@link #iterator()} starts again from the first page; an iterator that is abandoned simply
+ * stops fetching once its buffer is full.
+ * <p/>
+ * Failures are delivered in order: the pages fetched before the failure are returned first, then the exception is
+ * thrown from {@code next()}/{@code hasNext()}.
+ * <p/>
+ * {@link org.jclouds.openstack.marconi.v1.features.QueueApi#list(boolean)} pages through the queues this way; see
+ * {@link org.jclouds.openstack.marconi.v1.config.MarconiProperties#QUEUE_LIST_PREFETCH_DEPTH}.
+ */
+@Beta
+public class PrefetchingPagedIterable<T> extends PagedIterable<T> {
+
+   /**
+    * Pages on from a first page that was already fetched, like {@link org.jclouds.collect.PagedIterables#advance}.
+    *
+    * @param markerToNext Fetches the page at a marker.
+    * @param prefetchDepth The maximum number of pages fetched ahead of the caller.
+    * @param executor The executor the pages are fetched on.
+    */
+   public static <T> PrefetchingPagedIterable<T> advance(final IterableWithMarker<T> firstPage,
+         final Function<Object, IterableWithMarker<T>> markerToNext, int prefetchDepth, Executor executor) {
+      checkNotNull(firstPage, "firstPage");
+      checkNotNull(markerToNext, "markerToNext");
+      return new PrefetchingPagedIterable<T>(new Function<Optional<Object>, IterableWithMarker<T>>() {
+         @Override
+         public IterableWithMarker<T> apply(Optional<Object> marker) {
+            return marker.isPresent() ? markerToNext.apply(marker.get()) : firstPage;
+         }
+
+         @Override
+         public String toString() {
+            return markerToNext.toString();
+         }
+      }, prefetchDepth, executor);
+   }
+
+   private final Function<Optional<Object>, IterableWithMarker<T>> markerToPage;
+   private final int prefetchDepth;
+   private final Executor executor;
+
+   /**
+    * @param markerToPage Fetches the page at a marker, or the first page when the marker is absent.
+    * @param prefetchDepth The maximum number of pages fetched ahead of the caller.
+    * @param executor The executor the pages are fetched on.
+    */
+   public PrefetchingPagedIterable(Function<Optional<Object>, IterableWithMarker<T>> markerToPage, int prefetchDepth,
+         Executor executor) {
+      checkArgument(prefetchDepth > 0, "prefetchDepth must be positive");
+      this.markerToPage = checkNotNull(markerToPage, "markerToPage");
+      this.prefetchDepth = prefetchDepth;
+      this.executor = checkNotNull(executor, "executor");
+   }
+
+   public int getPrefetchDepth() {
+      return prefetchDepth;
+   }
+
+   @Override
+   public Iterator<IterableWithMarker<T>> iterator() {
+      PrefetchingIterator iterator = new PrefetchingIterator();
+      iterator.fetchIfNeeded();
+      return iterator;
+   }
+
+   @Override
+   public String toString() {
+      return MoreObjects.toStringHelper(this)
+            .add("markerToPage", markerToPage)
+            .add("prefetchDepth", prefetchDepth)
+            .toString();
+   }
+
+   private class PrefetchingIterator extends AbstractIterator<IterableWithMarker<T>> {
+      // pages (or the failure that ended the chain) waiting to be returned, guarded by this
+      private final Deque<Object> fetched = new ArrayDeque<Object>();
+      private Optional<Object> nextMarker = Optional.absent();
+      private boolean inFlight;
+      private boolean exhausted;
+
+      @Override
+      protected IterableWithMarker<T> computeNext() {
+         Object next;
+         synchronized (this) {
+            while (fetched.isEmpty()) {
+               if (exhausted && !inFlight) {
+                  return endOfData();
+               }
+               try {
+                  wait();
+               }
+               catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  throw Throwables.propagate(e);
+               }
+            }
+            next = fetched.poll();
+         }
+         fetchIfNeeded();
+
+         if (next instanceof Throwable) {
+            throw Throwables.propagate((Throwable) next);
+         }
+         @SuppressWarnings("unchecked")
+         IterableWithMarker<T> page = (IterableWithMarker<T>) next;
+         return page;
+      }
+
+      void fetchIfNeeded() {
+         final Optional<Object> marker;
+         synchronized (this) {
+            if (inFlight || exhausted || fetched.size() >= prefetchDepth) {
+               return;
+            }
+            inFlight = true;
+            marker = nextMarker;
+         }
+         try {
+            executor.execute(new Runnable() {
+               @Override
+               public void run() {
+                  fetch(marker);
+               }
+            });
+         }
+         catch (RuntimeException e) {
+            completed(e);
+         }
+      }
+
+      private void fetch(Optional<Object> marker) {
+         Object result;
+         try {
+            result = checkNotNull(markerToPage.apply(marker), "page");
+         }
+         catch (Throwable e) {
+            result = e;
+         }
+         completed(result);
+      }
+
+      private void completed(Object result) {
+         synchronized (this) {
+            inFlight = false;
+            fetched.add(result);
+            if (result instanceof Throwable) {
+               exhausted = true;
+            }
+            else {
+               @SuppressWarnings("unchecked")
+               IterableWithMarker<T> page = (IterableWithMarker<T>) result;
+               nextMarker = page.nextMarker();
+               exhausted = !nextMarker.isPresent();
+            }
+            notifyAll();
+         }
+         fetchIfNeeded();
+      }
+   }
+}
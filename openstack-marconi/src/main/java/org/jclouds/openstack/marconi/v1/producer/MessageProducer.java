@@ -0,0 +1,382 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.producer;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Optional;
+import com.google.common.base.Utf8;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jclouds.openstack.marconi.v1.codec.BodyEnvelope;
+import org.jclouds.openstack.marconi.v1.domain.CreateMessage;
+import org.jclouds.openstack.marconi.v1.domain.MessagesCreated;
+import org.jclouds.openstack.marconi.v1.features.MessageApi;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Collects messages from any number of threads and creates them on a queue in batches with
+ * {@link MessageApi#create(List)}.
+ * <p/>
+ * A batch is sent as soon as it holds {@code maxBatchSize} messages or {@code maxBatchBytes} bytes of message bodies,
+ * or when {@code linger} has passed since the first message was added to it, whichever comes first. Keep
+ * {@code maxBatchSize} at or below the number of messages your provider allows in one request.
+ * <p/>
+ * Every call to {@link #send(CreateMessage)} returns a future that completes with the id the queue assigned to that
+ * message, or fails with the error that stopped its batch from being created.
+ * <p/>
+ * Linger timers run on a scheduler and full batches are created on a separate executor, so a slow request never
+ * delays the timers of the batches behind it.
+ */
+@Beta
+public class MessageProducer implements Closeable {
+
+   /**
+    * Approximate number of bytes each message adds to a request on top of its body.
+    */
+   private static final int MESSAGE_OVERHEAD_BYTES = 24;
+
+   private final MessageApi api;
+   private final int maxBatchSize;
+   private final long maxBatchBytes;
+   private final long lingerMillis;
+   private final BodyEnvelope envelope;
+   private final ScheduledExecutorService scheduler;
+   private final boolean shutdownSchedulerOnClose;
+   private final ExecutorService executor;
+   private final boolean shutdownExecutorOnClose;
+
+   private final Object lock = new Object();
+   private List<Pending> batch = new ArrayList<Pending>();
+   private long batchBytes;
+   private ScheduledFuture<?> lingerTask;
+   private boolean closed;
+
+   protected MessageProducer(Builder builder) {
+      this.api = builder.api;
+      this.maxBatchSize = builder.maxBatchSize;
+      this.maxBatchBytes = builder.maxBatchBytes;
+      this.lingerMillis = builder.lingerMillis;
+      this.envelope = builder.envelope;
+      if (builder.scheduler != null) {
+         this.scheduler = builder.scheduler;
+         this.shutdownSchedulerOnClose = false;
+      }
+      else {
+         this.scheduler = Executors.newScheduledThreadPool(1, new ThreadFactoryBuilder()
+               .setNameFormat("marconi-producer-linger-%d").setDaemon(true).build());
+         this.shutdownSchedulerOnClose = true;
+      }
+      if (builder.executor != null) {
+         this.executor = builder.executor;
+         this.shutdownExecutorOnClose = false;
+      }
+      else {
+         this.executor = Executors.newFixedThreadPool(builder.maxInFlight, new ThreadFactoryBuilder()
+               .setNameFormat("marconi-producer-%d").setDaemon(true).build());
+         this.shutdownExecutorOnClose = true;
+      }
+   }
+
+   /**
+    * Adds a message to the current batch.
+    *
+    * @return A future holding the id of the created message.
+    * @throws IllegalStateException if the producer is closed.
+    */
+   public ListenableFuture<String> send(CreateMessage message) {
+      checkNotNull(message, "message");
+      Pending pending = new Pending(envelope == null ? message : envelope.encode(message));
+      List<Pending> previous = null;
+      List<Pending> full = null;
+
+      synchronized (lock) {
+         checkState(!closed, "producer is closed");
+
+         // don't let this message push the current batch over the byte limit
+         if (!batch.isEmpty() && batchBytes + pending.bytes > maxBatchBytes) {
+            previous = drain();
+         }
+         batch.add(pending);
+         batchBytes += pending.bytes;
+
+         if (batch.size() >= maxBatchSize || batchBytes >= maxBatchBytes) {
+            full = drain();
+         }
+         else if (batch.size() == 1) {
+            final List<Pending> lingering = batch;
+            try {
+               lingerTask = scheduler.schedule(new Runnable() {
+                  @Override
+                  public void run() {
+                     flush(lingering);
+                  }
+               }, lingerMillis, TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException e) {
+               // nothing would send this batch later, so send it now
+               full = drain();
+            }
+         }
+      }
+
+      if (previous != null) {
+         submit(previous);
+      }
+      if (full != null) {
+         submit(full);
+      }
+      return pending.id;
+   }
+
+   /**
+    * Sends the current batch right away, without waiting for it to fill up.
+    */
+   public void flush() {
+      List<Pending> ready;
+      synchronized (lock) {
+         if (batch.isEmpty()) {
+            return;
+         }
+         ready = drain();
+      }
+      submit(ready);
+   }
+
+   /**
+    * Sends a lingering batch unless it was sent already. Cancelling the linger task cannot stop it once it runs, so a
+    * late run must not send the younger batch that took its place.
+    */
+   private void flush(List<Pending> lingering) {
+      List<Pending> ready;
+      synchronized (lock) {
+         if (batch != lingering) {
+            return;
+         }
+         ready = drain();
+      }
+      submit(ready);
+   }
+
+   /**
+    * Sends the current batch and stops accepting messages. Batches already handed off still complete.
+    */
+   @Override
+   public void close() {
+      synchronized (lock) {
+         if (closed) {
+            return;
+         }
+         closed = true;
+      }
+      flush();
+      if (shutdownSchedulerOnClose) {
+         scheduler.shutdown();
+      }
+      if (shutdownExecutorOnClose) {
+         executor.shutdown();
+      }
+   }
+
+   /**
+    * Must be called while holding the lock.
+    */
+   private List<Pending> drain() {
+      List<Pending> drained = batch;
+      batch = new ArrayList<Pending>();
+      batchBytes = 0;
+      if (lingerTask != null) {
+         lingerTask.cancel(false);
+         lingerTask = null;
+      }
+      return drained;
+   }
+
+   private void submit(final List<Pending> ready) {
+      try {
+         executor.execute(new Runnable() {
+            @Override
+            public void run() {
+               create(ready);
+            }
+         });
+      }
+      catch (RejectedExecutionException e) {
+         fail(ready, e);
+      }
+   }
+
+   private static void fail(List<Pending> ready, Throwable t) {
+      for (Pending pending : ready) {
+         pending.id.setException(t);
+      }
+   }
+
+   private void create(List<Pending> ready) {
+      ImmutableList.Builder<CreateMessage> messages = ImmutableList.builder();
+      for (Pending pending : ready) {
+         messages.add(pending.message);
+      }
+
+      MessagesCreated created;
+      try {
+         created = api.create(messages.build());
+      }
+      catch (Throwable t) {
+         fail(ready, t);
+         return;
+      }
+
+      // ids are returned in the same order as the messages were submitted
+      List<String> ids = created.getMessageIds();
+      for (int i = 0; i < ready.size(); i++) {
+         if (i < ids.size()) {
+            ready.get(i).id.set(ids.get(i));
+         }
+         else {
+            ready.get(i).id.setException(new IllegalStateException("message was not created: partial batch"));
+         }
+      }
+   }
+
+   private static final class Pending {
+      private final CreateMessage message;
+      private final long bytes;
+      private final SettableFuture<String> id = SettableFuture.create();
+
+      private Pending(CreateMessage message) {
+         this.message = message;
+         Optional<ByteBuffer> rawBody = message.getRawBody();
+         this.bytes = (rawBody.isPresent() ? rawBody.get().remaining() : Utf8.encodedLength(message.getBody()))
+               + MESSAGE_OVERHEAD_BYTES;
+      }
+   }
+
+   @Override
+   public String toString() {
+      synchronized (lock) {
+         return MoreObjects.toStringHelper(this)
+               .add("pending", batch.size()).add("pendingBytes", batchBytes).add("closed", closed).toString();
+      }
+   }
+
+   public static Builder builder(MessageApi api) {
+      return new Builder(api);
+   }
+
+   public static class Builder {
+      protected final MessageApi api;
+      protected int maxBatchSize = 10;
+      protected long maxBatchBytes = 256 * 1024;
+      protected long lingerMillis = 20;
+      protected int maxInFlight = 1;
+      protected BodyEnvelope envelope;
+      protected ScheduledExecutorService scheduler;
+      protected ExecutorService executor;
+
+      protected Builder(MessageApi api) {
+         this.api = checkNotNull(api, "api");
+      }
+
+      /**
+       * The most messages sent in one request. Defaults to 10, the default maximum for Marconi.
+       */
+      public Builder maxBatchSize(int maxBatchSize) {
+         checkArgument(maxBatchSize > 0, "maxBatchSize must be positive");
+         this.maxBatchSize = maxBatchSize;
+         return this;
+      }
+
+      /**
+       * The most bytes of messages sent in one request. A single message larger than this is sent on its own.
+       * Defaults to 256 KB, the default request size limit for Marconi.
+       */
+      public Builder maxBatchBytes(long maxBatchBytes) {
+         checkArgument(maxBatchBytes > 0, "maxBatchBytes must be positive");
+         this.maxBatchBytes = maxBatchBytes;
+         return this;
+      }
+
+      /**
+       * How long a message waits for its batch to fill up before the batch is sent anyway. Defaults to 20
+       * milliseconds.
+       */
+      public Builder linger(long linger, TimeUnit unit) {
+         checkArgument(linger >= 0, "linger must not be negative");
+         this.lingerMillis = unit.toMillis(linger);
+         return this;
+      }
+
+      /**
+       * The most batches being created at once by the default executor. With 1, batches are created in the order they
+       * were filled. Defaults to 1.
+       */
+      public Builder maxInFlight(int maxInFlight) {
+         checkArgument(maxInFlight > 0, "maxInFlight must be positive");
+         this.maxInFlight = maxInFlight;
+         return this;
+      }
+
+      /**
+       * The scheduler that runs linger timers. It only triggers flushes and never blocks on a request. It is not shut
+       * down when the producer is closed. Defaults to a dedicated daemon thread.
+       */
+      public Builder scheduler(ScheduledExecutorService scheduler) {
+         this.scheduler = checkNotNull(scheduler, "scheduler");
+         return this;
+      }
+
+      /**
+       * The executor that creates batches. Its pool size bounds the number of requests in flight, and the futures of a
+       * batch it rejects fail with the {@link RejectedExecutionException}. It is not shut down when the producer is
+       * closed. Defaults to a fixed pool of {@link #maxInFlight(int)} daemon threads.
+       */
+      public Builder executor(ExecutorService executor) {
+         this.executor = checkNotNull(executor, "executor");
+         return this;
+      }
+
+      /**
+       * Encodes the body of every message sent with the envelope's codec, for example to compress it. The byte limits
+       * apply to the encoded bodies. By default bodies are sent as they are.
+       */
+      public Builder envelope(BodyEnvelope envelope) {
+         this.envelope = checkNotNull(envelope, "envelope");
+         return this;
+      }
+
+      public MessageProducer build() {
+         return new MessageProducer(this);
+      }
+   }
+}
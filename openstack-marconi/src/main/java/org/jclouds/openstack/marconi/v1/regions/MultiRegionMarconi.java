@@ -0,0 +1,313 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.regions;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jclouds.openstack.marconi.v1.MarconiApi;
+import org.jclouds.openstack.marconi.v1.domain.Aged;
+import org.jclouds.openstack.marconi.v1.domain.CreateMessage;
+import org.jclouds.openstack.marconi.v1.domain.MessagesCreated;
+import org.jclouds.openstack.marconi.v1.domain.MessagesStats;
+import org.jclouds.openstack.marconi.v1.domain.Queue;
+import org.jclouds.openstack.marconi.v1.domain.QueueStats;
+
+import java.io.Closeable;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Runs queue operations in several regions of a {@link MarconiApi} at once, such as a queue that is mirrored across
+ * regions. Every region is called in parallel on a bounded executor, so an operation takes as long as the slowest
+ * region instead of the sum of all of them.
+ * <p/>
+ * A region that fails does not fail the operation; its error is returned in the {@link RegionResults} together with
+ * the results of the other regions and the latency of every region.
+ */
+@Beta
+public class MultiRegionMarconi implements Closeable {
+
+   private final MarconiApi api;
+   private final UUID clientId;
+   private final Set<String> regions;
+   private final long timeoutMillis;
+   private final ListeningExecutorService executor;
+   private final boolean shutdownExecutorOnClose;
+
+   protected MultiRegionMarconi(Builder builder) {
+      this.api = builder.api;
+      this.clientId = builder.clientId;
+      this.regions = builder.regions != null ? builder.regions : ImmutableSet.copyOf(api.getConfiguredRegions());
+      this.timeoutMillis = builder.timeoutMillis;
+      if (builder.executor != null) {
+         this.executor = MoreExecutors.listeningDecorator(builder.executor);
+         this.shutdownExecutorOnClose = false;
+      }
+      else {
+         this.executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(
+               Math.max(1, regions.size()),
+               new ThreadFactoryBuilder().setNameFormat("marconi-regions-%d").setDaemon(true).build()));
+         this.shutdownExecutorOnClose = true;
+      }
+   }
+
+   /**
+    * @return The regions operations run in.
+    */
+   public Set<String> getRegions() {
+      return regions;
+   }
+
+   /**
+    * Lists every queue in every region. Use {@link #regionsByQueue(RegionResults)} for one list across regions.
+    *
+    * @see org.jclouds.openstack.marconi.v1.features.QueueApi#list(boolean)
+    */
+   public RegionResults<List<Queue>> listQueues(final boolean detailed) {
+      return inEachRegion(new Function<String, List<Queue>>() {
+         @Override
+         public List<Queue> apply(String region) {
+            return api.getQueueApi(region, clientId).list(detailed).concat().toList();
+         }
+      });
+   }
+
+   /**
+    * Gets the stats of the queue with the same name in every region.
+    *
+    * @see org.jclouds.openstack.marconi.v1.features.QueueApi#getStats(String)
+    */
+   public RegionResults<QueueStats> getStats(final String queue) {
+      checkNotNull(queue, "queue");
+      return inEachRegion(new Function<String, QueueStats>() {
+         @Override
+         public QueueStats apply(String region) {
+            return api.getQueueApi(region, clientId).getStats(queue);
+         }
+      });
+   }
+
+   /**
+    * Creates the same messages on the queue with the same name in every region.
+    *
+    * @see org.jclouds.openstack.marconi.v1.features.MessageApi#create(List)
+    */
+   public RegionResults<MessagesCreated> create(final String queue, List<CreateMessage> messages) {
+      checkNotNull(queue, "queue");
+      final List<CreateMessage> copy = ImmutableList.copyOf(messages);
+      return inEachRegion(new Function<String, MessagesCreated>() {
+         @Override
+         public MessagesCreated apply(String region) {
+            return api.getMessageApi(region, clientId, queue).create(copy);
+         }
+      });
+   }
+
+   /**
+    * Runs an operation in every region in parallel and waits for all of them, up to the timeout.
+    *
+    * @param operation Given a region, performs the operation there.
+    */
+   public <T> RegionResults<T> inEachRegion(final Function<String, T> operation) {
+      checkNotNull(operation, "operation");
+      final Map<String, Long> latencyMillis = new ConcurrentHashMap<String, Long>();
+      Map<String, Future<T>> futures = new LinkedHashMap<String, Future<T>>();
+      final long start = System.nanoTime();
+
+      for (final String region : regions) {
+         futures.put(region, executor.submit(new Callable<T>() {
+            @Override
+            public T call() {
+               long regionStart = System.nanoTime();
+               try {
+                  return operation.apply(region);
+               }
+               finally {
+                  latencyMillis.put(region, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - regionStart));
+               }
+            }
+         }));
+      }
+
+      long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      Map<String, T> results = new LinkedHashMap<String, T>();
+      Map<String, Throwable> errors = new LinkedHashMap<String, Throwable>();
+      Set<String> absent = new LinkedHashSet<String>();
+      for (Map.Entry<String, Future<T>> entry : futures.entrySet()) {
+         String region = entry.getKey();
+         try {
+            T result = entry.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            if (result != null) {
+               results.put(region, result);
+            }
+            else {
+               absent.add(region);
+            }
+         }
+         catch (ExecutionException e) {
+            errors.put(region, e.getCause());
+         }
+         catch (TimeoutException e) {
+            entry.getValue().cancel(true);
+            errors.put(region, e);
+            latencyMillis.put(region, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+         }
+         catch (CancellationException e) {
+            errors.put(region, e);
+         }
+         catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            entry.getValue().cancel(true);
+            errors.put(region, e);
+         }
+      }
+
+      return new RegionResults<T>(results, errors, absent, latencyMillis);
+   }
+
+   /**
+    * Merges the queues listed in each region by name.
+    *
+    * @return The regions each queue exists in, keyed by queue name in alphabetical order. Regions that failed to list
+    *         their queues are left out; see {@link RegionResults#getErrors()}.
+    */
+   public static Map<String, Set<String>> regionsByQueue(RegionResults<List<Queue>> queues) {
+      Map<String, ImmutableSet.Builder<String>> regionsByQueue = new TreeMap<String, ImmutableSet.Builder<String>>();
+      for (Map.Entry<String, List<Queue>> entry : queues.getResults().entrySet()) {
+         for (Queue queue : entry.getValue()) {
+            ImmutableSet.Builder<String> regions = regionsByQueue.get(queue.getName());
+            if (regions == null) {
+               regions = ImmutableSet.builder();
+               regionsByQueue.put(queue.getName(), regions);
+            }
+            regions.add(entry.getKey());
+         }
+      }
+      ImmutableMap.Builder<String, Set<String>> merged = ImmutableMap.builder();
+      for (Map.Entry<String, ImmutableSet.Builder<String>> entry : regionsByQueue.entrySet()) {
+         merged.put(entry.getKey(), entry.getValue().build());
+      }
+      return merged.build();
+   }
+
+   /**
+    * Adds up the message counts of a queue across regions. The oldest and newest messages are those of the regions
+    * with the oldest and the newest message.
+    */
+   public static MessagesStats totals(RegionResults<QueueStats> stats) {
+      int claimed = 0;
+      int free = 0;
+      int total = 0;
+      Aged oldest = null;
+      Aged newest = null;
+      for (QueueStats queueStats : stats.values()) {
+         MessagesStats messagesStats = queueStats.getMessagesStats();
+         claimed += messagesStats.getClaimed();
+         free += messagesStats.getFree();
+         total += messagesStats.getTotal();
+         Optional<Aged> regionOldest = messagesStats.getOldest();
+         if (regionOldest.isPresent() && (oldest == null || regionOldest.get().getAge() > oldest.getAge())) {
+            oldest = regionOldest.get();
+         }
+         Optional<Aged> regionNewest = messagesStats.getNewest();
+         if (regionNewest.isPresent() && (newest == null || regionNewest.get().getAge() < newest.getAge())) {
+            newest = regionNewest.get();
+         }
+      }
+      return MessagesStats.builder().claimed(claimed).free(free).total(total).oldest(oldest).newest(newest).build();
+   }
+
+   @Override
+   public void close() {
+      if (shutdownExecutorOnClose) {
+         executor.shutdownNow();
+      }
+   }
+
+   public static Builder builder(MarconiApi api, UUID clientId) {
+      return new Builder(api, clientId);
+   }
+
+   public static class Builder {
+      protected final MarconiApi api;
+      protected final UUID clientId;
+      protected Set<String> regions;
+      protected long timeoutMillis = TimeUnit.SECONDS.toMillis(60);
+      protected ExecutorService executor;
+
+      protected Builder(MarconiApi api, UUID clientId) {
+         this.api = checkNotNull(api, "api");
+         this.clientId = checkNotNull(clientId, "clientId");
+      }
+
+      /**
+       * The regions to run operations in. Defaults to {@link MarconiApi#getConfiguredRegions()}.
+       */
+      public Builder regions(Iterable<String> regions) {
+         this.regions = ImmutableSet.copyOf(checkNotNull(regions, "regions"));
+         checkArgument(!this.regions.isEmpty(), "at least one region is required");
+         return this;
+      }
+
+      /**
+       * How long to wait for all regions. Regions that take longer are cancelled and reported with a
+       * {@link TimeoutException}. Defaults to 60 seconds.
+       */
+      public Builder timeout(long timeout, TimeUnit unit) {
+         checkArgument(timeout > 0, "timeout must be positive");
+         this.timeoutMillis = unit.toMillis(timeout);
+         return this;
+      }
+
+      /**
+       * The executor that calls the regions. Its pool size bounds the number of regions called at once. It is not
+       * shut down when the facade is closed. Defaults to a fixed pool with one daemon thread per region.
+       */
+      public Builder executor(ExecutorService executor) {
+         this.executor = checkNotNull(executor, "executor");
+         return this;
+      }
+
+      public MultiRegionMarconi build() {
+         return new MultiRegionMarconi(this);
+      }
+   }
+}
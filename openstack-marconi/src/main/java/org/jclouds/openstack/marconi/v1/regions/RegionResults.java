@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.regions;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.FluentIterable;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The outcome of running one operation in several regions: the result of every region that succeeded, the error of
+ * every region that failed, the regions that succeeded without a result, and how long each region took. Every region
+ * the operation ran in is in exactly one of {@link #getResults()}, {@link #getErrors()} and {@link #getAbsent()}.
+ */
+public class RegionResults<T> {
+
+   private final Map<String, T> results;
+   private final Map<String, Throwable> errors;
+   private final Set<String> absent;
+   private final Map<String, Long> latencyMillis;
+
+   protected RegionResults(Map<String, T> results, Map<String, Throwable> errors, Set<String> absent,
+         Map<String, Long> latencyMillis) {
+      this.results = ImmutableMap.copyOf(checkNotNull(results, "results"));
+      this.errors = ImmutableMap.copyOf(checkNotNull(errors, "errors"));
+      this.absent = ImmutableSet.copyOf(checkNotNull(absent, "absent"));
+      this.latencyMillis = ImmutableMap.copyOf(checkNotNull(latencyMillis, "latencyMillis"));
+   }
+
+   /**
+    * @return The result of each region that succeeded, keyed by region.
+    */
+   public Map<String, T> getResults() {
+      return results;
+   }
+
+   /**
+    * @return The results of all regions that succeeded.
+    */
+   public FluentIterable<T> values() {
+      return FluentIterable.from(results.values());
+   }
+
+   /**
+    * @return The error of each region that failed or did not finish in time, keyed by region.
+    */
+   public Map<String, Throwable> getErrors() {
+      return errors;
+   }
+
+   /**
+    * @return The regions where the operation succeeded but returned null, for instance because what it looked up does
+    *         not exist there.
+    */
+   public Set<String> getAbsent() {
+      return absent;
+   }
+
+   /**
+    * @return Whether any region failed.
+    */
+   public boolean hasErrors() {
+      return !errors.isEmpty();
+   }
+
+   /**
+    * @return How long each region took, in milliseconds, keyed by region.
+    */
+   public Map<String, Long> getLatencyMillis() {
+      return latencyMillis;
+   }
+
+   /**
+    * @return How long the slowest region took, in milliseconds.
+    */
+   public long getMaxLatencyMillis() {
+      return latencyMillis.isEmpty() ? 0 : Collections.max(latencyMillis.values());
+   }
+
+   @Override
+   public String toString() {
+      return MoreObjects.toStringHelper(this)
+            .add("results", results).add("errors", errors).add("absent", absent)
+            .add("latencyMillis", latencyMillis).toString();
+   }
+}
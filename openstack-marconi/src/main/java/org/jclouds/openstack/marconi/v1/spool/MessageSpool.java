@@ -0,0 +1,645 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.spool;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.jclouds.openstack.marconi.v1.domain.CreateMessage;
+import org.jclouds.openstack.marconi.v1.domain.MessagesCreated;
+import org.jclouds.openstack.marconi.v1.features.MessageApi;
+import org.jclouds.openstack.marconi.v1.features.QueueApi;
+import org.jclouds.openstack.marconi.v1.handlers.MarconiErrors;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.Charsets;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A write-ahead spool in front of {@link MessageApi#create(List)} that keeps producers going while Marconi is
+ * unavailable. A batch that cannot be created because the service is down, that is a 5xx response or no response at
+ * all, is appended to the spool instead of failing. So is every batch sent while the spool is not empty, which keeps
+ * the batches in order. Client errors such as 400 or 409 are not spooled; they are thrown as before.
+ * <p/>
+ * While the spool is empty, batches are created directly and concurrently, so one slow create does not hold up the
+ * other senders; batches sent at the same time are created in no particular order, as with {@link MessageApi} itself.
+ * Once a batch is spooled, every batch sent after it is spooled behind it and replayed in order.
+ * <p/>
+ * The spool is a directory of append-only segment files, each memory-mapped in full. Every batch is written as a
+ * record with a length, a CRC32 and the time it was spooled, and the position of the next batch to replay is kept in
+ * a checkpoint file, so the spool survives a restart of the process. Once {@link QueueApi#exists(String)} succeeds
+ * again, the batches are replayed in order at a limited rate so the recovering service is not flooded, and segments
+ * are deleted as soon as all of their batches are created.
+ * <p/>
+ * The depth and age of the spool are available from {@link #getStats()}.
+ */
+@Beta
+public class MessageSpool implements Closeable {
+   private static final String SEGMENT_SUFFIX = ".spool";
+   private static final String CHECKPOINT = "checkpoint";
+   // length, crc, spooled at millis
+   private static final int HEADER_BYTES = 16;
+   private static final byte STRING_BODY = 0;
+   private static final byte RAW_BODY = 1;
+
+   private final MessageApi messageApi;
+   private final QueueApi queueApi;
+   private final String queue;
+   private final File directory;
+   private final int segmentBytes;
+   private final boolean sync;
+   private final RateLimiter replayRate;
+   private final long replayIntervalMillis;
+   private final ScheduledExecutorService scheduler;
+   private final boolean shutdownSchedulerOnClose;
+
+   // guarded by this
+   private final Deque<Record> pending = new ArrayDeque<Record>();
+   private final Map<Long, MappedByteBuffer> segments = new TreeMap<Long, MappedByteBuffer>();
+   private final MappedByteBuffer checkpoint;
+   private long writeSegment;
+   private int writeOffset;
+   private int pendingMessages;
+
+   private final AtomicLong spooled = new AtomicLong();
+   private final AtomicLong replayed = new AtomicLong();
+   private final AtomicLong dropped = new AtomicLong();
+   private final Object replaying = new Object();
+   private volatile ScheduledFuture<?> replayer;
+   private volatile boolean closed;
+
+   protected MessageSpool(Builder builder) throws IOException {
+      this.messageApi = builder.messageApi;
+      this.queueApi = builder.queueApi;
+      this.queue = builder.queue;
+      this.directory = builder.directory;
+      this.segmentBytes = builder.segmentBytes;
+      this.sync = builder.sync;
+      this.replayRate = RateLimiter.create(builder.messagesPerSecond);
+      this.replayIntervalMillis = builder.replayIntervalMillis;
+
+      checkState(directory.isDirectory() || directory.mkdirs(), "cannot create spool directory %s", directory);
+      this.checkpoint = map(new File(directory, CHECKPOINT), 16);
+      recover(checkpoint.getLong(0), checkpoint.getLong(8));
+
+      if (builder.scheduler != null) {
+         this.scheduler = builder.scheduler;
+         this.shutdownSchedulerOnClose = false;
+      }
+      else {
+         this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+               .setNameFormat("marconi-spool-%d").setDaemon(true).build());
+         this.shutdownSchedulerOnClose = true;
+      }
+   }
+
+   /**
+    * Starts replaying spooled batches in the background, checking every replay interval whether the queue is
+    * available again.
+    */
+   public synchronized MessageSpool start() {
+      checkState(!closed, "spool is closed");
+      checkState(replayer == null, "spool was already started");
+      replayer = scheduler.scheduleWithFixedDelay(new Runnable() {
+         @Override
+         public void run() {
+            replay();
+         }
+      }, 0, replayIntervalMillis, TimeUnit.MILLISECONDS);
+      return this;
+   }
+
+   /**
+    * Creates a batch of messages, or spools it if the service is unavailable or earlier batches are still spooled.
+    *
+    * @return The created messages, or absent if the batch was spooled.
+    * @throws IOException if the batch could not be written to the spool.
+    */
+   public Optional<MessagesCreated> send(List<CreateMessage> messages) throws IOException {
+      checkState(!closed, "spool is closed");
+      List<CreateMessage> batch = ImmutableList.copyOf(checkNotNull(messages, "messages"));
+      checkArgument(!batch.isEmpty(), "at least one message is required");
+
+      // the check and the append share the spool lock, so a batch never overtakes one that is already spooled
+      synchronized (this) {
+         if (!pending.isEmpty()) {
+            append(batch);
+            return Optional.absent();
+         }
+      }
+      try {
+         return Optional.of(messageApi.create(batch));
+      }
+      catch (RuntimeException e) {
+         if (!isUnavailable(e)) {
+            throw e;
+         }
+         append(batch);
+         return Optional.absent();
+      }
+   }
+
+   /**
+    * Replays the spooled batches in order if the queue is available. Called periodically once the spool is started.
+    *
+    * @return The number of batches replayed.
+    */
+   public int replay() {
+      synchronized (replaying) {
+         synchronized (this) {
+            if (pending.isEmpty()) {
+               return 0;
+            }
+         }
+         try {
+            if (!queueApi.exists(queue)) {
+               return 0;
+            }
+         }
+         catch (RuntimeException e) {
+            return 0;
+         }
+
+         int batches = 0;
+         while (!closed) {
+            List<CreateMessage> batch;
+            synchronized (this) {
+               Record record = pending.peekFirst();
+               if (record == null) {
+                  break;
+               }
+               batch = read(record);
+            }
+            replayRate.acquire(batch.size());
+            try {
+               messageApi.create(batch);
+               replayed.addAndGet(batch.size());
+            }
+            catch (RuntimeException e) {
+               if (isUnavailable(e)) {
+                  break;
+               }
+               // rejected by the service, so replaying it again would not help
+               dropped.addAndGet(batch.size());
+            }
+            synchronized (this) {
+               Record record = pending.removeFirst();
+               pendingMessages -= record.messages;
+               commit();
+            }
+            batches++;
+         }
+         return batches;
+      }
+   }
+
+   /**
+    * @return A snapshot of the depth, age and throughput of this spool.
+    */
+   public synchronized Stats getStats() {
+      Record oldest = pending.peekFirst();
+      long ageMillis = oldest == null ? 0 : Math.max(0, System.currentTimeMillis() - oldest.spooledAtMillis);
+      return new Stats(pending.size(), pendingMessages, ageMillis, segments.size(), spooled.get(), replayed.get(),
+            dropped.get());
+   }
+
+   /**
+    * Stops replaying. Spooled batches stay on disk and are replayed by the next spool opened on the directory.
+    */
+   @Override
+   public void close() {
+      synchronized (this) {
+         if (closed) {
+            return;
+         }
+         closed = true;
+         if (replayer != null) {
+            replayer.cancel(false);
+         }
+      }
+      if (shutdownSchedulerOnClose) {
+         scheduler.shutdownNow();
+      }
+      synchronized (replaying) {
+         synchronized (this) {
+            for (MappedByteBuffer segment : segments.values()) {
+               segment.force();
+            }
+            checkpoint.force();
+         }
+      }
+   }
+
+   private synchronized void append(List<CreateMessage> batch) throws IOException {
+      checkState(!closed, "spool is closed");
+      byte[] payload = encode(batch);
+      int recordBytes = HEADER_BYTES + payload.length;
+      checkArgument(recordBytes <= segmentBytes, "a batch of %s bytes does not fit in a segment of %s bytes",
+            payload.length, segmentBytes);
+      if (writeOffset + recordBytes > segmentBytes) {
+         writeSegment++;
+         writeOffset = 0;
+         segments.put(writeSegment, map(segmentFile(writeSegment), segmentBytes));
+      }
+
+      MappedByteBuffer segment = segments.get(writeSegment);
+      long now = System.currentTimeMillis();
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      segment.putInt(writeOffset + 4, (int) crc.getValue());
+      segment.putLong(writeOffset + 8, now);
+      ByteBuffer body = segment.duplicate();
+      body.position(writeOffset + HEADER_BYTES);
+      body.put(payload);
+      // the length goes last, so a record torn by a crash reads as the end of the segment
+      segment.putInt(writeOffset, payload.length);
+      if (sync) {
+         segment.force();
+      }
+
+      pending.addLast(new Record(writeSegment, writeOffset, payload.length, batch.size(), now));
+      pendingMessages += batch.size();
+      writeOffset += recordBytes;
+      spooled.addAndGet(batch.size());
+   }
+
+   private List<CreateMessage> read(Record record) {
+      ByteBuffer segment = segments.get(record.segment).duplicate();
+      segment.position(record.offset + HEADER_BYTES);
+      byte[] payload = new byte[record.length];
+      segment.get(payload);
+      return decode(payload);
+   }
+
+   /**
+    * Moves the checkpoint to the next batch to replay and deletes the segments before it.
+    */
+   private void commit() {
+      long segment = pending.isEmpty() ? writeSegment : pending.peekFirst().segment;
+      long offset = pending.isEmpty() ? writeOffset : pending.peekFirst().offset;
+      checkpoint.putLong(0, segment);
+      checkpoint.putLong(8, offset);
+      if (sync) {
+         checkpoint.force();
+      }
+      for (Iterator<Long> ids = segments.keySet().iterator(); ids.hasNext();) {
+         long id = ids.next();
+         if (id >= segment) {
+            break;
+         }
+         ids.remove();
+         segmentFile(id).delete();
+      }
+   }
+
+   /**
+    * Reads the records after the checkpoint back into the pending batches. A record that is incomplete or fails its
+    * CRC ends its segment.
+    */
+   private void recover(long checkpointSegment, long checkpointOffset) throws IOException {
+      String[] names = directory.list(new FilenameFilter() {
+         @Override
+         public boolean accept(File dir, String name) {
+            return name.endsWith(SEGMENT_SUFFIX);
+         }
+      });
+      Arrays.sort(names);
+
+      writeSegment = checkpointSegment;
+      writeOffset = (int) checkpointOffset;
+      for (String name : names) {
+         long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+         if (id < checkpointSegment) {
+            segmentFile(id).delete();
+            continue;
+         }
+         MappedByteBuffer segment = map(segmentFile(id), segmentBytes);
+         segments.put(id, segment);
+         writeSegment = id;
+         writeOffset = scan(id, segment, id == checkpointSegment ? (int) checkpointOffset : 0);
+      }
+      if (!segments.containsKey(writeSegment)) {
+         segments.put(writeSegment, map(segmentFile(writeSegment), segmentBytes));
+      }
+   }
+
+   private int scan(long id, MappedByteBuffer segment, int from) {
+      int offset = from;
+      while (offset + HEADER_BYTES <= segment.capacity()) {
+         int length = segment.getInt(offset);
+         if (length <= 0 || offset + HEADER_BYTES + length > segment.capacity()) {
+            break;
+         }
+         ByteBuffer body = segment.duplicate();
+         body.position(offset + HEADER_BYTES);
+         byte[] payload = new byte[length];
+         body.get(payload);
+         CRC32 crc = new CRC32();
+         crc.update(payload);
+         if (segment.getInt(offset + 4) != (int) crc.getValue()) {
+            break;
+         }
+         int messages = ByteBuffer.wrap(payload).getInt();
+         pending.addLast(new Record(id, offset, length, messages, segment.getLong(offset + 8)));
+         pendingMessages += messages;
+         offset += HEADER_BYTES + length;
+      }
+      return offset;
+   }
+
+   private File segmentFile(long id) {
+      return new File(directory, String.format("%020d%s", id, SEGMENT_SUFFIX));
+   }
+
+   private static MappedByteBuffer map(File file, int size) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+         // the mapping stays valid after the channel is closed
+         return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      }
+      finally {
+         raf.close();
+      }
+   }
+
+   private static byte[] encode(List<CreateMessage> batch) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(batch.size());
+      for (CreateMessage message : batch) {
+         out.writeInt(message.getTTL());
+         Optional<ByteBuffer> rawBody = message.getRawBody();
+         byte[] body;
+         if (rawBody.isPresent()) {
+            body = new byte[rawBody.get().remaining()];
+            rawBody.get().duplicate().get(body);
+            out.writeByte(RAW_BODY);
+         }
+         else {
+            body = message.getBody().getBytes(Charsets.UTF_8);
+            out.writeByte(STRING_BODY);
+         }
+         out.writeInt(body.length);
+         out.write(body);
+      }
+      out.flush();
+      return bytes.toByteArray();
+   }
+
+   private static List<CreateMessage> decode(byte[] payload) {
+      try {
+         DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+         int count = in.readInt();
+         ImmutableList.Builder<CreateMessage> batch = ImmutableList.builder();
+         for (int i = 0; i < count; i++) {
+            CreateMessage.Builder message = CreateMessage.builder().ttl(in.readInt());
+            byte kind = in.readByte();
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            if (kind == RAW_BODY) {
+               message.rawBody(body);
+            }
+            else {
+               message.body(new String(body, Charsets.UTF_8));
+            }
+            batch.add(message.build());
+         }
+         return batch.build();
+      }
+      catch (IOException e) {
+         throw new IllegalStateException("corrupt spool record", e);
+      }
+   }
+
+   /**
+    * @return true if the request failed because the service is down rather than because it was rejected.
+    */
+   static boolean isUnavailable(Throwable e) {
+      return MarconiErrors.isRetryable(e);
+   }
+
+   @Override
+   public String toString() {
+      return MoreObjects.toStringHelper(this)
+            .add("queue", queue).add("directory", directory).add("stats", getStats()).toString();
+   }
+
+   private static class Record {
+      private final long segment;
+      private final int offset;
+      private final int length;
+      private final int messages;
+      private final long spooledAtMillis;
+
+      private Record(long segment, int offset, int length, int messages, long spooledAtMillis) {
+         this.segment = segment;
+         this.offset = offset;
+         this.length = length;
+         this.messages = messages;
+         this.spooledAtMillis = spooledAtMillis;
+      }
+   }
+
+   /**
+    * Depth, age and throughput counters of a {@link MessageSpool}.
+    */
+   public static class Stats {
+      private final int depth;
+      private final int depthMessages;
+      private final long ageMillis;
+      private final int segments;
+      private final long spooled;
+      private final long replayed;
+      private final long dropped;
+
+      protected Stats(int depth, int depthMessages, long ageMillis, int segments, long spooled, long replayed,
+            long dropped) {
+         this.depth = depth;
+         this.depthMessages = depthMessages;
+         this.ageMillis = ageMillis;
+         this.segments = segments;
+         this.spooled = spooled;
+         this.replayed = replayed;
+         this.dropped = dropped;
+      }
+
+      /**
+       * @return The number of batches waiting to be replayed.
+       */
+      public int getDepth() {
+         return depth;
+      }
+
+      /**
+       * @return The number of messages waiting to be replayed.
+       */
+      public int getDepthMessages() {
+         return depthMessages;
+      }
+
+      /**
+       * @return How long the oldest batch waiting to be replayed has been spooled, in milliseconds.
+       */
+      public long getAgeMillis() {
+         return ageMillis;
+      }
+
+      /**
+       * @return The number of segment files on disk.
+       */
+      public int getSegments() {
+         return segments;
+      }
+
+      /**
+       * @return The number of messages spooled since the spool was opened.
+       */
+      public long getSpooled() {
+         return spooled;
+      }
+
+      /**
+       * @return The number of spooled messages created since the spool was opened.
+       */
+      public long getReplayed() {
+         return replayed;
+      }
+
+      /**
+       * @return The number of spooled messages the service rejected when they were replayed.
+       */
+      public long getDropped() {
+         return dropped;
+      }
+
+      @Override
+      public String toString() {
+         return MoreObjects.toStringHelper(this)
+               .add("depth", depth).add("depthMessages", depthMessages).add("ageMillis", ageMillis)
+               .add("segments", segments).add("spooled", spooled).add("replayed", replayed).add("dropped", dropped)
+               .toString();
+      }
+   }
+
+   public static Builder builder(MessageApi messageApi, QueueApi queueApi, String queue, File directory) {
+      return new Builder(messageApi, queueApi, queue, directory);
+   }
+
+   public static class Builder {
+      protected final MessageApi messageApi;
+      protected final QueueApi queueApi;
+      protected final String queue;
+      protected final File directory;
+      protected int segmentBytes = 16 * 1024 * 1024;
+      protected boolean sync = true;
+      protected double messagesPerSecond = 100;
+      protected long replayIntervalMillis = TimeUnit.SECONDS.toMillis(5);
+      protected ScheduledExecutorService scheduler;
+
+      protected Builder(MessageApi messageApi, QueueApi queueApi, String queue, File directory) {
+         this.messageApi = checkNotNull(messageApi, "messageApi");
+         this.queueApi = checkNotNull(queueApi, "queueApi");
+         this.queue = checkNotNull(queue, "queue");
+         this.directory = checkNotNull(directory, "directory");
+      }
+
+      /**
+       * The size of each segment file, which bounds the size of a spooled batch. Defaults to 16 MB.
+       */
+      public Builder segmentSize(int bytes) {
+         checkArgument(bytes >= 1024, "segments must be at least 1024 bytes");
+         this.segmentBytes = bytes;
+         return this;
+      }
+
+      /**
+       * Whether every spooled batch is forced to disk before {@link MessageSpool#send(List)} returns. Without it,
+       * spooled batches survive the process crashing but not the machine. Defaults to true.
+       */
+      public Builder sync(boolean sync) {
+         this.sync = sync;
+         return this;
+      }
+
+      /**
+       * The highest rate at which spooled messages are replayed. Defaults to 100 messages per second.
+       */
+      public Builder replayRate(double messagesPerSecond) {
+         checkArgument(messagesPerSecond > 0, "replayRate must be positive");
+         this.messagesPerSecond = messagesPerSecond;
+         return this;
+      }
+
+      /**
+       * How often to check whether the queue is available again while batches are spooled. Defaults to 5 seconds.
+       */
+      public Builder replayInterval(long interval, TimeUnit unit) {
+         checkArgument(interval > 0, "replayInterval must be positive");
+         this.replayIntervalMillis = unit.toMillis(interval);
+         return this;
+      }
+
+      /**
+       * The scheduler that replays spooled batches. It is not shut down when the spool is closed. Defaults to a
+       * dedicated daemon thread.
+       */
+      public Builder scheduler(ScheduledExecutorService scheduler) {
+         this.scheduler = checkNotNull(scheduler, "scheduler");
+         return this;
+      }
+
+      /**
+       * Opens the spool, recovering the batches spooled by a previous spool on the same directory.
+       *
+       * @throws IOException if the directory cannot be read or the segments cannot be mapped.
+       */
+      public MessageSpool build() throws IOException {
+         return new MessageSpool(this);
+      }
+   }
+}
@@ -0,0 +1,32 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.stats;
+
+import org.jclouds.javax.annotation.Nullable;
+import org.jclouds.openstack.marconi.v1.domain.QueueStats;
+
+/**
+ * Notified by a {@link QueueStatsMonitor} when the message counts of a queue cross one of its thresholds.
+ */
+public interface QueueStatsListener {
+   /**
+    * @param queue    Name of the queue.
+    * @param previous The stats the listeners were last notified with, or null the first time the queue is polled.
+    * @param current  The stats that crossed a threshold.
+    */
+   void onThresholdCrossed(String queue, @Nullable QueueStats previous, QueueStats current);
+}
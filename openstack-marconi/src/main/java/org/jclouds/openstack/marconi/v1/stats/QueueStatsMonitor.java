@@ -0,0 +1,356 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.stats;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jclouds.javax.annotation.Nullable;
+import org.jclouds.openstack.marconi.v1.domain.MessagesStats;
+import org.jclouds.openstack.marconi.v1.domain.QueueStats;
+import org.jclouds.openstack.marconi.v1.features.QueueApi;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Polls {@link QueueApi#getStats(String)} for a set of queues on a shared scheduler and keeps the latest
+ * {@link QueueStats} of each queue, so that any number of readers can look at them without calling the API.
+ * <p/>
+ * Every queue is polled every {@code interval}, give or take a random {@code jitter}, so that polls of many queues
+ * spread out instead of arriving at the same time. {@link QueueStatsListener Listeners} are only notified when the
+ * claimed, free or total message count of a queue moves across one of the configured thresholds.
+ * <p/>
+ * The scheduler only runs the timers. The polls themselves run on a separate bounded executor, so a slow
+ * {@code getStats} call delays the polls queued behind it rather than every timer of the monitor. Each queue has at
+ * most one poll waiting or running at a time.
+ */
+@Beta
+public class QueueStatsMonitor implements Closeable {
+
+   private final QueueApi api;
+   private final long intervalMillis;
+   private final long jitterMillis;
+   private final int[] thresholds;
+   private final ScheduledExecutorService scheduler;
+   private final boolean shutdownSchedulerOnClose;
+   private final ExecutorService executor;
+   private final boolean shutdownExecutorOnClose;
+   private final Random random = new Random();
+
+   private final ConcurrentMap<String, Poller> pollers = new ConcurrentHashMap<String, Poller>();
+   private final ConcurrentMap<String, QueueStats> latest = new ConcurrentHashMap<String, QueueStats>();
+   private final CopyOnWriteArrayList<QueueStatsListener> listeners = new CopyOnWriteArrayList<QueueStatsListener>();
+   private volatile boolean closed;
+
+   protected QueueStatsMonitor(Builder builder) {
+      this.api = builder.api;
+      this.intervalMillis = builder.intervalMillis;
+      this.jitterMillis = builder.jitterMillis;
+      this.thresholds = builder.thresholds;
+      if (builder.scheduler != null) {
+         this.scheduler = builder.scheduler;
+         this.shutdownSchedulerOnClose = false;
+      }
+      else {
+         this.scheduler = Executors.newScheduledThreadPool(1, new ThreadFactoryBuilder()
+               .setNameFormat("marconi-stats-%d").setDaemon(true).build());
+         this.shutdownSchedulerOnClose = true;
+      }
+      if (builder.executor != null) {
+         this.executor = builder.executor;
+         this.shutdownExecutorOnClose = false;
+      }
+      else {
+         this.executor = Executors.newFixedThreadPool(builder.maxConcurrentPolls, new ThreadFactoryBuilder()
+               .setNameFormat("marconi-stats-poll-%d").setDaemon(true).build());
+         this.shutdownExecutorOnClose = true;
+      }
+   }
+
+   /**
+    * Starts polling a queue. The first poll happens after a random delay of up to one interval.
+    */
+   public void watch(String queue) {
+      checkNotNull(queue, "queue");
+      Poller poller = new Poller(queue);
+      if (!closed && pollers.putIfAbsent(queue, poller) == null) {
+         poller.schedule(nextLong(intervalMillis));
+      }
+   }
+
+   /**
+    * Stops polling a queue and forgets its stats.
+    */
+   public void unwatch(String queue) {
+      Poller poller = pollers.remove(checkNotNull(queue, "queue"));
+      if (poller != null) {
+         poller.cancel();
+      }
+      latest.remove(queue);
+   }
+
+   /**
+    * @return The most recent stats of the queue, if it was polled successfully at least once.
+    */
+   public Optional<QueueStats> get(String queue) {
+      return Optional.fromNullable(latest.get(checkNotNull(queue, "queue")));
+   }
+
+   /**
+    * @return The most recent stats of every watched queue that was polled successfully at least once.
+    */
+   public Map<String, QueueStats> getAll() {
+      return ImmutableMap.copyOf(latest);
+   }
+
+   public void addListener(QueueStatsListener listener) {
+      listeners.add(checkNotNull(listener, "listener"));
+   }
+
+   public void removeListener(QueueStatsListener listener) {
+      listeners.remove(listener);
+   }
+
+   @Override
+   public void close() {
+      closed = true;
+      for (Poller poller : pollers.values()) {
+         poller.cancel();
+      }
+      pollers.clear();
+      if (shutdownSchedulerOnClose) {
+         scheduler.shutdownNow();
+      }
+      if (shutdownExecutorOnClose) {
+         executor.shutdownNow();
+      }
+   }
+
+   /**
+    * @return Whether the counts moved into a different band between two consecutive thresholds.
+    */
+   boolean crossedThreshold(@Nullable QueueStats previous, QueueStats current) {
+      if (previous == null) {
+         return true;
+      }
+      MessagesStats before = previous.getMessagesStats();
+      MessagesStats after = current.getMessagesStats();
+      return band(before.getClaimed()) != band(after.getClaimed())
+            || band(before.getFree()) != band(after.getFree())
+            || band(before.getTotal()) != band(after.getTotal());
+   }
+
+   /**
+    * @return The number of thresholds at or below the count.
+    */
+   private int band(int count) {
+      int index = Arrays.binarySearch(thresholds, count);
+      return index >= 0 ? index + 1 : -(index + 1);
+   }
+
+   private long nextDelayMillis() {
+      if (jitterMillis == 0) {
+         return intervalMillis;
+      }
+      return Math.max(0, intervalMillis - jitterMillis + nextLong(2 * jitterMillis + 1));
+   }
+
+   private long nextLong(long bound) {
+      if (bound <= 0) {
+         return 0;
+      }
+      synchronized (random) {
+         return (long) (random.nextDouble() * bound);
+      }
+   }
+
+   private class Poller implements Runnable {
+      private final String queue;
+      private volatile ScheduledFuture<?> next;
+      private volatile boolean cancelled;
+      private QueueStats notified;
+
+      private final Runnable submit = new Runnable() {
+         @Override
+         public void run() {
+            try {
+               executor.execute(Poller.this);
+            }
+            catch (RejectedExecutionException e) {
+               // skip this poll and try again on the next one
+               schedule(nextDelayMillis());
+            }
+         }
+      };
+
+      private Poller(String queue) {
+         this.queue = queue;
+      }
+
+      private synchronized void schedule(long delayMillis) {
+         if (!cancelled) {
+            next = scheduler.schedule(submit, delayMillis, TimeUnit.MILLISECONDS);
+         }
+      }
+
+      private synchronized void cancel() {
+         cancelled = true;
+         if (next != null) {
+            next.cancel(false);
+         }
+      }
+
+      @Override
+      public void run() {
+         try {
+            QueueStats current = api.getStats(queue);
+            if (current != null && !cancelled) {
+               latest.put(queue, current);
+               if (crossedThreshold(notified, current)) {
+                  notifyListeners(notified, current);
+                  notified = current;
+               }
+            }
+         }
+         catch (RuntimeException e) {
+            // keep the last known stats and try again on the next poll
+         }
+         finally {
+            schedule(nextDelayMillis());
+         }
+      }
+
+      private void notifyListeners(@Nullable QueueStats previous, QueueStats current) {
+         for (QueueStatsListener listener : listeners) {
+            try {
+               listener.onThresholdCrossed(queue, previous, current);
+            }
+            catch (RuntimeException e) {
+               // a failing listener must not stop the others or the polling
+            }
+         }
+      }
+   }
+
+   @Override
+   public String toString() {
+      return MoreObjects.toStringHelper(this)
+            .add("queues", pollers.size()).add("intervalMillis", intervalMillis)
+            .add("thresholds", Arrays.toString(thresholds)).toString();
+   }
+
+   public static Builder builder(QueueApi api) {
+      return new Builder(api);
+   }
+
+   public static class Builder {
+      protected final QueueApi api;
+      protected long intervalMillis = 5000;
+      protected long jitterMillis = 500;
+      protected int[] thresholds = { 1 };
+      protected int maxConcurrentPolls = 4;
+      protected ScheduledExecutorService scheduler;
+      protected ExecutorService executor;
+
+      protected Builder(QueueApi api) {
+         this.api = checkNotNull(api, "api");
+      }
+
+      /**
+       * How often each queue is polled. Defaults to 5 seconds.
+       */
+      public Builder interval(long interval, TimeUnit unit) {
+         checkArgument(interval > 0, "interval must be positive");
+         this.intervalMillis = unit.toMillis(interval);
+         return this;
+      }
+
+      /**
+       * The most each poll is moved earlier or later at random. Defaults to 500 milliseconds.
+       */
+      public Builder jitter(long jitter, TimeUnit unit) {
+         checkArgument(jitter >= 0, "jitter must not be negative");
+         this.jitterMillis = unit.toMillis(jitter);
+         return this;
+      }
+
+      /**
+       * The message counts at which listeners are notified. Defaults to 1, so listeners learn when a queue becomes
+       * empty or non-empty.
+       */
+      public Builder thresholds(int... thresholds) {
+         checkArgument(thresholds.length > 0, "at least one threshold is required");
+         int[] sorted = Ints.toArray(ImmutableSortedSet.copyOf(Ints.asList(thresholds)));
+         checkArgument(sorted[0] >= 0, "thresholds must not be negative");
+         this.thresholds = sorted;
+         return this;
+      }
+
+      /**
+       * The most polls running at once on the default executor. Polls of further queues wait for a thread. Defaults
+       * to 4.
+       */
+      public Builder maxConcurrentPolls(int maxConcurrentPolls) {
+         checkArgument(maxConcurrentPolls > 0, "maxConcurrentPolls must be positive");
+         this.maxConcurrentPolls = maxConcurrentPolls;
+         return this;
+      }
+
+      /**
+       * The scheduler that times the polls. It is not shut down when the monitor is closed. Defaults to a dedicated
+       * daemon thread.
+       */
+      public Builder scheduler(ScheduledExecutorService scheduler) {
+         this.scheduler = checkNotNull(scheduler, "scheduler");
+         return this;
+      }
+
+      /**
+       * The executor that runs the polls. Its pool size bounds the number of {@code getStats} calls in flight, and a
+       * poll it rejects is skipped. It is not shut down when the monitor is closed. Defaults to a fixed pool of
+       * {@link #maxConcurrentPolls(int)} daemon threads.
+       */
+      public Builder executor(ExecutorService executor) {
+         this.executor = checkNotNull(executor, "executor");
+         return this;
+      }
+
+      public QueueStatsMonitor build() {
+         checkArgument(jitterMillis < intervalMillis, "jitter must be smaller than the interval");
+         return new QueueStatsMonitor(this);
+      }
+   }
+}
@@ -0,0 +1,192 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.worker;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.openstack.marconi.v1.domain.Claim;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.MoreObjects;
+
+/**
+ * Chooses the {@code limit} and {@code ttl} of the next claim of a {@link ClaimWorkerPool} from how long previous
+ * claims took to process.
+ * <p/>
+ * After every claim the pool reports the {@link Claim} with its {@link Claim#getTTL() ttl} and its
+ * {@link Claim#getAge() age} when the last message was done, together with the number of messages processed. From
+ * these the sizer keeps a moving average of the time a message takes. The limit is the number of messages that can be
+ * processed within the target batch time, so fast handlers claim up to 20 messages per round trip and slow handlers
+ * claim few enough that a crashed worker does not hold many messages. The ttl is set so that the batch takes the
+ * target fraction of it, within the 60 to 43200 seconds the API accepts, so claims rarely need renewing.
+ */
+@Beta
+public class AdaptiveClaimSizer {
+   static final int MIN_TTL = 60;
+   static final int MAX_TTL = 43200;
+   static final int MAX_LIMIT = 20;
+
+   private final double targetBatchSeconds;
+   private final double targetUtilization;
+   private final double smoothing;
+   private final int maxLimit;
+
+   private double secondsPerMessage;
+   private boolean measured;
+   private int limit;
+   private int ttl;
+
+   protected AdaptiveClaimSizer(Builder builder) {
+      this.targetBatchSeconds = builder.targetBatchMillis / 1000.0;
+      this.targetUtilization = builder.targetUtilization;
+      this.smoothing = builder.smoothing;
+      this.maxLimit = builder.maxLimit;
+      this.limit = Math.min(builder.initialLimit, maxLimit);
+      this.ttl = builder.initialTtl;
+   }
+
+   /**
+    * @return The limit to claim with next.
+    */
+   public synchronized int getLimit() {
+      return limit;
+   }
+
+   /**
+    * @return The ttl to claim with next, in seconds.
+    */
+   public synchronized int getTtl() {
+      return ttl;
+   }
+
+   /**
+    * @return The moving average of the time a message takes to process, or 0 before the first claim.
+    */
+   public synchronized double getSecondsPerMessage() {
+      return secondsPerMessage;
+   }
+
+   /**
+    * Adjusts the limit and ttl after a claim was processed.
+    *
+    * @param claim       The claim, with the ttl it was made with and its age once its messages were processed.
+    * @param processed   The number of messages processed, successfully or not.
+    * @param handleNanos The time spent in the handler for those messages.
+    */
+   public synchronized void record(Claim claim, int processed, long handleNanos) {
+      checkNotNull(claim, "claim");
+      if (processed <= 0) {
+         return;
+      }
+      // the age also covers claiming, renewing and deleting, and is what the server holds the ttl against
+      double seconds = Math.max(handleNanos / (double) TimeUnit.SECONDS.toNanos(1), claim.getAge());
+      double sample = seconds / processed;
+      if (claim.getAge() >= claim.getTTL()) {
+         // the claim outlived its ttl and only survived by renewal; react at once rather than smoothing
+         secondsPerMessage = Math.max(secondsPerMessage, sample);
+      }
+      secondsPerMessage = measured ? secondsPerMessage + smoothing * (sample - secondsPerMessage) : sample;
+      measured = true;
+
+      if (secondsPerMessage <= 0) {
+         limit = maxLimit;
+      }
+      else {
+         limit = (int) Math.max(1, Math.min(maxLimit, Math.floor(targetBatchSeconds / secondsPerMessage)));
+      }
+      double batchSeconds = limit * secondsPerMessage / targetUtilization;
+      ttl = (int) Math.max(MIN_TTL, Math.min(MAX_TTL, Math.ceil(batchSeconds)));
+   }
+
+   @Override
+   public synchronized String toString() {
+      return MoreObjects.toStringHelper(this)
+            .add("limit", limit).add("ttl", ttl).add("secondsPerMessage", secondsPerMessage).toString();
+   }
+
+   public static Builder builder() {
+      return new Builder();
+   }
+
+   public static class Builder {
+      protected long targetBatchMillis = TimeUnit.MINUTES.toMillis(1);
+      protected double targetUtilization = 0.5;
+      protected double smoothing = 0.3;
+      protected int maxLimit = MAX_LIMIT;
+      protected int initialLimit = 10;
+      protected int initialTtl = 300;
+
+      protected Builder() {
+      }
+
+      /**
+       * How long processing one claim should take at most. A claim holds its messages from other workers, so this
+       * bounds how long messages wait when a worker dies. Defaults to 1 minute.
+       */
+      public Builder targetBatch(long time, TimeUnit unit) {
+         checkArgument(time > 0, "targetBatch must be positive");
+         this.targetBatchMillis = unit.toMillis(time);
+         return this;
+      }
+
+      /**
+       * The fraction of the ttl a claim should take to process, leaving the rest as slack for slower messages.
+       * Defaults to 0.5.
+       */
+      public Builder targetUtilization(double targetUtilization) {
+         checkArgument(targetUtilization > 0 && targetUtilization <= 1, "targetUtilization must be in (0, 1]");
+         this.targetUtilization = targetUtilization;
+         return this;
+      }
+
+      /**
+       * The weight of the latest claim in the moving average of the time per message. Defaults to 0.3.
+       */
+      public Builder smoothing(double smoothing) {
+         checkArgument(smoothing > 0 && smoothing <= 1, "smoothing must be in (0, 1]");
+         this.smoothing = smoothing;
+         return this;
+      }
+
+      /**
+       * The largest limit to claim with. Defaults to 20, the most the API allows.
+       */
+      public Builder maxLimit(int maxLimit) {
+         checkArgument(maxLimit > 0 && maxLimit <= MAX_LIMIT, "maxLimit must be between 1 and 20");
+         this.maxLimit = maxLimit;
+         return this;
+      }
+
+      /**
+       * The limit and ttl of the first claim, before any claim was measured. Default to 10 messages and 300 seconds.
+       */
+      public Builder initial(int limit, int ttl) {
+         checkArgument(limit > 0 && limit <= MAX_LIMIT, "limit must be between 1 and 20");
+         checkArgument(ttl >= MIN_TTL && ttl <= MAX_TTL, "ttl must be between 60 and 43200 seconds");
+         this.initialLimit = limit;
+         this.initialTtl = ttl;
+         return this;
+      }
+
+      public AdaptiveClaimSizer build() {
+         return new AdaptiveClaimSizer(this);
+      }
+   }
+}
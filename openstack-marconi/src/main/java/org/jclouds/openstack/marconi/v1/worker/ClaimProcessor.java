@@ -0,0 +1,273 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.worker;
+
+import org.jclouds.openstack.marconi.v1.codec.BodyEnvelope;
+import org.jclouds.openstack.marconi.v1.dedup.DedupIndex;
+import org.jclouds.openstack.marconi.v1.domain.Claim;
+import org.jclouds.openstack.marconi.v1.domain.Message;
+import org.jclouds.openstack.marconi.v1.features.ClaimApi;
+import org.jclouds.openstack.marconi.v1.features.MessageApi;
+import org.jclouds.openstack.marconi.v1.handlers.MarconiErrors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Processes claimed batches for {@link ClaimWorkerPool} and {@link FairClaimScheduler}: hands every message to the
+ * handler, keeps the claim alive while it does, deletes the acknowledged messages and releases the claim if the batch
+ * was not finished.
+ * <p/>
+ * Renewals are timed from the {@link Claim#getAge() age} and {@link Claim#getTTL() ttl} the server reports for the
+ * claim, and a renewal that fails is retried until the claim expires. Once a claim is lost the rest of its batch is
+ * left to whoever claims it next.
+ */
+class ClaimProcessor {
+   private static final long RENEWAL_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+   private final BodyEnvelope envelope;
+   private final DedupIndex dedup;
+   private final AdaptiveClaimSizer sizer;
+   private final double renewAt;
+   private final ScheduledExecutorService scheduler;
+
+   final AtomicLong claims = new AtomicLong();
+   final AtomicLong claimed = new AtomicLong();
+   final AtomicLong acked = new AtomicLong();
+   final AtomicLong failed = new AtomicLong();
+   final AtomicLong duplicates = new AtomicLong();
+   final AtomicLong renewals = new AtomicLong();
+   final AtomicLong lostClaims = new AtomicLong();
+   final AtomicLong handleNanos = new AtomicLong();
+   final AtomicLong maxHandleNanos = new AtomicLong();
+
+   private volatile boolean stopped;
+
+   ClaimProcessor(BodyEnvelope envelope, DedupIndex dedup, AdaptiveClaimSizer sizer, double renewAt,
+         ScheduledExecutorService scheduler) {
+      this.envelope = envelope;
+      this.dedup = dedup;
+      this.sizer = sizer;
+      this.renewAt = renewAt;
+      this.scheduler = scheduler;
+   }
+
+   /**
+    * Stops handling messages. Batches being processed are cut short, and their claims released.
+    */
+   void stop() {
+      stopped = true;
+   }
+
+   /**
+    * @return How long to wait before renewing a claim, leaving {@code 1 - renewAt} of its remaining lifetime as
+    *         slack.
+    */
+   long renewDelayMillis(Claim claim) {
+      long remainingMillis = TimeUnit.SECONDS.toMillis(Math.max(0, claim.getTTL() - claim.getAge()));
+      return (long) (remainingMillis * renewAt);
+   }
+
+   /**
+    * @param messages  A non-empty batch returned by {@link ClaimApi#claim(int, int, int)}.
+    * @param claimTtl  The ttl the batch was claimed with.
+    * @param claimedAt The {@link System#nanoTime()} before the claim request was sent.
+    */
+   void process(ClaimApi claimApi, MessageApi messageApi, MessageHandler handler, List<Message> messages,
+         int claimTtl, long claimedAt) {
+      String claimId = messages.get(0).getClaimId().get();
+      Renewal renewal = new Renewal(claimApi, claimId, claimTtl);
+      long batchHandleNanos = 0;
+      int processed = 0;
+      claims.incrementAndGet();
+      claimed.addAndGet(messages.size());
+
+      List<String> ackedIds = new ArrayList<String>(messages.size());
+      boolean finished = false;
+      try {
+         renewal.start(claimedAt);
+         for (Message message : messages) {
+            if (stopped || Thread.currentThread().isInterrupted() || renewal.isLost()) {
+               break;
+            }
+            if (dedup != null && dedup.contains(message.getId())) {
+               // handled before its claim expired, so only the delete is missing
+               ackedIds.add(message.getId());
+               duplicates.incrementAndGet();
+               continue;
+            }
+            long start = System.nanoTime();
+            try {
+               handler.handle(envelope == null ? message : envelope.decode(message));
+               if (dedup != null) {
+                  dedup.markHandled(message.getId());
+               }
+               ackedIds.add(message.getId());
+               acked.incrementAndGet();
+            }
+            catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               failed.incrementAndGet();
+            }
+            catch (Exception e) {
+               failed.incrementAndGet();
+            }
+            finally {
+               long nanos = System.nanoTime() - start;
+               recordLatency(nanos);
+               batchHandleNanos += nanos;
+               processed++;
+            }
+         }
+         finished = ackedIds.size() == messages.size();
+         if (sizer != null) {
+            sizer.record(Claim.builder().id(claimId).ttl(claimTtl).age(renewal.getAge()).build(), processed,
+                  batchHandleNanos);
+         }
+      }
+      finally {
+         renewal.cancel();
+         if (!ackedIds.isEmpty()) {
+            try {
+               messageApi.delete(ackedIds);
+            }
+            catch (RuntimeException e) {
+               // the messages are redelivered when the claim expires
+            }
+         }
+         if (!finished && !renewal.isLost()) {
+            try {
+               claimApi.release(claimId);
+            }
+            catch (RuntimeException e) {
+               // the claim expires on its own
+            }
+         }
+      }
+   }
+
+   private void recordLatency(long nanos) {
+      handleNanos.addAndGet(nanos);
+      long max = maxHandleNanos.get();
+      while (nanos > max && !maxHandleNanos.compareAndSet(max, nanos)) {
+         max = maxHandleNanos.get();
+      }
+   }
+
+   /**
+    * Keeps a claim alive while its messages are processed.
+    */
+   private class Renewal implements Runnable {
+      private final ClaimApi claimApi;
+      private final String claimId;
+      private final int claimTtl;
+      private volatile long expiresAt;
+      private volatile int serverAge;
+      private volatile long agedFrom;
+      private volatile ScheduledFuture<?> next;
+      private volatile boolean cancelled;
+      private volatile boolean lost;
+
+      private Renewal(ClaimApi claimApi, String claimId, int claimTtl) {
+         this.claimApi = claimApi;
+         this.claimId = claimId;
+         this.claimTtl = claimTtl;
+      }
+
+      /**
+       * Reads the claim back to learn how much of its ttl the server has already counted. If it cannot be read the
+       * claim is assumed to have started when it was requested.
+       */
+      private void start(long claimedAt) {
+         long readAt = System.nanoTime();
+         Claim claim;
+         try {
+            claim = claimApi.get(claimId);
+            if (claim == null) {
+               markLost();
+               return;
+            }
+         }
+         catch (RuntimeException e) {
+            claim = Claim.builder().id(claimId).ttl(claimTtl).age(0).build();
+            readAt = claimedAt;
+         }
+         serverAge = claim.getAge();
+         agedFrom = readAt;
+         expiresAt = readAt + TimeUnit.SECONDS.toNanos(Math.max(0, claim.getTTL() - claim.getAge()));
+         schedule(TimeUnit.MILLISECONDS.toNanos(renewDelayMillis(claim)) - (System.nanoTime() - readAt));
+      }
+
+      /**
+       * @return The age of the claim in seconds, ignoring renewals: the age the server reported when the claim was
+       *         read back plus the time that passed locally since.
+       */
+      private int getAge() {
+         return serverAge + (int) TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - agedFrom);
+      }
+
+      private boolean isLost() {
+         return lost;
+      }
+
+      private synchronized void schedule(long delayNanos) {
+         if (!cancelled) {
+            next = scheduler.schedule(this, Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+         }
+      }
+
+      private synchronized void cancel() {
+         cancelled = true;
+         if (next != null) {
+            next.cancel(false);
+         }
+      }
+
+      private void markLost() {
+         lost = true;
+         lostClaims.incrementAndGet();
+      }
+
+      @Override
+      public void run() {
+         if (cancelled) {
+            return;
+         }
+         long renewedAt = System.nanoTime();
+         try {
+            claimApi.update(claimId, claimTtl);
+            // the server resets the age of a renewed claim, no earlier than the request was sent
+            expiresAt = renewedAt + TimeUnit.SECONDS.toNanos(claimTtl);
+            renewals.incrementAndGet();
+            schedule((long) ((expiresAt - System.nanoTime()) * renewAt));
+         }
+         catch (RuntimeException e) {
+            long remaining = expiresAt - System.nanoTime();
+            if (MarconiErrors.isRetryable(e) && remaining > 0) {
+               schedule(Math.min(RENEWAL_RETRY_NANOS, remaining / 2));
+            }
+            else {
+               markLost();
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,534 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.worker;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jclouds.openstack.marconi.v1.codec.BodyEnvelope;
+import org.jclouds.openstack.marconi.v1.dedup.DedupIndex;
+import org.jclouds.openstack.marconi.v1.domain.Claim;
+import org.jclouds.openstack.marconi.v1.domain.Message;
+import org.jclouds.openstack.marconi.v1.features.ClaimApi;
+import org.jclouds.openstack.marconi.v1.features.MessageApi;
+import org.jclouds.openstack.marconi.v1.handlers.MarconiErrors;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Runs a number of claim loops against one queue. Each loop claims a batch of messages with
+ * {@link ClaimApi#claim(int, int, int)}, passes them one by one to a {@link MessageHandler}, and deletes the
+ * acknowledged ones with a single {@link MessageApi#delete(Iterable)} call.
+ * <p/>
+ * While a batch is being processed its claim is renewed with {@link ClaimApi#update(String, int)} before the claim
+ * runs out, based on the {@link Claim#getTTL() ttl} and {@link Claim#getAge() age} the server reports for the claim.
+ * A renewal that fails is retried until the claim expires; once it has, the rest of the batch is left to whoever
+ * claims it next. Messages whose handler failed are made available to other workers by releasing the claim with
+ * {@link ClaimApi#release(String)}, and so is any claim still being processed when the pool is closed.
+ * <p/>
+ * A claim that fails because the service is unavailable is retried after the idle wait. Any other failure stops the
+ * loops and is reported by {@link #getFailure()}.
+ */
+@Beta
+public class ClaimWorkerPool implements Closeable {
+
+   private final ClaimApi claimApi;
+   private final MessageApi messageApi;
+   private final MessageHandler handler;
+   private final AdaptiveClaimSizer sizer;
+   private final int workers;
+   private final int ttl;
+   private final int grace;
+   private final int limit;
+   private final long minIdleMillis;
+   private final long maxIdleMillis;
+   private final ExecutorService executor;
+   private final boolean shutdownExecutorOnClose;
+   private final ScheduledExecutorService scheduler;
+   private final boolean shutdownSchedulerOnClose;
+
+   private final ClaimProcessor processor;
+   private final AtomicLong claimErrors = new AtomicLong();
+   private final long startNanos = System.nanoTime();
+
+   private final List<Future<?>> loops = new ArrayList<Future<?>>();
+   private final CountDownLatch closing = new CountDownLatch(1);
+   private volatile boolean running;
+   private volatile boolean closed;
+   private volatile RuntimeException failure;
+
+   protected ClaimWorkerPool(Builder builder) {
+      this.claimApi = builder.claimApi;
+      this.messageApi = builder.messageApi;
+      this.handler = checkNotNull(builder.handler, "handler");
+      this.sizer = builder.sizer;
+      this.workers = builder.workers;
+      this.ttl = builder.ttl;
+      this.grace = builder.grace;
+      this.limit = builder.limit;
+      this.minIdleMillis = builder.minIdleMillis;
+      this.maxIdleMillis = builder.maxIdleMillis;
+      if (builder.executor != null) {
+         this.executor = builder.executor;
+         this.shutdownExecutorOnClose = false;
+      }
+      else {
+         this.executor = Executors.newFixedThreadPool(workers, new ThreadFactoryBuilder()
+               .setNameFormat("marconi-worker-%d").setDaemon(true).build());
+         this.shutdownExecutorOnClose = true;
+      }
+      if (builder.scheduler != null) {
+         this.scheduler = builder.scheduler;
+         this.shutdownSchedulerOnClose = false;
+      }
+      else {
+         this.scheduler = Executors.newScheduledThreadPool(1, new ThreadFactoryBuilder()
+               .setNameFormat("marconi-claim-renewal-%d").setDaemon(true).build());
+         this.shutdownSchedulerOnClose = true;
+      }
+      this.processor = new ClaimProcessor(builder.envelope, builder.dedup, sizer, builder.renewAt, scheduler);
+   }
+
+   /**
+    * Starts the claim loops.
+    */
+   public synchronized ClaimWorkerPool start() {
+      checkState(!running && !closed, "pool was already started");
+      running = true;
+      for (int i = 0; i < workers; i++) {
+         loops.add(executor.submit(new ClaimLoop()));
+      }
+      return this;
+   }
+
+   /**
+    * Stops claiming messages and waits up to the given time for the loops to finish the message they are handling.
+    * Claims that were not completely processed are released.
+    *
+    * @return true if every loop stopped in time.
+    */
+   public boolean close(long timeout, TimeUnit unit) throws InterruptedException {
+      synchronized (this) {
+         if (closed) {
+            return true;
+         }
+         closed = true;
+         running = false;
+      }
+      processor.stop();
+      closing.countDown();
+
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      boolean stopped = true;
+      for (Future<?> loop : loops) {
+         try {
+            loop.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+         }
+         catch (TimeoutException e) {
+            loop.cancel(true);
+            stopped = false;
+         }
+         catch (CancellationException e) {
+            stopped = false;
+         }
+         catch (ExecutionException e) {
+            // the loop already finished with an error
+         }
+      }
+      if (shutdownExecutorOnClose) {
+         executor.shutdownNow();
+      }
+      if (shutdownSchedulerOnClose) {
+         scheduler.shutdownNow();
+      }
+      return stopped;
+   }
+
+   /**
+    * Stops the pool, waiting up to one claim ttl for the loops to finish.
+    */
+   @Override
+   public void close() {
+      try {
+         close(ttl, TimeUnit.SECONDS);
+      }
+      catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * @return A snapshot of the throughput and latency of this pool.
+    */
+   public Stats getStats() {
+      return new Stats(processor.claims.get(), processor.claimed.get(), processor.acked.get(),
+            processor.failed.get(), processor.duplicates.get(), processor.renewals.get(), processor.lostClaims.get(),
+            claimErrors.get(), processor.handleNanos.get(), processor.maxHandleNanos.get(),
+            System.nanoTime() - startNanos);
+   }
+
+   /**
+    * @return The error that stopped the claim loops, if a claim was rejected by the service. Errors that may go away
+    *         when retried, such as a 5xx or a failed connection, are only counted in {@link Stats#getClaimErrors()}.
+    */
+   public Optional<RuntimeException> getFailure() {
+      return Optional.fromNullable(failure);
+   }
+
+   private synchronized void fail(RuntimeException e) {
+      if (failure == null) {
+         failure = e;
+      }
+      running = false;
+      processor.stop();
+      closing.countDown();
+   }
+
+   /**
+    * @return How long to wait before renewing a claim, leaving {@code 1 - renewAt} of its remaining lifetime as
+    *         slack.
+    */
+   long renewDelayMillis(Claim claim) {
+      return processor.renewDelayMillis(claim);
+   }
+
+   private class ClaimLoop implements Runnable {
+      @Override
+      public void run() {
+         long idleMillis = minIdleMillis;
+
+         try {
+            while (running && !Thread.currentThread().isInterrupted()) {
+               int claimTtl = sizer != null ? sizer.getTtl() : ttl;
+               int claimLimit = sizer != null ? sizer.getLimit() : limit;
+               long claimedAt = System.nanoTime();
+               List<Message> messages;
+               try {
+                  messages = claimApi.claim(claimTtl, grace, claimLimit);
+               }
+               catch (RuntimeException e) {
+                  if (!MarconiErrors.isRetryable(e)) {
+                     // the queue is gone or the credentials were rejected, claiming again will not help
+                     fail(e);
+                     break;
+                  }
+                  claimErrors.incrementAndGet();
+                  messages = ImmutableList.of();
+               }
+
+               if (messages.isEmpty() || !messages.get(0).getClaimId().isPresent()) {
+                  closing.await(idleMillis, TimeUnit.MILLISECONDS);
+                  idleMillis = Math.min(idleMillis * 2, maxIdleMillis);
+                  continue;
+               }
+
+               idleMillis = minIdleMillis;
+               processor.process(claimApi, messageApi, handler, messages, claimTtl, claimedAt);
+            }
+         }
+         catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+
+   @Override
+   public String toString() {
+      return MoreObjects.toStringHelper(this)
+            .add("workers", workers).add("running", running).add("stats", getStats()).toString();
+   }
+
+   /**
+    * Throughput and latency counters of a {@link ClaimWorkerPool}.
+    */
+   public static class Stats {
+      private final long claims;
+      private final long claimed;
+      private final long acked;
+      private final long failed;
+      private final long duplicates;
+      private final long renewals;
+      private final long lostClaims;
+      private final long claimErrors;
+      private final long handleNanos;
+      private final long maxHandleNanos;
+      private final long elapsedNanos;
+
+      protected Stats(long claims, long claimed, long acked, long failed, long duplicates, long renewals,
+            long lostClaims, long claimErrors, long handleNanos, long maxHandleNanos, long elapsedNanos) {
+         this.claims = claims;
+         this.claimed = claimed;
+         this.acked = acked;
+         this.failed = failed;
+         this.duplicates = duplicates;
+         this.renewals = renewals;
+         this.lostClaims = lostClaims;
+         this.claimErrors = claimErrors;
+         this.handleNanos = handleNanos;
+         this.maxHandleNanos = maxHandleNanos;
+         this.elapsedNanos = elapsedNanos;
+      }
+
+      /**
+       * @return The number of non-empty claims made.
+       */
+      public long getClaims() {
+         return claims;
+      }
+
+      /**
+       * @return The number of messages claimed.
+       */
+      public long getClaimed() {
+         return claimed;
+      }
+
+      /**
+       * @return The number of messages handled successfully.
+       */
+      public long getAcked() {
+         return acked;
+      }
+
+      /**
+       * @return The number of messages whose handler failed.
+       */
+      public long getFailed() {
+         return failed;
+      }
+
+      /**
+       * @return The number of redelivered messages that were deleted without handling them again.
+       */
+      public long getDuplicates() {
+         return duplicates;
+      }
+
+      /**
+       * @return The number of times a claim was renewed.
+       */
+      public long getRenewals() {
+         return renewals;
+      }
+
+      /**
+       * @return The number of claims that expired or could not be renewed before they did.
+       */
+      public long getLostClaims() {
+         return lostClaims;
+      }
+
+      /**
+       * @return The number of claim requests that failed with an error worth retrying.
+       */
+      public long getClaimErrors() {
+         return claimErrors;
+      }
+
+      /**
+       * @return Acknowledged messages per second since the pool was created.
+       */
+      public double getAckedPerSecond() {
+         return elapsedNanos == 0 ? 0 : acked * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+      }
+
+      /**
+       * @return The mean time spent in the handler per message, in milliseconds.
+       */
+      public double getMeanHandleMillis() {
+         long handled = acked + failed;
+         return handled == 0 ? 0 : handleNanos / (double) handled / TimeUnit.MILLISECONDS.toNanos(1);
+      }
+
+      /**
+       * @return The longest time spent in the handler for one message, in milliseconds.
+       */
+      public double getMaxHandleMillis() {
+         return maxHandleNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+      }
+
+      @Override
+      public String toString() {
+         return MoreObjects.toStringHelper(this)
+               .add("claims", claims).add("claimed", claimed).add("acked", acked).add("failed", failed)
+               .add("duplicates", duplicates).add("renewals", renewals).add("lostClaims", lostClaims)
+               .add("claimErrors", claimErrors).add("ackedPerSecond", getAckedPerSecond())
+               .add("meanHandleMillis", getMeanHandleMillis()).add("maxHandleMillis", getMaxHandleMillis()).toString();
+      }
+   }
+
+   public static Builder builder(ClaimApi claimApi, MessageApi messageApi) {
+      return new Builder(claimApi, messageApi);
+   }
+
+   public static class Builder {
+      protected final ClaimApi claimApi;
+      protected final MessageApi messageApi;
+      protected MessageHandler handler;
+      protected BodyEnvelope envelope;
+      protected DedupIndex dedup;
+      protected AdaptiveClaimSizer sizer;
+      protected int workers = 1;
+      protected int ttl = 300;
+      protected int grace = 60;
+      protected int limit = 10;
+      protected double renewAt = 0.5;
+      protected long minIdleMillis = 100;
+      protected long maxIdleMillis = 10000;
+      protected ExecutorService executor;
+      protected ScheduledExecutorService scheduler;
+
+      protected Builder(ClaimApi claimApi, MessageApi messageApi) {
+         this.claimApi = checkNotNull(claimApi, "claimApi");
+         this.messageApi = checkNotNull(messageApi, "messageApi");
+      }
+
+      /**
+       * The handler that processes every claimed message.
+       */
+      public Builder handler(MessageHandler handler) {
+         this.handler = checkNotNull(handler, "handler");
+         return this;
+      }
+
+      /**
+       * The number of claim loops run in parallel. Defaults to 1.
+       */
+      public Builder workers(int workers) {
+         checkArgument(workers > 0, "workers must be positive");
+         this.workers = workers;
+         return this;
+      }
+
+      /**
+       * @see ClaimApi#claim(int, int, int)
+       */
+      public Builder ttl(int ttl) {
+         checkArgument(ttl >= 60 && ttl <= 43200, "ttl must be between 60 and 43200 seconds");
+         this.ttl = ttl;
+         return this;
+      }
+
+      /**
+       * @see ClaimApi#claim(int, int, int)
+       */
+      public Builder grace(int grace) {
+         checkArgument(grace >= 60 && grace <= 43200, "grace must be between 60 and 43200 seconds");
+         this.grace = grace;
+         return this;
+      }
+
+      /**
+       * @see ClaimApi#claim(int, int, int)
+       */
+      public Builder limit(int limit) {
+         checkArgument(limit > 0 && limit <= 20, "limit must be between 1 and 20");
+         this.limit = limit;
+         return this;
+      }
+
+      /**
+       * Tunes the limit and ttl of every claim from the time previous claims took to process, instead of claiming
+       * with the fixed {@link #limit(int)} and {@link #ttl(int)}.
+       */
+      public Builder adaptive(AdaptiveClaimSizer sizer) {
+         this.sizer = checkNotNull(sizer, "sizer");
+         return this;
+      }
+
+      /**
+       * The fraction of the remaining claim lifetime after which the claim is renewed. Defaults to 0.5.
+       */
+      public Builder renewAt(double renewAt) {
+         checkArgument(renewAt > 0 && renewAt < 1, "renewAt must be between 0 and 1");
+         this.renewAt = renewAt;
+         return this;
+      }
+
+      /**
+       * How long a loop waits before claiming again after an empty claim or an error. The wait doubles after every
+       * consecutive empty claim up to {@code max}. Defaults to 100 milliseconds and 10 seconds.
+       */
+      public Builder idle(long min, long max, TimeUnit unit) {
+         long minMillis = unit.toMillis(min);
+         long maxMillis = unit.toMillis(max);
+         checkArgument(minMillis > 0 && maxMillis >= minMillis, "idle must satisfy 0 < min <= max milliseconds");
+         this.minIdleMillis = minMillis;
+         this.maxIdleMillis = maxMillis;
+         return this;
+      }
+
+      /**
+       * The executor that runs the claim loops. It needs at least as many threads as there are workers and is not
+       * shut down when the pool is closed. Defaults to a fixed pool of daemon threads.
+       */
+      public Builder executor(ExecutorService executor) {
+         this.executor = checkNotNull(executor, "executor");
+         return this;
+      }
+
+      /**
+       * The scheduler that renews claims. It is not shut down when the pool is closed. Defaults to a dedicated daemon
+       * thread.
+       */
+      public Builder scheduler(ScheduledExecutorService scheduler) {
+         this.scheduler = checkNotNull(scheduler, "scheduler");
+         return this;
+      }
+
+      /**
+       * Remembers the ids of handled messages. A message that is claimed again after it was handled, because its
+       * claim expired before it was deleted, is deleted without handling it again. By default every claimed message is
+       * handled.
+       */
+      public Builder dedup(DedupIndex dedup) {
+         this.dedup = checkNotNull(dedup, "dedup");
+         return this;
+      }
+
+      /**
+       * Decodes the bodies of messages sent through an envelope before they are handled. A message whose body cannot
+       * be decoded counts as failed. By default messages are handled as they are.
+       */
+      public Builder envelope(BodyEnvelope envelope) {
+         this.envelope = checkNotNull(envelope, "envelope");
+         return this;
+      }
+
+      public ClaimWorkerPool build() {
+         return new ClaimWorkerPool(this);
+      }
+   }
+}
@@ -0,0 +1,446 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.worker;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jclouds.javax.annotation.Nullable;
+import org.jclouds.openstack.marconi.v1.MarconiApi;
+import org.jclouds.openstack.marconi.v1.domain.Claim;
+import org.jclouds.openstack.marconi.v1.domain.Message;
+import org.jclouds.openstack.marconi.v1.features.ClaimApi;
+import org.jclouds.openstack.marconi.v1.features.MessageApi;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Turns many single message deletes into a few {@link MessageApi#delete(Iterable)} calls.
+ * <p/>
+ * Pending deletes are grouped by queue and claim. A group is sent when it reaches {@code maxIdsPerRequest} ids, or
+ * when {@code linger} has passed since the first delete was added, and is split into as many requests as needed to
+ * keep the {@code ids} query parameter under {@code maxIdsLength} characters.
+ * <p/>
+ * Deleting by ids does not check claims the way {@link MessageApi#deleteByClaim(String, String)} does. Unless
+ * {@code verifyClaims} is turned off, each claim is therefore read with {@link ClaimApi#get(String)} right before its
+ * messages are deleted. The delete of a message fails with an {@link IllegalStateException}, so the worker can roll
+ * back, if the claim has expired or no longer holds that message. This check is best-effort: a claim that expires
+ * between the check and the delete request goes unnoticed.
+ * <p/>
+ * The bulk delete reports one outcome per request, not per message, so every message of a request completes with the
+ * same result.
+ * <p/>
+ * Requests are sent from an executor of their own, so a slow delete or claim check never delays the linger timers.
+ */
+@Beta
+public class DeleteCoalescer implements Closeable {
+
+   private final MarconiApi api;
+   private final String region;
+   private final UUID clientId;
+   private final int maxIdsPerRequest;
+   private final int maxIdsLength;
+   private final long lingerMillis;
+   private final boolean verifyClaims;
+   private final ScheduledExecutorService scheduler;
+   private final boolean shutdownSchedulerOnClose;
+   private final ExecutorService executor;
+   private final boolean shutdownExecutorOnClose;
+
+   private final Object lock = new Object();
+   private Map<Group, List<Pending>> pending = new LinkedHashMap<Group, List<Pending>>();
+   private ScheduledFuture<?> lingerTask;
+   private boolean closed;
+
+   protected DeleteCoalescer(Builder builder) {
+      this.api = builder.api;
+      this.region = builder.region;
+      this.clientId = builder.clientId;
+      this.maxIdsPerRequest = builder.maxIdsPerRequest;
+      this.maxIdsLength = builder.maxIdsLength;
+      this.lingerMillis = builder.lingerMillis;
+      this.verifyClaims = builder.verifyClaims;
+      if (builder.scheduler != null) {
+         this.scheduler = builder.scheduler;
+         this.shutdownSchedulerOnClose = false;
+      }
+      else {
+         this.scheduler = Executors.newScheduledThreadPool(1, new ThreadFactoryBuilder()
+               .setNameFormat("marconi-delete-linger-%d").setDaemon(true).build());
+         this.shutdownSchedulerOnClose = true;
+      }
+      if (builder.executor != null) {
+         this.executor = builder.executor;
+         this.shutdownExecutorOnClose = false;
+      }
+      else {
+         this.executor = Executors.newFixedThreadPool(builder.maxInFlight, new ThreadFactoryBuilder()
+               .setNameFormat("marconi-delete-%d").setDaemon(true).build());
+         this.shutdownExecutorOnClose = true;
+      }
+   }
+
+   /**
+    * Queues a message for deletion.
+    *
+    * @param queue   Name of the queue.
+    * @param id      Id of the message to delete.
+    * @param claimId Claim the message was processed under, or null if it wasn't claimed.
+    * @return A future that completes with the result of the delete request the message was sent in, shared by every
+    *         message in that request: false if the queue was not found. It fails if the request failed, or if the
+    *         check before the request found that the claim expired or no longer holds the message.
+    */
+   public ListenableFuture<Boolean> delete(String queue, String id, @Nullable String claimId) {
+      Group group = new Group(checkNotNull(queue, "queue"), claimId);
+      Pending delete = new Pending(checkNotNull(id, "id"));
+      List<Pending> full = null;
+
+      synchronized (lock) {
+         checkState(!closed, "coalescer is closed");
+
+         List<Pending> deletes = pending.get(group);
+         if (deletes == null) {
+            deletes = new ArrayList<Pending>();
+            pending.put(group, deletes);
+         }
+         deletes.add(delete);
+
+         if (deletes.size() >= maxIdsPerRequest) {
+            full = pending.remove(group);
+         }
+         else if (lingerTask == null) {
+            try {
+               lingerTask = scheduler.schedule(new Runnable() {
+                  @Override
+                  public void run() {
+                     flush();
+                  }
+               }, lingerMillis, TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException e) {
+               // nothing would send this group later, so send it now
+               full = pending.remove(group);
+            }
+         }
+      }
+
+      if (full != null) {
+         submit(group, full);
+      }
+      return delete.result;
+   }
+
+   /**
+    * Sends all pending deletes right away.
+    */
+   public void flush() {
+      Map<Group, List<Pending>> ready;
+      synchronized (lock) {
+         ready = pending;
+         pending = new LinkedHashMap<Group, List<Pending>>();
+         if (lingerTask != null) {
+            lingerTask.cancel(false);
+            lingerTask = null;
+         }
+      }
+      for (Map.Entry<Group, List<Pending>> entry : ready.entrySet()) {
+         submit(entry.getKey(), entry.getValue());
+      }
+   }
+
+   /**
+    * Sends all pending deletes and stops accepting new ones.
+    */
+   @Override
+   public void close() {
+      synchronized (lock) {
+         if (closed) {
+            return;
+         }
+         closed = true;
+      }
+      flush();
+      if (shutdownSchedulerOnClose) {
+         scheduler.shutdown();
+      }
+      if (shutdownExecutorOnClose) {
+         executor.shutdown();
+      }
+   }
+
+   private void submit(final Group group, final List<Pending> deletes) {
+      try {
+         executor.execute(new Runnable() {
+            @Override
+            public void run() {
+               delete(group, deletes);
+            }
+         });
+      }
+      catch (RejectedExecutionException e) {
+         fail(deletes, e);
+      }
+   }
+
+   private void delete(Group group, List<Pending> deletes) {
+      if (verifyClaims && group.claimId != null) {
+         deletes = held(group, deletes);
+         if (deletes.isEmpty()) {
+            return;
+         }
+      }
+
+      for (List<Pending> chunk : chunk(deletes)) {
+         ImmutableList.Builder<String> ids = ImmutableList.builder();
+         for (Pending delete : chunk) {
+            ids.add(delete.id);
+         }
+         try {
+            boolean deleted = api.getMessageApi(region, clientId, group.queue).delete(ids.build());
+            for (Pending delete : chunk) {
+               delete.result.set(deleted);
+            }
+         }
+         catch (RuntimeException e) {
+            fail(chunk, e);
+         }
+      }
+   }
+
+   /**
+    * Fails the deletes of messages the claim no longer holds.
+    *
+    * @return The deletes of messages the claim still holds.
+    */
+   private List<Pending> held(Group group, List<Pending> deletes) {
+      Claim claim;
+      try {
+         claim = api.getClaimApi(region, clientId, group.queue).get(group.claimId);
+      }
+      catch (RuntimeException e) {
+         fail(deletes, e);
+         return ImmutableList.of();
+      }
+      if (claim == null) {
+         fail(deletes, new IllegalStateException("claim " + group.claimId + " expired before delete"));
+         return ImmutableList.of();
+      }
+
+      Set<String> claimed = new HashSet<String>();
+      for (Message message : claim.getMessages()) {
+         claimed.add(message.getId());
+      }
+      List<Pending> held = new ArrayList<Pending>(deletes.size());
+      for (Pending delete : deletes) {
+         if (claimed.contains(delete.id)) {
+            held.add(delete);
+         }
+         else {
+            delete.result.setException(new IllegalStateException("message " + delete.id + " is no longer held by claim "
+                  + group.claimId));
+         }
+      }
+      return held;
+   }
+
+   /**
+    * Splits deletes into requests of at most {@code maxIdsPerRequest} ids whose comma separated ids are at most
+    * {@code maxIdsLength} characters long. An id that is longer than that on its own gets a request to itself.
+    */
+   List<List<Pending>> chunk(List<Pending> deletes) {
+      List<List<Pending>> chunks = new ArrayList<List<Pending>>();
+      List<Pending> chunk = new ArrayList<Pending>();
+      int length = 0;
+      for (Pending delete : deletes) {
+         int added = chunk.isEmpty() ? delete.id.length() : delete.id.length() + 1;
+         if (!chunk.isEmpty() && (chunk.size() >= maxIdsPerRequest || length + added > maxIdsLength)) {
+            chunks.add(chunk);
+            chunk = new ArrayList<Pending>();
+            added = delete.id.length();
+            length = 0;
+         }
+         chunk.add(delete);
+         length += added;
+      }
+      if (!chunk.isEmpty()) {
+         chunks.add(chunk);
+      }
+      return chunks;
+   }
+
+   private static void fail(List<Pending> deletes, Throwable cause) {
+      for (Pending delete : deletes) {
+         delete.result.setException(cause);
+      }
+   }
+
+   private static final class Group {
+      private final String queue;
+      private final String claimId;
+
+      private Group(String queue, @Nullable String claimId) {
+         this.queue = queue;
+         this.claimId = claimId;
+      }
+
+      @Override
+      public int hashCode() {
+         return Objects.hashCode(queue, claimId);
+      }
+
+      @Override
+      public boolean equals(Object obj) {
+         if (this == obj) return true;
+         if (obj == null || getClass() != obj.getClass()) return false;
+         Group that = Group.class.cast(obj);
+         return Objects.equal(this.queue, that.queue) && Objects.equal(this.claimId, that.claimId);
+      }
+   }
+
+   static final class Pending {
+      private final String id;
+      private final SettableFuture<Boolean> result = SettableFuture.create();
+
+      Pending(String id) {
+         this.id = id;
+      }
+
+      String getId() {
+         return id;
+      }
+   }
+
+   @Override
+   public String toString() {
+      synchronized (lock) {
+         return MoreObjects.toStringHelper(this)
+               .add("region", region).add("groups", pending.size()).add("closed", closed).toString();
+      }
+   }
+
+   public static Builder builder(MarconiApi api, String region, UUID clientId) {
+      return new Builder(api, region, clientId);
+   }
+
+   public static class Builder {
+      protected final MarconiApi api;
+      protected final String region;
+      protected final UUID clientId;
+      protected int maxIdsPerRequest = 20;
+      protected int maxIdsLength = 2000;
+      protected long lingerMillis = 50;
+      protected boolean verifyClaims = true;
+      protected int maxInFlight = 4;
+      protected ScheduledExecutorService scheduler;
+      protected ExecutorService executor;
+
+      protected Builder(MarconiApi api, String region, UUID clientId) {
+         this.api = checkNotNull(api, "api");
+         this.region = checkNotNull(region, "region");
+         this.clientId = checkNotNull(clientId, "clientId");
+      }
+
+      /**
+       * The most ids deleted in one request. Defaults to 20, the default maximum for Marconi.
+       */
+      public Builder maxIdsPerRequest(int maxIdsPerRequest) {
+         checkArgument(maxIdsPerRequest > 0, "maxIdsPerRequest must be positive");
+         this.maxIdsPerRequest = maxIdsPerRequest;
+         return this;
+      }
+
+      /**
+       * The longest {@code ids} query parameter sent in one request, in characters. Defaults to 2000, which keeps the
+       * request line within the limits of common proxies.
+       */
+      public Builder maxIdsLength(int maxIdsLength) {
+         checkArgument(maxIdsLength > 0, "maxIdsLength must be positive");
+         this.maxIdsLength = maxIdsLength;
+         return this;
+      }
+
+      /**
+       * How long a delete waits for others to join it before it is sent anyway. Defaults to 50 milliseconds.
+       */
+      public Builder linger(long linger, TimeUnit unit) {
+         checkArgument(linger >= 0, "linger must not be negative");
+         this.lingerMillis = unit.toMillis(linger);
+         return this;
+      }
+
+      /**
+       * Whether to check that a claim is still held before deleting its messages. Defaults to true.
+       */
+      public Builder verifyClaims(boolean verifyClaims) {
+         this.verifyClaims = verifyClaims;
+         return this;
+      }
+
+      /**
+       * The most requests being sent at once by the default executor. Defaults to 4.
+       */
+      public Builder maxInFlight(int maxInFlight) {
+         checkArgument(maxInFlight > 0, "maxInFlight must be positive");
+         this.maxInFlight = maxInFlight;
+         return this;
+      }
+
+      /**
+       * The scheduler that runs linger timers. It only triggers flushes and never blocks on a request. It is not shut
+       * down when the coalescer is closed. Defaults to a dedicated daemon thread.
+       */
+      public Builder scheduler(ScheduledExecutorService scheduler) {
+         this.scheduler = checkNotNull(scheduler, "scheduler");
+         return this;
+      }
+
+      /**
+       * The executor that checks claims and sends deletes. Its pool size bounds the number of requests in flight, and
+       * the futures of a group it rejects fail with the {@link RejectedExecutionException}. It is not shut down when
+       * the coalescer is closed. Defaults to a fixed pool of {@link #maxInFlight(int)} daemon threads.
+       */
+      public Builder executor(ExecutorService executor) {
+         this.executor = checkNotNull(executor, "executor");
+         return this;
+      }
+
+      public DeleteCoalescer build() {
+         return new DeleteCoalescer(this);
+      }
+   }
+}
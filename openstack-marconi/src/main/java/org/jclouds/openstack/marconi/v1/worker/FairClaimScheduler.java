@@ -0,0 +1,732 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.worker;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jclouds.openstack.marconi.v1.MarconiApi;
+import org.jclouds.openstack.marconi.v1.codec.BodyEnvelope;
+import org.jclouds.openstack.marconi.v1.dedup.DedupIndex;
+import org.jclouds.openstack.marconi.v1.domain.Message;
+import org.jclouds.openstack.marconi.v1.domain.QueueStats;
+import org.jclouds.openstack.marconi.v1.features.ClaimApi;
+import org.jclouds.openstack.marconi.v1.features.MessageApi;
+import org.jclouds.openstack.marconi.v1.handlers.MarconiErrors;
+import org.jclouds.openstack.marconi.v1.stats.QueueStatsMonitor;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Shares one pool of workers between any number of queues. Instead of a claim loop per queue, every worker picks the
+ * next queue to claim from with weighted fair queuing, claims a batch with {@link ClaimApi#claim(int, int, int)},
+ * passes the messages to a {@link QueueMessageHandler} and deletes the acknowledged ones, the same way a
+ * {@link ClaimWorkerPool} does for a single queue.
+ * <p/>
+ * Each queue has a virtual time that advances by the number of messages claimed from it divided by its weight, and
+ * the queue with the lowest virtual time is claimed from next. A queue with weight 2 therefore gets twice the messages
+ * of a queue with weight 1 while both are busy, and a quiet queue is claimed from as soon as it has messages instead of
+ * waiting behind busy ones. A queue that comes back from being empty starts at the current virtual time, so it does not
+ * get a burst for the time it was idle.
+ * <p/>
+ * A queue whose claim came back empty, or failed because the service was unavailable, is not claimed from again for
+ * an idle time that doubles with every empty claim. A queue whose claim was rejected for any other reason is removed
+ * and its error reported by {@link #getFailures()}. With a {@link QueueStatsMonitor}, queues whose most recent
+ * {@link QueueStats} show no free messages are skipped without a request at all.
+ * <p/>
+ * Batches are processed like those of a {@link ClaimWorkerPool}, including claim renewal, deduplication, envelopes and
+ * adaptive claim sizing.
+ */
+@Beta
+public class FairClaimScheduler implements Closeable {
+
+   private final MarconiApi api;
+   private final String region;
+   private final UUID clientId;
+   private final QueueMessageHandler handler;
+   private final QueueStatsMonitor monitor;
+   private final AdaptiveClaimSizer sizer;
+   private final int workers;
+   private final int ttl;
+   private final int grace;
+   private final int limit;
+   private final long minIdleMillis;
+   private final long maxIdleMillis;
+   private final ExecutorService executor;
+   private final boolean shutdownExecutorOnClose;
+   private final ScheduledExecutorService scheduler;
+   private final boolean shutdownSchedulerOnClose;
+
+   // guarded by itself, as is the state of every queue in it
+   private final Map<String, QueueState> queues = new LinkedHashMap<String, QueueState>();
+   private final Map<String, RuntimeException> failures = new LinkedHashMap<String, RuntimeException>();
+   private double virtualTime;
+
+   private final ClaimProcessor processor;
+   private final AtomicLong emptyClaims = new AtomicLong();
+   private final AtomicLong skipped = new AtomicLong();
+   private final AtomicLong claimErrors = new AtomicLong();
+   private final long startNanos = System.nanoTime();
+
+   private final List<Future<?>> loops = new ArrayList<Future<?>>();
+   private final CountDownLatch closing = new CountDownLatch(1);
+   private volatile boolean running;
+   private volatile boolean closed;
+
+   protected FairClaimScheduler(Builder builder) {
+      this.api = builder.api;
+      this.region = builder.region;
+      this.clientId = builder.clientId;
+      this.handler = checkNotNull(builder.handler, "handler");
+      this.monitor = builder.monitor;
+      this.sizer = builder.sizer;
+      this.workers = builder.workers;
+      this.ttl = builder.ttl;
+      this.grace = builder.grace;
+      this.limit = builder.limit;
+      this.minIdleMillis = builder.minIdleMillis;
+      this.maxIdleMillis = builder.maxIdleMillis;
+      if (builder.executor != null) {
+         this.executor = builder.executor;
+         this.shutdownExecutorOnClose = false;
+      }
+      else {
+         this.executor = Executors.newFixedThreadPool(workers, new ThreadFactoryBuilder()
+               .setNameFormat("marconi-fair-worker-%d").setDaemon(true).build());
+         this.shutdownExecutorOnClose = true;
+      }
+      if (builder.scheduler != null) {
+         this.scheduler = builder.scheduler;
+         this.shutdownSchedulerOnClose = false;
+      }
+      else {
+         this.scheduler = Executors.newScheduledThreadPool(1, new ThreadFactoryBuilder()
+               .setNameFormat("marconi-claim-renewal-%d").setDaemon(true).build());
+         this.shutdownSchedulerOnClose = true;
+      }
+      this.processor = new ClaimProcessor(builder.envelope, builder.dedup, sizer, builder.renewAt, scheduler);
+   }
+
+   /**
+    * Adds a queue with weight 1.
+    */
+   public FairClaimScheduler addQueue(String queue) {
+      return addQueue(queue, 1);
+   }
+
+   /**
+    * Adds a queue, or changes the weight of a queue that was already added. While several queues have messages, each
+    * gets a share of the claimed messages proportional to its weight. The queue is also watched by the stats monitor,
+    * if there is one.
+    */
+   public FairClaimScheduler addQueue(String queue, int weight) {
+      checkNotNull(queue, "queue");
+      checkArgument(weight > 0, "weight must be positive");
+      synchronized (queues) {
+         QueueState state = queues.get(queue);
+         if (state == null) {
+            state = new QueueState(queue, api.getClaimApi(region, clientId, queue),
+                  api.getMessageApi(region, clientId, queue));
+            state.pass = virtualTime;
+            queues.put(queue, state);
+            failures.remove(queue);
+         }
+         state.weight = weight;
+      }
+      if (monitor != null) {
+         monitor.watch(queue);
+      }
+      return this;
+   }
+
+   /**
+    * Stops claiming from a queue. Messages already claimed from it are still processed.
+    */
+   public void removeQueue(String queue) {
+      synchronized (queues) {
+         queues.remove(checkNotNull(queue, "queue"));
+      }
+      if (monitor != null) {
+         monitor.unwatch(queue);
+      }
+   }
+
+   /**
+    * Starts the workers.
+    */
+   public synchronized FairClaimScheduler start() {
+      checkState(!running && !closed, "scheduler was already started");
+      running = true;
+      for (int i = 0; i < workers; i++) {
+         loops.add(executor.submit(new Worker()));
+      }
+      return this;
+   }
+
+   /**
+    * Stops claiming messages and waits up to the given time for the workers to finish the message they are handling.
+    * Claims that were not completely processed are released.
+    *
+    * @return true if every worker stopped in time.
+    */
+   public boolean close(long timeout, TimeUnit unit) throws InterruptedException {
+      synchronized (this) {
+         if (closed) {
+            return true;
+         }
+         closed = true;
+         running = false;
+      }
+      processor.stop();
+      closing.countDown();
+
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      boolean stopped = true;
+      for (Future<?> loop : loops) {
+         try {
+            loop.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+         }
+         catch (TimeoutException e) {
+            loop.cancel(true);
+            stopped = false;
+         }
+         catch (CancellationException e) {
+            stopped = false;
+         }
+         catch (ExecutionException e) {
+            // the worker already finished with an error
+         }
+      }
+      if (shutdownExecutorOnClose) {
+         executor.shutdownNow();
+      }
+      if (shutdownSchedulerOnClose) {
+         scheduler.shutdownNow();
+      }
+      return stopped;
+   }
+
+   /**
+    * Stops the scheduler, waiting up to one claim ttl for the workers to finish. The stats monitor is not closed.
+    */
+   @Override
+   public void close() {
+      try {
+         close(ttl, TimeUnit.SECONDS);
+      }
+      catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * @return A snapshot of the throughput of this scheduler and of the messages claimed from each queue.
+    */
+   public Stats getStats() {
+      ImmutableMap.Builder<String, Long> claimedByQueue = ImmutableMap.builder();
+      synchronized (queues) {
+         for (QueueState state : queues.values()) {
+            claimedByQueue.put(state.name, state.claimed);
+         }
+      }
+      return new Stats(processor.claims.get(), emptyClaims.get(), skipped.get(), processor.claimed.get(),
+            processor.acked.get(), processor.failed.get(), processor.duplicates.get(), processor.renewals.get(),
+            processor.lostClaims.get(), claimErrors.get(), claimedByQueue.build(), System.nanoTime() - startNanos);
+   }
+
+   /**
+    * @return The error that removed each queue whose claim was rejected by the service, for instance because the queue
+    *         no longer exists. Adding the queue again clears its error.
+    */
+   public Map<String, RuntimeException> getFailures() {
+      synchronized (queues) {
+         return ImmutableMap.copyOf(failures);
+      }
+   }
+
+   /**
+    * Picks the queue to claim from next and charges it for a full batch up front, so that other workers picking at
+    * the same time move on to the next queue. {@link #settle} refunds what the claim did not return.
+    *
+    * @return The eligible queue with the lowest virtual time, if any.
+    */
+   private Optional<QueueState> pick(int claimLimit) {
+      long now = System.nanoTime();
+      synchronized (queues) {
+         QueueState next = null;
+         for (QueueState state : queues.values()) {
+            if (state.idleUntilNanos - now > 0) {
+               continue;
+            }
+            if (hasNoFreeMessages(state.name)) {
+               skipped.incrementAndGet();
+               continue;
+            }
+            if (state.pass < virtualTime) {
+               // back from being idle, skipped or refunded
+               state.pass = virtualTime;
+            }
+            if (next == null || state.pass < next.pass) {
+               next = state;
+            }
+         }
+         if (next == null) {
+            return Optional.absent();
+         }
+         virtualTime = next.pass;
+         next.pass += (double) claimLimit / next.weight;
+         return Optional.of(next);
+      }
+   }
+
+   /**
+    * Refunds the part of the batch the claim did not return, and makes a queue that returned nothing idle.
+    */
+   private void settle(QueueState state, int claimLimit, int count) {
+      long now = System.nanoTime();
+      synchronized (queues) {
+         state.pass -= (double) (claimLimit - count) / state.weight;
+         state.claimed += count;
+         if (count == 0) {
+            state.idleUntilNanos = now + TimeUnit.MILLISECONDS.toNanos(state.idleMillis);
+            state.idleMillis = Math.min(state.idleMillis * 2, maxIdleMillis);
+         }
+         else {
+            state.idleUntilNanos = now;
+            state.idleMillis = minIdleMillis;
+         }
+      }
+   }
+
+   private boolean hasNoFreeMessages(String queue) {
+      if (monitor == null) {
+         return false;
+      }
+      Optional<QueueStats> stats = monitor.get(queue);
+      return stats.isPresent() && stats.get().getMessagesStats().getFree() == 0;
+   }
+
+   /**
+    * Removes a queue whose claim was rejected, unless it was already removed or added again since.
+    */
+   private void fail(QueueState state, RuntimeException e) {
+      synchronized (queues) {
+         if (queues.get(state.name) != state) {
+            return;
+         }
+         queues.remove(state.name);
+         failures.put(state.name, e);
+      }
+      if (monitor != null) {
+         monitor.unwatch(state.name);
+      }
+   }
+
+   /**
+    * The scheduling state of one queue.
+    */
+   private class QueueState {
+      private final String name;
+      private final ClaimApi claimApi;
+      private final MessageApi messageApi;
+      private final MessageHandler handler;
+      private int weight;
+      private double pass;
+      private long idleMillis = minIdleMillis;
+      private long idleUntilNanos = System.nanoTime();
+      private long claimed;
+
+      private QueueState(String name, ClaimApi claimApi, MessageApi messageApi) {
+         this.name = name;
+         this.claimApi = claimApi;
+         this.messageApi = messageApi;
+         this.handler = new MessageHandler() {
+            @Override
+            public void handle(Message message) throws Exception {
+               FairClaimScheduler.this.handler.handle(QueueState.this.name, message);
+            }
+         };
+      }
+   }
+
+   private class Worker implements Runnable {
+      @Override
+      public void run() {
+         try {
+            while (running && !Thread.currentThread().isInterrupted()) {
+               int claimTtl = sizer != null ? sizer.getTtl() : ttl;
+               int claimLimit = sizer != null ? sizer.getLimit() : limit;
+               Optional<QueueState> next = pick(claimLimit);
+               if (!next.isPresent()) {
+                  closing.await(minIdleMillis, TimeUnit.MILLISECONDS);
+                  continue;
+               }
+
+               QueueState state = next.get();
+               long claimedAt = System.nanoTime();
+               List<Message> messages;
+               try {
+                  messages = state.claimApi.claim(claimTtl, grace, claimLimit);
+               }
+               catch (RuntimeException e) {
+                  if (!MarconiErrors.isRetryable(e)) {
+                     // the queue is gone or the credentials were rejected, claiming from it again will not help
+                     fail(state, e);
+                     continue;
+                  }
+                  claimErrors.incrementAndGet();
+                  messages = ImmutableList.of();
+               }
+
+               if (messages.isEmpty() || !messages.get(0).getClaimId().isPresent()) {
+                  emptyClaims.incrementAndGet();
+                  settle(state, claimLimit, 0);
+                  continue;
+               }
+               settle(state, claimLimit, messages.size());
+               processor.process(state.claimApi, state.messageApi, state.handler, messages, claimTtl, claimedAt);
+            }
+         }
+         catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+
+   @Override
+   public String toString() {
+      int size;
+      synchronized (queues) {
+         size = queues.size();
+      }
+      return MoreObjects.toStringHelper(this)
+            .add("workers", workers).add("queues", size).add("running", running).add("stats", getStats()).toString();
+   }
+
+   /**
+    * Throughput counters of a {@link FairClaimScheduler}.
+    */
+   public static class Stats {
+      private final long claims;
+      private final long emptyClaims;
+      private final long skipped;
+      private final long claimed;
+      private final long acked;
+      private final long failed;
+      private final long duplicates;
+      private final long renewals;
+      private final long lostClaims;
+      private final long claimErrors;
+      private final Map<String, Long> claimedByQueue;
+      private final long elapsedNanos;
+
+      protected Stats(long claims, long emptyClaims, long skipped, long claimed, long acked, long failed,
+            long duplicates, long renewals, long lostClaims, long claimErrors, Map<String, Long> claimedByQueue,
+            long elapsedNanos) {
+         this.claims = claims;
+         this.emptyClaims = emptyClaims;
+         this.skipped = skipped;
+         this.claimed = claimed;
+         this.acked = acked;
+         this.failed = failed;
+         this.duplicates = duplicates;
+         this.renewals = renewals;
+         this.lostClaims = lostClaims;
+         this.claimErrors = claimErrors;
+         this.claimedByQueue = ImmutableMap.copyOf(claimedByQueue);
+         this.elapsedNanos = elapsedNanos;
+      }
+
+      /**
+       * @return The number of non-empty claims made.
+       */
+      public long getClaims() {
+         return claims;
+      }
+
+      /**
+       * @return The number of claims that returned no messages or failed.
+       */
+      public long getEmptyClaims() {
+         return emptyClaims;
+      }
+
+      /**
+       * @return The number of times a queue was passed over because its stats showed no free messages.
+       */
+      public long getSkipped() {
+         return skipped;
+      }
+
+      /**
+       * @return The number of messages claimed.
+       */
+      public long getClaimed() {
+         return claimed;
+      }
+
+      /**
+       * @return The number of messages handled successfully.
+       */
+      public long getAcked() {
+         return acked;
+      }
+
+      /**
+       * @return The number of messages whose handler failed.
+       */
+      public long getFailed() {
+         return failed;
+      }
+
+      /**
+       * @return The number of redelivered messages that were deleted without handling them again.
+       */
+      public long getDuplicates() {
+         return duplicates;
+      }
+
+      /**
+       * @return The number of times a claim was renewed.
+       */
+      public long getRenewals() {
+         return renewals;
+      }
+
+      /**
+       * @return The number of claims that expired or could not be renewed before they did.
+       */
+      public long getLostClaims() {
+         return lostClaims;
+      }
+
+      /**
+       * @return The number of claim requests that failed with an error worth retrying.
+       */
+      public long getClaimErrors() {
+         return claimErrors;
+      }
+
+      /**
+       * @return The number of messages claimed from each queue currently in the scheduler.
+       */
+      public Map<String, Long> getClaimedByQueue() {
+         return claimedByQueue;
+      }
+
+      /**
+       * @return Acknowledged messages per second since the scheduler was created.
+       */
+      public double getAckedPerSecond() {
+         return elapsedNanos == 0 ? 0 : acked * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+      }
+
+      @Override
+      public String toString() {
+         return MoreObjects.toStringHelper(this)
+               .add("claims", claims).add("emptyClaims", emptyClaims).add("skipped", skipped)
+               .add("claimed", claimed).add("acked", acked).add("failed", failed).add("duplicates", duplicates)
+               .add("renewals", renewals).add("lostClaims", lostClaims).add("claimErrors", claimErrors)
+               .add("ackedPerSecond", getAckedPerSecond()).toString();
+      }
+   }
+
+   /**
+    * @param api      The api to claim with.
+    * @param region   The region of the queues.
+    * @param clientId The client id used for every queue.
+    */
+   public static Builder builder(MarconiApi api, String region, UUID clientId) {
+      return new Builder(api, region, clientId);
+   }
+
+   public static class Builder {
+      protected final MarconiApi api;
+      protected final String region;
+      protected final UUID clientId;
+      protected QueueMessageHandler handler;
+      protected QueueStatsMonitor monitor;
+      protected BodyEnvelope envelope;
+      protected DedupIndex dedup;
+      protected AdaptiveClaimSizer sizer;
+      protected int workers = 1;
+      protected int ttl = 300;
+      protected int grace = 60;
+      protected int limit = 10;
+      protected double renewAt = 0.5;
+      protected long minIdleMillis = 100;
+      protected long maxIdleMillis = 10000;
+      protected ExecutorService executor;
+      protected ScheduledExecutorService scheduler;
+
+      protected Builder(MarconiApi api, String region, UUID clientId) {
+         this.api = checkNotNull(api, "api");
+         this.region = checkNotNull(region, "region");
+         this.clientId = checkNotNull(clientId, "clientId");
+      }
+
+      /**
+       * The handler that processes every claimed message.
+       */
+      public Builder handler(QueueMessageHandler handler) {
+         this.handler = checkNotNull(handler, "handler");
+         return this;
+      }
+
+      /**
+       * The number of workers shared by all queues. Defaults to 1.
+       */
+      public Builder workers(int workers) {
+         checkArgument(workers > 0, "workers must be positive");
+         this.workers = workers;
+         return this;
+      }
+
+      /**
+       * @see ClaimApi#claim(int, int, int)
+       */
+      public Builder ttl(int ttl) {
+         checkArgument(ttl >= 60 && ttl <= 43200, "ttl must be between 60 and 43200 seconds");
+         this.ttl = ttl;
+         return this;
+      }
+
+      /**
+       * @see ClaimApi#claim(int, int, int)
+       */
+      public Builder grace(int grace) {
+         checkArgument(grace >= 60 && grace <= 43200, "grace must be between 60 and 43200 seconds");
+         this.grace = grace;
+         return this;
+      }
+
+      /**
+       * @see ClaimApi#claim(int, int, int)
+       */
+      public Builder limit(int limit) {
+         checkArgument(limit > 0 && limit <= 20, "limit must be between 1 and 20");
+         this.limit = limit;
+         return this;
+      }
+
+      /**
+       * Tunes the limit and ttl of every claim from the time previous claims took to process, instead of claiming
+       * with the fixed {@link #limit(int)} and {@link #ttl(int)}. One sizer is shared by all queues.
+       */
+      public Builder adaptive(AdaptiveClaimSizer sizer) {
+         this.sizer = checkNotNull(sizer, "sizer");
+         return this;
+      }
+
+      /**
+       * The fraction of the remaining claim lifetime after which the claim is renewed. Defaults to 0.5.
+       */
+      public Builder renewAt(double renewAt) {
+         checkArgument(renewAt > 0 && renewAt < 1, "renewAt must be between 0 and 1");
+         this.renewAt = renewAt;
+         return this;
+      }
+
+      /**
+       * How long a queue is left alone after an empty claim or an error, doubling after every consecutive empty claim
+       * up to {@code max}. Workers that find no queue to claim from wait {@code min}. Defaults to 100 milliseconds and
+       * 10 seconds.
+       */
+      public Builder idle(long min, long max, TimeUnit unit) {
+         long minMillis = unit.toMillis(min);
+         long maxMillis = unit.toMillis(max);
+         checkArgument(minMillis > 0 && maxMillis >= minMillis, "idle must satisfy 0 < min <= max milliseconds");
+         this.minIdleMillis = minMillis;
+         this.maxIdleMillis = maxMillis;
+         return this;
+      }
+
+      /**
+       * Skips queues whose most recent stats in the monitor show no free messages. Queues added to the scheduler are
+       * watched by the monitor, which is not closed with the scheduler. By default every queue is claimed from until a
+       * claim comes back empty.
+       */
+      public Builder stats(QueueStatsMonitor monitor) {
+         this.monitor = checkNotNull(monitor, "monitor");
+         return this;
+      }
+
+      /**
+       * The executor that runs the workers. It needs at least as many threads as there are workers and is not shut
+       * down when the scheduler is closed. Defaults to a fixed pool of daemon threads.
+       */
+      public Builder executor(ExecutorService executor) {
+         this.executor = checkNotNull(executor, "executor");
+         return this;
+      }
+
+      /**
+       * The scheduler that renews claims. It is not shut down when the scheduler is closed. Defaults to a dedicated
+       * daemon thread.
+       */
+      public Builder scheduler(ScheduledExecutorService scheduler) {
+         this.scheduler = checkNotNull(scheduler, "scheduler");
+         return this;
+      }
+
+      /**
+       * Remembers the ids of handled messages, so a message claimed again after it was handled is only deleted.
+       *
+       * @see ClaimWorkerPool.Builder#dedup(DedupIndex)
+       */
+      public Builder dedup(DedupIndex dedup) {
+         this.dedup = checkNotNull(dedup, "dedup");
+         return this;
+      }
+
+      /**
+       * Decodes the bodies of messages sent through an envelope before they are handled.
+       *
+       * @see ClaimWorkerPool.Builder#envelope(BodyEnvelope)
+       */
+      public Builder envelope(BodyEnvelope envelope) {
+         this.envelope = checkNotNull(envelope, "envelope");
+         return this;
+      }
+
+      public FairClaimScheduler build() {
+         return new FairClaimScheduler(this);
+      }
+   }
+}
@@ -0,0 +1,30 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.worker;
+
+import org.jclouds.openstack.marconi.v1.domain.Message;
+
+/**
+ * Processes the messages claimed by a {@link ClaimWorkerPool}.
+ */
+public interface MessageHandler {
+   /**
+    * Processes one claimed message. Returning normally acknowledges the message, which is then deleted from the queue.
+    * Throwing leaves the message on the queue, and its claim is released so another worker can pick it up.
+    */
+   void handle(Message message) throws Exception;
+}
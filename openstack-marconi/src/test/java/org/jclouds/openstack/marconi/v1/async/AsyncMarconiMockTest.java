@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.async;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.inject.Injector;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import org.jclouds.ContextBuilder;
+import org.jclouds.lifecycle.Closer;
+import org.jclouds.openstack.marconi.v1.MarconiApi;
+import org.jclouds.openstack.marconi.v1.domain.CreateMessage;
+import org.jclouds.openstack.marconi.v1.domain.Message;
+import org.jclouds.openstack.marconi.v1.internal.InMemoryMarconiDispatcher;
+import org.jclouds.openstack.v2_0.internal.BaseOpenStackMockTest;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+@Test
+public class AsyncMarconiMockTest extends BaseOpenStackMockTest<MarconiApi> {
+   private static final UUID CLIENT_ID = UUID.fromString("3381af92-2b9e-11e3-b191-71861300734c");
+
+   public void manyOutstandingClaims() throws Exception {
+      InMemoryMarconiDispatcher dispatcher = new InMemoryMarconiDispatcher(accessRackspace);
+      MockWebServer server = dispatcher.start();
+
+      AsyncMarconi marconi = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         marconi = AsyncMarconi.builder(api).threads(8).build();
+         marconi.getQueueApi("DFW", CLIENT_ID).create("jclouds-test").get(10, TimeUnit.SECONDS);
+
+         AsyncMessageApi messageApi = marconi.getMessageApi("DFW", CLIENT_ID, "jclouds-test");
+         List<ListenableFuture<?>> created = Lists.newArrayList();
+         for (int i = 0; i < 5; i++) {
+            List<CreateMessage> messages = Lists.newArrayList();
+            for (int j = 0; j < 10; j++) {
+               messages.add(CreateMessage.builder().ttl(120).body("{\"n\":" + (i * 10 + j) + "}").build());
+            }
+            created.add(messageApi.create(messages));
+         }
+         Futures.allAsList(created).get(10, TimeUnit.SECONDS);
+
+         AsyncClaimApi claimApi = marconi.getClaimApi("DFW", CLIENT_ID, "jclouds-test");
+         List<ListenableFuture<List<Message>>> claims = Lists.newArrayList();
+         for (int i = 0; i < 10; i++) {
+            claims.add(claimApi.claim(300, 100, 10));
+         }
+
+         int claimed = 0;
+         for (List<Message> messages : Futures.allAsList(claims).get(10, TimeUnit.SECONDS)) {
+            claimed += messages.size();
+            for (Message message : messages) {
+               assertTrue(messageApi.deleteByClaim(message.getId(), message.getClaimId().get())
+                     .get(10, TimeUnit.SECONDS));
+            }
+         }
+         assertEquals(claimed, 50);
+         assertEquals(dispatcher.countMessages("jclouds-test"), 0);
+      }
+      finally {
+         if (marconi != null) {
+            marconi.close();
+         }
+         server.shutdown();
+      }
+   }
+
+   public void fallbacksAndErrorsMatchTheBlockingApi() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(addCommonHeaders(new MockResponse().setBody(accessRackspace)));
+      server.enqueue(addCommonHeaders(new MockResponse().setResponseCode(404)));
+      server.enqueue(addCommonHeaders(new MockResponse().setResponseCode(404)));
+      server.enqueue(addCommonHeaders(new MockResponse().setResponseCode(409)));
+
+      AsyncMarconi marconi = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         marconi = AsyncMarconi.builder(api).threads(1).build();
+
+         assertFalse(marconi.getQueueApi("DFW", CLIENT_ID).delete("jclouds-test").get(10, TimeUnit.SECONDS));
+         assertNull(marconi.getClaimApi("DFW", CLIENT_ID, "jclouds-test").get("51db7067821e727dc24df754")
+               .get(10, TimeUnit.SECONDS));
+         try {
+            marconi.getMessageApi("DFW", CLIENT_ID, "jclouds-test")
+                  .create(ImmutableList.of(CreateMessage.builder().ttl(120).body("{}").build()))
+                  .get(10, TimeUnit.SECONDS);
+            fail("the server returned 409");
+         }
+         catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof IllegalStateException, expected.getCause().toString());
+         }
+
+         assertEquals(server.getRequestCount(), 4);
+         assertEquals(server.takeRequest().getRequestLine(), "POST /tokens HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "DELETE /v1/123123/queues/jclouds-test HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(),
+               "GET /v1/123123/queues/jclouds-test/claims/51db7067821e727dc24df754 HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "POST /v1/123123/queues/jclouds-test/messages HTTP/1.1");
+      }
+      finally {
+         if (marconi != null) {
+            marconi.close();
+         }
+         server.shutdown();
+      }
+   }
+
+   public void injectorProvidesAnInstanceOnTheUserExecutor() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(addCommonHeaders(new MockResponse().setBody(accessRackspace)));
+      server.enqueue(addCommonHeaders(new MockResponse().setResponseCode(204)));
+
+      Injector injector = ContextBuilder.newBuilder("openstack-marconi")
+            .credentials("jclouds:joe", "letmein")
+            .endpoint(server.getUrl("/").toString())
+            .buildInjector();
+      try {
+         AsyncMarconi marconi = injector.getInstance(AsyncMarconi.class);
+         assertEquals(injector.getInstance(AsyncMarconi.class), marconi);
+         assertTrue(marconi.getQueueApi("DFW", CLIENT_ID).exists("jclouds-test").get(10, TimeUnit.SECONDS));
+
+         assertEquals(server.getRequestCount(), 2);
+         assertEquals(server.takeRequest().getRequestLine(), "POST /tokens HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "GET /v1/123123/queues/jclouds-test HTTP/1.1");
+      }
+      finally {
+         injector.getInstance(Closer.class).close();
+         server.shutdown();
+      }
+   }
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.codec;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import org.jclouds.openstack.marconi.v1.MarconiApi;
+import org.jclouds.openstack.marconi.v1.consumer.MessageConsumer;
+import org.jclouds.openstack.marconi.v1.domain.CreateMessage;
+import org.jclouds.openstack.marconi.v1.domain.Message;
+import org.jclouds.openstack.marconi.v1.features.MessageApi;
+import org.jclouds.openstack.marconi.v1.internal.InMemoryMarconiDispatcher;
+import org.jclouds.openstack.marconi.v1.producer.MessageProducer;
+import org.jclouds.openstack.v2_0.internal.BaseOpenStackMockTest;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+@Test
+public class BodyEnvelopeMockTest extends BaseOpenStackMockTest<MarconiApi> {
+   private static final UUID PRODUCER_ID = UUID.fromString("3381af92-2b9e-11e3-b191-71861300734c");
+   private static final UUID CONSUMER_ID = UUID.fromString("3381af92-2b9e-11e3-b191-71861300734d");
+
+   public void producerCompressesAndConsumerDecodes() throws Exception {
+      MockWebServer server = new InMemoryMarconiDispatcher(accessRackspace).start();
+
+      MessageProducer producer = null;
+      MessageConsumer consumer = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         api.getQueueApi("DFW", PRODUCER_ID).create("jclouds-test");
+         MessageApi producerApi = api.getMessageApi("DFW", PRODUCER_ID, "jclouds-test");
+         MessageApi consumerApi = api.getMessageApi("DFW", CONSUMER_ID, "jclouds-test");
+
+         String large = event(40);
+         String small = "{\"n\":1}";
+         producer = MessageProducer.builder(producerApi)
+               .envelope(BodyEnvelope.builder().codec(BodyCodecs.gzip()).build())
+               .build();
+         producer.send(CreateMessage.builder().ttl(120).body(large).build());
+         producer.send(CreateMessage.builder().ttl(120).body(small).build()).get(10, TimeUnit.SECONDS);
+
+         // as stored, only the large body is wrapped and it is much smaller
+         List<Message> stored = ImmutableList.copyOf(consumerApi.stream());
+         assertEquals(stored.size(), 2);
+         assertTrue(BodyEnvelope.isEnvelope(stored.get(0).getBody()));
+         assertTrue(stored.get(0).getBody().length() * 4 < large.length());
+         assertEquals(stored.get(1).getBody(), small);
+
+         consumer = MessageConsumer.builder(consumerApi)
+               .envelope(BodyEnvelope.builder().build())
+               .build().start();
+         assertEquals(consumer.take().getBody(), large);
+         assertEquals(consumer.take().getBody(), small);
+      }
+      finally {
+         if (producer != null) {
+            producer.close();
+         }
+         if (consumer != null) {
+            consumer.close();
+         }
+         server.shutdown();
+      }
+   }
+
+   public void dictionaryCompressesShortBodies() {
+      byte[] dictionary = event(1).getBytes(Charsets.UTF_8);
+      BodyCodec withDictionary = BodyCodecs.dictionary(dictionary);
+      BodyEnvelope envelope = BodyEnvelope.builder().codec(withDictionary).minBytes(0).build();
+      BodyEnvelope plain = BodyEnvelope.builder().codec(BodyCodecs.deflate()).minBytes(0).build();
+
+      String body = "{\"event\":{\"name\":\"Austin Java User Group\",\"attendees\":["
+            + "{\"name\":\"attendee-7\",\"rsvp\":false},{\"name\":\"attendee-9\",\"rsvp\":true}]}}";
+      CreateMessage message = CreateMessage.builder().ttl(120).body(body).build();
+
+      CreateMessage encoded = envelope.encode(message);
+      assertTrue(encoded.getRawBody().isPresent());
+      assertTrue(withDictionary.getName().startsWith("deflate-dict-"));
+      assertSame(plain.encode(message), message, "plain deflate does not pay off for short bodies");
+
+      Message received = Message.builder().id("526ec640f4919b69a7bc558f").ttl(120).age(1)
+            .body(encoded.getBody()).build();
+      assertEquals(envelope.decode(received).getBody(), body);
+
+      try {
+         BodyEnvelope.builder().build().decode(received);
+         fail("the dictionary codec is not registered");
+      }
+      catch (IllegalArgumentException expected) {
+      }
+   }
+
+   public void bodiesThatAreNotEnvelopesPassThrough() {
+      BodyEnvelope envelope = BodyEnvelope.builder().build();
+      for (String body : ImmutableList.of("\"jclouds-codec\"", "{\"jclouds-codec\":\"gzip\"}",
+            "{\"jclouds-codec\":\"gzip\",\"jclouds-data\":\"\",\"other\":1}", "{\"event\":{}}")) {
+         Message message = Message.builder().id("526ec640f4919b69a7bc558f").body(body).build();
+         assertFalse(BodyEnvelope.isEnvelope(body), body);
+         assertSame(envelope.decode(message), message);
+      }
+   }
+
+   public void decodedSizeIsLimited() {
+      BodyEnvelope producer = BodyEnvelope.builder().codec(BodyCodecs.gzip()).build();
+      BodyEnvelope consumer = BodyEnvelope.builder().maxDecodedBytes(1024).build();
+      CreateMessage encoded = producer.encode(CreateMessage.builder().ttl(120).body(event(40)).build());
+
+      try {
+         consumer.decode(Message.builder().id("526ec640f4919b69a7bc558f").body(encoded.getBody()).build());
+         fail("the body decodes to more than 1024 bytes");
+      }
+      catch (IllegalArgumentException expected) {
+      }
+   }
+
+   private static String event(int attendees) {
+      StringBuilder json = new StringBuilder("{\"event\":{\"name\":\"SF Java User Group\",\"attendees\":[");
+      for (int i = 0; i < attendees; i++) {
+         json.append(i == 0 ? "" : ",").append("{\"name\":\"attendee-").append(i).append("\",\"rsvp\":true}");
+      }
+      return json.append("]}}").toString();
+   }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.consumer;
+
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import org.jclouds.openstack.marconi.v1.MarconiApi;
+import org.jclouds.openstack.marconi.v1.domain.Message;
+import org.jclouds.openstack.marconi.v1.features.MessageApi;
+import org.jclouds.openstack.v2_0.internal.BaseOpenStackMockTest;
+import org.testng.annotations.Test;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+
+@Test
+public class MessageConsumerMockTest extends BaseOpenStackMockTest<MarconiApi> {
+   private static final UUID CLIENT_ID = UUID.fromString("3381af92-2b9e-11e3-b191-71861300734c");
+
+   public void consumeAcrossEmptyPages() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(new MockResponse().setBody(accessRackspace));
+      server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"messages\": [{\"body\": \"{\\\"n\\\":1}\", \"age\": 8082, \"href\": \"/v1/queues/jclouds-test/messages/526ec635b04a5866dbe31ba1\", \"ttl\": 86400}, {\"body\": \"{\\\"n\\\":2}\", \"age\": 8082, \"href\": \"/v1/queues/jclouds-test/messages/526ec635b04a5866dbe31ba2\", \"ttl\": 86400}], \"links\": [{\"href\": \"/v1/queues/jclouds-test/messages?marker=4508&limit=2\", \"rel\": \"next\"}]}"));
+      server.enqueue(new MockResponse().setResponseCode(204));
+      server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"messages\": [{\"body\": \"{\\\"n\\\":3}\", \"age\": 8071, \"href\": \"/v1/queues/jclouds-test/messages/526ec640f4919b69a7bc558e\", \"ttl\": 86400}], \"links\": [{\"href\": \"/v1/queues/jclouds-test/messages?marker=4509&limit=2\", \"rel\": \"next\"}]}"));
+      server.enqueue(new MockResponse().setResponseCode(204));
+
+      MessageConsumer consumer = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         MessageApi messageApi = api.getMessageApi("DFW", CLIENT_ID, "jclouds-test");
+
+         consumer = MessageConsumer.builder(messageApi)
+               .limit(2)
+               .bufferSize(2)
+               .backoff(10, 50, TimeUnit.MILLISECONDS)
+               .build()
+               .start();
+
+         assertFalse(consumer.getMarker().isPresent());
+
+         Message first = consumer.take();
+         assertEquals(first.getId(), "526ec635b04a5866dbe31ba1");
+         assertFalse(consumer.getMarker().isPresent());
+
+         Message second = consumer.take();
+         assertEquals(second.getId(), "526ec635b04a5866dbe31ba2");
+         assertEquals(consumer.getMarker().get(), "4508");
+
+         Message third = consumer.poll(5, TimeUnit.SECONDS);
+         assertEquals(third.getId(), "526ec640f4919b69a7bc558e");
+         assertEquals(consumer.getMarker().get(), "4509");
+
+         assertNull(consumer.poll(100, TimeUnit.MILLISECONDS));
+
+         assertEquals(server.takeRequest().getRequestLine(), "POST /tokens HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "GET /v1/123123/queues/jclouds-test/messages?limit=2 HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "GET /v1/123123/queues/jclouds-test/messages?limit=2&marker=4508 HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "GET /v1/123123/queues/jclouds-test/messages?limit=2&marker=4508 HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "GET /v1/123123/queues/jclouds-test/messages?limit=2&marker=4509 HTTP/1.1");
+      }
+      finally {
+         if (consumer != null) {
+            consumer.close();
+         }
+         // release a stream request that may still be waiting on the server
+         server.enqueue(new MockResponse().setResponseCode(204));
+         server.shutdown();
+      }
+   }
+
+   public void resumeFromMarker() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(new MockResponse().setBody(accessRackspace));
+      server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"messages\": [{\"body\": \"{\\\"n\\\":3}\", \"age\": 8071, \"href\": \"/v1/queues/jclouds-test/messages/526ec640f4919b69a7bc558e\", \"ttl\": 86400}], \"links\": [{\"href\": \"/v1/queues/jclouds-test/messages?marker=4509&limit=10\", \"rel\": \"next\"}]}"));
+      server.enqueue(new MockResponse().setResponseCode(204));
+
+      MessageConsumer consumer = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         MessageApi messageApi = api.getMessageApi("DFW", CLIENT_ID, "jclouds-test");
+
+         consumer = MessageConsumer.builder(messageApi)
+               .marker("4508")
+               .echo(true)
+               .backoff(1, 1, TimeUnit.SECONDS)
+               .build()
+               .start();
+
+         assertEquals(consumer.getMarker().get(), "4508");
+         assertEquals(consumer.take().getId(), "526ec640f4919b69a7bc558e");
+         assertEquals(consumer.getMarker().get(), "4509");
+
+         assertEquals(server.takeRequest().getRequestLine(), "POST /tokens HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "GET /v1/123123/queues/jclouds-test/messages?limit=10&marker=4508&echo=true HTTP/1.1");
+      }
+      finally {
+         if (consumer != null) {
+            consumer.close();
+         }
+         // release a stream request that may still be waiting on the server
+         server.enqueue(new MockResponse().setResponseCode(204));
+         server.shutdown();
+      }
+   }
+}
@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.dedup;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import org.jclouds.openstack.marconi.v1.MarconiApi;
+import org.jclouds.openstack.marconi.v1.consumer.MessageConsumer;
+import org.jclouds.openstack.marconi.v1.domain.CreateMessage;
+import org.jclouds.openstack.marconi.v1.domain.Message;
+import org.jclouds.openstack.marconi.v1.features.MessageApi;
+import org.jclouds.openstack.marconi.v1.internal.FakeTicker;
+import org.jclouds.openstack.marconi.v1.internal.InMemoryMarconiDispatcher;
+import org.jclouds.openstack.marconi.v1.worker.ClaimWorkerPool;
+import org.jclouds.openstack.marconi.v1.worker.MessageHandler;
+import org.jclouds.openstack.v2_0.internal.BaseOpenStackMockTest;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class DedupIndexMockTest extends BaseOpenStackMockTest<MarconiApi> {
+   private static final UUID PRODUCER_ID = UUID.fromString("3381af92-2b9e-11e3-b191-71861300734c");
+   private static final UUID CONSUMER_ID = UUID.fromString("3381af92-2b9e-11e3-b191-71861300734d");
+
+   public void idsExpireAndTheOldestAreEvicted() {
+      FakeTicker ticker = new FakeTicker();
+      DedupIndex index = DedupIndex.builder().capacity(3).ttl(10, TimeUnit.SECONDS).ticker(ticker).build();
+
+      assertTrue(index.markHandled("526ec640f4919b69a7bc558f"));
+      assertTrue(index.markHandled("526ec640f4919b69a7bc5590"));
+      assertTrue(index.markHandled("a-message-id-that-is-not-hex"));
+      assertFalse(index.markHandled("526ec640f4919b69a7bc558f"));
+      assertFalse(index.markHandled("a-message-id-that-is-not-hex"));
+
+      ticker.advance(5, TimeUnit.SECONDS);
+      assertTrue(index.markHandled("526ec640f4919b69a7bc5591"));
+      assertFalse(index.contains("526ec640f4919b69a7bc558f"), "the oldest id is evicted when the index is full");
+      assertTrue(index.contains("526ec640f4919b69a7bc5590"));
+      assertEquals(index.size(), 3);
+
+      ticker.advance(6, TimeUnit.SECONDS);
+      assertFalse(index.contains("526ec640f4919b69a7bc5590"));
+      assertFalse(index.contains("a-message-id-that-is-not-hex"));
+      assertTrue(index.contains("526ec640f4919b69a7bc5591"));
+      assertEquals(index.size(), 1);
+   }
+
+   public void manyIdsStayFindableAsOldOnesAreEvicted() {
+      DedupIndex index = DedupIndex.builder().capacity(10000).build();
+      for (int i = 0; i < 25000; i++) {
+         assertTrue(index.markHandled(String.format("%024x", i * 7919L)));
+      }
+      for (int i = 0; i < 25000; i++) {
+         assertEquals(index.contains(String.format("%024x", i * 7919L)), i >= 15000, Integer.toString(i));
+      }
+   }
+
+   public void persistsAcrossRestarts() throws Exception {
+      FakeTicker ticker = new FakeTicker();
+      DedupIndex index = DedupIndex.builder().ttl(1, TimeUnit.HOURS).ticker(ticker).build();
+      index.markHandled("526ec640f4919b69a7bc558f");
+      ticker.advance(30, TimeUnit.MINUTES);
+      index.markHandled("a-message-id-that-is-not-hex");
+
+      ByteArrayOutputStream saved = new ByteArrayOutputStream();
+      index.writeTo(saved);
+
+      FakeTicker restarted = new FakeTicker();
+      DedupIndex loaded = DedupIndex.builder().ttl(1, TimeUnit.HOURS).ticker(restarted).build();
+      assertEquals(loaded.readFrom(new ByteArrayInputStream(saved.toByteArray())), 2);
+      assertTrue(loaded.contains("526ec640f4919b69a7bc558f"));
+      assertTrue(loaded.contains("a-message-id-that-is-not-hex"));
+      assertFalse(loaded.contains("526ec640f4919b69a7bc5590"));
+
+      // the remaining time to live is kept
+      restarted.advance(31, TimeUnit.MINUTES);
+      assertFalse(loaded.contains("526ec640f4919b69a7bc558f"));
+      assertTrue(loaded.contains("a-message-id-that-is-not-hex"));
+   }
+
+   public void workersSkipMessagesHandledBefore() throws Exception {
+      InMemoryMarconiDispatcher marconi = new InMemoryMarconiDispatcher(accessRackspace);
+      MockWebServer server = marconi.start();
+
+      ClaimWorkerPool pool = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         api.getQueueApi("DFW", PRODUCER_ID).create("jclouds-test");
+         api.getMessageApi("DFW", PRODUCER_ID, "jclouds-test").create(messages(10));
+         MessageApi messageApi = api.getMessageApi("DFW", CONSUMER_ID, "jclouds-test");
+
+         // as if a previous run handled these but its claim expired before they were deleted
+         DedupIndex dedup = DedupIndex.builder().build();
+         List<Message> stored = messageApi.stream().toList();
+         for (Message message : stored.subList(0, 4)) {
+            dedup.markHandled(message.getId());
+         }
+
+         final Set<String> handled = Sets.newConcurrentHashSet();
+         final CountDownLatch done = new CountDownLatch(6);
+         pool = ClaimWorkerPool.builder(api.getClaimApi("DFW", CONSUMER_ID, "jclouds-test"), messageApi)
+               .limit(5)
+               .idle(10, 50, TimeUnit.MILLISECONDS)
+               .dedup(dedup)
+               .handler(new MessageHandler() {
+                  @Override
+                  public void handle(Message message) {
+                     handled.add(message.getId());
+                     done.countDown();
+                  }
+               })
+               .build()
+               .start();
+
+         assertTrue(done.await(30, TimeUnit.SECONDS));
+         assertTrue(pool.close(10, TimeUnit.SECONDS));
+         assertEquals(handled.size(), 6);
+         assertEquals(pool.getStats().getDuplicates(), 4);
+         for (Message message : stored.subList(0, 4)) {
+            assertFalse(handled.contains(message.getId()));
+         }
+         assertEquals(marconi.countMessages("jclouds-test"), 0);
+         assertEquals(dedup.size(), 10);
+      }
+      finally {
+         if (pool != null) {
+            pool.close();
+         }
+         server.shutdown();
+      }
+   }
+
+   public void consumerSkipsMessagesHandedOutBefore() throws Exception {
+      MockWebServer server = new InMemoryMarconiDispatcher(accessRackspace).start();
+
+      MessageConsumer consumer = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         api.getQueueApi("DFW", PRODUCER_ID).create("jclouds-test");
+         api.getMessageApi("DFW", PRODUCER_ID, "jclouds-test").create(messages(5));
+         MessageApi messageApi = api.getMessageApi("DFW", CONSUMER_ID, "jclouds-test");
+
+         DedupIndex dedup = DedupIndex.builder().build();
+         List<Message> stored = messageApi.stream().toList();
+         dedup.markHandled(stored.get(0).getId());
+         dedup.markHandled(stored.get(3).getId());
+
+         consumer = MessageConsumer.builder(messageApi).dedup(dedup).build().start();
+         assertEquals(consumer.take().getId(), stored.get(1).getId());
+         assertEquals(consumer.take().getId(), stored.get(2).getId());
+         assertEquals(consumer.take().getId(), stored.get(4).getId());
+         assertNull(consumer.poll(200, TimeUnit.MILLISECONDS));
+         assertEquals(dedup.size(), 5);
+      }
+      finally {
+         if (consumer != null) {
+            consumer.close();
+         }
+         server.shutdown();
+      }
+   }
+
+   private static List<CreateMessage> messages(int count) {
+      List<CreateMessage> messages = Lists.newArrayList();
+      for (int i = 0; i < count; i++) {
+         messages.add(CreateMessage.builder().ttl(120).body("{\"n\":" + i + "}").build());
+      }
+      return messages;
+   }
+}
@@ -16,11 +16,15 @@
  */
 package org.jclouds.openstack.marconi.v1.features;
 
+import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.squareup.okhttp.mockwebserver.MockResponse;
 import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import org.jclouds.http.HttpResponseException;
 import org.jclouds.openstack.marconi.v1.MarconiApi;
+import org.jclouds.openstack.marconi.v1.config.MarconiProperties;
 import org.jclouds.openstack.marconi.v1.domain.CreateMessage;
 import org.jclouds.openstack.marconi.v1.domain.Message;
 import org.jclouds.openstack.marconi.v1.domain.MessageStream;
@@ -29,6 +33,7 @@ import org.jclouds.openstack.v2_0.internal.BaseOpenStackMockTest;
 import org.testng.annotations.Test;
 
 import java.util.List;
+import java.util.Properties;
 import java.util.UUID;
 
 import static org.jclouds.openstack.marconi.v1.options.StreamMessagesOptions.Builder.limit;
@@ -36,6 +41,7 @@ import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 @Test
 public class MessageApiMockTest extends BaseOpenStackMockTest<MarconiApi> {
@@ -103,6 +109,35 @@ public class MessageApiMockTest extends BaseOpenStackMockTest<MarconiApi> {
       }
    }
 
+   public void createMessagesWithRawBody() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(new MockResponse().setBody(accessRackspace));
+      server.enqueue(new MockResponse().setResponseCode(201).setBody("{\"partial\": false, \"resources\": [\"/v1/queues/jclouds-test/messages/5265540ef4919b655da1760a\", \"/v1/queues/jclouds-test/messages/5265540ef4919b655da1760b\"]}"));
+
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         MessageApi messageApi = api.getMessageApi("DFW", CLIENT_ID, "jclouds-test");
+
+         byte[] json = "{\"event\":{\"name\":\"Austin Java User Group\"}}".getBytes(Charsets.UTF_8);
+         List<CreateMessage> createMessages = ImmutableList.of(
+               CreateMessage.builder().ttl(120).rawBody(json).build(),
+               CreateMessage.builder().ttl(60).body("{\"n\":2}").build());
+
+         MessagesCreated messagesCreated = messageApi.create(createMessages);
+
+         assertEquals(messagesCreated.getMessageIds().size(), 2);
+
+         assertEquals(server.getRequestCount(), 2);
+         assertEquals(server.takeRequest().getRequestLine(), "POST /tokens HTTP/1.1");
+         RecordedRequest request = server.takeRequest();
+         assertEquals(request.getRequestLine(), "POST /v1/123123/queues/jclouds-test/messages HTTP/1.1");
+         assertEquals(request.getUtf8Body(), "[{\"ttl\":120,\"body\":{\"event\":{\"name\":\"Austin Java User Group\"}}},{\"ttl\":60,\"body\":\"{\\\"n\\\":2}\"}]");
+      }
+      finally {
+         server.shutdown();
+      }
+   }
+
    public void streamZeroPagesOfMessages() throws Exception {
       MockWebServer server = mockOpenStackServer();
       server.enqueue(new MockResponse().setBody(accessRackspace));
@@ -156,6 +191,70 @@ public class MessageApiMockTest extends BaseOpenStackMockTest<MarconiApi> {
       }
    }
 
+   public void streamMessagesWithRawBodies() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(new MockResponse().setBody(accessRackspace));
+      server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"messages\": [{\"body\": \"{\\\"event\\\":{\\\"name\\\":\\\"Caf\\u00e9 Java User Group\\\"}}\", \"age\": 8071, \"href\": \"/v1/queues/jclouds-test/messages/526ec640f4919b69a7bc558f\", \"ttl\": 86400}, {\"body\": {\"event\": {\"name\": \"Austin Java User Group\", \"tags\": [\"a]\", \"b}\"]}}, \"age\": 8070, \"href\": \"/v1/queues/jclouds-test/messages/526ec640f4919b69a7bc5590?claim_id=52a8d23eb04a584f1bbd4f47\", \"ttl\": 86400}], \"links\": [{\"href\": \"/v1/queues/jclouds-test/messages?marker=4510&limit=2\", \"rel\": \"next\"}]}"));
+
+      try {
+         Properties overrides = new Properties();
+         overrides.setProperty(MarconiProperties.RAW_MESSAGE_BODIES, "true");
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi", overrides);
+         MessageApi messageApi = api.getMessageApi("DFW", CLIENT_ID, "jclouds-test");
+
+         MessageStream messageStream = messageApi.stream(limit(2));
+
+         assertEquals(messageStream.size(), 2);
+         Message stringBody = messageStream.get(0);
+         assertEquals(stringBody.getId(), "526ec640f4919b69a7bc558f");
+         assertEquals(Charsets.UTF_8.decode(stringBody.getRawBody().get()).toString(),
+               "\"{\\\"event\\\":{\\\"name\\\":\\\"Caf\\u00e9 Java User Group\\\"}}\"");
+         assertEquals(stringBody.getBody(), "{\"event\":{\"name\":\"Caf\u00e9 Java User Group\"}}");
+
+         Message objectBody = messageStream.get(1);
+         assertEquals(objectBody.getId(), "526ec640f4919b69a7bc5590");
+         assertEquals(objectBody.getClaimId().get(), "52a8d23eb04a584f1bbd4f47");
+         assertEquals(objectBody.getTTL(), 86400);
+         assertEquals(objectBody.getAge(), 8070);
+         assertTrue(objectBody.getRawBody().get().isReadOnly());
+         assertEquals(objectBody.getBody(), "{\"event\": {\"name\": \"Austin Java User Group\", \"tags\": [\"a]\", \"b}\"]}}");
+         assertEquals(messageStream.nextStreamOptions().buildQueryParameters().get("marker"), ImmutableList.of("4510"));
+      }
+      finally {
+         server.shutdown();
+      }
+   }
+
+   public void rejectMalformedRawBodies() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(new MockResponse().setBody(accessRackspace));
+      server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"messages\": [{\"body\": {\"a\": 1], \"age\": 8070, \"href\": \"/v1/queues/jclouds-test/messages/526ec640f4919b69a7bc5590\", \"ttl\": 86400}]}"));
+      server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"messages\": [{\"body\": \"\\x\", \"age\": 8070, \"href\": \"/v1/queues/jclouds-test/messages/526ec640f4919b69a7bc5590\", \"ttl\": 86400}]}"));
+      server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"messages\": [{\"body\": [01], \"age\": 8070, \"href\": \"/v1/queues/jclouds-test/messages/526ec640f4919b69a7bc5590\", \"ttl\": 86400}]}"));
+
+      try {
+         Properties overrides = new Properties();
+         overrides.setProperty(MarconiProperties.RAW_MESSAGE_BODIES, "true");
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi", overrides);
+         MessageApi messageApi = api.getMessageApi("DFW", CLIENT_ID, "jclouds-test");
+
+         for (String error : ImmutableList.of("Expected ',' at offset 30 path $.messages[0].body.",
+               "Invalid escape sequence at offset 23 path $.messages[0].body",
+               "Malformed number at offset 24 path $.messages[0].body[0]")) {
+            try {
+               messageApi.stream(limit(1));
+               fail("Expected an HttpResponseException");
+            }
+            catch (HttpResponseException e) {
+               assertTrue(e.getMessage().contains(error), e.getMessage());
+            }
+         }
+      }
+      finally {
+         server.shutdown();
+      }
+   }
+
    public void streamManyPagesOfMessages() throws Exception {
       MockWebServer server = mockOpenStackServer();
       server.enqueue(new MockResponse().setBody(accessRackspace));
@@ -245,6 +344,28 @@ public class MessageApiMockTest extends BaseOpenStackMockTest<MarconiApi> {
       }
    }
 
+   public void getMessageWithObjectBodyAndClaim() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(new MockResponse().setBody(accessRackspace));
+      server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"body\": {\"event\": {\"name\": \"Edmonton Java User Group\"}}, \"age\": 266, \"href\": \"/v1/queues/jclouds-test/messages/5292b30cef913e6d026f4dec?claim_id=5292b30cef913e6d026f4ded&extra=1\", \"ttl\": 86400}"));
+
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         MessageApi messageApi = api.getMessageApi("DFW", CLIENT_ID, "jclouds-test");
+
+         Message message = messageApi.get("5292b30cef913e6d026f4dec");
+
+         assertEquals(message.getId(), "5292b30cef913e6d026f4dec");
+         assertEquals(message.getClaimId().get(), "5292b30cef913e6d026f4ded");
+         assertEquals(message.getBody(), "{\"event\":{\"name\":\"Edmonton Java User Group\"}}");
+         assertEquals(message.getAge(), 266);
+         assertEquals(message.getTTL(), 86400);
+      }
+      finally {
+         server.shutdown();
+      }
+   }
+
    public void deleteMessages() throws Exception {
       MockWebServer server = mockOpenStackServer();
       server.enqueue(new MockResponse().setBody(accessRackspace));
@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.functions;
+
+import com.google.common.base.Charsets;
+import com.google.gson.stream.MalformedJsonException;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+@Test
+public class ByteArrayJsonReaderTest {
+
+   public void readLongs() throws IOException {
+      ByteArrayJsonReader reader = reader("[0, -7, 9223372036854775807, -9223372036854775808, 1.0, 12e2, \"42\"]");
+      reader.beginArray();
+      assertEquals(reader.nextLong(), 0L);
+      assertEquals(reader.nextLong(), -7L);
+      assertEquals(reader.nextLong(), Long.MAX_VALUE);
+      assertEquals(reader.nextLong(), Long.MIN_VALUE);
+      assertEquals(reader.nextLong(), 1L);
+      assertEquals(reader.nextLong(), 1200L);
+      assertEquals(reader.nextLong(), 42L);
+      reader.endArray();
+   }
+
+   public void readLongsBeyondDoublePrecision() throws IOException {
+      ByteArrayJsonReader reader = reader("[1234567890123456789.0, 1234567890123456789e0]");
+      reader.beginArray();
+      assertEquals(reader.nextLong(), 1234567890123456789L);
+      assertEquals(reader.nextLong(), 1234567890123456789L);
+      reader.endArray();
+   }
+
+   public void rejectLongsOutOfRange() throws IOException {
+      for (String number : new String[] { "9223372036854775808", "-9223372036854775809", "9999999999999999999",
+            "99999999999999999999", "1e19", "1.5" }) {
+         ByteArrayJsonReader reader = reader("[" + number + "]");
+         reader.beginArray();
+         try {
+            reader.nextLong();
+            fail("expected " + number + " to be rejected");
+         }
+         catch (NumberFormatException e) {
+            assertTrue(e.getMessage().contains(number), e.getMessage());
+         }
+      }
+   }
+
+   public void rejectIntsOutOfRange() throws IOException {
+      ByteArrayJsonReader reader = reader("[2147483647, 2147483648]");
+      reader.beginArray();
+      assertEquals(reader.nextInt(), Integer.MAX_VALUE);
+      try {
+         reader.nextInt();
+         fail("expected 2147483648 to be rejected");
+      }
+      catch (NumberFormatException e) {
+         assertTrue(e.getMessage().contains("2147483648"), e.getMessage());
+      }
+   }
+
+   public void rejectMalformedNumbers() throws IOException {
+      for (String number : new String[] { "-", "01", "1.", "1e", "1e+", "1x" }) {
+         assertMalformed("{\"ttl\": " + number + "}", "Malformed number");
+      }
+   }
+
+   public void readEscapes() throws IOException {
+      ByteArrayJsonReader reader = reader("[\"a\\\"b\\\\c\\/d\\b\\f\\n\\r\\t\\u00e9\"]");
+      reader.beginArray();
+      assertEquals(reader.nextString(), "a\"b\\c/d\b\f\n\r\t\u00e9");
+      reader.endArray();
+   }
+
+   public void rejectBadEscapes() throws IOException {
+      assertMalformed("{\"body\": \"a\\qb\"}", "Invalid escape sequence");
+      assertMalformed("{\"body\": \"\\u00g1\"}", "Malformed unicode escape");
+      assertMalformed("{\"body\": \"\\u00", "Unterminated escape sequence");
+   }
+
+   public void rejectTruncatedInput() throws IOException {
+      assertMalformed("{\"body\": \"abc", "Unterminated string");
+      assertMalformed("{\"body\": \"abc\\", "Unterminated string");
+      assertMalformed("{\"body\": tru", "Expected a boolean");
+      assertMalformed("{\"body\": [1, 2", "End of input");
+      assertMalformed("{\"body\": 1", "End of input");
+      assertMalformed("{\"body\": 1,", "End of input");
+      assertMalformed("{\"bo", "Unterminated string");
+   }
+
+   public void rejectBadRawValues() throws IOException {
+      for (String body : new String[] { "{\"a\": \"\\x\"}", "[1, 2", "{\"a\" 1}", "[01]" }) {
+         ByteArrayJsonReader reader = reader("{\"body\": " + body + "}");
+         reader.beginObject();
+         assertEquals(reader.nextName(), "body");
+         try {
+            reader.nextRawValue();
+            fail("expected " + body + " to be rejected");
+         }
+         catch (MalformedJsonException e) {
+            assertTrue(e.getMessage().contains("path $.body"), e.getMessage());
+         }
+      }
+   }
+
+   private static void assertMalformed(String json, String message) throws IOException {
+      ByteArrayJsonReader reader = reader(json);
+      try {
+         reader.beginObject();
+         while (reader.hasNext()) {
+            reader.nextName();
+            reader.skipValue();
+         }
+         reader.endObject();
+         fail("expected " + json + " to be rejected");
+      }
+      catch (MalformedJsonException e) {
+         assertTrue(e.getMessage().startsWith(message), e.getMessage());
+      }
+   }
+
+   private static ByteArrayJsonReader reader(String json) {
+      return new ByteArrayJsonReader(json.getBytes(Charsets.UTF_8));
+   }
+}
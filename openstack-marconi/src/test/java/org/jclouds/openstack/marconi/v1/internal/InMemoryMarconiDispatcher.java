@@ -0,0 +1,686 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.internal;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An in-memory stand-in for a Marconi v1 endpoint, served by a {@code MockWebServer} from {@link #start()}.
+ * <p/>
+ * Unlike the canned responses of the other mock tests, requests are answered from real state: queues with metadata
+ * and stats, messages with TTLs, markers and echo/include_claimed filtering, and claims with TTL and grace that
+ * expire and can be renewed or released. Keystone {@code POST /tokens} is answered with the given access document,
+ * pointing every endpoint back at the server that received the request.
+ * <p/>
+ * Time is read from a {@link Ticker} so tests can expire messages and claims without sleeping. All requests are
+ * serialized on the dispatcher, which keeps claim semantics exact under concurrent clients.
+ */
+public class InMemoryMarconiDispatcher extends Dispatcher {
+   private static final Pattern URL_TOKEN = Pattern.compile(":\\s*\"\\s*URL");
+   private static final Pattern QUEUE_NAME = Pattern.compile("[a-zA-Z0-9_-]{1,64}");
+   private static final int DEFAULT_LIMIT = 10;
+   private static final int MAX_LIMIT = 20;
+   private static final int MAX_MESSAGES_PER_POST = 10;
+   private static final int MIN_TTL = 60;
+   private static final int MAX_MESSAGE_TTL = 1209600;
+   private static final int MAX_CLAIM_TTL = 43200;
+
+   private final String access;
+   private final Ticker ticker;
+   private final long startNanos;
+   private final long startMillis = System.currentTimeMillis();
+   private final NavigableMap<String, QueueState> queues = new TreeMap<String, QueueState>();
+   private long nextSequence = 1;
+   private volatile int unavailableStatus;
+
+   public InMemoryMarconiDispatcher(String access) {
+      this(access, Ticker.systemTicker());
+   }
+
+   /**
+    * @param access The Keystone access document returned for {@code POST /tokens}, with {@code "URL"} placeholders.
+    * @param ticker The source of time for message and claim expiry.
+    */
+   public InMemoryMarconiDispatcher(String access, Ticker ticker) {
+      this.access = checkNotNull(access, "access");
+      this.ticker = checkNotNull(ticker, "ticker");
+      this.startNanos = ticker.read();
+   }
+
+   /**
+    * @return A started server that answers every request with this dispatcher.
+    */
+   public MockWebServer start() throws IOException {
+      MockWebServer server = new MockWebServer();
+      server.setDispatcher(this);
+      server.play();
+      return server;
+   }
+
+   /**
+    * @return The number of live messages in a queue, claimed or not, or -1 if the queue does not exist.
+    */
+   public synchronized int countMessages(String queue) {
+      QueueState state = queues.get(queue);
+      if (state == null) {
+         return -1;
+      }
+      state.purge(ticker.read());
+      return state.messages.size();
+   }
+
+   /**
+    * Makes every queue request fail with the given status, such as 503, until it is called with 0. Keystone keeps
+    * answering, as in an outage of the queue service alone.
+    */
+   public void setUnavailable(int status) {
+      checkArgument(status == 0 || status >= 400, "status must be 0 or an error");
+      this.unavailableStatus = status;
+   }
+
+   @Override
+   public synchronized MockResponse dispatch(RecordedRequest request) {
+      String method = request.getMethod();
+      String path = request.getPath();
+      int q = path.indexOf('?');
+      Map<String, String> params = parseQuery(q < 0 ? null : path.substring(q + 1));
+      List<String> segments = Splitter.on('/').omitEmptyStrings().splitToList(q < 0 ? path : path.substring(0, q));
+
+      if ("POST".equals(method) && segments.equals(ImmutableList.of("tokens"))) {
+         String url = "http://" + request.getHeader("Host");
+         return json(200, URL_TOKEN.matcher(access).replaceAll(": \"" + url));
+      }
+      if (unavailableStatus != 0) {
+         return status(unavailableStatus);
+      }
+      // v1/{project}/queues[/{name}[/{resource}[/{id}]]]
+      if (segments.size() < 3 || !"v1".equals(segments.get(0)) || !"queues".equals(segments.get(2))) {
+         return status(404);
+      }
+
+      try {
+         long now = ticker.read();
+         if (segments.size() == 3) {
+            return "GET".equals(method) ? listQueues(params) : status(405);
+         }
+         String name = segments.get(3);
+         if (segments.size() == 4) {
+            return queue(method, name);
+         }
+
+         QueueState queue = queues.get(name);
+         if (queue == null) {
+            return status(404);
+         }
+         queue.purge(now);
+
+         String resource = segments.get(4);
+         String id = segments.size() > 5 ? segments.get(5) : null;
+         if ("metadata".equals(resource) && id == null) {
+            return metadata(method, queue, request);
+         }
+         else if ("stats".equals(resource) && id == null && "GET".equals(method)) {
+            return stats(queue, now);
+         }
+         else if ("messages".equals(resource)) {
+            return messages(method, queue, id, params, request, now);
+         }
+         else if ("claims".equals(resource)) {
+            return claims(method, queue, id, params, request, now);
+         }
+         return status(404);
+      }
+      catch (BadRequest e) {
+         return json(400, "{\"title\": \"Invalid API call\", \"description\": \"" + e.getMessage() + "\"}");
+      }
+   }
+
+   private MockResponse queue(String method, String name) {
+      if ("PUT".equals(method)) {
+         if (!QUEUE_NAME.matcher(name).matches()) {
+            throw new BadRequest("invalid queue name " + name);
+         }
+         if (queues.containsKey(name)) {
+            return status(204);
+         }
+         queues.put(name, new QueueState(name));
+         return status(201).addHeader("Location", "/v1/queues/" + name);
+      }
+      else if ("DELETE".equals(method)) {
+         queues.remove(name);
+         return status(204);
+      }
+      else if ("GET".equals(method) || "HEAD".equals(method)) {
+         return status(queues.containsKey(name) ? 204 : 404);
+      }
+      return status(405);
+   }
+
+   private MockResponse listQueues(Map<String, String> params) {
+      int limit = limit(params);
+      boolean detailed = Boolean.parseBoolean(params.get("detailed"));
+      String marker = params.get("marker");
+
+      Map<String, QueueState> page = marker == null ? queues : queues.tailMap(marker, false);
+      JsonArray array = new JsonArray();
+      String last = null;
+      for (QueueState queue : page.values()) {
+         if (array.size() == limit) {
+            break;
+         }
+         JsonObject json = new JsonObject();
+         json.addProperty("href", "/v1/queues/" + queue.name);
+         json.addProperty("name", queue.name);
+         if (detailed) {
+            json.add("metadata", queue.metadata);
+         }
+         array.add(json);
+         last = queue.name;
+      }
+      if (last == null) {
+         return status(204);
+      }
+
+      JsonObject body = new JsonObject();
+      body.add("queues", array);
+      body.add("links", nextLink("/v1/queues?marker=" + last + "&limit=" + limit + "&detailed=" + detailed));
+      return json(200, body);
+   }
+
+   private MockResponse metadata(String method, QueueState queue, RecordedRequest request) {
+      if ("GET".equals(method)) {
+         return json(200, queue.metadata);
+      }
+      else if ("PUT".equals(method)) {
+         JsonElement metadata = parse(request);
+         if (!metadata.isJsonObject()) {
+            throw new BadRequest("metadata must be a JSON object");
+         }
+         queue.metadata = metadata.getAsJsonObject();
+         return status(204);
+      }
+      return status(405);
+   }
+
+   private MockResponse stats(QueueState queue, long now) {
+      int claimed = 0;
+      for (StoredMessage message : queue.messages.values()) {
+         if (message.claim != null) {
+            claimed++;
+         }
+      }
+      JsonObject messages = new JsonObject();
+      messages.addProperty("claimed", claimed);
+      messages.addProperty("free", queue.messages.size() - claimed);
+      messages.addProperty("total", queue.messages.size());
+      if (!queue.messages.isEmpty()) {
+         messages.add("oldest", aged(queue, queue.messages.firstEntry().getValue(), now));
+         messages.add("newest", aged(queue, queue.messages.lastEntry().getValue(), now));
+      }
+      JsonObject body = new JsonObject();
+      body.add("messages", messages);
+      return json(200, body);
+   }
+
+   private MockResponse messages(String method, QueueState queue, String id, Map<String, String> params,
+         RecordedRequest request, long now) {
+      if (id != null) {
+         StoredMessage message = queue.find(id);
+         if ("GET".equals(method)) {
+            return message == null ? status(404) : json(200, toJson(queue, message, now, false));
+         }
+         else if ("DELETE".equals(method)) {
+            if (message == null) {
+               return status(204);
+            }
+            String claimId = params.get("claim_id");
+            String owner = message.claim == null ? null : message.claim.id;
+            if (claimId == null ? owner != null : !claimId.equals(owner)) {
+               return json(403, "{\"title\": \"Unable to delete\", \"description\": \"claim mismatch\"}");
+            }
+            queue.remove(message);
+            return status(204);
+         }
+         return status(405);
+      }
+
+      if ("POST".equals(method)) {
+         return create(queue, request, now);
+      }
+      else if ("GET".equals(method) && params.containsKey("ids")) {
+         JsonArray array = new JsonArray();
+         for (String each : ids(params)) {
+            StoredMessage message = queue.find(each);
+            if (message != null) {
+               array.add(toJson(queue, message, now, false));
+            }
+         }
+         return array.size() == 0 ? status(204) : json(200, array);
+      }
+      else if ("GET".equals(method)) {
+         return stream(queue, params, clientId(request), now);
+      }
+      else if ("DELETE".equals(method) && params.containsKey("ids")) {
+         for (String each : ids(params)) {
+            StoredMessage message = queue.find(each);
+            if (message != null) {
+               queue.remove(message);
+            }
+         }
+         return status(204);
+      }
+      return status(405);
+   }
+
+   private MockResponse create(QueueState queue, RecordedRequest request, long now) {
+      String clientId = clientId(request);
+      JsonElement json = parse(request);
+      if (!json.isJsonArray() || json.getAsJsonArray().size() == 0
+            || json.getAsJsonArray().size() > MAX_MESSAGES_PER_POST) {
+         throw new BadRequest("expected an array of 1 to " + MAX_MESSAGES_PER_POST + " messages");
+      }
+
+      List<StoredMessage> created = Lists.newArrayList();
+      for (JsonElement element : json.getAsJsonArray()) {
+         JsonObject object = element.getAsJsonObject();
+         if (!object.has("body") || !object.has("ttl")) {
+            throw new BadRequest("messages require body and ttl");
+         }
+         int ttl = ttl(object.get("ttl"), MAX_MESSAGE_TTL);
+         created.add(new StoredMessage(nextSequence++, object.get("body"), ttl, now, clientId));
+      }
+
+      JsonArray resources = new JsonArray();
+      StringBuilder ids = new StringBuilder();
+      for (StoredMessage message : created) {
+         queue.messages.put(message.sequence, message);
+         resources.add(new JsonParser().parse("\"" + queue.href(message) + "\""));
+         ids.append(ids.length() == 0 ? "" : ",").append(message.id);
+      }
+      JsonObject body = new JsonObject();
+      body.addProperty("partial", false);
+      body.add("resources", resources);
+      return json(201, body).addHeader("Location", "/v1/queues/" + queue.name + "/messages?ids=" + ids);
+   }
+
+   private MockResponse stream(QueueState queue, Map<String, String> params, String clientId, long now) {
+      int limit = limit(params);
+      boolean echo = Boolean.parseBoolean(params.get("echo"));
+      boolean includeClaimed = Boolean.parseBoolean(params.get("include_claimed"));
+      long marker = 0;
+      if (params.containsKey("marker")) {
+         try {
+            marker = Long.parseLong(params.get("marker"));
+         }
+         catch (NumberFormatException e) {
+            throw new BadRequest("invalid marker " + params.get("marker"));
+         }
+      }
+
+      JsonArray array = new JsonArray();
+      long last = marker;
+      for (StoredMessage message : queue.messages.tailMap(marker, false).values()) {
+         if (array.size() == limit) {
+            break;
+         }
+         if (!echo && message.clientId.equals(clientId)) {
+            continue;
+         }
+         if (!includeClaimed && message.claim != null) {
+            continue;
+         }
+         array.add(toJson(queue, message, now, false));
+         last = message.sequence;
+      }
+      if (array.size() == 0) {
+         return status(204);
+      }
+
+      StringBuilder next = new StringBuilder("/v1/queues/").append(queue.name).append("/messages?marker=")
+            .append(last).append("&limit=").append(limit);
+      if (params.containsKey("echo")) {
+         next.append("&echo=").append(echo);
+      }
+      if (params.containsKey("include_claimed")) {
+         next.append("&include_claimed=").append(includeClaimed);
+      }
+      JsonObject body = new JsonObject();
+      body.add("messages", array);
+      body.add("links", nextLink(next.toString()));
+      return json(200, body);
+   }
+
+   private MockResponse claims(String method, QueueState queue, String id, Map<String, String> params,
+         RecordedRequest request, long now) {
+      if (id == null) {
+         return "POST".equals(method) ? claim(queue, params, request, now) : status(405);
+      }
+
+      ClaimState claim = queue.claims.get(id);
+      if ("DELETE".equals(method)) {
+         if (claim != null) {
+            queue.release(claim);
+         }
+         return status(204);
+      }
+      else if (claim == null) {
+         return status(404);
+      }
+      else if ("GET".equals(method)) {
+         JsonObject body = new JsonObject();
+         body.addProperty("age", seconds(now - claim.updatedNanos));
+         body.addProperty("ttl", claim.ttl);
+         body.addProperty("href", "/v1/queues/" + queue.name + "/claims/" + claim.id);
+         body.add("messages", claimedMessages(queue, claim, now));
+         return json(200, body);
+      }
+      else if ("PATCH".equals(method)) {
+         JsonObject update = parse(request).getAsJsonObject();
+         claim.ttl = ttl(update.get("ttl"), MAX_CLAIM_TTL);
+         claim.updatedNanos = now;
+         queue.extend(claim, now);
+         return status(204);
+      }
+      return status(405);
+   }
+
+   private MockResponse claim(QueueState queue, Map<String, String> params, RecordedRequest request, long now) {
+      int limit = limit(params);
+      JsonObject options = parse(request).getAsJsonObject();
+      int ttl = ttl(options.get("ttl"), MAX_CLAIM_TTL);
+      int grace = ttl(options.get("grace"), MAX_CLAIM_TTL);
+
+      ClaimState claim = new ClaimState(String.format("%024x", nextSequence++), ttl, grace, now);
+      for (StoredMessage message : queue.messages.values()) {
+         if (claim.messages.size() == limit) {
+            break;
+         }
+         if (message.claim == null) {
+            message.claim = claim;
+            claim.messages.add(message);
+         }
+      }
+      if (claim.messages.isEmpty()) {
+         return status(204);
+      }
+      queue.claims.put(claim.id, claim);
+      queue.extend(claim, now);
+      return json(201, claimedMessages(queue, claim, now))
+            .addHeader("Location", "/v1/queues/" + queue.name + "/claims/" + claim.id);
+   }
+
+   private JsonArray claimedMessages(QueueState queue, ClaimState claim, long now) {
+      JsonArray array = new JsonArray();
+      for (StoredMessage message : claim.messages) {
+         array.add(toJson(queue, message, now, true));
+      }
+      return array;
+   }
+
+   private JsonObject toJson(QueueState queue, StoredMessage message, long now, boolean withClaim) {
+      JsonObject json = new JsonObject();
+      String href = queue.href(message);
+      json.addProperty("href", withClaim ? href + "?claim_id=" + message.claim.id : href);
+      json.addProperty("ttl", message.ttl);
+      json.addProperty("age", seconds(now - message.createdNanos));
+      json.add("body", message.body);
+      return json;
+   }
+
+   private JsonObject aged(QueueState queue, StoredMessage message, long now) {
+      SimpleDateFormat iso8601 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+      iso8601.setTimeZone(TimeZone.getTimeZone("UTC"));
+      long createdMillis = startMillis + TimeUnit.NANOSECONDS.toMillis(message.createdNanos - startNanos);
+
+      JsonObject json = new JsonObject();
+      json.addProperty("age", seconds(now - message.createdNanos));
+      json.addProperty("href", queue.href(message));
+      json.addProperty("created", iso8601.format(new Date(createdMillis)));
+      return json;
+   }
+
+   private static JsonArray nextLink(String href) {
+      JsonObject link = new JsonObject();
+      link.addProperty("href", href);
+      link.addProperty("rel", "next");
+      JsonArray links = new JsonArray();
+      links.add(link);
+      return links;
+   }
+
+   private static int limit(Map<String, String> params) {
+      if (!params.containsKey("limit")) {
+         return DEFAULT_LIMIT;
+      }
+      try {
+         int limit = Integer.parseInt(params.get("limit"));
+         if (limit < 1 || limit > MAX_LIMIT) {
+            throw new BadRequest("limit must be between 1 and " + MAX_LIMIT);
+         }
+         return limit;
+      }
+      catch (NumberFormatException e) {
+         throw new BadRequest("invalid limit " + params.get("limit"));
+      }
+   }
+
+   private static int ttl(JsonElement ttl, int max) {
+      int value = ttl == null ? MIN_TTL : ttl.getAsInt();
+      if (value < MIN_TTL || value > max) {
+         throw new BadRequest("ttl and grace must be between " + MIN_TTL + " and " + max);
+      }
+      return value;
+   }
+
+   private static Iterable<String> ids(Map<String, String> params) {
+      return Splitter.on(',').omitEmptyStrings().trimResults().split(params.get("ids"));
+   }
+
+   private static String clientId(RecordedRequest request) {
+      String clientId = request.getHeader("Client-ID");
+      if (clientId == null) {
+         throw new BadRequest("the Client-ID header is required");
+      }
+      return clientId;
+   }
+
+   private static JsonElement parse(RecordedRequest request) {
+      try {
+         return new JsonParser().parse(request.getUtf8Body());
+      }
+      catch (JsonParseException e) {
+         throw new BadRequest("malformed JSON");
+      }
+      catch (IllegalStateException e) {
+         throw new BadRequest("malformed JSON");
+      }
+   }
+
+   private static Map<String, String> parseQuery(String query) {
+      Map<String, String> params = Maps.newLinkedHashMap();
+      if (query == null) {
+         return params;
+      }
+      for (String pair : Splitter.on('&').omitEmptyStrings().split(query)) {
+         int eq = pair.indexOf('=');
+         params.put(decode(eq < 0 ? pair : pair.substring(0, eq)), eq < 0 ? "" : decode(pair.substring(eq + 1)));
+      }
+      return params;
+   }
+
+   private static String decode(String value) {
+      try {
+         return URLDecoder.decode(value, "UTF-8");
+      }
+      catch (UnsupportedEncodingException e) {
+         throw new AssertionError(e);
+      }
+   }
+
+   private static int seconds(long nanos) {
+      return (int) TimeUnit.NANOSECONDS.toSeconds(nanos);
+   }
+
+   private static MockResponse status(int code) {
+      return new MockResponse().setResponseCode(code);
+   }
+
+   private static MockResponse json(int code, Object body) {
+      return status(code).addHeader("Content-Type", "application/json").setBody(body.toString());
+   }
+
+   private static final class QueueState {
+      private final String name;
+      private final NavigableMap<Long, StoredMessage> messages = new TreeMap<Long, StoredMessage>();
+      private final Map<String, ClaimState> claims = Maps.newHashMap();
+      private JsonObject metadata = new JsonObject();
+
+      private QueueState(String name) {
+         this.name = name;
+      }
+
+      private String href(StoredMessage message) {
+         return "/v1/queues/" + name + "/messages/" + message.id;
+      }
+
+      private StoredMessage find(String id) {
+         try {
+            return messages.get(Long.parseLong(id, 16));
+         }
+         catch (NumberFormatException e) {
+            return null;
+         }
+      }
+
+      private void remove(StoredMessage message) {
+         messages.remove(message.sequence);
+         if (message.claim != null) {
+            message.claim.messages.remove(message);
+         }
+      }
+
+      private void release(ClaimState claim) {
+         claims.remove(claim.id);
+         for (StoredMessage message : claim.messages) {
+            message.claim = null;
+         }
+      }
+
+      /**
+       * Claimed messages live at least as long as the claim plus its grace period.
+       */
+      private void extend(ClaimState claim, long now) {
+         for (StoredMessage message : claim.messages) {
+            long age = TimeUnit.NANOSECONDS.toSeconds(now - message.createdNanos);
+            message.ttl = (int) Math.max(message.ttl, age + claim.ttl + claim.grace);
+         }
+      }
+
+      private void purge(long now) {
+         for (Iterator<ClaimState> i = claims.values().iterator(); i.hasNext();) {
+            ClaimState claim = i.next();
+            if (now - claim.updatedNanos >= TimeUnit.SECONDS.toNanos(claim.ttl)) {
+               i.remove();
+               for (StoredMessage message : claim.messages) {
+                  message.claim = null;
+               }
+            }
+         }
+         for (Iterator<StoredMessage> i = messages.values().iterator(); i.hasNext();) {
+            StoredMessage message = i.next();
+            if (now - message.createdNanos >= TimeUnit.SECONDS.toNanos(message.ttl)) {
+               i.remove();
+               if (message.claim != null) {
+                  message.claim.messages.remove(message);
+               }
+            }
+         }
+      }
+   }
+
+   private static final class StoredMessage {
+      private final long sequence;
+      private final String id;
+      private final JsonElement body;
+      private final long createdNanos;
+      private final String clientId;
+      private int ttl;
+      private ClaimState claim;
+
+      private StoredMessage(long sequence, JsonElement body, int ttl, long createdNanos, String clientId) {
+         this.sequence = sequence;
+         this.id = String.format("%024x", sequence);
+         this.body = body;
+         this.ttl = ttl;
+         this.createdNanos = createdNanos;
+         this.clientId = clientId;
+      }
+   }
+
+   private static final class ClaimState {
+      private final String id;
+      private final int grace;
+      private final List<StoredMessage> messages = Lists.newArrayList();
+      private int ttl;
+      private long updatedNanos;
+
+      private ClaimState(String id, int ttl, int grace, long updatedNanos) {
+         this.id = id;
+         this.ttl = ttl;
+         this.grace = grace;
+         this.updatedNanos = updatedNanos;
+      }
+   }
+
+   private static final class BadRequest extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+
+      private BadRequest(String message) {
+         super(message);
+      }
+   }
+}
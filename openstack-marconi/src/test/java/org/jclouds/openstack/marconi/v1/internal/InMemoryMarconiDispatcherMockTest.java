@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.internal;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import org.jclouds.openstack.marconi.v1.MarconiApi;
+import org.jclouds.openstack.marconi.v1.domain.Claim;
+import org.jclouds.openstack.marconi.v1.domain.CreateMessage;
+import org.jclouds.openstack.marconi.v1.domain.Message;
+import org.jclouds.openstack.marconi.v1.domain.MessageStream;
+import org.jclouds.openstack.marconi.v1.domain.Queue;
+import org.jclouds.openstack.marconi.v1.domain.QueueStats;
+import org.jclouds.openstack.marconi.v1.features.ClaimApi;
+import org.jclouds.openstack.marconi.v1.features.MessageApi;
+import org.jclouds.openstack.marconi.v1.features.QueueApi;
+import org.jclouds.openstack.marconi.v1.worker.ClaimWorkerPool;
+import org.jclouds.openstack.marconi.v1.worker.MessageHandler;
+import org.jclouds.openstack.v2_0.internal.BaseOpenStackMockTest;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.jclouds.openstack.marconi.v1.options.StreamMessagesOptions.Builder.echo;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+@Test
+public class InMemoryMarconiDispatcherMockTest extends BaseOpenStackMockTest<MarconiApi> {
+   private static final UUID PRODUCER_ID = UUID.fromString("3381af92-2b9e-11e3-b191-71861300734c");
+   private static final UUID CONSUMER_ID = UUID.fromString("3381af92-2b9e-11e3-b191-71861300734d");
+
+   public void queuesPageByName() throws Exception {
+      MockWebServer server = new InMemoryMarconiDispatcher(accessRackspace).start();
+
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         QueueApi queueApi = api.getQueueApi("DFW", PRODUCER_ID);
+
+         for (int i = 0; i < 25; i++) {
+            queueApi.create(String.format("jclouds-test-%02d", i));
+         }
+         queueApi.setMetadata("jclouds-test-00", ImmutableMap.of("key1", "value1"));
+
+         List<Queue> queues = queueApi.list(true).concat().toList();
+
+         assertEquals(queues.size(), 25);
+         assertEquals(queues.get(24).getName(), "jclouds-test-24");
+         assertEquals(queues.get(0).getMetadata().get(), ImmutableMap.of("key1", "value1"));
+         assertTrue(queueApi.exists("jclouds-test-24"));
+         assertTrue(queueApi.delete("jclouds-test-24"));
+         assertFalse(queueApi.exists("jclouds-test-24"));
+      }
+      finally {
+         server.shutdown();
+      }
+   }
+
+   public void streamHonorsEchoAndMarkers() throws Exception {
+      MockWebServer server = new InMemoryMarconiDispatcher(accessRackspace).start();
+
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         api.getQueueApi("DFW", PRODUCER_ID).create("jclouds-test");
+         MessageApi producer = api.getMessageApi("DFW", PRODUCER_ID, "jclouds-test");
+         MessageApi consumer = api.getMessageApi("DFW", CONSUMER_ID, "jclouds-test");
+
+         producer.create(messages(10));
+         producer.create(messages(5));
+
+         assertTrue(producer.stream().isEmpty());
+         assertEquals(producer.stream(echo(true)).size(), 10);
+
+         MessageStream first = consumer.stream();
+         assertEquals(first.size(), 10);
+         MessageStream second = consumer.stream(first.nextStreamOptions());
+         assertEquals(second.size(), 5);
+         assertTrue(second.get(4).getBody().contains("message-4"));
+         MessageStream third = consumer.stream(second.nextStreamOptions());
+         assertTrue(third.isEmpty());
+         assertFalse(third.nextMarker().isPresent());
+
+         QueueStats stats = api.getQueueApi("DFW", PRODUCER_ID).getStats("jclouds-test");
+         assertEquals(stats.getMessagesStats().getTotal(), 15);
+         assertEquals(stats.getMessagesStats().getFree(), 15);
+      }
+      finally {
+         server.shutdown();
+      }
+   }
+
+   public void claimsExpireAndReleaseMessages() throws Exception {
+      FakeTicker ticker = new FakeTicker();
+      InMemoryMarconiDispatcher marconi = new InMemoryMarconiDispatcher(accessRackspace, ticker);
+      MockWebServer server = marconi.start();
+
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         api.getQueueApi("DFW", PRODUCER_ID).create("jclouds-test");
+         api.getMessageApi("DFW", PRODUCER_ID, "jclouds-test").create(messages(3));
+         ClaimApi claimApi = api.getClaimApi("DFW", CONSUMER_ID, "jclouds-test");
+         MessageApi messageApi = api.getMessageApi("DFW", CONSUMER_ID, "jclouds-test");
+
+         List<Message> first = claimApi.claim(100, 60, 2);
+         List<Message> second = claimApi.claim(100, 60, 2);
+         assertEquals(first.size(), 2);
+         assertEquals(second.size(), 1);
+         assertTrue(claimApi.claim(100, 60, 2).isEmpty());
+         assertTrue(messageApi.stream().isEmpty());
+         assertEquals(messageApi.stream(echo(true).includeClaimed(true)).size(), 3);
+
+         String claimId = first.get(0).getClaimId().get();
+         Claim claim = claimApi.get(claimId);
+         assertEquals(claim.getTTL(), 100);
+         assertEquals(claim.getMessages().size(), 2);
+
+         try {
+            messageApi.deleteByClaim(first.get(0).getId(), second.get(0).getClaimId().get());
+            fail("deleting with another claim must be rejected");
+         }
+         catch (RuntimeException expected) {
+         }
+         assertTrue(messageApi.deleteByClaim(first.get(0).getId(), claimId));
+         assertEquals(marconi.countMessages("jclouds-test"), 2);
+
+         assertTrue(claimApi.release(second.get(0).getClaimId().get()));
+         assertEquals(claimApi.claim(100, 60, 2).size(), 1);
+
+         ticker.advance(101, TimeUnit.SECONDS);
+         assertNull(claimApi.get(claimId));
+         assertEquals(claimApi.claim(100, 60, 20).size(), 2);
+      }
+      finally {
+         server.shutdown();
+      }
+   }
+
+   public void workersHandleEveryMessageOnce() throws Exception {
+      InMemoryMarconiDispatcher marconi = new InMemoryMarconiDispatcher(accessRackspace);
+      MockWebServer server = marconi.start();
+
+      ClaimWorkerPool pool = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         api.getQueueApi("DFW", PRODUCER_ID).create("jclouds-test");
+         MessageApi producer = api.getMessageApi("DFW", PRODUCER_ID, "jclouds-test");
+         for (int i = 0; i < 10; i++) {
+            producer.create(messages(10));
+         }
+
+         final Set<String> handled = Sets.newConcurrentHashSet();
+         final AtomicInteger duplicates = new AtomicInteger();
+         final CountDownLatch done = new CountDownLatch(100);
+         pool = ClaimWorkerPool.builder(api.getClaimApi("DFW", CONSUMER_ID, "jclouds-test"),
+               api.getMessageApi("DFW", CONSUMER_ID, "jclouds-test"))
+               .workers(4)
+               .limit(5)
+               .idle(10, 50, TimeUnit.MILLISECONDS)
+               .handler(new MessageHandler() {
+                  @Override
+                  public void handle(Message message) {
+                     if (!handled.add(message.getId())) {
+                        duplicates.incrementAndGet();
+                     }
+                     done.countDown();
+                  }
+               })
+               .build()
+               .start();
+
+         assertTrue(done.await(30, TimeUnit.SECONDS));
+         assertTrue(pool.close(10, TimeUnit.SECONDS));
+         assertEquals(duplicates.get(), 0);
+         assertEquals(handled.size(), 100);
+         assertEquals(marconi.countMessages("jclouds-test"), 0);
+      }
+      finally {
+         if (pool != null) {
+            pool.close();
+         }
+         server.shutdown();
+      }
+   }
+
+   private static List<CreateMessage> messages(int count) {
+      List<CreateMessage> messages = Lists.newArrayList();
+      for (int i = 0; i < count; i++) {
+         messages.add(CreateMessage.builder().ttl(120).body("message-" + i).build());
+      }
+      return ImmutableList.copyOf(messages);
+   }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.metadata;
+
+import com.google.common.collect.ImmutableMap;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import org.jclouds.openstack.marconi.v1.MarconiApi;
+import org.jclouds.openstack.marconi.v1.features.QueueApi;
+import org.jclouds.openstack.marconi.v1.internal.FakeTicker;
+import org.jclouds.openstack.marconi.v1.internal.InMemoryMarconiDispatcher;
+import org.jclouds.openstack.v2_0.internal.BaseOpenStackMockTest;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+@Test
+public class QueueMetadataCacheMockTest extends BaseOpenStackMockTest<MarconiApi> {
+   private static final UUID CLIENT_ID = UUID.fromString("3381af92-2b9e-11e3-b191-71861300734c");
+   private static final Map<String, String> ROUTING = ImmutableMap.of("route", "eu-west");
+
+   public void readsThroughAndExpires() throws Exception {
+      MockWebServer server = new InMemoryMarconiDispatcher(accessRackspace).start();
+
+      try {
+         QueueApi queueApi = api(server.getUrl("/").toString(), "openstack-marconi").getQueueApi("DFW", CLIENT_ID);
+         queueApi.create("jclouds-test");
+         queueApi.setMetadata("jclouds-test", ROUTING);
+
+         FakeTicker ticker = new FakeTicker();
+         QueueMetadataCache cache = QueueMetadataCache.builder(queueApi).ttl(30, TimeUnit.SECONDS).ticker(ticker)
+               .build();
+         int requests = server.getRequestCount();
+         for (int i = 0; i < 100; i++) {
+            assertEquals(cache.get("jclouds-test"), ROUTING);
+         }
+         assertEquals(server.getRequestCount(), requests + 1);
+         assertEquals(cache.getStats().hitCount(), 99);
+
+         // changed by another client
+         queueApi.setMetadata("jclouds-test", ImmutableMap.of("route", "us-east"));
+         assertEquals(cache.get("jclouds-test"), ROUTING);
+         ticker.advance(31, TimeUnit.SECONDS);
+         assertEquals(cache.get("jclouds-test"), ImmutableMap.of("route", "us-east"));
+      }
+      finally {
+         server.shutdown();
+      }
+   }
+
+   public void writesThroughAndInvalidates() throws Exception {
+      MockWebServer server = new InMemoryMarconiDispatcher(accessRackspace).start();
+
+      try {
+         QueueApi queueApi = api(server.getUrl("/").toString(), "openstack-marconi").getQueueApi("DFW", CLIENT_ID);
+         queueApi.create("jclouds-test");
+         QueueMetadataCache cache = QueueMetadataCache.builder(queueApi).build();
+
+         int requests = server.getRequestCount();
+         cache.set("jclouds-test", ROUTING);
+         assertEquals(cache.get("jclouds-test"), ROUTING);
+         assertEquals(server.getRequestCount(), requests + 1, "set does not need a get to fill the cache");
+         assertEquals(queueApi.getMetadata("jclouds-test"), ROUTING);
+
+         queueApi.setMetadata("jclouds-test", ImmutableMap.of("route", "us-east"));
+         cache.invalidate("jclouds-test");
+         assertEquals(cache.get("jclouds-test"), ImmutableMap.of("route", "us-east"));
+
+         try {
+            cache.set("not a valid queue name", ROUTING);
+            fail("the server rejects invalid queue names");
+         }
+         catch (RuntimeException expected) {
+         }
+      }
+      finally {
+         server.shutdown();
+      }
+   }
+}
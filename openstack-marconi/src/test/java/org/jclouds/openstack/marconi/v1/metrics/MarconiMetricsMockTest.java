@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.metrics;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import org.jclouds.openstack.marconi.v1.MarconiApi;
+import org.jclouds.openstack.marconi.v1.domain.CreateMessage;
+import org.jclouds.openstack.marconi.v1.features.MessageApi;
+import org.jclouds.openstack.marconi.v1.features.QueueApi;
+import org.jclouds.openstack.marconi.v1.internal.InMemoryMarconiDispatcher;
+import org.jclouds.openstack.v2_0.internal.BaseOpenStackMockTest;
+import org.testng.annotations.Test;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.jclouds.openstack.marconi.v1.options.StreamMessagesOptions.Builder.echo;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+@Test
+public class MarconiMetricsMockTest extends BaseOpenStackMockTest<MarconiApi> {
+   private static final UUID CLIENT_ID = UUID.fromString("3381af92-2b9e-11e3-b191-71861300734c");
+
+   public void recordsOperationsPerQueue() throws Exception {
+      MockWebServer server = new InMemoryMarconiDispatcher(accessRackspace).start();
+
+      try {
+         InMemoryMetricsRegistry registry = new InMemoryMetricsRegistry();
+         MarconiApi api = MarconiMetrics.instrument(api(server.getUrl("/").toString(), "openstack-marconi"), registry);
+         QueueApi queueApi = api.getQueueApi("DFW", CLIENT_ID);
+         queueApi.create("hot");
+         queueApi.create("cold");
+
+         MessageApi hot = api.getMessageApi("DFW", CLIENT_ID, "hot");
+         for (int i = 0; i < 3; i++) {
+            hot.create(ImmutableList.of(CreateMessage.builder().ttl(120).body("{\"n\":1}").build(),
+                  CreateMessage.builder().ttl(120).body("{\"n\":2}").build()));
+         }
+         assertEquals(hot.stream(echo(true)).toList().size(), 6);
+         api.getMessageApi("DFW", CLIENT_ID, "cold")
+               .create(ImmutableList.of(CreateMessage.builder().ttl(120).body("{\"n\":3}").build()));
+         queueApi.getStats("hot");
+
+         OperationMetrics hotCreates = registry.get("message:create", "hot").get();
+         assertEquals(hotCreates.getRequests(), 3);
+         assertEquals(hotCreates.getErrors(), 0);
+         assertEquals(hotCreates.getPayloadBytes(), 3 * 2 * "{\"n\":1}".length());
+         assertEquals(hotCreates.getLatency().getCount(), 3);
+         assertTrue(hotCreates.getLatency().getValueAtPercentile(99, TimeUnit.NANOSECONDS) > 0);
+
+         assertEquals(registry.get("message:create", "cold").get().getRequests(), 1);
+         assertEquals(registry.get("queue:create", "hot").get().getRequests(), 1);
+         assertEquals(registry.get("queue:getStats", "hot").get().getRequests(), 1);
+         assertTrue(registry.get("message:stream", "hot").get().getPayloadBytes() > 0);
+         assertFalse(registry.get("message:stream", "cold").isPresent());
+         assertEquals(registry.getMetrics().size(), 6);
+      }
+      finally {
+         server.shutdown();
+      }
+   }
+
+   public void recordsErrorsByStatus() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(addCommonHeaders(new MockResponse().setBody(accessRackspace)));
+      server.enqueue(addCommonHeaders(new MockResponse().setResponseCode(409)));
+      server.enqueue(addCommonHeaders(new MockResponse().setResponseCode(400)));
+      server.enqueue(addCommonHeaders(new MockResponse().setResponseCode(404)));
+
+      try {
+         InMemoryMetricsRegistry registry = new InMemoryMetricsRegistry();
+         MarconiApi api = MarconiMetrics.instrument(api(server.getUrl("/").toString(), "openstack-marconi"), registry);
+         QueueApi queueApi = api.getQueueApi("DFW", CLIENT_ID);
+         MessageApi messageApi = api.getMessageApi("DFW", CLIENT_ID, "jclouds-test");
+         CreateMessage message = CreateMessage.builder().ttl(120).body("{}").build();
+
+         try {
+            messageApi.create(ImmutableList.of(message));
+            fail("the server returned 409");
+         }
+         catch (IllegalStateException expected) {
+         }
+         try {
+            messageApi.create(ImmutableList.of(message));
+            fail("the server returned 400");
+         }
+         catch (RuntimeException expected) {
+         }
+         // answered by a fallback, so not an error
+         assertFalse(queueApi.delete("jclouds-test"));
+
+         OperationMetrics creates = registry.get("message:create", "jclouds-test").get();
+         assertEquals(creates.getRequests(), 2);
+         assertEquals(creates.getErrorsByStatus(), ImmutableMap.of(400, 1L, 409, 1L));
+         assertEquals(creates.getPayloadBytes(), 0);
+         assertEquals(registry.get("queue:delete", "jclouds-test").get().getErrors(), 0);
+      }
+      finally {
+         server.shutdown();
+      }
+   }
+
+   public void histogramPercentilesAreWithinBucketPrecision() {
+      LatencyHistogram histogram = new LatencyHistogram();
+      for (long micros = 1; micros <= 1000; micros++) {
+         histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+      }
+      histogram.record(-1);
+
+      assertEquals(histogram.getCount(), 1001);
+      assertEquals(histogram.getMax(TimeUnit.MICROSECONDS), 1000);
+      assertWithinPrecision(histogram.getValueAtPercentile(50, TimeUnit.MICROSECONDS), 500);
+      assertWithinPrecision(histogram.getValueAtPercentile(99, TimeUnit.MICROSECONDS), 990);
+      assertEquals(histogram.getValueAtPercentile(100, TimeUnit.MICROSECONDS), 1000);
+      assertEquals(histogram.getValueAtPercentile(0, TimeUnit.NANOSECONDS), 0);
+
+      for (long value : new long[] { 0, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE }) {
+         int index = LatencyHistogram.indexOf(value);
+         assertTrue(LatencyHistogram.highestValueOf(index) >= value, Long.toString(value));
+         assertTrue(index == 0 || LatencyHistogram.highestValueOf(index - 1) < value, Long.toString(value));
+      }
+   }
+
+   private static void assertWithinPrecision(long actual, long expected) {
+      assertTrue(actual >= expected && actual <= expected + expected / LatencyHistogram.SUB_BUCKETS,
+            actual + " is not within the precision of " + expected);
+   }
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.paging;
+
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import org.jclouds.collect.IterableWithMarker;
+import org.jclouds.openstack.marconi.v1.MarconiApi;
+import org.jclouds.openstack.marconi.v1.config.MarconiProperties;
+import org.jclouds.openstack.marconi.v1.domain.Queue;
+import org.jclouds.openstack.marconi.v1.features.QueueApi;
+import org.jclouds.openstack.v2_0.internal.BaseOpenStackMockTest;
+import org.testng.annotations.Test;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+@Test
+public class PrefetchingPagedIterableMockTest extends BaseOpenStackMockTest<MarconiApi> {
+   private static final UUID CLIENT_ID = UUID.fromString("3381af92-2b9e-11e3-b191-71861300734c");
+   private static final String PAGE_1 = "{\"queues\": [{\"href\": \"/v1/queues/jclouds-test-1\", \"name\": \"jclouds-test-1\"}, {\"href\": \"/v1/queues/jclouds-test-2\", \"name\": \"jclouds-test-2\"}], \"links\": [{\"href\": \"/v1/queues?detailed=false&marker=jclouds-test-2\", \"rel\": \"next\"}]}";
+   private static final String PAGE_2 = "{\"queues\": [{\"href\": \"/v1/queues/jclouds-test-3\", \"name\": \"jclouds-test-3\"}, {\"href\": \"/v1/queues/jclouds-test-4\", \"name\": \"jclouds-test-4\"}], \"links\": [{\"href\": \"/v1/queues?marker=jclouds-test-4\", \"rel\": \"next\"}]}";
+
+   public void prefetchAllPagesBeforeConsuming() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(new MockResponse().setBody(accessRackspace));
+      server.enqueue(new MockResponse().setResponseCode(200).setBody(PAGE_1));
+      server.enqueue(new MockResponse().setResponseCode(200).setBody(PAGE_2));
+      server.enqueue(new MockResponse().setResponseCode(204));
+
+      try {
+         QueueApi queueApi = queueApi(server, 3);
+
+         Iterator<IterableWithMarker<Queue>> pages = queueApi.list(false).iterator();
+
+         assertEquals(server.takeRequest().getRequestLine(), "POST /tokens HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "GET /v1/123123/queues?detailed=false HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(),
+               "GET /v1/123123/queues?detailed=false&marker=jclouds-test-2 HTTP/1.1");
+         // the server link dropped detailed, so it is added back
+         assertEquals(server.takeRequest().getRequestLine(),
+               "GET /v1/123123/queues?marker=jclouds-test-4&detailed=false HTTP/1.1");
+
+         assertEquals(pages.next().size(), 2);
+         assertEquals(pages.next().size(), 2);
+         assertEquals(pages.next().size(), 0);
+         assertFalse(pages.hasNext());
+         assertEquals(server.getRequestCount(), 4);
+      }
+      finally {
+         server.shutdown();
+      }
+   }
+
+   public void prefetchDepthLimitsPagesAhead() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(new MockResponse().setBody(accessRackspace));
+      server.enqueue(new MockResponse().setResponseCode(200).setBody(PAGE_1));
+      server.enqueue(new MockResponse().setResponseCode(200).setBody(PAGE_2));
+      server.enqueue(new MockResponse().setResponseCode(204));
+
+      try {
+         QueueApi queueApi = queueApi(server, 1);
+
+         Iterator<IterableWithMarker<Queue>> pages = queueApi.list(false).iterator();
+
+         assertEquals(server.takeRequest().getRequestLine(), "POST /tokens HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "GET /v1/123123/queues?detailed=false HTTP/1.1");
+         Thread.sleep(200);
+         assertEquals(server.getRequestCount(), 2);
+
+         assertEquals(pages.next().size(), 2);
+         assertEquals(server.takeRequest().getRequestLine(),
+               "GET /v1/123123/queues?detailed=false&marker=jclouds-test-2 HTTP/1.1");
+      }
+      finally {
+         server.shutdown();
+      }
+   }
+
+   public void noPrefetchingWithADepthOfZero() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(new MockResponse().setBody(accessRackspace));
+      server.enqueue(new MockResponse().setResponseCode(200).setBody(PAGE_1));
+      server.enqueue(new MockResponse().setResponseCode(200).setBody(PAGE_2));
+      server.enqueue(new MockResponse().setResponseCode(204));
+
+      try {
+         QueueApi queueApi = queueApi(server, 0);
+
+         Iterator<IterableWithMarker<Queue>> pages = queueApi.list(false).iterator();
+         assertEquals(pages.next().size(), 2);
+         Thread.sleep(200);
+         assertEquals(server.getRequestCount(), 2);
+      }
+      finally {
+         server.shutdown();
+      }
+   }
+
+   public void concatAllQueues() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(new MockResponse().setBody(accessRackspace));
+      server.enqueue(new MockResponse().setResponseCode(200).setBody(PAGE_1));
+      server.enqueue(new MockResponse().setResponseCode(200).setBody(PAGE_2));
+      server.enqueue(new MockResponse().setResponseCode(204));
+
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+
+         List<Queue> queues = api.getQueueApi("DFW", CLIENT_ID).list(false).concat().toList();
+
+         assertEquals(queues.size(), 4);
+         assertEquals(queues.get(3).getName(), "jclouds-test-4");
+         assertEquals(server.getRequestCount(), 4);
+      }
+      finally {
+         server.shutdown();
+      }
+   }
+
+   public void failureIsThrownAfterEarlierPages() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(new MockResponse().setBody(accessRackspace));
+      server.enqueue(new MockResponse().setResponseCode(200).setBody(PAGE_1));
+      server.enqueue(new MockResponse().setResponseCode(409));
+
+      try {
+         QueueApi queueApi = queueApi(server, 2);
+
+         Iterator<IterableWithMarker<Queue>> pages = queueApi.list(false).iterator();
+
+         assertEquals(pages.next().size(), 2);
+         try {
+            pages.next();
+            fail("expected the failed page to be thrown");
+         }
+         catch (IllegalStateException expected) {
+            assertTrue(server.getRequestCount() >= 3);
+         }
+      }
+      finally {
+         server.shutdown();
+      }
+   }
+
+   private QueueApi queueApi(MockWebServer server, int prefetchDepth) {
+      Properties overrides = new Properties();
+      overrides.setProperty(MarconiProperties.QUEUE_LIST_PREFETCH_DEPTH, Integer.toString(prefetchDepth));
+      return api(server.getUrl("/").toString(), "openstack-marconi", overrides).getQueueApi("DFW", CLIENT_ID);
+   }
+}
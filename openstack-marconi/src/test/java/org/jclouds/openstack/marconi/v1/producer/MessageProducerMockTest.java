@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.producer;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import org.jclouds.openstack.marconi.v1.MarconiApi;
+import org.jclouds.openstack.marconi.v1.domain.CreateMessage;
+import org.jclouds.openstack.marconi.v1.features.MessageApi;
+import org.jclouds.openstack.v2_0.internal.BaseOpenStackMockTest;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+@Test
+public class MessageProducerMockTest extends BaseOpenStackMockTest<MarconiApi> {
+   private static final UUID CLIENT_ID = UUID.fromString("3381af92-2b9e-11e3-b191-71861300734c");
+
+   public void batchBySizeAndLinger() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(new MockResponse().setBody(accessRackspace));
+      server.enqueue(new MockResponse().setResponseCode(201).setBody("{\"partial\": false, \"resources\": [\"/v1/queues/jclouds-test/messages/5265540ef4919b655da1760a\", \"/v1/queues/jclouds-test/messages/5265540ef4919b655da1760b\"]}"));
+      server.enqueue(new MockResponse().setResponseCode(201).setBody("{\"partial\": false, \"resources\": [\"/v1/queues/jclouds-test/messages/5265540ef4919b655da1760c\"]}"));
+
+      MessageProducer producer = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         MessageApi messageApi = api.getMessageApi("DFW", CLIENT_ID, "jclouds-test");
+
+         producer = MessageProducer.builder(messageApi)
+               .maxBatchSize(2)
+               .linger(100, TimeUnit.MILLISECONDS)
+               .build();
+
+         ListenableFuture<String> id1 = producer.send(CreateMessage.builder().ttl(120).body("{\"n\":1}").build());
+         ListenableFuture<String> id2 = producer.send(CreateMessage.builder().ttl(120).body("{\"n\":2}").build());
+         ListenableFuture<String> id3 = producer.send(CreateMessage.builder().ttl(120).body("{\"n\":3}").build());
+
+         assertEquals(id1.get(5, TimeUnit.SECONDS), "5265540ef4919b655da1760a");
+         assertEquals(id2.get(5, TimeUnit.SECONDS), "5265540ef4919b655da1760b");
+         assertEquals(id3.get(5, TimeUnit.SECONDS), "5265540ef4919b655da1760c");
+
+         assertEquals(server.getRequestCount(), 3);
+         assertEquals(server.takeRequest().getRequestLine(), "POST /tokens HTTP/1.1");
+         RecordedRequest first = server.takeRequest();
+         assertEquals(first.getRequestLine(), "POST /v1/123123/queues/jclouds-test/messages HTTP/1.1");
+         assertEquals(first.getUtf8Body(), "[{\"ttl\":120,\"body\":\"{\\\"n\\\":1}\"},{\"ttl\":120,\"body\":\"{\\\"n\\\":2}\"}]");
+         RecordedRequest second = server.takeRequest();
+         assertEquals(second.getUtf8Body(), "[{\"ttl\":120,\"body\":\"{\\\"n\\\":3}\"}]");
+      }
+      finally {
+         if (producer != null) {
+            producer.close();
+         }
+         server.shutdown();
+      }
+   }
+
+   public void lateLingerTaskDoesNotSendTheNextBatch() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(new MockResponse().setBody(accessRackspace));
+      server.enqueue(new MockResponse().setResponseCode(201).setBody("{\"partial\": false, \"resources\": [\"/v1/queues/jclouds-test/messages/5265540ef4919b655da1760a\"]}"));
+      server.enqueue(new MockResponse().setResponseCode(201).setBody("{\"partial\": false, \"resources\": [\"/v1/queues/jclouds-test/messages/5265540ef4919b655da1760b\"]}"));
+
+      // keeps every linger task, so one can be run after it was cancelled, like a task that had already started
+      final List<Runnable> lingerTasks = Lists.newArrayList();
+      ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1) {
+         @Override
+         public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            lingerTasks.add(command);
+            return super.schedule(command, 1, TimeUnit.HOURS);
+         }
+      };
+
+      MessageProducer producer = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         producer = MessageProducer.builder(api.getMessageApi("DFW", CLIENT_ID, "jclouds-test"))
+               .scheduler(scheduler)
+               .executor(MoreExecutors.sameThreadExecutor())
+               .build();
+
+         ListenableFuture<String> id1 = producer.send(CreateMessage.builder().ttl(120).body("{\"n\":1}").build());
+         producer.flush();
+         assertEquals(id1.get(5, TimeUnit.SECONDS), "5265540ef4919b655da1760a");
+
+         ListenableFuture<String> id2 = producer.send(CreateMessage.builder().ttl(120).body("{\"n\":2}").build());
+         assertEquals(lingerTasks.size(), 2);
+         lingerTasks.get(0).run();
+         assertFalse(id2.isDone(), "the first batch's linger task sent the second batch");
+         assertEquals(server.getRequestCount(), 2);
+
+         lingerTasks.get(1).run();
+         assertEquals(id2.get(5, TimeUnit.SECONDS), "5265540ef4919b655da1760b");
+         assertEquals(server.getRequestCount(), 3);
+      }
+      finally {
+         if (producer != null) {
+            producer.close();
+         }
+         scheduler.shutdownNow();
+         server.shutdown();
+      }
+   }
+
+   public void failedBatchFailsEveryMessage() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(new MockResponse().setBody(accessRackspace));
+      server.enqueue(new MockResponse().setResponseCode(409));
+
+      MessageProducer producer = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         MessageApi messageApi = api.getMessageApi("DFW", CLIENT_ID, "jclouds-test");
+
+         producer = MessageProducer.builder(messageApi).linger(1, TimeUnit.HOURS).build();
+
+         ListenableFuture<String> id1 = producer.send(CreateMessage.builder().ttl(120).body("{\"n\":1}").build());
+         ListenableFuture<String> id2 = producer.send(CreateMessage.builder().ttl(120).body("{\"n\":2}").build());
+         producer.flush();
+
+         for (ListenableFuture<String> id : ImmutableList.of(id1, id2)) {
+            try {
+               id.get(5, TimeUnit.SECONDS);
+               fail("expected the batch to fail");
+            }
+            catch (ExecutionException e) {
+               assertTrue(e.getCause() instanceof IllegalStateException, e.getCause().toString());
+            }
+         }
+      }
+      finally {
+         if (producer != null) {
+            producer.close();
+         }
+         server.shutdown();
+      }
+   }
+
+   public void rejectedBatchFailsEveryMessage() throws Exception {
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      executor.shutdown();
+
+      MarconiApi api = api("http://localhost", "openstack-marconi");
+      MessageProducer producer = MessageProducer.builder(api.getMessageApi("DFW", CLIENT_ID, "jclouds-test"))
+            .maxBatchSize(2)
+            .executor(executor)
+            .build();
+      try {
+         ListenableFuture<String> id1 = producer.send(CreateMessage.builder().ttl(120).body("{\"n\":1}").build());
+         ListenableFuture<String> id2 = producer.send(CreateMessage.builder().ttl(120).body("{\"n\":2}").build());
+
+         for (ListenableFuture<String> id : ImmutableList.of(id1, id2)) {
+            try {
+               id.get(5, TimeUnit.SECONDS);
+               fail("expected the batch to be rejected");
+            }
+            catch (ExecutionException e) {
+               assertTrue(e.getCause() instanceof RejectedExecutionException, e.getCause().toString());
+            }
+         }
+      }
+      finally {
+         producer.close();
+      }
+   }
+}
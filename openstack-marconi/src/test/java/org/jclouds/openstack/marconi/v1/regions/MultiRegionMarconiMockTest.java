@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.regions;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import org.jclouds.openstack.marconi.v1.MarconiApi;
+import org.jclouds.openstack.marconi.v1.domain.CreateMessage;
+import org.jclouds.openstack.marconi.v1.domain.MessagesCreated;
+import org.jclouds.openstack.marconi.v1.domain.MessagesStats;
+import org.jclouds.openstack.marconi.v1.domain.QueueStats;
+import org.jclouds.openstack.marconi.v1.internal.InMemoryMarconiDispatcher;
+import org.jclouds.openstack.v2_0.internal.BaseOpenStackMockTest;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class MultiRegionMarconiMockTest extends BaseOpenStackMockTest<MarconiApi> {
+   private static final UUID CLIENT_ID = UUID.fromString("3381af92-2b9e-11e3-b191-71861300734c");
+
+   public void getStatsInEachRegion() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(new MockResponse().setBody(accessRackspace));
+      server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"messages\": {\"claimed\": 1, \"oldest\": {\"age\": 30, \"href\": \"/v1/queues/jclouds-test/messages/526558b3f4919b655feba3a7\", \"created\": \"2013-10-21T16:39:15Z\"}, \"total\": 4, \"newest\": {\"age\": 2, \"href\": \"/v1/queues/jclouds-test/messages/526558b33ac24e663fc545e7\", \"created\": \"2013-10-21T16:39:15Z\"}, \"free\": 3}}"));
+      server.enqueue(new MockResponse().setResponseCode(200).setBody("{\"messages\": {\"claimed\": 1, \"oldest\": {\"age\": 30, \"href\": \"/v1/queues/jclouds-test/messages/526558b3f4919b655feba3a7\", \"created\": \"2013-10-21T16:39:15Z\"}, \"total\": 4, \"newest\": {\"age\": 2, \"href\": \"/v1/queues/jclouds-test/messages/526558b33ac24e663fc545e7\", \"created\": \"2013-10-21T16:39:15Z\"}, \"free\": 3}}"));
+
+      MultiRegionMarconi regions = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         regions = MultiRegionMarconi.builder(api, CLIENT_ID).build();
+
+         assertEquals(regions.getRegions(), ImmutableSet.of("DFW", "ORD"));
+
+         RegionResults<QueueStats> stats = regions.getStats("jclouds-test");
+
+         assertFalse(stats.hasErrors());
+         assertEquals(stats.getResults().keySet(), ImmutableSet.of("DFW", "ORD"));
+         assertEquals(stats.getLatencyMillis().keySet(), ImmutableSet.of("DFW", "ORD"));
+
+         MessagesStats totals = MultiRegionMarconi.totals(stats);
+         assertEquals(totals.getTotal(), 8);
+         assertEquals(totals.getClaimed(), 2);
+         assertEquals(totals.getFree(), 6);
+         assertEquals(totals.getOldest().get().getAge(), 30);
+         assertEquals(totals.getNewest().get().getAge(), 2);
+
+         assertEquals(server.getRequestCount(), 3);
+      }
+      finally {
+         if (regions != null) {
+            regions.close();
+         }
+         server.shutdown();
+      }
+   }
+
+   public void reportFailedRegions() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(new MockResponse().setBody(accessRackspace));
+      server.enqueue(new MockResponse().setResponseCode(201).setBody("{\"partial\": false, \"resources\": [\"/v1/queues/jclouds-test/messages/526550ecef913e655ff84db8\"]}"));
+      server.enqueue(new MockResponse().setResponseCode(409));
+
+      MultiRegionMarconi regions = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         regions = MultiRegionMarconi.builder(api, CLIENT_ID).build();
+
+         RegionResults<MessagesCreated> created = regions.create("jclouds-test",
+               ImmutableList.of(CreateMessage.builder().ttl(120).body("{\"n\":1}").build()));
+
+         assertTrue(created.hasErrors());
+         assertEquals(created.getResults().size(), 1);
+         assertEquals(created.getErrors().size(), 1);
+         assertTrue(created.getErrors().values().iterator().next() instanceof IllegalStateException);
+         assertEquals(created.values().first().get().getMessageIds(), ImmutableList.of("526550ecef913e655ff84db8"));
+      }
+      finally {
+         if (regions != null) {
+            regions.close();
+         }
+         server.shutdown();
+      }
+   }
+
+   public void mergeQueuesAcrossRegions() throws Exception {
+      MockWebServer server = new InMemoryMarconiDispatcher(accessRackspace).start();
+
+      MultiRegionMarconi regions = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         // both regions of the mock server share one set of queues
+         api.getQueueApi("DFW", CLIENT_ID).create("jclouds-b");
+         api.getQueueApi("DFW", CLIENT_ID).create("jclouds-a");
+         regions = MultiRegionMarconi.builder(api, CLIENT_ID).build();
+
+         Map<String, Set<String>> merged = MultiRegionMarconi.regionsByQueue(regions.listQueues(false));
+
+         assertEquals(merged, ImmutableMap.of("jclouds-a", ImmutableSet.of("DFW", "ORD"),
+               "jclouds-b", ImmutableSet.of("DFW", "ORD")));
+         assertEquals(merged.keySet().iterator().next(), "jclouds-a");
+      }
+      finally {
+         if (regions != null) {
+            regions.close();
+         }
+         server.shutdown();
+      }
+   }
+
+   public void reportRegionsWithoutAResult() {
+      MultiRegionMarconi regions = MultiRegionMarconi.builder(api("http://localhost", "openstack-marconi"), CLIENT_ID)
+            .regions(ImmutableSet.of("DFW", "ORD"))
+            .build();
+      try {
+         RegionResults<String> results = regions.inEachRegion(new Function<String, String>() {
+            @Override
+            public String apply(String region) {
+               return "DFW".equals(region) ? "found" : null;
+            }
+         });
+
+         assertFalse(results.hasErrors());
+         assertEquals(results.getResults(), ImmutableMap.of("DFW", "found"));
+         assertEquals(results.getAbsent(), ImmutableSet.of("ORD"));
+      }
+      finally {
+         regions.close();
+      }
+   }
+}
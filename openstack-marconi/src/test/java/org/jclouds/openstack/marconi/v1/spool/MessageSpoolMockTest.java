@@ -0,0 +1,275 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.spool;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.openstack.marconi.v1.MarconiApi;
+import org.jclouds.openstack.marconi.v1.domain.CreateMessage;
+import org.jclouds.openstack.marconi.v1.domain.Message;
+import org.jclouds.openstack.marconi.v1.domain.MessagesCreated;
+import org.jclouds.openstack.marconi.v1.features.MessageApi;
+import org.jclouds.openstack.marconi.v1.features.QueueApi;
+import org.jclouds.openstack.marconi.v1.internal.InMemoryMarconiDispatcher;
+import org.jclouds.openstack.v2_0.internal.BaseOpenStackMockTest;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.jclouds.openstack.marconi.v1.options.StreamMessagesOptions.Builder.limit;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+@Test
+public class MessageSpoolMockTest extends BaseOpenStackMockTest<MarconiApi> {
+   private static final UUID PRODUCER_ID = UUID.fromString("3381af92-2b9e-11e3-b191-71861300734c");
+   private static final UUID CONSUMER_ID = UUID.fromString("3381af92-2b9e-11e3-b191-71861300734d");
+
+   public void spoolsDuringAnOutageAndReplaysInOrder() throws Exception {
+      InMemoryMarconiDispatcher marconi = new InMemoryMarconiDispatcher(accessRackspace);
+      MockWebServer server = marconi.start();
+      File directory = Files.createTempDir();
+
+      MessageSpool spool = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         QueueApi queueApi = api.getQueueApi("DFW", PRODUCER_ID);
+         queueApi.create("jclouds-test");
+         spool = MessageSpool.builder(api.getMessageApi("DFW", PRODUCER_ID, "jclouds-test"), queueApi,
+               "jclouds-test", directory).replayInterval(50, TimeUnit.MILLISECONDS).build();
+
+         assertTrue(spool.send(batch(0, 2)).isPresent());
+
+         marconi.setUnavailable(503);
+         assertFalse(spool.send(batch(2, 3)).isPresent());
+         assertFalse(spool.send(batch(5, 1)).isPresent());
+         assertEquals(spool.getStats().getDepth(), 2);
+         assertEquals(spool.getStats().getDepthMessages(), 4);
+         assertEquals(marconi.countMessages("jclouds-test"), 2);
+
+         spool.start();
+         Thread.sleep(200);
+         assertEquals(spool.getStats().getDepth(), 2, "nothing is replayed while the queue is unavailable");
+         assertTrue(spool.getStats().getAgeMillis() >= 200);
+
+         marconi.setUnavailable(0);
+         awaitEmpty(spool);
+         assertEquals(spool.getStats().getReplayed(), 4);
+         assertEquals(bodies(api.getMessageApi("DFW", CONSUMER_ID, "jclouds-test")), numbers(6));
+         assertTrue(spool.send(batch(6, 1)).isPresent(), "sent directly again once the spool is empty");
+      }
+      finally {
+         if (spool != null) {
+            spool.close();
+         }
+         server.shutdown();
+         delete(directory);
+      }
+   }
+
+   public void spooledBatchesSurviveARestart() throws Exception {
+      InMemoryMarconiDispatcher marconi = new InMemoryMarconiDispatcher(accessRackspace);
+      MockWebServer server = marconi.start();
+      File directory = Files.createTempDir();
+
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         QueueApi queueApi = api.getQueueApi("DFW", PRODUCER_ID);
+         MessageApi messageApi = api.getMessageApi("DFW", PRODUCER_ID, "jclouds-test");
+         queueApi.create("jclouds-test");
+
+         marconi.setUnavailable(500);
+         MessageSpool.Builder builder = MessageSpool.builder(messageApi, queueApi, "jclouds-test", directory)
+               .segmentSize(1024)
+               .sync(false);
+         MessageSpool spool = builder.build();
+         for (int i = 0; i < 20; i++) {
+            assertFalse(spool.send(batch(i * 2, 2)).isPresent());
+         }
+         assertTrue(spool.getStats().getSegments() > 1, "small segments roll over");
+         spool.close();
+
+         spool = builder.build();
+         assertEquals(spool.getStats().getDepth(), 20);
+         assertEquals(spool.getStats().getDepthMessages(), 40);
+         assertEquals(spool.replay(), 0);
+
+         marconi.setUnavailable(0);
+         assertEquals(spool.replay(), 20);
+         assertEquals(spool.getStats().getSegments(), 1, "replayed segments are deleted");
+         spool.close();
+
+         spool = builder.build();
+         assertEquals(spool.getStats().getDepth(), 0, "the checkpoint survives the restart too");
+         spool.close();
+
+         assertEquals(bodies(api.getMessageApi("DFW", CONSUMER_ID, "jclouds-test")), numbers(40));
+      }
+      finally {
+         server.shutdown();
+         delete(directory);
+      }
+   }
+
+   public void rejectedBatchesAreNotSpooled() throws Exception {
+      InMemoryMarconiDispatcher marconi = new InMemoryMarconiDispatcher(accessRackspace);
+      MockWebServer server = marconi.start();
+      File directory = Files.createTempDir();
+
+      MessageSpool spool = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         QueueApi queueApi = api.getQueueApi("DFW", PRODUCER_ID);
+         queueApi.create("jclouds-test");
+         spool = MessageSpool.builder(api.getMessageApi("DFW", PRODUCER_ID, "jclouds-test"), queueApi,
+               "jclouds-test", directory).build();
+
+         try {
+            // more messages than one request may carry
+            spool.send(batch(0, 11));
+            fail("the server returned 400");
+         }
+         catch (HttpResponseException expected) {
+            assertEquals(expected.getResponse().getStatusCode(), 400);
+         }
+         assertEquals(spool.getStats().getDepth(), 0);
+      }
+      finally {
+         if (spool != null) {
+            spool.close();
+         }
+         server.shutdown();
+         delete(directory);
+      }
+   }
+
+   public void directCreatesRunConcurrently() throws Exception {
+      final InMemoryMarconiDispatcher marconi = new InMemoryMarconiDispatcher(accessRackspace);
+      final CountDownLatch creating = new CountDownLatch(2);
+      MockWebServer server = new MockWebServer();
+      server.setDispatcher(new Dispatcher() {
+         @Override
+         public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+            if ("POST".equals(request.getMethod()) && request.getPath().endsWith("/messages")) {
+               // each create waits until the other one has started
+               creating.countDown();
+               creating.await(5, TimeUnit.SECONDS);
+            }
+            return marconi.dispatch(request);
+         }
+      });
+      server.play();
+      File directory = Files.createTempDir();
+      ExecutorService senders = Executors.newFixedThreadPool(2);
+
+      MessageSpool spool = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         QueueApi queueApi = api.getQueueApi("DFW", PRODUCER_ID);
+         queueApi.create("jclouds-test");
+         final MessageSpool sender = spool = MessageSpool.builder(api.getMessageApi("DFW", PRODUCER_ID,
+               "jclouds-test"), queueApi, "jclouds-test", directory).build();
+
+         List<Future<Optional<MessagesCreated>>> sends = Lists.newArrayList();
+         for (int i = 0; i < 2; i++) {
+            final List<CreateMessage> batch = batch(i * 5, 5);
+            sends.add(senders.submit(new Callable<Optional<MessagesCreated>>() {
+               @Override
+               public Optional<MessagesCreated> call() throws Exception {
+                  return sender.send(batch);
+               }
+            }));
+         }
+
+         assertTrue(creating.await(2, TimeUnit.SECONDS), "the second create waited for the first");
+         for (Future<Optional<MessagesCreated>> send : sends) {
+            assertTrue(send.get(5, TimeUnit.SECONDS).isPresent());
+         }
+         assertEquals(marconi.countMessages("jclouds-test"), 10);
+      }
+      finally {
+         senders.shutdownNow();
+         if (spool != null) {
+            spool.close();
+         }
+         server.shutdown();
+         delete(directory);
+      }
+   }
+
+   private static void delete(File directory) {
+      for (File file : directory.listFiles()) {
+         file.delete();
+      }
+      directory.delete();
+   }
+
+   private static void awaitEmpty(MessageSpool spool) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+      while (spool.getStats().getDepth() > 0 && System.currentTimeMillis() < deadline) {
+         Thread.sleep(20);
+      }
+      assertEquals(spool.getStats().getDepth(), 0);
+   }
+
+   private static List<CreateMessage> batch(int first, int count) {
+      List<CreateMessage> messages = Lists.newArrayList();
+      for (int i = first; i < first + count; i++) {
+         // alternate between string and raw bodies, which are spooled differently
+         CreateMessage.Builder builder = CreateMessage.builder().ttl(120);
+         String body = "{\"n\":" + i + "}";
+         messages.add(i % 2 == 0 ? builder.body(body).build() : builder.rawBody(body.getBytes(Charsets.UTF_8)).build());
+      }
+      return messages;
+   }
+
+   private static List<String> numbers(int count) {
+      List<String> numbers = Lists.newArrayList();
+      for (int i = 0; i < count; i++) {
+         numbers.add("{\"n\":" + i + "}");
+      }
+      return numbers;
+   }
+
+   private static List<String> bodies(MessageApi messageApi) {
+      List<String> bodies = Lists.newArrayList();
+      for (Message message : messageApi.stream(limit(20)).toList()) {
+         bodies.add(message.getBody());
+      }
+      for (Message message : messageApi.stream(limit(20).marker(String.format("%d", 20))).toList()) {
+         bodies.add(message.getBody());
+      }
+      return bodies;
+   }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.stats;
+
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import org.jclouds.openstack.marconi.v1.MarconiApi;
+import org.jclouds.openstack.marconi.v1.domain.QueueStats;
+import org.jclouds.openstack.v2_0.internal.BaseOpenStackMockTest;
+import org.testng.annotations.Test;
+
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class QueueStatsMonitorMockTest extends BaseOpenStackMockTest<MarconiApi> {
+   private static final UUID CLIENT_ID = UUID.fromString("3381af92-2b9e-11e3-b191-71861300734c");
+   private static final String EMPTY = "{\"messages\":{\"claimed\":0,\"total\":0,\"free\":0}}";
+   private static final String FOUR = "{\"messages\": {\"claimed\": 0, \"oldest\": {\"age\": 0, \"href\": \"/v1/queues/jclouds-test/messages/526558b3f4919b655feba3a7\", \"created\": \"2013-10-21T16:39:15Z\"}, \"total\": 4, \"newest\": {\"age\": 0, \"href\": \"/v1/queues/jclouds-test/messages/526558b33ac24e663fc545e7\", \"created\": \"2013-10-21T16:39:15Z\"}, \"free\": 4}}";
+   private static final String FIVE = FOUR.replace("\"total\": 4", "\"total\": 5").replace("\"free\": 4", "\"free\": 5");
+
+   public void notifyOnlyWhenThresholdsAreCrossed() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(new MockResponse().setBody(accessRackspace));
+      server.enqueue(new MockResponse().setResponseCode(200).setBody(EMPTY));
+      server.enqueue(new MockResponse().setResponseCode(200).setBody(FOUR));
+      server.enqueue(new MockResponse().setResponseCode(200).setBody(FIVE));
+      server.enqueue(new MockResponse().setResponseCode(200).setBody(EMPTY));
+
+      QueueStatsMonitor monitor = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         monitor = QueueStatsMonitor.builder(api.getQueueApi("DFW", CLIENT_ID))
+               .interval(50, TimeUnit.MILLISECONDS)
+               .jitter(0, TimeUnit.MILLISECONDS)
+               .thresholds(1, 100)
+               .build();
+
+         final BlockingQueue<QueueStats> notified = new LinkedBlockingQueue<QueueStats>();
+         monitor.addListener(new QueueStatsListener() {
+            @Override
+            public void onThresholdCrossed(String queue, QueueStats previous, QueueStats current) {
+               notified.add(current);
+            }
+         });
+         assertFalse(monitor.get("jclouds-test").isPresent());
+         monitor.watch("jclouds-test");
+
+         assertEquals(notified.poll(5, TimeUnit.SECONDS).getMessagesStats().getTotal(), 0);
+         assertEquals(notified.poll(5, TimeUnit.SECONDS).getMessagesStats().getTotal(), 4);
+         // 4 -> 5 stays between the thresholds
+         assertEquals(notified.poll(5, TimeUnit.SECONDS).getMessagesStats().getTotal(), 0);
+
+         monitor.unwatch("jclouds-test");
+         assertNull(notified.poll(200, TimeUnit.MILLISECONDS));
+         assertFalse(monitor.get("jclouds-test").isPresent());
+
+         assertEquals(server.takeRequest().getRequestLine(), "POST /tokens HTTP/1.1");
+         for (int i = 0; i < 4; i++) {
+            assertEquals(server.takeRequest().getRequestLine(), "GET /v1/123123/queues/jclouds-test/stats HTTP/1.1");
+         }
+      }
+      finally {
+         if (monitor != null) {
+            monitor.close();
+         }
+         server.enqueue(new MockResponse().setResponseCode(200).setBody(EMPTY));
+         server.shutdown();
+      }
+   }
+
+   public void slowPollsDoNotHoldUpOtherQueues() throws Exception {
+      final CountDownLatch fastPolls = new CountDownLatch(3);
+      MockWebServer server = new MockWebServer();
+      server.setDispatcher(new Dispatcher() {
+         @Override
+         public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+            if (request.getPath().equals("/tokens")) {
+               return new MockResponse().setBody(accessRackspace);
+            }
+            if (request.getPath().contains("/queues/slow/")) {
+               fastPolls.await(5, TimeUnit.SECONDS);
+            }
+            else {
+               fastPolls.countDown();
+            }
+            return new MockResponse().setResponseCode(200).setBody(EMPTY);
+         }
+      });
+      server.play();
+
+      QueueStatsMonitor monitor = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         monitor = QueueStatsMonitor.builder(api.getQueueApi("DFW", CLIENT_ID))
+               .interval(50, TimeUnit.MILLISECONDS)
+               .jitter(0, TimeUnit.MILLISECONDS)
+               .build();
+         monitor.watch("slow");
+         monitor.watch("fast");
+
+         assertTrue(fastPolls.await(2, TimeUnit.SECONDS), "the slow queue held up the polls of the fast one");
+      }
+      finally {
+         if (monitor != null) {
+            monitor.close();
+         }
+         server.shutdown();
+      }
+   }
+}
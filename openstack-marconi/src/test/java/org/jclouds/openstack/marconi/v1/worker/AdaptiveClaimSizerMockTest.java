@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.worker;
+
+import com.google.common.collect.Lists;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import org.jclouds.openstack.marconi.v1.MarconiApi;
+import org.jclouds.openstack.marconi.v1.domain.Claim;
+import org.jclouds.openstack.marconi.v1.domain.CreateMessage;
+import org.jclouds.openstack.marconi.v1.domain.Message;
+import org.jclouds.openstack.marconi.v1.features.MessageApi;
+import org.jclouds.openstack.marconi.v1.internal.InMemoryMarconiDispatcher;
+import org.jclouds.openstack.v2_0.internal.BaseOpenStackMockTest;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class AdaptiveClaimSizerMockTest extends BaseOpenStackMockTest<MarconiApi> {
+   private static final UUID PRODUCER_ID = UUID.fromString("3381af92-2b9e-11e3-b191-71861300734c");
+   private static final UUID CONSUMER_ID = UUID.fromString("3381af92-2b9e-11e3-b191-71861300734d");
+
+   public void fastHandlersClaimMoreMessagesForShorterTimes() {
+      AdaptiveClaimSizer sizer = AdaptiveClaimSizer.builder().build();
+      assertEquals(sizer.getLimit(), 10);
+      assertEquals(sizer.getTtl(), 300);
+
+      sizer.record(claim(300, 0), 10, TimeUnit.MILLISECONDS.toNanos(100));
+      assertEquals(sizer.getLimit(), 20);
+      assertEquals(sizer.getTtl(), 60, "the shortest ttl the API allows");
+   }
+
+   public void slowHandlersClaimFewerMessagesForLongerTimes() {
+      AdaptiveClaimSizer sizer = AdaptiveClaimSizer.builder().targetBatch(1, TimeUnit.MINUTES).build();
+
+      sizer.record(claim(300, 300), 10, TimeUnit.SECONDS.toNanos(300));
+      assertEquals(sizer.getLimit(), 2);
+      assertEquals(sizer.getTtl(), 120);
+
+      // a handler slower than the target batch still claims one message, with a ttl to match
+      sizer = AdaptiveClaimSizer.builder().targetBatch(1, TimeUnit.MINUTES).build();
+      sizer.record(claim(300, 1200), 2, TimeUnit.SECONDS.toNanos(1200));
+      assertEquals(sizer.getLimit(), 1);
+      assertEquals(sizer.getTtl(), 1200);
+
+      sizer.record(claim(1200, 86400), 1, TimeUnit.SECONDS.toNanos(86400));
+      assertEquals(sizer.getTtl(), 43200, "the longest ttl the API allows");
+   }
+
+   public void claimAgeOutweighsHandlerTime() {
+      AdaptiveClaimSizer sizer = AdaptiveClaimSizer.builder().smoothing(0.1).build();
+      sizer.record(claim(300, 1), 20, TimeUnit.MILLISECONDS.toNanos(20));
+      assertEquals(sizer.getLimit(), 20);
+
+      // the handler was quick, but the claim was held past its ttl, e.g. by slow deletes
+      sizer.record(claim(60, 90), 20, TimeUnit.MILLISECONDS.toNanos(20));
+      assertEquals(sizer.getSecondsPerMessage(), 4.5, 0.001);
+      assertEquals(sizer.getLimit(), 13);
+      assertEquals(sizer.getTtl(), 117);
+   }
+
+   public void poolClaimsWithTheSizersLimit() throws Exception {
+      MockWebServer server = new InMemoryMarconiDispatcher(accessRackspace).start();
+
+      ClaimWorkerPool pool = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         api.getQueueApi("DFW", PRODUCER_ID).create("jclouds-test");
+         MessageApi producer = api.getMessageApi("DFW", PRODUCER_ID, "jclouds-test");
+         for (int i = 0; i < 5; i++) {
+            List<CreateMessage> messages = Lists.newArrayList();
+            for (int j = 0; j < 10; j++) {
+               messages.add(CreateMessage.builder().ttl(120).body("{\"n\":" + (i * 10 + j) + "}").build());
+            }
+            producer.create(messages);
+         }
+         int requestsBefore = server.getRequestCount();
+
+         AdaptiveClaimSizer sizer = AdaptiveClaimSizer.builder().build();
+         final CountDownLatch done = new CountDownLatch(50);
+         pool = ClaimWorkerPool.builder(api.getClaimApi("DFW", CONSUMER_ID, "jclouds-test"),
+               api.getMessageApi("DFW", CONSUMER_ID, "jclouds-test"))
+               .adaptive(sizer)
+               .idle(10, 50, TimeUnit.MILLISECONDS)
+               .handler(new MessageHandler() {
+                  @Override
+                  public void handle(Message message) {
+                     done.countDown();
+                  }
+               })
+               .build()
+               .start();
+
+         assertTrue(done.await(30, TimeUnit.SECONDS));
+         assertTrue(pool.close(10, TimeUnit.SECONDS));
+         assertEquals(sizer.getLimit(), 20);
+         assertEquals(sizer.getTtl(), 60);
+
+         List<String> claims = Lists.newArrayList();
+         for (int i = 0; i < server.getRequestCount(); i++) {
+            RecordedRequest request = server.takeRequest();
+            if (i >= requestsBefore && request.getPath().contains("/claims?")) {
+               claims.add(request.getPath().substring(request.getPath().indexOf('?')) + " "
+                     + request.getUtf8Body());
+            }
+         }
+         assertTrue(claims.get(0).startsWith("?limit=10 "), claims.get(0));
+         assertTrue(claims.get(0).contains("\"ttl\":300"), claims.get(0));
+         assertTrue(claims.get(1).startsWith("?limit=20 "), claims.get(1));
+         assertTrue(claims.get(1).contains("\"ttl\":60"), claims.get(1));
+      }
+      finally {
+         if (pool != null) {
+            pool.close();
+         }
+         server.shutdown();
+      }
+   }
+
+   private static Claim claim(int ttl, int age) {
+      return Claim.builder().id("51db7067821e727dc24df754").ttl(ttl).age(age).build();
+   }
+}
@@ -0,0 +1,292 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.worker;
+
+import com.google.common.collect.Lists;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import org.jclouds.Constants;
+import org.jclouds.openstack.marconi.v1.MarconiApi;
+import org.jclouds.openstack.marconi.v1.domain.Claim;
+import org.jclouds.openstack.marconi.v1.domain.Message;
+import org.jclouds.openstack.v2_0.internal.BaseOpenStackMockTest;
+import org.jclouds.rest.ResourceNotFoundException;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class ClaimWorkerPoolMockTest extends BaseOpenStackMockTest<MarconiApi> {
+   private static final UUID CLIENT_ID = UUID.fromString("3381af92-2b9e-11e3-b191-71861300734c");
+   private static final String CLAIM = "{\"age\": 0, \"href\": \"/v1/queues/jclouds-test/claims/52a64d30ef913e6d05e7f786\", \"messages\": [], \"ttl\": 300}";
+   private static final String CLAIMED = "[{\"body\": \"{\\\"n\\\":1}\", \"age\": 1997, \"href\": \"/v1/queues/jclouds-test/messages/52a645633ac24e6f0be88d44?claim_id=52a64d30ef913e6d05e7f786\", \"ttl\": 86400}, {\"body\": \"{\\\"n\\\":2}\", \"age\": 981, \"href\": \"/v1/queues/jclouds-test/messages/52a6495bef913e6d195dcffe?claim_id=52a64d30ef913e6d05e7f786\", \"ttl\": 86400}]";
+
+   public void handleAndDeleteClaimedMessages() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(new MockResponse().setBody(accessRackspace));
+      server.enqueue(new MockResponse().setResponseCode(201).setBody(CLAIMED));
+      server.enqueue(new MockResponse().setBody(CLAIM));
+      server.enqueue(new MockResponse().setResponseCode(204));
+      server.enqueue(new MockResponse().setResponseCode(204));
+
+      final List<String> handled = Collections.synchronizedList(Lists.<String>newArrayList());
+      ClaimWorkerPool pool = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+
+         pool = ClaimWorkerPool.builder(api.getClaimApi("DFW", CLIENT_ID, "jclouds-test"),
+               api.getMessageApi("DFW", CLIENT_ID, "jclouds-test"))
+               .limit(2)
+               .idle(10, 10, TimeUnit.SECONDS)
+               .handler(new MessageHandler() {
+                  @Override
+                  public void handle(Message message) {
+                     handled.add(message.getId());
+                  }
+               })
+               .build()
+               .start();
+
+         assertEquals(server.takeRequest().getRequestLine(), "POST /tokens HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "POST /v1/123123/queues/jclouds-test/claims?limit=2 HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "GET /v1/123123/queues/jclouds-test/claims/52a64d30ef913e6d05e7f786 HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "DELETE /v1/123123/queues/jclouds-test/messages?ids=52a645633ac24e6f0be88d44,52a6495bef913e6d195dcffe HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "POST /v1/123123/queues/jclouds-test/claims?limit=2 HTTP/1.1");
+
+         assertTrue(pool.close(5, TimeUnit.SECONDS));
+         assertEquals(handled, Lists.newArrayList("52a645633ac24e6f0be88d44", "52a6495bef913e6d195dcffe"));
+
+         ClaimWorkerPool.Stats stats = pool.getStats();
+         assertEquals(stats.getClaims(), 1);
+         assertEquals(stats.getClaimed(), 2);
+         assertEquals(stats.getAcked(), 2);
+         assertEquals(stats.getFailed(), 0);
+      }
+      finally {
+         if (pool != null) {
+            pool.close();
+         }
+         server.shutdown();
+      }
+   }
+
+   public void releaseClaimWhenHandlerFails() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(new MockResponse().setBody(accessRackspace));
+      server.enqueue(new MockResponse().setResponseCode(201).setBody(CLAIMED));
+      server.enqueue(new MockResponse().setBody(CLAIM));
+      server.enqueue(new MockResponse().setResponseCode(204));
+      server.enqueue(new MockResponse().setResponseCode(204));
+      server.enqueue(new MockResponse().setResponseCode(204));
+
+      ClaimWorkerPool pool = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+
+         pool = ClaimWorkerPool.builder(api.getClaimApi("DFW", CLIENT_ID, "jclouds-test"),
+               api.getMessageApi("DFW", CLIENT_ID, "jclouds-test"))
+               .limit(2)
+               .idle(10, 10, TimeUnit.SECONDS)
+               .handler(new MessageHandler() {
+                  @Override
+                  public void handle(Message message) {
+                     if (message.getId().equals("52a6495bef913e6d195dcffe")) {
+                        throw new IllegalArgumentException("cannot handle " + message.getId());
+                     }
+                  }
+               })
+               .build()
+               .start();
+
+         assertEquals(server.takeRequest().getRequestLine(), "POST /tokens HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "POST /v1/123123/queues/jclouds-test/claims?limit=2 HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "GET /v1/123123/queues/jclouds-test/claims/52a64d30ef913e6d05e7f786 HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "DELETE /v1/123123/queues/jclouds-test/messages?ids=52a645633ac24e6f0be88d44 HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "DELETE /v1/123123/queues/jclouds-test/claims/52a64d30ef913e6d05e7f786 HTTP/1.1");
+
+         assertTrue(pool.close(5, TimeUnit.SECONDS));
+         assertEquals(pool.getStats().getAcked(), 1);
+         assertEquals(pool.getStats().getFailed(), 1);
+      }
+      finally {
+         if (pool != null) {
+            pool.close();
+         }
+         server.shutdown();
+      }
+   }
+
+   public void stopClaimingWhenTheClaimIsRejected() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(new MockResponse().setBody(accessRackspace));
+      server.enqueue(new MockResponse().setResponseCode(404));
+
+      ClaimWorkerPool pool = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+
+         pool = ClaimWorkerPool.builder(api.getClaimApi("DFW", CLIENT_ID, "jclouds-test"),
+               api.getMessageApi("DFW", CLIENT_ID, "jclouds-test"))
+               .idle(10, 10, TimeUnit.MILLISECONDS)
+               .handler(new MessageHandler() {
+                  @Override
+                  public void handle(Message message) {
+                  }
+               })
+               .build()
+               .start();
+
+         assertEquals(server.takeRequest().getRequestLine(), "POST /tokens HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "POST /v1/123123/queues/jclouds-test/claims?limit=10 HTTP/1.1");
+
+         assertTrue(pool.close(5, TimeUnit.SECONDS));
+         assertTrue(pool.getFailure().get() instanceof ResourceNotFoundException);
+         assertEquals(pool.getStats().getClaimErrors(), 0);
+         assertEquals(server.getRequestCount(), 2);
+      }
+      finally {
+         if (pool != null) {
+            pool.close();
+         }
+         server.shutdown();
+      }
+   }
+
+   public void retryRenewalUntilTheClaimExpires() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(new MockResponse().setBody(accessRackspace));
+      server.enqueue(new MockResponse().setResponseCode(201).setBody(CLAIMED));
+      server.enqueue(new MockResponse().setBody(CLAIM.replace("\"age\": 0", "\"age\": 58").replace("300", "60")));
+      server.enqueue(new MockResponse().setResponseCode(503));
+      server.enqueue(new MockResponse().setResponseCode(204));
+      server.enqueue(new MockResponse().setResponseCode(204));
+      server.enqueue(new MockResponse().setResponseCode(204));
+
+      ClaimWorkerPool pool = null;
+      try {
+         Properties overrides = new Properties();
+         overrides.setProperty(Constants.PROPERTY_MAX_RETRIES, "0");
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi", overrides);
+
+         pool = ClaimWorkerPool.builder(api.getClaimApi("DFW", CLIENT_ID, "jclouds-test"),
+               api.getMessageApi("DFW", CLIENT_ID, "jclouds-test"))
+               .limit(2)
+               .ttl(60)
+               .idle(10, 10, TimeUnit.SECONDS)
+               .handler(new MessageHandler() {
+                  @Override
+                  public void handle(Message message) throws InterruptedException {
+                     Thread.sleep(1000);
+                  }
+               })
+               .build()
+               .start();
+
+         assertEquals(server.takeRequest().getRequestLine(), "POST /tokens HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "POST /v1/123123/queues/jclouds-test/claims?limit=2 HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "GET /v1/123123/queues/jclouds-test/claims/52a64d30ef913e6d05e7f786 HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "PATCH /v1/123123/queues/jclouds-test/claims/52a64d30ef913e6d05e7f786 HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "PATCH /v1/123123/queues/jclouds-test/claims/52a64d30ef913e6d05e7f786 HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "DELETE /v1/123123/queues/jclouds-test/messages?ids=52a645633ac24e6f0be88d44,52a6495bef913e6d195dcffe HTTP/1.1");
+
+         assertTrue(pool.close(5, TimeUnit.SECONDS));
+         assertEquals(pool.getStats().getRenewals(), 1);
+         assertEquals(pool.getStats().getLostClaims(), 0);
+         assertEquals(pool.getStats().getAcked(), 2);
+      }
+      finally {
+         if (pool != null) {
+            pool.close();
+         }
+         server.shutdown();
+      }
+   }
+
+   public void stopHandlingMessagesOnceTheClaimIsLost() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(new MockResponse().setBody(accessRackspace));
+      server.enqueue(new MockResponse().setResponseCode(201).setBody(CLAIMED));
+      server.enqueue(new MockResponse().setBody(CLAIM.replace("\"age\": 0", "\"age\": 59").replace("300", "60")));
+      server.enqueue(new MockResponse().setResponseCode(404));
+      server.enqueue(new MockResponse().setResponseCode(204));
+      server.enqueue(new MockResponse().setResponseCode(204));
+
+      final List<String> handled = Collections.synchronizedList(Lists.<String>newArrayList());
+      ClaimWorkerPool pool = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+
+         pool = ClaimWorkerPool.builder(api.getClaimApi("DFW", CLIENT_ID, "jclouds-test"),
+               api.getMessageApi("DFW", CLIENT_ID, "jclouds-test"))
+               .limit(2)
+               .ttl(60)
+               .idle(10, 10, TimeUnit.SECONDS)
+               .handler(new MessageHandler() {
+                  @Override
+                  public void handle(Message message) throws InterruptedException {
+                     handled.add(message.getId());
+                     Thread.sleep(1000);
+                  }
+               })
+               .build()
+               .start();
+
+         assertEquals(server.takeRequest().getRequestLine(), "POST /tokens HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "POST /v1/123123/queues/jclouds-test/claims?limit=2 HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "GET /v1/123123/queues/jclouds-test/claims/52a64d30ef913e6d05e7f786 HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "PATCH /v1/123123/queues/jclouds-test/claims/52a64d30ef913e6d05e7f786 HTTP/1.1");
+         // the claim is gone, so it is not released and the second message is left for whoever claims it next
+         assertEquals(server.takeRequest().getRequestLine(), "DELETE /v1/123123/queues/jclouds-test/messages?ids=52a645633ac24e6f0be88d44 HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "POST /v1/123123/queues/jclouds-test/claims?limit=2 HTTP/1.1");
+
+         assertTrue(pool.close(5, TimeUnit.SECONDS));
+         assertEquals(handled, Lists.newArrayList("52a645633ac24e6f0be88d44"));
+         assertEquals(pool.getStats().getLostClaims(), 1);
+      }
+      finally {
+         if (pool != null) {
+            pool.close();
+         }
+         server.shutdown();
+      }
+   }
+
+   public void renewBeforeTheClaimRunsOut() {
+      MarconiApi api = api("http://localhost", "openstack-marconi");
+      ClaimWorkerPool pool = ClaimWorkerPool.builder(api.getClaimApi("DFW", CLIENT_ID, "jclouds-test"),
+            api.getMessageApi("DFW", CLIENT_ID, "jclouds-test"))
+            .renewAt(0.5)
+            .handler(new MessageHandler() {
+               @Override
+               public void handle(Message message) {
+               }
+            })
+            .build();
+
+      assertEquals(pool.renewDelayMillis(Claim.builder().id("1").ttl(300).age(0).build()), 150000);
+      assertEquals(pool.renewDelayMillis(Claim.builder().id("1").ttl(300).age(100).build()), 100000);
+      assertEquals(pool.renewDelayMillis(Claim.builder().id("1").ttl(300).age(400).build()), 0);
+      pool.close();
+   }
+}
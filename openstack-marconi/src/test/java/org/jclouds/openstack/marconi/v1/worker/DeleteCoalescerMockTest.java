@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.worker;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import org.jclouds.openstack.marconi.v1.MarconiApi;
+import org.jclouds.openstack.v2_0.internal.BaseOpenStackMockTest;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+@Test
+public class DeleteCoalescerMockTest extends BaseOpenStackMockTest<MarconiApi> {
+   private static final UUID CLIENT_ID = UUID.fromString("3381af92-2b9e-11e3-b191-71861300734c");
+   private static final String CLAIM = claim("52a8a379b04a584f2ec2bc3e", "52a8a379b04a584f2ec2bc3f", "52a8a379b04a584f2ec2bc40");
+
+   public void coalesceDeletesByClaim() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(new MockResponse().setBody(accessRackspace));
+      server.enqueue(new MockResponse().setResponseCode(200).setBody(CLAIM));
+      server.enqueue(new MockResponse().setResponseCode(204));
+      server.enqueue(new MockResponse().setResponseCode(200).setBody(CLAIM));
+      server.enqueue(new MockResponse().setResponseCode(204));
+
+      DeleteCoalescer coalescer = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         coalescer = DeleteCoalescer.builder(api, "DFW", CLIENT_ID)
+               .maxIdsPerRequest(2)
+               .linger(100, TimeUnit.MILLISECONDS)
+               // one request at a time, so they reach the server in the order asserted below
+               .maxInFlight(1)
+               .build();
+
+         ListenableFuture<Boolean> a = coalescer.delete("jclouds-test", "52a8a379b04a584f2ec2bc3e", "52a8d23eb04a584f1bbd4f47");
+         ListenableFuture<Boolean> b = coalescer.delete("jclouds-test", "52a8a379b04a584f2ec2bc3f", "52a8d23eb04a584f1bbd4f47");
+         ListenableFuture<Boolean> c = coalescer.delete("jclouds-test", "52a8a379b04a584f2ec2bc40", "52a8d23eb04a584f1bbd4f47");
+
+         assertTrue(a.get(5, TimeUnit.SECONDS));
+         assertTrue(b.get(5, TimeUnit.SECONDS));
+         assertTrue(c.get(5, TimeUnit.SECONDS));
+
+         assertEquals(server.getRequestCount(), 5);
+         assertEquals(server.takeRequest().getRequestLine(), "POST /tokens HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "GET /v1/123123/queues/jclouds-test/claims/52a8d23eb04a584f1bbd4f47 HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "DELETE /v1/123123/queues/jclouds-test/messages?ids=52a8a379b04a584f2ec2bc3e,52a8a379b04a584f2ec2bc3f HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "GET /v1/123123/queues/jclouds-test/claims/52a8d23eb04a584f1bbd4f47 HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "DELETE /v1/123123/queues/jclouds-test/messages?ids=52a8a379b04a584f2ec2bc40 HTTP/1.1");
+      }
+      finally {
+         if (coalescer != null) {
+            coalescer.close();
+         }
+         server.shutdown();
+      }
+   }
+
+   public void failDeletesOfExpiredClaim() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(new MockResponse().setBody(accessRackspace));
+      server.enqueue(new MockResponse().setResponseCode(404));
+
+      DeleteCoalescer coalescer = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         coalescer = DeleteCoalescer.builder(api, "DFW", CLIENT_ID).build();
+
+         ListenableFuture<Boolean> a = coalescer.delete("jclouds-test", "52a8a379b04a584f2ec2bc3e", "52a8d23eb04a584f1bbd4f47");
+         coalescer.flush();
+
+         try {
+            a.get(5, TimeUnit.SECONDS);
+            fail("expected the delete to fail");
+         }
+         catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException, e.getCause().toString());
+         }
+
+         assertEquals(server.getRequestCount(), 2);
+      }
+      finally {
+         if (coalescer != null) {
+            coalescer.close();
+         }
+         server.shutdown();
+      }
+   }
+
+   public void failDeletesOfMessagesTheClaimNoLongerHolds() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(new MockResponse().setBody(accessRackspace));
+      server.enqueue(new MockResponse().setResponseCode(200).setBody(claim("52a8a379b04a584f2ec2bc3e")));
+      server.enqueue(new MockResponse().setResponseCode(204));
+
+      DeleteCoalescer coalescer = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         coalescer = DeleteCoalescer.builder(api, "DFW", CLIENT_ID).build();
+
+         ListenableFuture<Boolean> a = coalescer.delete("jclouds-test", "52a8a379b04a584f2ec2bc3e", "52a8d23eb04a584f1bbd4f47");
+         ListenableFuture<Boolean> b = coalescer.delete("jclouds-test", "52a8a379b04a584f2ec2bc3f", "52a8d23eb04a584f1bbd4f47");
+         coalescer.flush();
+
+         assertTrue(a.get(5, TimeUnit.SECONDS));
+         try {
+            b.get(5, TimeUnit.SECONDS);
+            fail("expected the delete to fail");
+         }
+         catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException, e.getCause().toString());
+         }
+
+         assertEquals(server.takeRequest().getRequestLine(), "POST /tokens HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "GET /v1/123123/queues/jclouds-test/claims/52a8d23eb04a584f1bbd4f47 HTTP/1.1");
+         assertEquals(server.takeRequest().getRequestLine(), "DELETE /v1/123123/queues/jclouds-test/messages?ids=52a8a379b04a584f2ec2bc3e HTTP/1.1");
+      }
+      finally {
+         if (coalescer != null) {
+            coalescer.close();
+         }
+         server.shutdown();
+      }
+   }
+
+   public void rejectedDeletesFail() throws Exception {
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      executor.shutdown();
+
+      DeleteCoalescer coalescer = DeleteCoalescer.builder(api("http://localhost", "openstack-marconi"), "DFW", CLIENT_ID)
+            .maxIdsPerRequest(2)
+            .executor(executor)
+            .build();
+      try {
+         ListenableFuture<Boolean> a = coalescer.delete("jclouds-test", "52a8a379b04a584f2ec2bc3e", null);
+         ListenableFuture<Boolean> b = coalescer.delete("jclouds-test", "52a8a379b04a584f2ec2bc3f", null);
+
+         for (ListenableFuture<Boolean> deleted : ImmutableList.of(a, b)) {
+            try {
+               deleted.get(5, TimeUnit.SECONDS);
+               fail("expected the deletes to be rejected");
+            }
+            catch (ExecutionException e) {
+               assertTrue(e.getCause() instanceof RejectedExecutionException, e.getCause().toString());
+            }
+         }
+      }
+      finally {
+         coalescer.close();
+      }
+   }
+
+   public void chunkByIdsLength() {
+      DeleteCoalescer coalescer = DeleteCoalescer.builder(api("http://localhost", "openstack-marconi"), "DFW", CLIENT_ID)
+            .maxIdsPerRequest(3)
+            .maxIdsLength(11)
+            .build();
+
+      List<DeleteCoalescer.Pending> deletes = ImmutableList.of(new DeleteCoalescer.Pending("aaaaa"),
+            new DeleteCoalescer.Pending("bbbbb"), new DeleteCoalescer.Pending("ccccc"),
+            new DeleteCoalescer.Pending("dddddddddddddddd"), new DeleteCoalescer.Pending("e"),
+            new DeleteCoalescer.Pending("f"), new DeleteCoalescer.Pending("g"), new DeleteCoalescer.Pending("h"));
+
+      List<List<DeleteCoalescer.Pending>> chunks = coalescer.chunk(deletes);
+
+      assertEquals(chunks.size(), 5);
+      assertEquals(chunks.get(0).size(), 2);
+      assertEquals(chunks.get(1).size(), 1);
+      assertEquals(chunks.get(2).size(), 1);
+      assertEquals(chunks.get(2).get(0).getId(), "dddddddddddddddd");
+      assertEquals(chunks.get(3).size(), 3);
+      assertEquals(chunks.get(4).size(), 1);
+      coalescer.close();
+   }
+
+   private static String claim(String... ids) {
+      StringBuilder messages = new StringBuilder();
+      for (String id : ids) {
+         if (messages.length() > 0) {
+            messages.append(", ");
+         }
+         messages.append("{\"body\": {}, \"age\": 12, \"href\": \"/v1/queues/jclouds-test/messages/").append(id)
+               .append("?claim_id=52a8d23eb04a584f1bbd4f47\", \"ttl\": 86400}");
+      }
+      return "{\"age\": 209, \"href\": \"/v1/queues/jclouds-test/claims/52a8d23eb04a584f1bbd4f47\", \"messages\": ["
+            + messages + "], \"ttl\": 300}";
+   }
+}
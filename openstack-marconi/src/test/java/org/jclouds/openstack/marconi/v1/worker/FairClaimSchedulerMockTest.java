@@ -0,0 +1,212 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.marconi.v1.worker;
+
+import com.google.common.collect.ImmutableMultiset;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import org.jclouds.openstack.marconi.v1.MarconiApi;
+import org.jclouds.openstack.marconi.v1.domain.CreateMessage;
+import org.jclouds.openstack.marconi.v1.domain.Message;
+import org.jclouds.openstack.marconi.v1.features.MessageApi;
+import org.jclouds.openstack.marconi.v1.internal.InMemoryMarconiDispatcher;
+import org.jclouds.openstack.marconi.v1.metrics.InMemoryMetricsRegistry;
+import org.jclouds.openstack.marconi.v1.metrics.MarconiMetrics;
+import org.jclouds.openstack.marconi.v1.stats.QueueStatsMonitor;
+import org.jclouds.openstack.v2_0.internal.BaseOpenStackMockTest;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class FairClaimSchedulerMockTest extends BaseOpenStackMockTest<MarconiApi> {
+   private static final UUID PRODUCER_ID = UUID.fromString("3381af92-2b9e-11e3-b191-71861300734c");
+   private static final UUID CONSUMER_ID = UUID.fromString("3381af92-2b9e-11e3-b191-71861300734d");
+
+   public void busyQueuesShareByWeightAndQuietQueuesAreNotStarved() throws Exception {
+      MockWebServer server = new InMemoryMarconiDispatcher(accessRackspace).start();
+
+      FairClaimScheduler scheduler = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         produce(api, "busy", 100);
+         produce(api, "heavy", 100);
+         produce(api, "quiet", 3);
+
+         final List<String> handled = Collections.synchronizedList(Lists.<String>newArrayList());
+         final CountDownLatch done = new CountDownLatch(43);
+         scheduler = FairClaimScheduler.builder(api, "DFW", CONSUMER_ID)
+               .limit(5)
+               .idle(10, 50, TimeUnit.MILLISECONDS)
+               .handler(new QueueMessageHandler() {
+                  @Override
+                  public void handle(String queue, Message message) {
+                     handled.add(queue);
+                     done.countDown();
+                  }
+               })
+               .build()
+               .addQueue("busy")
+               .addQueue("heavy", 3)
+               .addQueue("quiet")
+               .start();
+
+         assertTrue(done.await(30, TimeUnit.SECONDS));
+         assertTrue(scheduler.close(10, TimeUnit.SECONDS));
+
+         List<String> first = Lists.newArrayList(handled.subList(0, 43));
+         // the quiet queue is served right after the first batch of each busy queue
+         assertEquals(first.subList(10, 13), Collections.nCopies(3, "quiet"));
+         Multiset<String> counts = ImmutableMultiset.copyOf(first);
+         assertEquals(counts.count("quiet"), 3);
+         assertEquals(counts.count("busy"), 10);
+         assertEquals(counts.count("heavy"), 30);
+
+         FairClaimScheduler.Stats stats = scheduler.getStats();
+         assertEquals(stats.getAcked(), handled.size());
+         assertEquals(stats.getClaimedByQueue().get("quiet").longValue(), 3);
+         assertTrue(stats.getEmptyClaims() > 0, "the drained quiet queue was claimed from again");
+      }
+      finally {
+         if (scheduler != null) {
+            scheduler.close();
+         }
+         server.shutdown();
+      }
+   }
+
+   public void queuesWithoutFreeMessagesAreSkipped() throws Exception {
+      MockWebServer server = new InMemoryMarconiDispatcher(accessRackspace).start();
+
+      FairClaimScheduler scheduler = null;
+      QueueStatsMonitor monitor = null;
+      try {
+         InMemoryMetricsRegistry registry = new InMemoryMetricsRegistry();
+         MarconiApi api = MarconiMetrics.instrument(api(server.getUrl("/").toString(), "openstack-marconi"),
+               registry);
+         produce(api, "busy", 30);
+         api.getQueueApi("DFW", PRODUCER_ID).create("empty");
+
+         monitor = QueueStatsMonitor.builder(api.getQueueApi("DFW", CONSUMER_ID))
+               .interval(50, TimeUnit.MILLISECONDS)
+               .jitter(0, TimeUnit.MILLISECONDS)
+               .build();
+         final CountDownLatch done = new CountDownLatch(30);
+         scheduler = FairClaimScheduler.builder(api, "DFW", CONSUMER_ID)
+               .workers(2)
+               .idle(10, 50, TimeUnit.MILLISECONDS)
+               .stats(monitor)
+               .handler(new QueueMessageHandler() {
+                  @Override
+                  public void handle(String queue, Message message) {
+                     done.countDown();
+                  }
+               })
+               .build()
+               .addQueue("busy")
+               .addQueue("empty");
+
+         long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+         while (!(monitor.get("busy").isPresent() && monitor.get("empty").isPresent())
+               && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+         }
+         assertTrue(monitor.get("empty").isPresent());
+         scheduler.start();
+
+         assertTrue(done.await(30, TimeUnit.SECONDS));
+         assertTrue(scheduler.close(10, TimeUnit.SECONDS));
+
+         FairClaimScheduler.Stats stats = scheduler.getStats();
+         assertEquals(stats.getAcked(), 30);
+         assertEquals(stats.getClaimedByQueue().get("busy").longValue(), 30);
+         assertTrue(stats.getSkipped() > 0);
+         assertFalse(registry.get("claim:claim", "empty").isPresent(), "the empty queue was never claimed from");
+         assertTrue(registry.get("claim:claim", "busy").isPresent());
+      }
+      finally {
+         if (scheduler != null) {
+            scheduler.close();
+         }
+         if (monitor != null) {
+            monitor.close();
+         }
+         server.shutdown();
+      }
+   }
+
+   public void queuesWhoseClaimsAreRejectedAreRemoved() throws Exception {
+      MockWebServer server = new InMemoryMarconiDispatcher(accessRackspace).start();
+
+      FairClaimScheduler scheduler = null;
+      try {
+         MarconiApi api = api(server.getUrl("/").toString(), "openstack-marconi");
+         produce(api, "present", 10);
+
+         final CountDownLatch done = new CountDownLatch(10);
+         scheduler = FairClaimScheduler.builder(api, "DFW", CONSUMER_ID)
+               .idle(10, 50, TimeUnit.MILLISECONDS)
+               .handler(new QueueMessageHandler() {
+                  @Override
+                  public void handle(String queue, Message message) {
+                     done.countDown();
+                  }
+               })
+               .build()
+               .addQueue("missing")
+               .addQueue("present")
+               .start();
+
+         assertTrue(done.await(30, TimeUnit.SECONDS));
+         assertTrue(scheduler.close(10, TimeUnit.SECONDS));
+
+         assertEquals(scheduler.getFailures().keySet(), ImmutableSet.of("missing"));
+         FairClaimScheduler.Stats stats = scheduler.getStats();
+         assertEquals(stats.getAcked(), 10);
+         assertEquals(stats.getClaimedByQueue().keySet(), ImmutableSet.of("present"));
+         assertEquals(stats.getClaimErrors(), 0);
+      }
+      finally {
+         if (scheduler != null) {
+            scheduler.close();
+         }
+         server.shutdown();
+      }
+   }
+
+   private static void produce(MarconiApi api, String queue, int count) {
+      api.getQueueApi("DFW", PRODUCER_ID).create(queue);
+      MessageApi producer = api.getMessageApi("DFW", PRODUCER_ID, queue);
+      for (int i = 0; i < count; i += 10) {
+         List<CreateMessage> messages = Lists.newArrayList();
+         for (int j = i; j < Math.min(count, i + 10); j++) {
+            messages.add(CreateMessage.builder().ttl(300).body("{\"n\":" + j + "}").build());
+         }
+         producer.create(messages);
+      }
+   }
+}